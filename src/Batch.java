@@ -0,0 +1,278 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * -batch: many files in one JVM, so they share the warm JIT of the compiler.
+ * The inputs are files, directories (every .c file below them), globs ("tests/**.c") and @FILE with one input
+ * per line. Each file is compiled by a task of a ForkJoinPool with -jobs threads: a Compilation with its own
+ * Options, then the task writes the outputs of the file itself, the same ones Compiler writes for it.
+ * The summary lists the files in the order of the inputs, whatever order they finished in; the exit status
+ * is 1 if any of them failed.
+ * Relative inputs are in the directory of the batch, the working directory of a client for Daemon.
+ * */
+class Batch
+{
+    private static final String SOURCE_SUFFIX = ".c";
+
+    /**
+     * What happened to one file
+     * */
+    private static class Outcome
+    {
+        String file;
+        long nanos;
+        long source_bytes;
+        long output_bytes;
+        String error;   //null if it compiled
+    }
+
+    private Options options;
+    private Path directory;
+    //Shared by the batches of Daemon, null for a pool of this batch alone
+    private ForkJoinPool pool;
+
+    public Batch(Options options)
+    {
+        this(options, Paths.get("").toAbsolutePath(), null);
+    }
+
+    public Batch(Options options, Path directory, ForkJoinPool pool)
+    {
+        this.options = options;
+        this.directory = directory;
+        this.pool = pool;
+    }
+
+    /**
+     * Compile everything, print the summary, return the exit status
+     * */
+    public int run(PrintStream out)
+    {
+        List<String> files;
+        try
+        {
+            files = expand(options.inputs, directory);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            out.println("Batch: "+e.getMessage());
+            return 1;
+        }
+        if(files.isEmpty())
+        {
+            out.println("Batch: no "+SOURCE_SUFFIX+" files in "+options.inputs);
+            return 1;
+        }
+        ForkJoinPool pool = this.pool;
+        if(pool == null)
+        {
+            int threads = options.jobs > 0 ? options.jobs : Runtime.getRuntime().availableProcessors();
+            pool = new ForkJoinPool(Math.min(threads, files.size()));
+        }
+        long start = System.nanoTime();
+        ArrayList<ForkJoinTask<Outcome>> tasks = new ArrayList<>();
+        for(String file : files)
+            tasks.add(pool.submit(() -> compile(file)));
+        ArrayList<Outcome> outcomes = new ArrayList<>();
+        for(ForkJoinTask<Outcome> task : tasks)
+        {
+            try
+            {
+                outcomes.add(task.get());
+            }
+            catch (InterruptedException | ExecutionException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        long nanos = System.nanoTime()-start;
+        if(pool != this.pool)
+            pool.shutdown();
+
+        int failed = 0;
+        long source_bytes = 0;
+        long output_bytes = 0;
+        for(Outcome o : outcomes)
+        {
+            if(o.error == null)
+                out.println(String.format("ok    %8.1f ms %8d -> %8d bytes  %s", o.nanos/1e6, o.source_bytes, o.output_bytes, o.file));
+            else
+            {
+                out.println(String.format("FAIL  %8.1f ms %8d bytes            %s: %s", o.nanos/1e6, o.source_bytes, o.file, o.error));
+                failed++;
+            }
+            source_bytes += o.source_bytes;
+            output_bytes += o.output_bytes;
+        }
+        double seconds = Math.max(nanos, 1)/1e9;
+        out.println(String.format("Compiled %d files, %d failed, in %d ms on %d threads: %.1f files/s, %.1f KB/s of source, %d bytes written",
+                files.size(), failed, nanos/1000000, pool.getParallelism(), files.size()/seconds, source_bytes/1024.0/seconds, output_bytes));
+        return failed == 0 ? 0 : 1;
+    }
+
+    /**
+     * The files the inputs name, each once, in the order of the inputs; a directory or glob in sorted order
+     * */
+    static List<String> expand(List<String> inputs, Path directory) throws IOException
+    {
+        LinkedHashSet<String> files = new LinkedHashSet<>();
+        for(String input : inputs)
+        {
+            if(input.startsWith("@"))
+            {
+                ArrayList<String> listed = new ArrayList<>();
+                for(String line : Files.readAllLines(directory.resolve(input.substring(1)), Charset.defaultCharset()))
+                    if(!line.trim().isEmpty() && !line.trim().startsWith("#"))
+                        listed.add(line.trim());
+                files.addAll(expand(listed, directory));
+            }
+            else if(isGlob(input))
+                files.addAll(glob(input, directory));
+            else if(Files.isDirectory(directory.resolve(input)))
+                files.addAll(walk(directory.resolve(input), directory, p -> p.toString().endsWith(SOURCE_SUFFIX)));
+            else if(Files.isRegularFile(directory.resolve(input)))
+                files.add(input);
+            else
+                throw new RuntimeException("Cannot find "+input);
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static boolean isGlob(String input)
+    {
+        for(char c : "*?[{".toCharArray())
+            if(input.indexOf(c) >= 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * The search starts at the directories of the glob before its first wildcard
+     * */
+    private static List<String> glob(String pattern, Path directory) throws IOException
+    {
+        String[] parts = pattern.split("/", -1);
+        StringBuilder root = new StringBuilder();
+        for(int i=0;i<parts.length-1 && !isGlob(parts[i]);i++)
+            root.append(parts[i]).append('/');
+        Path base = directory.resolve(root.toString());
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:"+pattern);
+        if(!Files.isDirectory(base))
+            return new ArrayList<>();
+        //Matched against the path as it is written in the pattern
+        boolean absolute = Paths.get(root.toString()).isAbsolute();
+        return walk(base, directory, p -> matcher.matches(absolute ? p : directory.relativize(p)));
+    }
+
+    /**
+     * The files below base, named relative to directory when they are in it
+     * */
+    private static List<String> walk(Path base, Path directory, Predicate<Path> filter) throws IOException
+    {
+        try(Stream<Path> paths = Files.walk(base))
+        {
+            return paths.filter(p -> Files.isRegularFile(p) && filter.test(p))
+                    .map(p -> p.startsWith(directory) ? directory.relativize(p).toString() : p.toString())
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * One file, on a thread of the pool
+     * */
+    private Outcome compile(String file)
+    {
+        Outcome o = new Outcome();
+        o.file = file;
+        long start = System.nanoTime();
+        try
+        {
+            Path path = directory.resolve(file);
+            byte[] source = Files.readAllBytes(path);
+            o.source_bytes = source.length;
+            o.output_bytes = write(path.toString(), new String(source, Charset.defaultCharset()));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            o.error = e.getMessage();
+        }
+        o.nanos = System.nanoTime()-start;
+        return o;
+    }
+
+    /**
+     * Compile and write the outputs like Compiler does for a single file, returns the bytes written
+     * */
+    private long write(String file, String source) throws IOException
+    {
+        Options file_options = options.forFile(file);
+        if(file_options.jvm)
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            check(new Compilation(file_options).compile(source, bytes));
+            String className = JvmBackend.className(file);
+            File classFile = new File(new File(file).getAbsoluteFile().getParentFile(), className+".class");
+            try(OutputStream out = new FileOutputStream(classFile))
+            {
+                bytes.writeTo(out);
+            }
+            return bytes.size();
+        }
+        //The MIPS text first, the other outputs are made from it
+        Options mips = options.forFile(file);
+        mips.binary = false;
+        mips.x86 = false;
+        StringBuilder program = new StringBuilder();
+        check(new Compilation(mips).compile(source, program));
+        long written = 0;
+        if(file_options.listing)
+            written += writeText(file+".output", program.toString());
+        if(file_options.x86)
+            written += writeText(file+".s", new X86Backend().translate(program.toString()));
+        if(file_options.binary)
+        {
+            MipsAssembler assembler = new MipsAssembler();
+            assembler.assemble(program.toString());
+            assembler.writeImage(file+".bin");
+            assembler.writeMap(file+".map");
+            written += new File(file+".bin").length()+new File(file+".map").length();
+        }
+        return written;
+    }
+
+    private static void check(Compilation.Result result)
+    {
+        if(!result.succeeded())
+            throw new RuntimeException(result.diagnostics.get(0).toString());
+    }
+
+    private static long writeText(String fileName, String text) throws IOException
+    {
+        try(PrintWriter out = new PrintWriter(fileName))
+        {
+            out.print(text);
+        }
+        return new File(fileName).length();
+    }
+}
@@ -0,0 +1,454 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Control flow clean up on the instructions of one function, run before they are written out
+ * - jumps to jumps go straight to the final target
+ * - "beq ...,L1 / j L2 / L1:" becomes "bne ...,L2 / L1:"
+ * - jumps and branches to the very next instruction are removed
+ * - code after j/jr that no label leads to is removed, as well as unused compiler labels (L0, L1 ...)
+ * - while loops get their test copied to the bottom, so each iteration runs one branch instead of a branch and a j
+ * - blocks only reached by a j are placed right after that j, so that it falls through
+ * Labels written by the user (dest) and the function label are never removed
+ * */
+public class CfgOptimizer
+{
+    //Loop tests longer than this are not copied to the bottom of the loop
+    private static final int MAX_ROTATED_TEST = 8;
+
+    private ArrayList<String> lines;
+    private int removed_jumps;
+    //Copying loop tests makes the code bigger, -Os does without
+    private boolean rotate;
+
+    public CfgOptimizer(List<String> lines)
+    {
+        this(lines, true);
+    }
+
+    public CfgOptimizer(List<String> lines, boolean rotate)
+    {
+        this.lines = new ArrayList<>(lines);
+        this.removed_jumps = 0;
+        this.rotate = rotate;
+    }
+
+    public ArrayList<String> optimize()
+    {
+        if(rotate)
+            rotateLoops();
+        simplify();
+        layout();
+        simplify();
+        return lines;
+    }
+
+    public int getRemovedJumps()
+    {
+        return removed_jumps;
+    }
+
+    //-----------------------------------------
+    // Helpers to look at one line of MIPS
+
+    static boolean isLabel(String line)
+    {
+        return line.endsWith(":") && !line.startsWith("#") && line.indexOf('\t') < 0 && line.indexOf(' ') < 0;
+    }
+
+    static String labelName(String line)
+    {
+        return line.substring(0, line.length()-1);
+    }
+
+    static boolean isInstruction(String line)
+    {
+        String s = line.trim();
+        return !s.isEmpty() && !s.startsWith("#") && !isLabel(s) && !s.startsWith(".");
+    }
+
+    static String opcode(String line)
+    {
+        String s = line.trim();
+        int end = 0;
+        while(end < s.length() && !Character.isWhitespace(s.charAt(end)))
+            end++;
+        return s.substring(0, end);
+    }
+
+    static String[] operands(String line)
+    {
+        String s = line.trim();
+        int comment = s.indexOf('#');
+        if(comment >= 0)
+            s = s.substring(0, comment);
+        s = s.substring(opcode(s).length()).trim();
+        if(s.isEmpty())
+            return new String[0];
+        String[] ops = s.split(",");
+        for(int i=0;i<ops.length;i++)
+            ops[i] = ops[i].trim();
+        return ops;
+    }
+
+    static String instruction(String op, String... args)
+    {
+        StringBuilder sb = new StringBuilder(op);
+        for(int i=0;i<args.length;i++)
+            sb.append(i == 0 ? "\t" : ",\t").append(args[i]);
+        return sb.toString();
+    }
+
+    /**
+     * Labels we generated ourselves, only referenced inside this function
+     * */
+    static boolean isLocalLabel(String name)
+    {
+        return name.matches("L\\d+\\w*");
+    }
+
+    static boolean isBranch(String op)
+    {
+        return op.equals("beq") || op.equals("bne");
+    }
+
+    /**
+     * The label a j/beq/bne goes to, null for anything else
+     * */
+    static String target(String line)
+    {
+        if(!isInstruction(line))
+            return null;
+        String op = opcode(line);
+        String[] ops = operands(line);
+        if(op.equals("j") && ops.length == 1)
+            return ops[0];
+        if(isBranch(op) && ops.length == 3)
+            return ops[2];
+        return null;
+    }
+
+    static String retarget(String line, String label)
+    {
+        String op = opcode(line);
+        String[] ops = operands(line);
+        ops[ops.length-1] = label;
+        return instruction(op, ops);
+    }
+
+    /**
+     * Control never goes on to the next line after j and jr
+     * */
+    static boolean isUnconditional(String line)
+    {
+        if(!isInstruction(line))
+            return false;
+        String op = opcode(line);
+        return op.equals("j") || op.equals("jr");
+    }
+
+    private int nextInstruction(int from)
+    {
+        for(int i=from;i<lines.size();i++)
+            if(isInstruction(lines.get(i)))
+                return i;
+        return -1;
+    }
+
+    private Map<String,Integer> labelPositions()
+    {
+        Map<String,Integer> positions = new HashMap<>();
+        for(int i=0;i<lines.size();i++)
+            if(isLabel(lines.get(i)))
+                positions.put(labelName(lines.get(i)), i);
+        return positions;
+    }
+
+    //-----------------------------------------
+    // Local clean up, repeated until nothing changes
+
+    private void simplify()
+    {
+        boolean changed = true;
+        while(changed)
+        {
+            changed = threadJumps();
+            changed |= invertBranches();
+            changed |= removeJumpsToNext();
+            changed |= removeUnreachable();
+            changed |= removeUnusedLabels();
+        }
+    }
+
+    /**
+     * A jump to a label that is directly followed by "j X" goes to X
+     * */
+    private boolean threadJumps()
+    {
+        boolean changed = false;
+        Map<String,Integer> positions = labelPositions();
+        for(int i=0;i<lines.size();i++)
+        {
+            String label = target(lines.get(i));
+            if(label == null)
+                continue;
+            String last = label;
+            Set<String> seen = new HashSet<>();
+            while(positions.containsKey(last) && seen.add(last))
+            {
+                int next = nextInstruction(positions.get(last));
+                if(next < 0 || !opcode(lines.get(next)).equals("j"))
+                    break;
+                last = target(lines.get(next));
+            }
+            if(!last.equals(label))
+            {
+                lines.set(i, retarget(lines.get(i), last));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * True if no instruction is between from and to (both excluded)
+     * */
+    private boolean noInstructionBetween(int from, int to)
+    {
+        for(int i=from+1;i<to;i++)
+            if(isInstruction(lines.get(i)))
+                return false;
+        return true;
+    }
+
+    private boolean labelBetween(int from, int to)
+    {
+        for(int i=from+1;i<to;i++)
+            if(isLabel(lines.get(i)))
+                return true;
+        return false;
+    }
+
+    /**
+     * Is the label at the next position where control would go after line "from"
+     * */
+    private boolean fallsInto(int from, String label)
+    {
+        for(int i=from+1;i<lines.size();i++)
+        {
+            String line = lines.get(i);
+            if(isInstruction(line))
+                return false;
+            if(isLabel(line) && labelName(line).equals(label))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * beq a,b,L1 / j L2 / L1:   ->   bne a,b,L2 / L1:
+     * */
+    private boolean invertBranches()
+    {
+        boolean changed = false;
+        for(int i=0;i<lines.size();i++)
+        {
+            String line = lines.get(i);
+            if(!isInstruction(line) || !isBranch(opcode(line)))
+                continue;
+            int j = nextInstruction(i+1);
+            if(j < 0 || !opcode(lines.get(j)).equals("j") || !noInstructionBetween(i, j) || labelBetween(i, j))
+                continue;
+            if(!fallsInto(j, target(line)))
+                continue;
+            String[] ops = operands(line);
+            String op = opcode(line).equals("beq") ? "bne" : "beq";
+            lines.set(i, instruction(op, ops[0], ops[1], target(lines.get(j))));
+            lines.remove(j);
+            removed_jumps++;
+            changed = true;
+        }
+        return changed;
+    }
+
+    private boolean removeJumpsToNext()
+    {
+        boolean changed = false;
+        for(int i=0;i<lines.size();i++)
+        {
+            String label = target(lines.get(i));
+            if(label != null && fallsInto(i, label))
+            {
+                lines.remove(i);
+                removed_jumps++;
+                i--;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Instructions after j/jr up to the next label can never run
+     * */
+    private boolean removeUnreachable()
+    {
+        boolean changed = false;
+        for(int i=0;i<lines.size();i++)
+        {
+            if(!isUnconditional(lines.get(i)))
+                continue;
+            int j = i+1;
+            while(j < lines.size() && !isLabel(lines.get(j)))
+            {
+                if(isInstruction(lines.get(j)))
+                {
+                    lines.remove(j);
+                    changed = true;
+                }
+                else
+                    j++;
+            }
+        }
+        return changed;
+    }
+
+    private boolean removeUnusedLabels()
+    {
+        Set<String> used = new HashSet<>();
+        for(String line : lines)
+        {
+            if(!isInstruction(line))
+                continue;
+            for(String op : operands(line))
+                used.add(op);
+        }
+        boolean changed = false;
+        for(int i=0;i<lines.size();i++)
+        {
+            String line = lines.get(i);
+            if(isLabel(line) && isLocalLabel(labelName(line)) && !used.contains(labelName(line)))
+            {
+                lines.remove(i--);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    //-----------------------------------------
+    // Loop rotation and block layout
+
+    /**
+     * Lt: test / beq $zero,r,Lx / body / j Lt
+     * becomes
+     * Lt: test / beq $zero,r,Lx / Ltb: body / test / bne $zero,r,Ltb
+     * */
+    private void rotateLoops()
+    {
+        Map<String,Integer> positions = labelPositions();
+        for(int i=0;i<lines.size();i++)
+        {
+            String line = lines.get(i);
+            if(!isInstruction(line) || !opcode(line).equals("j"))
+                continue;
+            String head = target(line);
+            if(!isLocalLabel(head) || !positions.containsKey(head) || positions.get(head) > i)
+                continue;
+            //The test: straight code from the head label to its first beq $zero
+            int start = positions.get(head);
+            int exit = -1;
+            ArrayList<String> test = new ArrayList<>();
+            for(int k=start+1;k<i && test.size() <= MAX_ROTATED_TEST;k++)
+            {
+                String t = lines.get(k);
+                if(isLabel(t) || (isInstruction(t) && opcode(t).equals("jal")))
+                    break;
+                if(!isInstruction(t))
+                    continue;
+                if(opcode(t).equals("beq") && operands(t)[0].equals("$zero") && operands(t).length == 3)
+                {
+                    exit = k;
+                    break;
+                }
+                test.add(t);
+            }
+            if(exit < 0 || test.size() > MAX_ROTATED_TEST)
+                continue;
+            //When the test fails at the bottom we fall through, so the loop exit has to follow the j
+            String[] cond = operands(lines.get(exit));
+            if(!fallsInto(i, cond[2]))
+                continue;
+            String body = head+"b";
+            if(positions.containsKey(body))
+                continue;
+            ArrayList<String> bottom = new ArrayList<>();
+            bottom.add("#Loop test repeated at the bottom");
+            bottom.addAll(test);
+            bottom.add(instruction("bne", cond[0], cond[1], body));
+            lines.remove(i);
+            lines.addAll(i, bottom);
+            lines.add(exit+1, body+":");
+            removed_jumps++;
+            positions = labelPositions();
+            i += bottom.size();
+        }
+    }
+
+    /**
+     * Blocks glued together by fall through form units. Each unit that ends with "j X" is followed
+     * by the unit starting with X when nothing else falls into it, the remaining units keep their order
+     * */
+    private void layout()
+    {
+        ArrayList<ArrayList<String>> units = new ArrayList<>();
+        ArrayList<String> unit = new ArrayList<>();
+        for(String line : lines)
+        {
+            unit.add(line);
+            if(isUnconditional(line))
+            {
+                units.add(unit);
+                unit = new ArrayList<>();
+            }
+        }
+        //Comments after the last jump stay at the end
+        ArrayList<String> tail = unit;
+
+        Map<String,Integer> heads = new HashMap<>();
+        for(int u=1;u<units.size();u++)
+        {
+            for(String line : units.get(u))
+            {
+                if(isInstruction(line))
+                    break;
+                if(isLabel(line))
+                    heads.put(labelName(line), u);
+            }
+        }
+
+        boolean[] placed = new boolean[units.size()];
+        ArrayList<String> result = new ArrayList<>();
+        int u = 0;
+        while(u >= 0)
+        {
+            placed[u] = true;
+            ArrayList<String> current = units.get(u);
+            result.addAll(current);
+            String last = current.get(current.size()-1);
+            int next = -1;
+            if(opcode(last).equals("j") && heads.containsKey(target(last)) && !placed[heads.get(target(last))])
+                next = heads.get(target(last));
+            for(int k=0;k<units.size() && next < 0;k++)
+                if(!placed[k])
+                    next = k;
+            u = next;
+        }
+        result.addAll(tail);
+        lines = result;
+    }
+}
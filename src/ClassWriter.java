@@ -0,0 +1,412 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM class files written byte by byte, for JitCompiler and JvmBackend.
+ * Version 49 needs no stack map frames, the verifier infers the types itself.
+ * Only what the two of them need: a constant pool, static or instance methods with labels, fields.
+ * */
+class ClassWriter implements Opcodes
+{
+    /**
+     * Defines the classes we write, it only lives in memory
+     * */
+    static class Loader extends ClassLoader
+    {
+        Loader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes)
+        {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * The constant pool of the class being written
+     * */
+    static class Pool
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Map<String,Integer> entries = new HashMap<>();
+        int count = 1;
+
+        private int entry(String key, byte[] data)
+        {
+            Integer index = entries.get(key);
+            if(index != null)
+                return index;
+            bytes.write(data, 0, data.length);
+            entries.put(key, count);
+            if(count == 0xffff)
+                throw new RuntimeException("Too many constants in one class");
+            return count++;
+        }
+
+        private static byte[] bytes(int tag, int... u2)
+        {
+            byte[] b = new byte[1+2*u2.length];
+            b[0] = (byte)tag;
+            for(int i=0;i<u2.length;i++)
+            {
+                b[1+2*i] = (byte)(u2[i] >> 8);
+                b[2+2*i] = (byte)u2[i];
+            }
+            return b;
+        }
+
+        int utf8(String s)
+        {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            try
+            {
+                DataOutputStream d = new DataOutputStream(b);
+                d.writeByte(1);
+                d.writeUTF(s);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+            return entry("U"+s, b.toByteArray());
+        }
+
+        int integer(int v)
+        {
+            return entry("I"+v, new byte[]{3, (byte)(v >> 24), (byte)(v >> 16), (byte)(v >> 8), (byte)v});
+        }
+
+        int string(String s)
+        {
+            return entry("S"+s, bytes(8, utf8(s)));
+        }
+
+        int type(String name)
+        {
+            return entry("C"+name, bytes(7, utf8(name)));
+        }
+
+        /**
+         * tag 9 is a field, 10 a method of a class, 11 a method of an interface
+         * */
+        int member(int tag, String owner, String name, String descriptor)
+        {
+            int nat = entry("N"+name+descriptor, bytes(12, utf8(name), utf8(descriptor)));
+            return entry(tag+owner+"."+name+descriptor, bytes(tag, type(owner), nat));
+        }
+    }
+
+    /**
+     * Bytecode with labels, the jumps are patched when the code is taken.
+     * Offsets have 16 bits; a wide method makes every jump a goto_w (behind the opposite branch for a condition)
+     * */
+    static class Method
+    {
+        Pool pool;
+        boolean wide;
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        ArrayList<Integer> labels = new ArrayList<>();
+        ArrayList<int[]> jumps = new ArrayList<>();     //position of the opcode, label
+
+        Method(Pool pool)
+        {
+            this(pool, false);
+        }
+
+        Method(Pool pool, boolean wide)
+        {
+            this.pool = pool;
+            this.wide = wide;
+        }
+
+        void op(int opcode)
+        {
+            code.write(opcode);
+        }
+
+        /**
+         * An instruction on a local, wide if its index needs two bytes
+         * */
+        void op(int opcode, int local)
+        {
+            if(local > 0xff)
+            {
+                code.write(WIDE);
+                code.write(opcode);
+                u2(local);
+                return;
+            }
+            code.write(opcode);
+            code.write(local);
+        }
+
+        void push(int v)
+        {
+            if(v >= -1 && v <= 5)
+                op(ICONST_0+v);
+            else if(v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE)
+            {
+                op(BIPUSH);
+                code.write(v);
+            }
+            else if(v >= Short.MIN_VALUE && v <= Short.MAX_VALUE)
+            {
+                op(SIPUSH);
+                u2(v);
+            }
+            else
+            {
+                op(LDC_W);
+                u2(pool.integer(v));
+            }
+        }
+
+        void push(String s)
+        {
+            op(LDC_W);
+            u2(pool.string(s));
+        }
+
+        void u2(int v)
+        {
+            code.write(v >> 8);
+            code.write(v);
+        }
+
+        void invokeInterface(String owner, String name, String descriptor, int slots)
+        {
+            op(INVOKEINTERFACE);
+            u2(pool.member(11, owner, name, descriptor));
+            code.write(slots);
+            code.write(0);
+        }
+
+        void invokeStatic(String owner, String name, String descriptor)
+        {
+            op(INVOKESTATIC);
+            u2(pool.member(10, owner, name, descriptor));
+        }
+
+        void invokeSpecial(String owner, String name, String descriptor)
+        {
+            op(INVOKESPECIAL);
+            u2(pool.member(10, owner, name, descriptor));
+        }
+
+        /**
+         * getstatic or putstatic
+         * */
+        void field(int opcode, String owner, String name, String descriptor)
+        {
+            op(opcode);
+            u2(pool.member(9, owner, name, descriptor));
+        }
+
+        /**
+         * anewarray, or ldc_w of a class
+         * */
+        void type(int opcode, String name)
+        {
+            op(opcode);
+            u2(pool.type(name));
+        }
+
+        int label()
+        {
+            labels.add(-1);
+            return labels.size()-1;
+        }
+
+        void place(int label)
+        {
+            labels.set(label, code.size());
+        }
+
+        boolean isPlaced(int label)
+        {
+            return labels.get(label) >= 0;
+        }
+
+        void jump(int opcode, int label)
+        {
+            if(wide && opcode != GOTO)
+            {
+                //ifeq <-> ifne, iflt <-> ifge ... if_icmpgt <-> if_icmple, over the goto_w
+                op(((opcode-IFEQ)^1)+IFEQ);
+                u2(8);
+                opcode = GOTO;
+            }
+            jumps.add(new int[]{code.size(), label});
+            if(wide)
+            {
+                op(GOTO_W);
+                u2(0);
+            }
+            else
+                op(opcode);
+            u2(0);
+        }
+
+        int size()
+        {
+            return code.size();
+        }
+
+        /**
+         * Some jump needs more than 16 bits, the code has to be written again as a wide method
+         * */
+        boolean hasFarJumps()
+        {
+            for(int[] j : jumps)
+            {
+                int offset = labels.get(j[1]) - j[0];
+                if(!wide && (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE))
+                    return true;
+            }
+            return false;
+        }
+
+        byte[] bytes()
+        {
+            if(hasFarJumps())
+                throw new RuntimeException("A jump in the class file is too far");
+            byte[] b = code.toByteArray();
+            for(int[] j : jumps)
+            {
+                int offset = labels.get(j[1]) - j[0];
+                int at = j[0]+1;
+                if(wide)
+                {
+                    b[at++] = (byte)(offset >> 24);
+                    b[at++] = (byte)(offset >> 16);
+                }
+                b[at++] = (byte)(offset >> 8);
+                b[at] = (byte)offset;
+            }
+            return b;
+        }
+    }
+
+    private Pool pool;
+    private int this_class;
+    private int super_class;
+    private ArrayList<Integer> interfaces;
+    private ByteArrayOutputStream fields;
+    private int field_count;
+    private ByteArrayOutputStream methods;
+    private int method_count;
+    private int code_name;
+
+    public ClassWriter(String name, String super_name, String... interface_names)
+    {
+        this.pool = new Pool();
+        this.this_class = pool.type(name);
+        this.super_class = pool.type(super_name);
+        this.interfaces = new ArrayList<>();
+        for(String i : interface_names)
+            interfaces.add(pool.type(i));
+        this.fields = new ByteArrayOutputStream();
+        this.field_count = 0;
+        this.methods = new ByteArrayOutputStream();
+        this.method_count = 0;
+        this.code_name = pool.utf8("Code");
+    }
+
+    public Pool getPool()
+    {
+        return pool;
+    }
+
+    public void field(int access, String name, String descriptor)
+    {
+        DataOutputStream out = new DataOutputStream(fields);
+        try
+        {
+            out.writeShort(access);
+            out.writeShort(pool.utf8(name));
+            out.writeShort(pool.utf8(descriptor));
+            out.writeShort(0);  //Attributes
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        field_count++;
+    }
+
+    public void method(int access, String name, String descriptor, Method method, int max_stack, int max_locals)
+    {
+        byte[] code = method.bytes();
+        if(code.length > 0xffff)
+            throw new RuntimeException("The code of "+name+" does not fit in a class file method");
+        DataOutputStream out = new DataOutputStream(methods);
+        try
+        {
+            out.writeShort(access);
+            out.writeShort(pool.utf8(name));
+            out.writeShort(pool.utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(code_name);
+            out.writeInt(12+code.length);
+            out.writeShort(max_stack);
+            out.writeShort(max_locals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0);  //Exception table
+            out.writeShort(0);  //Attributes
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        method_count++;
+    }
+
+    /**
+     * A constructor that only calls the one of Object
+     * */
+    public void defaultConstructor()
+    {
+        Method constructor = new Method(pool);
+        constructor.op(ALOAD, 0);
+        constructor.invokeSpecial("java/lang/Object", "<init>", "()V");
+        constructor.op(RETURN);
+        method(ACC_PUBLIC, "<init>", "()V", constructor, 1, 1);
+    }
+
+    public byte[] bytes()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(pool.count);
+            pool.bytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(this_class);
+            out.writeShort(super_class);
+            out.writeShort(interfaces.size());
+            for(int i : interfaces)
+                out.writeShort(i);
+            out.writeShort(field_count);
+            fields.writeTo(out);
+            out.writeShort(method_count);
+            methods.writeTo(out);
+            out.writeShort(0);  //Attributes
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The $t and $s registers each function may change, so that a call only saves the live registers the callee
+ * really overwrites.
+ * A function is generated before its callers, so when a call is compiled the set of the callee is complete:
+ * every $t and $s register its code names, and the sets of the functions it calls (bottom up over the call graph).
+ * A function that is not generated yet (a recursive call, a specialized clone still waiting) may change all of them.
+ * The runtime routines (Print_*, Save_t*, Restore_t*) leave $t and $s alone.
+ * */
+class ClobberSets
+{
+    private static final Pattern REGISTER = Pattern.compile("\\$[ts]\\d");
+
+    //$t0~$t9 and $s0~$s7, everything RegMgr hands out
+    static final HashSet<String> ALL = new HashSet<>();
+    static
+    {
+        for(int i=0;i<RegMgr.T_REGISTERS;i++)
+            ALL.add("$t"+i);
+        for(int i=0;i<8;i++)
+            ALL.add("$s"+i);
+    }
+
+    private Map<String,HashSet<String>> sets;
+
+    public ClobberSets()
+    {
+        this.sets = new HashMap<>();
+    }
+
+    public boolean isKnown(String func)
+    {
+        return sets.containsKey(func);
+    }
+
+    /**
+     * The registers a call to func may change
+     * */
+    public HashSet<String> get(String func)
+    {
+        HashSet<String> set = sets.get(func);
+        return set != null ? set : ALL;
+    }
+
+    /**
+     * code is the finished function, extra are registers it changes without naming them (asm clobbers)
+     * */
+    public void add(String name, List<String> code, Collection<String> extra)
+    {
+        HashSet<String> set = new HashSet<>(extra);
+        ArrayList<String> callees = new ArrayList<>();
+        for(String line : code)
+        {
+            int comment = line.indexOf('#');
+            if(comment >= 0)
+                line = line.substring(0, comment);
+            if(!CfgOptimizer.isInstruction(line))
+                continue;
+            Matcher m = REGISTER.matcher(line);
+            while(m.find())
+                set.add(m.group());
+            String op = CfgOptimizer.opcode(line);
+            if(op.equals("jal"))
+                callees.add(CfgOptimizer.operands(line)[0]);
+            else if(op.equals("jalr"))
+                set.addAll(ALL);
+        }
+        for(String callee : callees)
+        {
+            if(isRuntime(callee))
+                continue;
+            //A recursive call changes nothing the body does not change already
+            if(callee.equals(name))
+                continue;
+            set.addAll(get(callee));
+        }
+        set.retainAll(ALL);
+        sets.put(name, set);
+    }
+
+    private static boolean isRuntime(String label)
+    {
+        return label.equals(PrintRuntime.STRING) || label.equals(PrintRuntime.INT) || label.equals(PrintRuntime.FLUSH)
+                || label.startsWith("Save_t") || label.startsWith("Restore_t");
+    }
+}
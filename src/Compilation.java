@@ -0,0 +1,247 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * The compiler for use inside another program: source from a CharSequence or Reader, the program into an
+ * Appendable or an OutputStream. Every call has a SymTab, TokenMgr and Parser (with its RegMgr and StringMgr)
+ * of its own and nothing is static, so one JVM can run any number of compilations at the same time.
+ * Errors come back as diagnostics in the Result, nothing is printed and the process does not exit.
+ *  - text: the MIPS assembly, with x86 set the x86-64 assembly translated from it
+ *  - bytes: with binary set the image of MipsAssembler, with jvm set the class file of JvmBackend, else the text
+ * run, interpret and listing are for the command line and are ignored here.
+ * */
+public class Compilation
+{
+    //Class of the -jvm output when the options name no file
+    private static final String DEFAULT_CLASS = "Program";
+
+    /**
+     * One error. line and column are in the source, 0 when the error is in the generated code
+     * (assembler, backends) and has no position there
+     * */
+    public static class Diagnostic
+    {
+        public final int line;
+        public final int column;
+        public final String message;
+
+        Diagnostic(int line, int column, String message)
+        {
+            this.line = line;
+            this.column = column;
+            this.message = message;
+        }
+
+        @Override
+        public String toString()
+        {
+            return line > 0 ? line+":"+column+": "+message : message;
+        }
+    }
+
+    public static class Result
+    {
+        public final List<Diagnostic> diagnostics;
+        //What the passes reported, like Compiler prints it
+        public int removed_jumps;
+        public int removed_moves;
+        public int merged_functions;
+        //Characters or bytes written to the output
+        public int size;
+
+        Result()
+        {
+            this.diagnostics = new ArrayList<>();
+        }
+
+        public boolean succeeded()
+        {
+            return diagnostics.isEmpty();
+        }
+    }
+
+    private final Options options;
+
+    /**
+     * The options must not change while compilations with them run
+     * */
+    public Compilation(Options options)
+    {
+        this.options = options;
+    }
+
+    public Result compile(CharSequence source, Appendable out)
+    {
+        return compile(new StringReader(source.toString()), out);
+    }
+
+    public Result compile(CharSequence source, OutputStream out)
+    {
+        return compile(new StringReader(source.toString()), out);
+    }
+
+    /**
+     * Nothing is written to out if the compilation fails
+     * */
+    public Result compile(Reader source, Appendable out)
+    {
+        Result result = new Result();
+        if(options.binary || options.jvm)
+        {
+            result.diagnostics.add(new Diagnostic(0, 0, "Options -bin and -jvm have no text output"));
+            return result;
+        }
+        String text = text(source, result);
+        if(text == null)
+            return result;
+        try
+        {
+            out.append(text);
+        }
+        catch (IOException e)
+        {
+            result.diagnostics.add(new Diagnostic(0, 0, "Cannot write the output: "+e.getMessage()));
+            return result;
+        }
+        result.size = text.length();
+        return result;
+    }
+
+    /**
+     * Nothing is written to out if the compilation fails
+     * */
+    public Result compile(Reader source, OutputStream out)
+    {
+        Result result = new Result();
+        byte[] bytes = options.jvm ? jvm(source, result) : options.binary ? image(source, result) : utf8(text(source, result));
+        if(bytes == null)
+            return result;
+        try
+        {
+            out.write(bytes);
+        }
+        catch (IOException e)
+        {
+            result.diagnostics.add(new Diagnostic(0, 0, "Cannot write the output: "+e.getMessage()));
+            return result;
+        }
+        result.size = bytes.length;
+        return result;
+    }
+
+    /**
+     * Syntax errors, and the ones of the passes over each finished function, carry the position the parser stopped at
+     * */
+    private String mips(Reader source, Result result)
+    {
+        Scanner in = new Scanner(source);
+        StringWriter program = new StringWriter();
+        PrintWriter out = new PrintWriter(program);
+        Parser parser = null;
+        try
+        {
+            parser = new Parser(new SymTab(), new TokenMgr(in), out, options);
+            parser.parse();
+        }
+        catch (RuntimeException e)
+        {
+            result.diagnostics.add(diagnostic(parser != null ? parser.getCurrentToken() : null, e));
+            return null;
+        }
+        if(!readAll(in, result))
+            return null;
+        out.close();
+        result.removed_jumps = parser.getRemovedJumps();
+        result.removed_moves = parser.getRemovedMoves();
+        result.merged_functions = parser.getMergedFunctions();
+        return program.toString();
+    }
+
+    private String text(Reader source, Result result)
+    {
+        String program = mips(source, result);
+        if(program == null || !options.x86)
+            return program;
+        try
+        {
+            return new X86Backend().translate(program);
+        }
+        catch (RuntimeException e)
+        {
+            result.diagnostics.add(new Diagnostic(0, 0, e.getMessage()));
+            return null;
+        }
+    }
+
+    private byte[] image(Reader source, Result result)
+    {
+        String program = mips(source, result);
+        if(program == null)
+            return null;
+        MipsAssembler assembler = new MipsAssembler();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try
+        {
+            assembler.assemble(program);
+            assembler.writeImage(bytes);
+        }
+        catch (RuntimeException | IOException e)
+        {
+            result.diagnostics.add(new Diagnostic(0, 0, e.getMessage()));
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] jvm(Reader source, Result result)
+    {
+        Scanner in = new Scanner(source);
+        TokenMgr tm = new TokenMgr(in);
+        String className = options.inFileName != null ? JvmBackend.className(options.inFileName) : DEFAULT_CLASS;
+        JvmBackend backend = null;
+        byte[] bytes;
+        try
+        {
+            backend = new JvmBackend(tm, className);
+            bytes = backend.compile();
+        }
+        catch (RuntimeException e)
+        {
+            result.diagnostics.add(diagnostic(backend != null ? backend.getCurrentToken() : null, e));
+            return null;
+        }
+        return readAll(in, result) ? bytes : null;
+    }
+
+    private static Diagnostic diagnostic(Token at, RuntimeException e)
+    {
+        if(at == null)
+            return new Diagnostic(0, 0, e.getMessage());
+        return new Diagnostic(at.beginLine, at.beginColumn, e.getMessage());
+    }
+
+    /**
+     * Scanner keeps an IOException of the reader to itself, a source that could not be read is an error too
+     * */
+    private static boolean readAll(Scanner in, Result result)
+    {
+        if(in.ioException() == null)
+            return true;
+        result.diagnostics.add(new Diagnostic(0, 0, "Cannot read the source: "+in.ioException().getMessage()));
+        return false;
+    }
+
+    private static byte[] utf8(String text)
+    {
+        return text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -4,10 +4,6 @@
  * Time: April.2019
  * */
 
-import com.sun.org.apache.bcel.internal.generic.RET;
-import com.sun.org.apache.regexp.internal.RE;
-import org.omg.PortableInterceptor.SYSTEM_EXCEPTION;
-
 import java.io.*;
 import java.util.*;
 
@@ -16,154 +12,220 @@ public class Compiler
 {
     public static void main(String[] args) throws IOException
     {
-        if (args.length != 1)
+        Options options = null;
+        try
+        {
+            //命令行需要有待编译的文件名,以及可选的开关
+            options = Options.parse(args);
+        }
+        catch (RuntimeException e)
         {
-            //命令行需要有待编译的文件名
-            System.err.println("Wrong number cmd line args");
+            System.err.println(e.getMessage());
             System.exit(1);
         }
         boolean debug = false;
-        System.out.println("Directory: "+System.getProperty("user.dir"));
         //输入为一个.c--
-        String inFileName = args[0];
+        if(options.daemon)
+        {
+            new Daemon(options).serve();
+            return;
+        }
+        if(options.client)
+        {
+            int status = Daemon.client(options, args);
+            if(status != 0)
+                System.exit(status);
+            return;
+        }
+        if(options.batch)
+        {
+            int status = new Batch(options).run(System.out);
+            if(status != 0)
+                System.exit(status);
+            return;
+        }
+        String inFileName = options.inFileName;
+        if(options.jvm)
+        {
+            compileJvm(options);
+            return;
+        }
+        if(options.interpret)
+        {
+            interpret(options);
+            return;
+        }
         //输出为一个.a文件，可以为我们的assembler使用
-        String outFileName = args[0] + ".output";
-        //文件读取
-        Scanner inFile = new Scanner(new File(inFileName));
-        //文件输出
-        PrintWriter outFile = new PrintWriter(outFileName);
-        //符号表
-        SymTab st = new SymTab();
-        //词法分析器
-        TokenMgr tm =  new TokenMgr(inFile);
-        //语法分析器
-        Parser parser = new Parser(st, tm, outFile);
-
+        String outFileName = inFileName + ".output";
+        //The MIPS text first, -x86, -bin and -run are made from it like Batch does
+        Options mips = options.forFile(inFileName);
+        mips.binary = false;
+        mips.x86 = false;
+        StringBuilder program = new StringBuilder();
+        Compilation.Result result;
+        try(Reader inFile = new FileReader(inFileName))
+        {
+            result = new Compilation(mips).compile(inFile, program);
+        }
+        //编译错误，写进.output的也只有错误
+        if(!result.succeeded())
+        {
+            for(Compilation.Diagnostic d : result.diagnostics)
+            {
+                System.err.println(inFileName+":"+d);
+                program.append(d).append('\n');
+            }
+            writeListing(outFileName, program, options);
+            System.exit(1);
+        }
+        writeListing(outFileName, program, options);
+        System.out.println("Removed "+result.removed_jumps+" jumps, eliminated "+result.removed_moves+" moves, merged "
+                +result.merged_functions+" functions");
+        if(options.x86)
+            writeX86(inFileName + ".s", program);
+        if(!options.binary && !options.run)
+            return;
+        MipsAssembler assembler = new MipsAssembler();
         try
         {
-            parser.parse();
+            assembler.assemble(program.toString());
         }
-        //编译错误
         catch (RuntimeException e)
         {
             System.err.println(e.getMessage());
-            outFile.println(e.getMessage());
-            outFile.close();
             System.exit(1);
         }
-        outFile.close();
+        if(options.binary)
+        {
+            assembler.writeImage(inFileName + ".bin");
+            assembler.writeMap(inFileName + ".map");
+            System.out.println("Wrote "+4*assembler.getText().length+" bytes of code and "+assembler.getData().length
+                    +" bytes of data, relaxed "+assembler.getRelaxedBranches()+" branches");
+        }
+        if(options.run)
+            run(assembler, options.jit);
     }
-}
 
+    //Instructions the simulator runs before it gives up on a program
+    private static final long MAX_STEPS = 1L << 32;
 
-/**这个接口定义了各种我们可能使用到的标识符类型
- * 后续词法分析器和语法分析器等都是对这个接口的实现
- * */
-interface Constants
-{
-    // integers that identify token kinds
-    int EOF = 0;
-    int PRINTLN = 1;
-    int UNSIGNED = 2;
-    int ID = 3;
-    int ASSIGN = 4;
-    int SEMICOLON = 5;
-    int LEFTPAREN = 6;
-    int RIGHTPAREN = 7;
-    int PLUS = 8;
-    int MINUS = 9;
-    int TIMES = 10;
-    int ERROR = 11;
-    int DIVIDE = 12;
-    int LEFTBRACE = 13;
-    int RIGHTBRACE = 14;
-    int STRING = 15;
-    //switch expression
-    int WHILE = 16;
-    int IF = 17;
-    int ELSE = 18;
-    //boolean expression
-    int EQUAL = 19;
-    int GREATER_THAN = 20;
-    int SMALLER_THAN = 21;
-    int GREATER_EQUAL_THAN = 22;
-    int SMALLER_EQUAL_THAN = 23;
-    int INT = 24;   //Used as variable type
-    int RETURN = 25;
-    int DEF = 26;
-    int VOID = 27;
-    int CAL = 28;
-    int AND = 29;
-    int OR = 30;
-    int COMMA = 31;
-    int END = 32;
-    int SWITCH = 33;
-    int CASE = 34;
-    int DEFAULT = 35;
-    int COLON = 36;
-    int GOTO = 37;
-    int BREAK = 38;
-    int CONTINUE = 39;
-    int DEST = 40;
-    int ARRAY = 41; //Used as variable type
-    int LEFTBRACKET = 42;
-    int RIGHTBRACKET = 43;
-
-    int CONST = 44; //Used as variable type
-    int ARGS = 45;  //Used as variable type
+    private static void run(MipsAssembler assembler, boolean jit)
+    {
+        MipsSimulator simulator = new MipsSimulator(assembler, MAX_STEPS);
+        if(jit)
+            simulator.useJit();
+        int exit_code;
+        try
+        {
+            exit_code = simulator.run(System.out);
+        }
+        catch (RuntimeException e)
+        {
+            System.out.flush();
+            System.err.println(e.getMessage());
+            simulator.report(System.err);
+            System.exit(1);
+            return;
+        }
+        System.out.flush();
+        simulator.report(System.err);
+        if(exit_code != 0)
+            System.exit(exit_code);
+    }
 
-    int EXIT = 46; //Used as the force quit of the hole program
-    int ASSERT = 47;
+    /**
+     * -jvm: the class goes next to the source, so that "java -cp DIR:COMPILER NAME" runs it
+     * */
+    private static void compileJvm(Options options) throws IOException
+    {
+        String className = JvmBackend.className(options.inFileName);
+        byte[] bytes;
+        try
+        {
+            bytes = new JvmBackend(new TokenMgr(new Scanner(new File(options.inFileName))), className).compile();
+        }
+        catch (RuntimeException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        File classFile = new File(new File(options.inFileName).getAbsoluteFile().getParentFile(), className+".class");
+        try(FileOutputStream out = new FileOutputStream(classFile))
+        {
+            out.write(bytes);
+        }
+        System.out.println("Wrote "+bytes.length+" bytes of class "+className);
+        if(!options.run)
+            return;
+        long start = System.nanoTime();
+        try
+        {
+            JvmRuntime.run(JvmBackend.load(className, bytes));
+        }
+        catch (RuntimeException | LinkageError e)
+        {
+            System.out.flush();
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        System.err.println("Ran "+className+" in "+(System.nanoTime()-start)/1000000+" ms");
+    }
 
-    // tokenImage provides string for each token kind
-    String[] tokenImage =
-            {
-                    "<EOF>",
-                    "\"println\"",
-                    "<UNSIGNED>",
-                    "<ID>",
-                    "\"=\"",
-                    "\";\"",
-                    "\"(\"",
-                    "\")\"",
-                    "\"+\"",
-                    "\"-\"",
-                    "\"*\"",
-                    "<ERROR>",
-                    "\"/\"",
-                    "\"{\"",
-                    "\"}\"",
-                    "<STRING>",
-                    "\"while\"",
-                    "\"if\"",
-                    "\"else\"",
-                    "\"==\"",
-                    "\">\"",
-                    "\"<\"",
-                    "\">=\"",
-                    "\"<=\"",
-                    "int",
-                    "return",
-                    "def",
-                    "void",
-                    "cal",
-                    "and",
-                    "or",
-                    ",",
-                    "~",//FORCE END
-                    "switch",
-                    "case",
-                    "default",
-                    ":",
-                    "goto",
-                    "break",
-                    "continue",
-                    "dest",
-                    "array",
-                    "[",
-                    "]"
-            };
-}
+    /**
+     * -interp: no MIPS code, Interpreter compiles the program into its bytecode and runs it in this JVM
+     * */
+    private static void interpret(Options options) throws IOException
+    {
+        Interpreter interpreter = new Interpreter(new TokenMgr(new Scanner(new File(options.inFileName))), options.memo_bound);
+        try
+        {
+            long start = System.nanoTime();
+            int words = interpreter.compile();
+            System.out.println("Compiled to "+words+" words of bytecode");
+            long compiled = System.nanoTime();
+            interpreter.run(System.out);
+            System.err.println("Compiled in "+(compiled-start)/1000000+" ms, ran in "+(System.nanoTime()-compiled)/1000000+" ms");
+        }
+        catch (RuntimeException e)
+        {
+            System.out.flush();
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
 
+    /**
+     * -x86: "as FILE.s -o FILE.o && ld FILE.o -o FILE" makes a native program of it
+     * */
+    private static void writeX86(String fileName, CharSequence program) throws IOException
+    {
+        String assembly;
+        try
+        {
+            assembly = new X86Backend().translate(program.toString());
+        }
+        catch (RuntimeException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        try(PrintWriter out = new PrintWriter(fileName))
+        {
+            out.print(assembly);
+        }
+        System.out.println("Wrote "+fileName);
+    }
 
+    private static void writeListing(String fileName, CharSequence program, Options options) throws IOException
+    {
+        if(!options.listing)
+            return;
+        try(PrintWriter listing = new PrintWriter(fileName))
+        {
+            listing.print(program);
+        }
+    }
+}
 
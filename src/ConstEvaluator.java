@@ -0,0 +1,648 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compile time evaluation of calls to pure functions
+ * This is a small interpreter working directly on the token chain the parser has already read.
+ * It follows the semantics of the code we generate, e.g. "return" only sets $v0 and does not leave the function.
+ * It is bounded: when it meets a construct it does not support or runs for too long it gives up,
+ * and the call is compiled as usual
+ * */
+public class ConstEvaluator implements Constants
+{
+    private static final int MAX_STEPS = 1000000;
+    private static final int MAX_DEPTH = 256;
+
+    private SymTab st;
+    private TokenMgr tm;
+    //Results of the calls evaluated so far: "name(1,2)" -> value
+    private Map<String,Integer> results;
+    private int steps;
+    private int depth;
+
+    public ConstEvaluator(SymTab st, TokenMgr tm)
+    {
+        this.st = st;
+        this.tm = tm;
+        this.results = new HashMap<>();
+    }
+
+    /**
+     * Thrown whenever the evaluation is not possible
+     * */
+    private static class GiveUp extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        GiveUp()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * The arguments of a call, split at top level commas
+     * values[i] is null if argument i is not a compile time constant
+     * ends[i] is the "," or ")" token right after argument i
+     * */
+    public static class Arguments
+    {
+        public Token[] ends;
+        public Integer[] values;
+
+        public int constants()
+        {
+            int count = 0;
+            for(Integer v : values)
+                if(v != null) count++;
+            return count;
+        }
+    }
+
+    /**
+     * Evaluate the call name(args), return null if it cannot be done at compile time
+     * */
+    public Integer evalCall(String name, int[] args)
+    {
+        steps = 0;
+        depth = 0;
+        try
+        {
+            return call(name, args);
+        }
+        catch (GiveUp e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Split the argument list starting at "(" and try to evaluate every argument as a constant,
+     * bound holds the names known to be constants at the call site (parameters of a specialized clone)
+     * Returns null if the list is not well formed, the parser will then report the error
+     * */
+    public Arguments scanArguments(Token lparen, Map<String,String> bound)
+    {
+        ArrayList<Token> starts = new ArrayList<>();
+        ArrayList<Token> ends = new ArrayList<>();
+        Token t = next(lparen);
+        int level = 0;
+        if(t.kind != RIGHTPAREN)
+            starts.add(t);
+        while(true)
+        {
+            switch (t.kind)
+            {
+                case LEFTPAREN:
+                    level++;
+                    break;
+                case RIGHTPAREN:
+                    if(level == 0)
+                    {
+                        if(!starts.isEmpty()) ends.add(t);
+                        return evalArguments(starts, ends, bound);
+                    }
+                    level--;
+                    break;
+                case COMMA:
+                    if(level == 0)
+                    {
+                        ends.add(t);
+                        starts.add(next(t));
+                    }
+                    break;
+                case EOF:
+                case SEMICOLON:
+                case LEFTBRACE:
+                case RIGHTBRACE:
+                    return null;
+                default:
+                    break;
+            }
+            t = next(t);
+        }
+    }
+
+    private Arguments evalArguments(ArrayList<Token> starts, ArrayList<Token> ends, Map<String,String> bound)
+    {
+        Arguments args = new Arguments();
+        args.ends = ends.toArray(new Token[0]);
+        args.values = new Integer[starts.size()];
+        for(int i=0;i<starts.size();i++)
+        {
+            steps = 0;
+            depth = 0;
+            Activation a = new Activation(starts.get(i));
+            for(Map.Entry<String,String> e : bound.entrySet())
+                a.vars.put(e.getKey(), Integer.parseInt(e.getValue()));
+            try
+            {
+                int value = a.expr();
+                if(a.cur == args.ends[i])
+                    args.values[i] = value;
+            }
+            catch (GiveUp e)
+            {
+                args.values[i] = null;
+            }
+        }
+        return args;
+    }
+
+    private int call(String name, int[] args)
+    {
+        FuncInfo info = st.getFuncInfo(name);
+        if(info == null && Intrinsics.evaluate(name, args) != null)
+            return Intrinsics.evaluate(name, args);
+        if(info == null || !info.pure)
+            throw new GiveUp();
+        StringBuilder key = new StringBuilder(name).append('(');
+        for(int i=0;i<args.length;i++)
+            key.append(i == 0 ? "" : ",").append(args[i]);
+        key.append(')');
+        Integer value = results.get(key.toString());
+        if(value != null)
+            return value;
+        if(++depth > MAX_DEPTH)
+            throw new GiveUp();
+        value = new Activation(info.start).run(args);
+        depth--;
+        results.put(key.toString(), value);
+        return value;
+    }
+
+    private Token next(Token t)
+    {
+        if(t.next == null)
+            t.next = tm.getNextToken();
+        return t.next;
+    }
+
+    private void tick()
+    {
+        if(++steps > MAX_STEPS)
+            throw new GiveUp();
+    }
+
+    /**
+     * One activation of a function, the methods follow the grammar of Parser
+     * */
+    private class Activation
+    {
+        Token cur;
+        Map<String,Integer> vars = new HashMap<>();    //Args, int and const locals, null until assigned
+        Map<String,Integer[]> arrays = new HashMap<>();
+        Set<String> consts = new HashSet<>();
+        Integer v0 = null;
+
+        int skip = 0;           //>0 while parsing code that is not executed
+        boolean broken = false;
+        boolean continued = false;
+        int loops = 0;
+        //break and continue after a nested while jump to the labels of that while (see whileStatement)
+        boolean stale = false;
+        int in_while_cond = 0;
+        boolean cond_exit = false;
+
+        Activation(Token start)
+        {
+            this.cur = start;
+        }
+
+        boolean active()
+        {
+            return skip == 0 && !broken && !continued;
+        }
+
+        void advance()
+        {
+            cur = next(cur);
+        }
+
+        void consume(int kind)
+        {
+            if(cur.kind != kind)
+                throw new GiveUp();
+            advance();
+        }
+
+        int run(int[] args)
+        {
+            consume(DEF);
+            if(cur.kind == INT || cur.kind == VOID)
+                advance();
+            consume(ID);
+            consume(LEFTPAREN);
+            int count = 0;
+            while(cur.kind == INT)
+            {
+                advance();
+                if(count >= args.length)
+                    throw new GiveUp();
+                vars.put(cur.image, args[count++]);
+                consume(ID);
+                if(cur.kind != COMMA)
+                    break;
+                advance();
+            }
+            if(count != args.length)
+                throw new GiveUp();
+            consume(RIGHTPAREN);
+            consume(LEFTBRACE);
+            declarations();
+            statementList();
+            if(cur.kind == RETURN)
+                statement();
+            consume(RIGHTBRACE);
+            if(v0 == null)
+                throw new GiveUp();
+            return v0;
+        }
+
+        void declarations()
+        {
+            while(true)
+            {
+                switch (cur.kind)
+                {
+                    case INT:
+                        do
+                        {
+                            advance();
+                            vars.put(cur.image, null);
+                            consume(ID);
+                        }while(cur.kind == COMMA);
+                        consume(SEMICOLON);
+                        break;
+                    case ARRAY:
+                        advance();
+                        String id = cur.image;
+                        try
+                        {
+                            int size = Integer.parseInt(id.substring(id.indexOf('[')+1, id.indexOf(']')));
+                            arrays.put(id.substring(0, id.indexOf('[')), new Integer[size]);
+                        }
+                        catch (RuntimeException e)
+                        {
+                            throw new GiveUp();
+                        }
+                        consume(ID);
+                        consume(SEMICOLON);
+                        break;
+                    case CONST:
+                        //A const declaration always ends the declaration part
+                        advance();
+                        consume(INT);
+                        String name = cur.image;
+                        consume(ID);
+                        consume(ASSIGN);
+                        vars.put(name, expr());
+                        consts.add(name);
+                        consume(SEMICOLON);
+                        return;
+                    default:
+                        return;
+                }
+            }
+        }
+
+        void statementList()
+        {
+            while(true)
+            {
+                switch (cur.kind)
+                {
+                    case RIGHTBRACE:
+                    case EOF:
+                        return;
+                    default:
+                        statement();
+                }
+            }
+        }
+
+        void statement()
+        {
+            tick();
+            int value;
+            switch (cur.kind)
+            {
+                case ID:
+                    String left = cur.image;
+                    advance();
+                    consume(ASSIGN);
+                    value = expr();
+                    consume(SEMICOLON);
+                    if(active()) store(left, value);
+                    break;
+                case LEFTBRACE:
+                    advance();
+                    statementList();
+                    consume(RIGHTBRACE);
+                    break;
+                case IF:
+                    ifStatement();
+                    break;
+                case WHILE:
+                    whileStatement();
+                    break;
+                case RETURN:
+                    advance();
+                    value = expr();
+                    consume(SEMICOLON);
+                    if(active()) v0 = value;
+                    break;
+                case CAL:
+                    //A call statement is not followed by ";" and leaves its result in $v0
+                    value = callExpr();
+                    if(active()) v0 = value;
+                    break;
+                case BREAK:
+                case CONTINUE:
+                    int kind = cur.kind;
+                    advance();
+                    consume(SEMICOLON);
+                    if(!active()) break;
+                    if(loops == 0 || stale)
+                        throw new GiveUp();
+                    if(kind == BREAK) broken = true;
+                    else continued = true;
+                    break;
+                default:
+                    //println, exit, assert, switch, goto and dest are not evaluated
+                    throw new GiveUp();
+            }
+        }
+
+        void ifStatement()
+        {
+            consume(IF);
+            consume(LEFTPAREN);
+            boolean taken = expr() != 0;
+            consume(RIGHTPAREN);
+            if(!taken) skip++;
+            statement();
+            if(!taken) skip--;
+            if(cur.kind == ELSE)
+            {
+                advance();
+                if(taken) skip++;
+                statement();
+                if(taken) skip--;
+            }
+        }
+
+        /**
+         * The parser only updates the break/continue labels when a while starts,
+         * so once a nested while is finished they point to the nested loop. We do not mimic that, we give up
+         * */
+        void whileStatement()
+        {
+            consume(WHILE);
+            consume(LEFTPAREN);
+            Token condition = cur;
+            loops++;
+            while(true)
+            {
+                stale = false;
+                cur = condition;
+                in_while_cond++;
+                int value = expr();
+                in_while_cond--;
+                if(cond_exit)
+                    value = 0;
+                cond_exit = false;
+                consume(RIGHTPAREN);
+                if(!active() || value == 0)
+                {
+                    skip++;
+                    statement();
+                    skip--;
+                    break;
+                }
+                statement();
+                continued = false;
+                if(broken)
+                {
+                    broken = false;
+                    break;
+                }
+                tick();
+            }
+            loops--;
+            stale = loops > 0;
+        }
+
+        int expr()
+        {
+            int value = term();
+            while(cur.kind == PLUS || cur.kind == MINUS)
+            {
+                int op = cur.kind;
+                advance();
+                int right = term();
+                try
+                {
+                    value = op == PLUS ? Math.addExact(value, right) : Math.subtractExact(value, right);
+                }
+                catch (ArithmeticException e)
+                {
+                    //"add" and "sub" trap on overflow
+                    if(active()) throw new GiveUp();
+                }
+            }
+            int op = cur.kind;
+            switch (op)
+            {
+                case EQUAL:
+                case GREATER_EQUAL_THAN:
+                case SMALLER_EQUAL_THAN:
+                case GREATER_THAN:
+                case SMALLER_THAN:
+                    advance();
+                    int right = expr();
+                    value = compare(op, value, right) ? 1 : 0;
+                    return booleanExpression(value);
+                default:
+                    return value;
+            }
+        }
+
+        boolean compare(int op, int left, int right)
+        {
+            switch (op)
+            {
+                case EQUAL: return left == right;
+                case GREATER_EQUAL_THAN: return left >= right;
+                case SMALLER_EQUAL_THAN: return left <= right;
+                case GREATER_THAN: return left > right;
+                default: return left < right;
+            }
+        }
+
+        /**
+         * "and" leaves the enclosing while as soon as its left side is false,
+         * so it can only be evaluated inside a while condition
+         * */
+        int booleanExpression(int value)
+        {
+            while(true)
+            {
+                switch (cur.kind)
+                {
+                    case AND:
+                        advance();
+                        int right = expr();
+                        if(in_while_cond == 0)
+                            throw new GiveUp();
+                        if(value == 0)
+                            cond_exit = true;
+                        value &= right;
+                        break;
+                    case OR:
+                        advance();
+                        value |= expr();
+                        break;
+                    default:
+                        return value;
+                }
+            }
+        }
+
+        int term()
+        {
+            //Like Parser.term(), a call is never followed by "*" or "/"
+            if(cur.kind == CAL)
+                return callExpr();
+            int value = factor();
+            while(cur.kind == TIMES || cur.kind == DIVIDE)
+            {
+                int op = cur.kind;
+                advance();
+                int right = factor();
+                if(op == TIMES)
+                    value *= right;
+                else if(right == 0 || (value == Integer.MIN_VALUE && right == -1))
+                {
+                    if(active()) throw new GiveUp();
+                }
+                else
+                    value /= right;
+            }
+            return value;
+        }
+
+        int factor()
+        {
+            int value;
+            try
+            {
+                switch (cur.kind)
+                {
+                    case UNSIGNED:
+                        value = Integer.parseInt(cur.image);
+                        advance();
+                        return value;
+                    case PLUS:
+                        advance();
+                        value = Integer.parseInt(cur.image);
+                        consume(UNSIGNED);
+                        return value;
+                    case MINUS:
+                        advance();
+                        value = Integer.parseInt("-"+cur.image);
+                        consume(UNSIGNED);
+                        return value;
+                    case ID:
+                        value = active() ? load(cur.image) : 0;
+                        advance();
+                        return value;
+                    case LEFTPAREN:
+                        advance();
+                        value = expr();
+                        consume(RIGHTPAREN);
+                        return value;
+                    case CAL:
+                        return callExpr();
+                    default:
+                        throw new GiveUp();
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new GiveUp();
+            }
+        }
+
+        int callExpr()
+        {
+            consume(CAL);
+            String name = cur.image;
+            consume(ID);
+            consume(LEFTPAREN);
+            ArrayList<Integer> args = new ArrayList<>();
+            if(cur.kind != RIGHTPAREN)
+            {
+                args.add(expr());
+                while(cur.kind == COMMA)
+                {
+                    advance();
+                    args.add(expr());
+                }
+            }
+            consume(RIGHTPAREN);
+            if(!active())
+                return 0;
+            int[] values = new int[args.size()];
+            for(int i=0;i<values.length;i++)
+                values[i] = args.get(i);
+            return call(name, values);
+        }
+
+        int load(String var)
+        {
+            Integer value;
+            if(var.indexOf('[') > 0 && var.indexOf(']') > 0)
+                value = element(var)[index(var)];
+            else
+                value = vars.get(var);
+            //Unknown names are globals, null means it has never been assigned
+            if(value == null)
+                throw new GiveUp();
+            return value;
+        }
+
+        void store(String var, int value)
+        {
+            if(var.indexOf('[') > 0 && var.indexOf(']') > 0)
+                element(var)[index(var)] = value;
+            else if(vars.containsKey(var) && !consts.contains(var))
+                vars.put(var, value);
+            else
+                throw new GiveUp();
+        }
+
+        Integer[] element(String var)
+        {
+            Integer[] array = arrays.get(var.substring(0, var.indexOf('[')));
+            if(array == null || index(var) >= array.length)
+                throw new GiveUp();
+            return array;
+        }
+
+        int index(String var)
+        {
+            try
+            {
+                return Integer.parseInt(var.substring(var.indexOf('[')+1, var.indexOf(']')));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new GiveUp();
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * -daemon: a compiler that stays up on a localhost port, so editors and incremental builds get a warm JIT
+ * for every file. -client hands its command line to it, or compiles in its own JVM when no daemon answers;
+ * either way the command line runs as a Batch and prints the same summary.
+ * One request per connection, UTF-8 lines:
+ *  compile        the working directory of the client, the number of arguments, one argument per line;
+ *                 the answer is the output of the batch, then its exit status on the last line
+ *  stats          the answer is the latency histogram of the compile requests
+ * Connections are served by a fixed pool of threads, the files of all batches by one ForkJoinPool.
+ * */
+class Daemon
+{
+    public static final int DEFAULT_PORT = 7413;
+    //Connections served at the same time, the others wait in the backlog
+    private static final int CONNECTIONS = 16;
+    //A client that sends nothing for this long is dropped
+    private static final int TIMEOUT = 30000;
+    //How long a client tries to reach the daemon before it compiles itself
+    private static final int CONNECT_TIMEOUT = 200;
+
+    /**
+     * Latencies in buckets of powers of two milliseconds: bucket 0 is under 1 ms, bucket i from 2^(i-1) ms
+     * */
+    static class Histogram
+    {
+        private static final int BUCKETS = 32;
+
+        private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private AtomicLong total = new AtomicLong();
+        private AtomicLong max = new AtomicLong();
+
+        void add(long nanos)
+        {
+            long ms = nanos/1000000;
+            int bucket = ms == 0 ? 0 : Math.min(64-Long.numberOfLeadingZeros(ms), BUCKETS-1);
+            buckets.incrementAndGet(bucket);
+            total.addAndGet(nanos);
+            long m;
+            while((m = max.get()) < nanos && !max.compareAndSet(m, nanos))
+                ;
+        }
+
+        /**
+         * The upper bound of the bucket the given fraction of the requests falls into
+         * */
+        private String percentile(long[] counts, long n, double fraction)
+        {
+            long seen = 0;
+            for(int i=0;i<BUCKETS;i++)
+            {
+                seen += counts[i];
+                if(seen >= Math.ceil(n*fraction))
+                    return "<"+(1L << i)+" ms";
+            }
+            return "-";
+        }
+
+        void print(PrintStream out)
+        {
+            long[] counts = new long[BUCKETS];
+            long n = 0;
+            long most = 1;
+            for(int i=0;i<BUCKETS;i++)
+            {
+                counts[i] = buckets.get(i);
+                n += counts[i];
+                most = Math.max(most, counts[i]);
+            }
+            out.println("Requests: "+n+", mean "+(n == 0 ? 0 : total.get()/n/1000)/1000.0+" ms, max "+max.get()/1000000+" ms");
+            if(n == 0)
+                return;
+            out.println("p50 "+percentile(counts, n, 0.5)+", p90 "+percentile(counts, n, 0.9)+", p99 "+percentile(counts, n, 0.99));
+            int first = 0;
+            while(counts[first] == 0)
+                first++;
+            int last = BUCKETS-1;
+            while(counts[last] == 0)
+                last--;
+            for(int i=first;i<=last;i++)
+            {
+                String range = i == 0 ? "<1" : i == 1 ? "1" : (1L << (i-1))+"-"+((1L << i)-1);
+                StringBuilder bar = new StringBuilder();
+                for(long k=0;k<40*counts[i]/most;k++)
+                    bar.append('#');
+                out.println(String.format("%12s ms %8d %s", range, counts[i], bar));
+            }
+        }
+    }
+
+    private Options options;
+    private ForkJoinPool pool;
+    private Histogram latency;
+    private AtomicLong failed;
+
+    public Daemon(Options options)
+    {
+        this.options = options;
+        this.pool = new ForkJoinPool(options.jobs > 0 ? options.jobs : Runtime.getRuntime().availableProcessors());
+        this.latency = new Histogram();
+        this.failed = new AtomicLong();
+    }
+
+    /**
+     * Serve until the process is stopped
+     * */
+    public void serve() throws IOException
+    {
+        ExecutorService connections = Executors.newFixedThreadPool(CONNECTIONS);
+        try(ServerSocket server = new ServerSocket())
+        {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), options.port));
+            System.out.println("Listening on "+server.getLocalSocketAddress()+", compiling on "+pool.getParallelism()+" threads");
+            while(true)
+            {
+                Socket socket = server.accept();
+                connections.submit(() -> answer(socket));
+            }
+        }
+        finally
+        {
+            connections.shutdownNow();
+        }
+    }
+
+    private void answer(Socket socket)
+    {
+        try(Socket s = socket)
+        {
+            s.setSoTimeout(TIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            PrintStream out = new PrintStream(new BufferedOutputStream(s.getOutputStream()), false, "UTF-8");
+            String request = in.readLine();
+            if("compile".equals(request))
+                compile(in, out);
+            else if("stats".equals(request))
+            {
+                latency.print(out);
+                out.println("Failed: "+failed.get());
+            }
+            else
+                out.println("Unknown request "+request);
+            out.flush();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            System.err.println("Daemon: "+e.getMessage());
+        }
+    }
+
+    private void compile(BufferedReader in, PrintStream out) throws IOException
+    {
+        long start = System.nanoTime();
+        String directory = in.readLine();
+        String count = in.readLine();
+        if(directory == null || count == null)
+            throw new IOException("Incomplete request");
+        String[] args = new String[Integer.parseInt(count)];
+        for(int i=0;i<args.length;i++)
+        {
+            args[i] = in.readLine();
+            if(args[i] == null)
+                throw new IOException("Incomplete request");
+        }
+        int status;
+        try
+        {
+            Options request = Options.parse(args);
+            request.batch = true;
+            status = new Batch(request, Paths.get(directory), pool).run(out);
+        }
+        catch (RuntimeException e)
+        {
+            out.println(e.getMessage());
+            status = 1;
+        }
+        out.println(status);
+        if(status != 0)
+            failed.incrementAndGet();
+        latency.add(System.nanoTime()-start);
+    }
+
+    /**
+     * -client: send the command line without -client and -port, print what comes back, return its exit status
+     * */
+    public static int client(Options options, String[] args) throws IOException
+    {
+        ArrayList<String> forwarded = new ArrayList<>();
+        for(int i=0;i<args.length;i++)
+        {
+            if(args[i].equals("-port"))
+                i++;
+            else if(!args[i].equals("-client"))
+                forwarded.add(args[i]);
+        }
+        Path directory = Paths.get("").toAbsolutePath();
+        try(Socket socket = new Socket())
+        {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), options.port), CONNECT_TIMEOUT);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            if(options.stats)
+                out.println("stats");
+            else
+            {
+                out.println("compile");
+                out.println(directory);
+                out.println(forwarded.size());
+                for(String arg : forwarded)
+                    out.println(arg);
+            }
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String previous = null;
+            String line;
+            while((line = in.readLine()) != null)
+            {
+                if(previous != null)
+                    System.out.println(previous);
+                previous = line;
+            }
+            if(options.stats)
+            {
+                if(previous != null)
+                    System.out.println(previous);
+                return 0;
+            }
+            if(previous == null)
+                throw new IOException("The daemon closed the connection");
+            return Integer.parseInt(previous);
+        }
+        catch (ConnectException | SocketTimeoutException e)
+        {
+            if(options.stats)
+            {
+                System.out.println("No daemon on port "+options.port);
+                return 1;
+            }
+            //No daemon, the same batch in this JVM
+            return new Batch(options, directory, null).run(System.out);
+        }
+    }
+}
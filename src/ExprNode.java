@@ -0,0 +1,408 @@
+import java.util.ArrayList;
+
+/**
+ * Expression tree built by the parser, the code for it is generated by Parser.reduce()
+ * label() covers every node with the cheapest instruction pattern (BURS style): a pattern may take
+ * a constant child as an immediate instead of loading it into a register first
+ * */
+class ExprNode implements Constants
+{
+    //Kinds of node
+    static final int NUM = 0;   //Integer constant
+    static final int VAR = 1;   //Variable or array element, still in memory
+    static final int STR = 2;   //String label
+    static final int REG = 3;   //Value already in a register (e.g. the result of a comparison)
+    static final int CALL = 4;  //Function call, the arguments are in args
+    static final int BIN = 5;   //+ - * /
+    static final int CMP = 6;   //== >= <= > <
+
+    //Patterns, COST holds how many instructions each one emits besides its register operands
+    static final int LEAF = 0;
+    static final int COPY = 1;          //x+0, x-0, x*1, x/1
+    static final int ADD = 2;           //add d,l,r
+    static final int ADDI = 3;          //addi d,x,imm   (x+c, c+x, x-c)
+    static final int SUB = 4;           //sub d,l,r
+    static final int NEG = 5;           //sub d,$zero,x  (0-x)
+    static final int MULT = 6;          //mult l,r / mflo d
+    static final int SLL = 7;           //sll d,x,imm    (x*2^k)
+    static final int DIV = 8;           //div l,r / mflo d
+    static final int SLT = 9;           //slt d,l,r      (l<r)
+    static final int SLTI = 10;         //slti d,x,imm   (x<c, x<=c-1)
+    static final int SLT_SWAP = 11;     //slt d,r,l      (l>r)
+    static final int SLT_NOT = 12;      //slt d,l,r / xori d,d,1   (l>=r)
+    static final int SLTI_NOT = 13;     //slti d,x,imm / xori d,d,1   (x>=c, x>c-1)
+    static final int SLT_SWAP_NOT = 14; //slt d,r,l / xori d,d,1   (l<=r)
+    static final int SEQ = 15;          //xor d,l,r / sltiu d,d,1
+    static final int SEQI = 16;         //xori d,x,imm / sltiu d,d,1
+    static final int SEQZ = 17;         //sltiu d,x,1
+    static final int MIN = 18;          //slt $v1,r,l / movn d,r,$v1   ($v1 is the scratch register of these three)
+    static final int MAX = 19;          //slt $v1,l,r / movn d,r,$v1
+    static final int ABS = 20;          //sra $v1,x,31 / xor d,x,$v1 / subu d,d,$v1
+
+    static final int[] COST = {0, 0, 1, 1, 1, 1, 2, 1, 2, 1, 1, 1, 2, 2, 2, 2, 2, 1, 2, 2, 3};
+
+    //Operators of BIN nodes for the intrinsics, they have no token. abs(x) is built as "x ABS 0"
+    static final int OP_MIN = -1;
+    static final int OP_MAX = -2;
+    static final int OP_ABS = -3;
+
+    //Rough cost of a call: argument moves, saving registers, jal and the callee itself
+    private static final int CALL_COST = 10;
+
+    int kind;
+    int op;             //Token kind of the operator for BIN and CMP
+    String image;       //Constant, variable name, string label, register or function name
+    int value;          //Value of a NUM
+    boolean global;     //A VAR that is a global variable or array, a call may change it
+    ExprNode left, right;
+    ArrayList<ExprNode> args;
+
+    //Filled in by label()
+    int pattern;
+    int cost;           //Instructions needed to have the value in a register
+    ExprNode operand;   //The register operand of the one operand patterns (ADDI, NEG, SLL ...)
+    int imm;            //Their immediate
+    int need;           //Temporary registers needed to evaluate the node (Sethi-Ullman number)
+
+    private ExprNode(int kind, String image)
+    {
+        this.kind = kind;
+        this.image = image;
+        this.pattern = LEAF;
+    }
+
+    static ExprNode number(int value)
+    {
+        ExprNode node = new ExprNode(NUM, ""+value);
+        node.value = value;
+        return node;
+    }
+
+    static ExprNode variable(String name, boolean global)
+    {
+        ExprNode node = new ExprNode(VAR, name);
+        node.global = global;
+        return node;
+    }
+
+    static ExprNode string(String label)
+    {
+        return new ExprNode(STR, label);
+    }
+
+    static ExprNode register(String reg)
+    {
+        return new ExprNode(REG, reg);
+    }
+
+    /**
+     * The node for an operand the parser already has as a string: a constant, a string label or a register
+     * */
+    static ExprNode operand(String operand)
+    {
+        if(Character.isDigit(operand.charAt(0)) || (operand.charAt(0) == '-' && operand.length() > 1))
+            return number(Integer.parseInt(operand));
+        if(operand.startsWith("Str"))
+            return string(operand);
+        return register(operand);
+    }
+
+    static ExprNode call(String name, ArrayList<ExprNode> args)
+    {
+        ExprNode node = new ExprNode(CALL, name);
+        node.args = args;
+        return node;
+    }
+
+    static ExprNode binary(int op, ExprNode left, ExprNode right)
+    {
+        ExprNode node = new ExprNode(BIN, null);
+        node.op = op;
+        node.left = left;
+        node.right = right;
+        return node;
+    }
+
+    /**
+     * A constant is kept on the right: "3 < x" is built as "x > 3"
+     * */
+    static ExprNode compare(int op, ExprNode left, ExprNode right)
+    {
+        ExprNode node = new ExprNode(CMP, null);
+        if(left.kind == NUM && right.kind != NUM)
+        {
+            ExprNode t = left;
+            left = right;
+            right = t;
+            switch (op)
+            {
+                case GREATER_THAN: op = SMALLER_THAN; break;
+                case SMALLER_THAN: op = GREATER_THAN; break;
+                case GREATER_EQUAL_THAN: op = SMALLER_EQUAL_THAN; break;
+                case SMALLER_EQUAL_THAN: op = GREATER_EQUAL_THAN; break;
+                default: break;
+            }
+        }
+        node.op = op;
+        node.left = left;
+        node.right = right;
+        return node;
+    }
+
+    boolean isNumber(int v)
+    {
+        return kind == NUM && value == v;
+    }
+
+    /**
+     * Does the code of this node contain a jal, which overwrites $v0
+     * */
+    boolean hasCall()
+    {
+        switch (kind)
+        {
+            case CALL:
+                return true;
+            case BIN:
+            case CMP:
+                return left.hasCall() || right.hasCall();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Does the value depend on a global variable, which a call may change
+     * */
+    boolean readsGlobal()
+    {
+        switch (kind)
+        {
+            case VAR:
+                return global;
+            case CALL:
+                for(ExprNode arg : args)
+                    if(arg.readsGlobal())
+                        return true;
+                return false;
+            case BIN:
+            case CMP:
+                return left.readsGlobal() || right.readsGlobal();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether a and b can be evaluated in either order: a call must not run between
+     * another call or a global read, that could change what the program prints or computes
+     * */
+    static boolean canReorder(ExprNode a, ExprNode b)
+    {
+        if(a.hasCall() && (b.hasCall() || b.readsGlobal()))
+            return false;
+        return !(b.hasCall() && a.readsGlobal());
+    }
+
+    static boolean isImmediate(long v)
+    {
+        return v >= -32768 && v <= 32767;
+    }
+
+    private static boolean isUnsignedImmediate(long v)
+    {
+        return v >= 0 && v <= 65535;
+    }
+
+    //-----------------------------------------
+    // Labeling: bottom up, the cheapest pattern of each node
+
+    void label()
+    {
+        switch (kind)
+        {
+            case NUM:
+                cost = isImmediate(value) ? 1 : 2; //li, or lui/ori
+                need = 1;
+                return;
+            case VAR:
+                cost = 1; //lw
+                need = 1;
+                return;
+            case STR:
+                cost = 2; //la is lui/ori
+                need = 1;
+                return;
+            case REG:
+                cost = 0;
+                need = 0;
+                return;
+            case CALL:
+                //The result is in $v0, the arguments are held in registers one after another until the jal
+                cost = CALL_COST;
+                need = 0;
+                for(int i=0;i<args.size();i++)
+                {
+                    ExprNode arg = args.get(i);
+                    arg.label();
+                    cost += arg.cost;
+                    need = Math.max(need, arg.need+i);
+                }
+                return;
+            default:
+                break;
+        }
+        left.label();
+        right.label();
+        cost = Integer.MAX_VALUE;
+        if(kind == BIN)
+            labelBinary();
+        else
+            labelCompare();
+
+        if(pattern == COPY)
+            need = operand.need;
+        else if(operand != null && isOneOperand(pattern))
+            need = Math.max(1, operand.need);
+        else if(left.need == right.need)
+            need = left.need+1;
+        else
+            need = Math.max(left.need, right.need);
+    }
+
+    static boolean isOneOperand(int p)
+    {
+        switch (p)
+        {
+            case COPY:
+            case ADDI:
+            case NEG:
+            case SLL:
+            case SLTI:
+            case SLTI_NOT:
+            case SEQI:
+            case SEQZ:
+            case ABS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void consider(int p, int operand_cost)
+    {
+        if(COST[p] + operand_cost < cost)
+        {
+            cost = COST[p] + operand_cost;
+            pattern = p;
+        }
+    }
+
+    /**
+     * A one operand pattern: x is in a register, c is the immediate
+     * */
+    private void consider(int p, ExprNode x, long c)
+    {
+        if(COST[p] + x.cost < cost)
+        {
+            consider(p, x.cost);
+            operand = x;
+            imm = (int)c;
+        }
+    }
+
+    private void labelBinary()
+    {
+        int both = left.cost + right.cost;
+        switch (op)
+        {
+            case PLUS:
+                if(right.isNumber(0))
+                    consider(COPY, left, 0);
+                if(left.isNumber(0))
+                    consider(COPY, right, 0);
+                if(right.kind == NUM && isImmediate(right.value))
+                    consider(ADDI, left, right.value);
+                if(left.kind == NUM && isImmediate(left.value))
+                    consider(ADDI, right, left.value);
+                consider(ADD, both);
+                break;
+            case MINUS:
+                if(right.isNumber(0))
+                    consider(COPY, left, 0);
+                if(right.kind == NUM && isImmediate(-(long)right.value))
+                    consider(ADDI, left, -(long)right.value);
+                if(left.isNumber(0))
+                    consider(NEG, right, 0);
+                consider(SUB, both);
+                break;
+            case OP_MIN:
+                consider(MIN, both);
+                break;
+            case OP_MAX:
+                consider(MAX, both);
+                break;
+            case OP_ABS:
+                consider(ABS, left, 0);
+                break;
+            case TIMES:
+                if(right.isNumber(1))
+                    consider(COPY, left, 0);
+                if(left.isNumber(1))
+                    consider(COPY, right, 0);
+                if(right.kind == NUM && isPowerOfTwo(right.value))
+                    consider(SLL, left, Integer.numberOfTrailingZeros(right.value));
+                if(left.kind == NUM && isPowerOfTwo(left.value))
+                    consider(SLL, right, Integer.numberOfTrailingZeros(left.value));
+                consider(MULT, both);
+                break;
+            default:
+                if(right.isNumber(1))
+                    consider(COPY, left, 0);
+                consider(DIV, both);
+                break;
+        }
+    }
+
+    private void labelCompare()
+    {
+        int both = left.cost + right.cost;
+        long c = right.value;
+        boolean constant = right.kind == NUM;
+        switch (op)
+        {
+            case SMALLER_THAN:
+                if(constant && isImmediate(c))
+                    consider(SLTI, left, c);
+                consider(SLT, both);
+                break;
+            case SMALLER_EQUAL_THAN:
+                if(constant && isImmediate(c+1))
+                    consider(SLTI, left, c+1);
+                consider(SLT_SWAP_NOT, both);
+                break;
+            case GREATER_THAN:
+                if(constant && isImmediate(c+1))
+                    consider(SLTI_NOT, left, c+1);
+                consider(SLT_SWAP, both);
+                break;
+            case GREATER_EQUAL_THAN:
+                if(constant && isImmediate(c))
+                    consider(SLTI_NOT, left, c);
+                consider(SLT_NOT, both);
+                break;
+            default:
+                if(constant && c == 0)
+                    consider(SEQZ, left, 0);
+                if(constant && isUnsignedImmediate(c))
+                    consider(SEQI, left, c);
+                consider(SEQ, both);
+                break;
+        }
+    }
+
+    private static boolean isPowerOfTwo(int v)
+    {
+        return v > 1 && (v & (v-1)) == 0;
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stack frame of the function being compiled
+ * Local variables, arrays, constants and spilled values are addressed through placeholders like "<x+8>($sp)"
+ * while the function is generated. When it is complete, layout() gives every one of them a slot and resolve()
+ * writes the real offsets, so the whole frame is allocated by one "addi $sp" in the prologue.
+ *
+ *  $fp ->  saved $fp, $ra, arguments        (above the frame, addressed from $fp)
+ *          slots of locals and spills       <- shared by values whose lifetimes do not overlap
+ *  $sp ->  save area for registers live across calls
+ *
+ * Lifetimes are ranges of statement numbers, widened to whole loops, and only a value whose first use
+ * writes it may take over a slot. An array never does: a store to one element leaves the others
+ * with whatever the slot held. With goto nothing is shared, control can go anywhere.
+ * */
+class FrameLayout
+{
+    private static final Pattern PLACEHOLDER = Pattern.compile("<([\\w.]+)([+-]\\d+)?>");
+
+    //The name of the frame size in placeholders, "<.frame+8>" is 8 bytes above the locals
+    static final String FRAME = ".frame";
+    //With -Os "j Epilogue_12" returns from a function whose arguments, $ra and $fp take 12 bytes
+    static final String EPILOGUE = "Epilogue_";
+
+    private static class Item
+    {
+        String name;
+        int size;
+        int first = -1;     //Statement of the first and last use, -1 if never used
+        int last = -1;
+        boolean fresh;      //The first use reads it: must not see what another value left in the slot
+        boolean array;      //Written an element at a time, so always fresh
+        int offset;
+    }
+
+    private static class Slot
+    {
+        int offset;
+        int size;
+        int busy_until;
+    }
+
+    private Map<String,Item> items;
+    private ArrayList<int[]> loops;
+    private int statement;
+    private boolean sharing;
+    private int save_area;
+    private int size;
+
+    public FrameLayout()
+    {
+        this.items = new LinkedHashMap<>();
+        this.loops = new ArrayList<>();
+        this.statement = 0;
+        this.sharing = true;
+        this.save_area = 0;
+        this.size = 0;
+    }
+
+    /**
+     * Placeholder for an offset relative to the top of the frame, e.g. the saved $ra
+     * */
+    static String frame(int extra)
+    {
+        return "<"+FRAME+(extra != 0 ? "+"+extra : "")+">";
+    }
+
+    public void declare(String name, int bytes)
+    {
+        Item item = new Item();
+        item.name = name;
+        item.size = bytes;
+        items.put(name, item);
+    }
+
+    public void declareArray(String name, int bytes)
+    {
+        declare(name, bytes);
+        items.get(name).array = true;
+    }
+
+    public void nextStatement()
+    {
+        statement++;
+    }
+
+    public int getStatement()
+    {
+        return statement;
+    }
+
+    /**
+     * The statements from start to the current one form a loop
+     * */
+    public void loop(int start)
+    {
+        loops.add(new int[]{start, statement});
+    }
+
+    public void disableSharing()
+    {
+        sharing = false;
+    }
+
+    /**
+     * A call needs this many bytes to save registers
+     * */
+    public void callSave(int bytes)
+    {
+        save_area = Math.max(save_area, bytes);
+    }
+
+    /**
+     * The address of name (plus extra bytes) for a lw/sw that reads or writes it
+     * */
+    public String use(String name, int extra, boolean write)
+    {
+        Item item = items.get(name);
+        if(item.first < 0)
+        {
+            item.first = statement;
+            item.fresh = item.array || !write;
+        }
+        item.last = statement;
+        return "<"+name+(extra != 0 ? (extra > 0 ? "+" : "")+extra : "")+">";
+    }
+
+    /**
+     * A slot for a value spilled at the given depth inside the current statement
+     * */
+    public String spill(int depth)
+    {
+        String name = ".spill"+depth+"_"+statement;
+        if(!items.containsKey(name))
+            declare(name, 4);
+        return use(name, 0, true);
+    }
+
+    /**
+     * Offsets of all items, returns the size of the frame below the saved $fp
+     * */
+    public int layout()
+    {
+        ArrayList<Item> used = new ArrayList<>();
+        for(Item item : items.values())
+        {
+            if(item.first < 0)
+                continue;
+            //A value used in a loop is live during the whole loop, its value goes around the back edge
+            boolean changed = true;
+            while(changed)
+            {
+                changed = false;
+                for(int[] loop : loops)
+                {
+                    if(item.last < loop[0] || item.first > loop[1])
+                        continue;
+                    if(item.first > loop[0] || item.last < loop[1])
+                    {
+                        item.first = Math.min(item.first, loop[0]);
+                        item.last = Math.max(item.last, loop[1]);
+                        changed = true;
+                    }
+                }
+            }
+            used.add(item);
+        }
+        Collections.sort(used, (a, b) -> a.first - b.first);
+
+        ArrayList<Slot> slots = new ArrayList<>();
+        size = save_area;
+        for(Item item : used)
+        {
+            Slot best = null;
+            if(sharing && !item.fresh)
+            {
+                for(Slot slot : slots)
+                    if(slot.busy_until < item.first && slot.size >= item.size && (best == null || slot.size < best.size))
+                        best = slot;
+            }
+            if(best == null)
+            {
+                best = new Slot();
+                best.offset = size;
+                best.size = item.size;
+                size += item.size;
+                slots.add(best);
+            }
+            best.busy_until = Math.max(best.busy_until, item.last);
+            item.offset = best.offset;
+        }
+        return size;
+    }
+
+    /**
+     * Replace the placeholders by offsets, layout() must have been called
+     * */
+    public String resolve(String text)
+    {
+        Matcher m = PLACEHOLDER.matcher(text);
+        StringBuffer sb = new StringBuffer();
+        while(m.find())
+        {
+            int offset = m.group(1).equals(FRAME) ? size : items.get(m.group(1)).offset;
+            if(m.group(2) != null)
+                offset += Integer.parseInt(m.group(2));
+            m.appendReplacement(sb, ""+offset);
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+}
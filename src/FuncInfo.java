@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * What we remember about a function after its code has been emitted
+ * FuncSymTab is reset after each function, so the facts needed by later call sites live here:
+ * where its tokens start (so it can be interpreted or compiled again) and whether it is pure
+ * */
+class FuncInfo
+{
+    public String name;
+    //The "def" token, the whole definition can be replayed from here
+    public Token start;
+    //Names of the parameters in declaration order
+    public ArrayList<String> params;
+    //Names of the functions called inside the body
+    public ArrayList<String> callees;
+
+    public boolean touches_global; //Reads or writes a global variable or array
+    public boolean side_effect;    //println, exit or assert
+    public boolean writes_args;    //Assigns to one of its own parameters
+    public boolean returns_int;
+    public boolean pure;
+
+    //Only used by specialized clones: parameter -> the constant it is bound to
+    public HashMap<String,String> bound_args;
+    //How many specialized clones of this function have been requested
+    public int clones;
+
+    public FuncInfo(String name, Token start)
+    {
+        this.name = name;
+        this.start = start;
+        this.params = new ArrayList<>();
+        this.callees = new ArrayList<>();
+        this.bound_args = new HashMap<>();
+        this.touches_global = false;
+        this.side_effect = false;
+        this.writes_args = false;
+        this.returns_int = false;
+        this.pure = false;
+        this.clones = 0;
+    }
+
+    /**
+     * A function is pure when it does not touch globals, does no I/O
+     * and only calls itself or other functions already known to be pure
+     * */
+    public boolean computePurity(SymTab st)
+    {
+        pure = !touches_global && !side_effect;
+        for(int i=0;i<callees.size() && pure;i++)
+        {
+            String callee = callees.get(i);
+            if(callee.equals(name))
+                continue;
+            FuncInfo info = st.getFuncInfo(callee);
+            if(info == null || !info.pure)
+                pure = false;
+        }
+        return pure;
+    }
+}
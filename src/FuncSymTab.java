@@ -74,10 +74,24 @@ class FuncSymTab implements Constants
         {
             temp = vars.get(index);
             offset = temp.offset;
+            //Arguments are addressed from $fp, which does not move
+            if(type == ARGS)
+                return offset;
             return offset+this.base_offset;
         }
         else return -1;
     }
+    /**
+     * Size in bytes of an array, int or const, -1 if it is not defined
+     * */
+    public int getSize(String name, int type)
+    {
+        Var temp = new Var();
+        temp.name = name;
+        temp.type = type;
+        int index = this.vars.indexOf(temp);
+        return index >= 0 ? vars.get(index).size : -1;
+    }
     /**
      * @LastStepOfFuncSymTab
      * The initial value in "Var" is their size
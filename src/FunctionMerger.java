@@ -0,0 +1,112 @@
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Identical function merging
+ * The finished functions are kept here until the end of the program. Two functions whose code is the same
+ * once comments, compiler labels (L0, L1 ...) and their own name are taken out are written once,
+ * the other names are labels in front of it:
+ *
+ *  bar:
+ *  foo:
+ *      ...
+ * */
+class FunctionMerger
+{
+    private static final Pattern LOCAL_LABEL = Pattern.compile("\\bL\\d+\\w*\\b");
+
+    private static class Function
+    {
+        ArrayList<String> names;
+        List<String> lines;
+    }
+
+    //Canonical text -> the function that is written out
+    private Map<String,Function> functions;
+    private int merged;
+
+    public FunctionMerger()
+    {
+        this.functions = new LinkedHashMap<>();
+        this.merged = 0;
+    }
+
+    /**
+     * lines start with the label of the function
+     * */
+    public void add(String name, List<String> lines)
+    {
+        String key = canonical(name, lines);
+        Function function = functions.get(key);
+        if(function != null)
+        {
+            function.names.add(name);
+            merged++;
+            return;
+        }
+        function = new Function();
+        function.names = new ArrayList<>();
+        function.names.add(name);
+        function.lines = lines;
+        functions.put(key, function);
+    }
+
+    public int getMergedFunctions()
+    {
+        return merged;
+    }
+
+    public void emit(PrintWriter out)
+    {
+        for(Function function : functions.values())
+        {
+            out.println();
+            //The label of the first name is the first line
+            for(int i=1;i<function.names.size();i++)
+                out.println(function.names.get(i)+":");
+            for(String line : function.lines)
+                out.println(line);
+        }
+    }
+
+    /**
+     * The code with comments removed, compiler labels numbered from 0 in order of appearance,
+     * and the name of the function (its label, recursive calls, its memo table) replaced by "@self"
+     * */
+    private static String canonical(String name, List<String> lines)
+    {
+        Pattern self = Pattern.compile("\\b"+Pattern.quote(name)+"\\b");
+        Map<String,String> labels = new HashMap<>();
+        StringBuilder sb = new StringBuilder();
+        for(String line : lines)
+        {
+            int comment = line.indexOf('#');
+            if(comment >= 0)
+                line = line.substring(0, comment);
+            line = line.trim();
+            if(line.isEmpty())
+                continue;
+            Matcher m = LOCAL_LABEL.matcher(line);
+            StringBuffer renamed = new StringBuffer();
+            while(m.find())
+            {
+                String label = labels.get(m.group());
+                if(label == null)
+                {
+                    label = "@L"+labels.size();
+                    labels.put(m.group(), label);
+                }
+                m.appendReplacement(renamed, Matcher.quoteReplacement(label));
+            }
+            m.appendTail(renamed);
+            sb.append(self.matcher(renamed).replaceAll("@self")).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,1418 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs a C-- program without generating MIPS code: every function is compiled into a register bytecode,
+ * which one loop executes. Variables are resolved like in Parser, by SymTab for the globals and by a
+ * FuncSymTab per function.
+ *  - a call gets an int[] frame: $v0 in slot 0, the variables at their FuncSymTab offset / 4 (the arguments
+ *    behind the locals), the temporaries of the expressions, then the constants of the function. The frame
+ *    is a clone of a template with the constants in place and everything else 0, so every operand is a slot
+ *  - globals are one int[] laid out by SymTab; indices are constants, so every element has a fixed slot too
+ *  - superinstructions: the last instruction of an expression writes the variable it is assigned to
+ *    ("x = x + 1" is one ADD), "g = g + v" on a global is one ADDG (load-add-store), and a comparison
+ *    tested by while or if is one compare-branch; a while tests again at its end, so a turn takes no jump back
+ *  - with a memo bound, a call of a function Parser would memoize (FuncInfo, Parser.isMemoizable) is looked up
+ *    in a table of its results first
+ * The semantics are the ones of the generated MIPS code, like in ConstEvaluator and JvmBackend: "return" sets
+ * $v0 without leaving the function, break, continue and "and" go to the while that started last, a string
+ * literal used as a value is its number. asm statements are MIPS and are not accepted. "+" and "-" stop the
+ * program on an overflow like add and sub do, a division by zero stops it like the branch Parser puts before div.
+ * */
+class Interpreter implements Constants
+{
+    //Opcodes, the fields after each one are in FORMATS
+    private static final int MOV = 0, ADD = 1, SUB = 2, MUL = 3, DIV = 4,
+            EQ = 5, LT = 6, LE = 7, GT = 8, GE = 9, IOR = 10, ANDJ = 11,
+            LDG = 12, STG = 13, ADDG = 14, SUBG = 15,
+            JMP = 16, JZ = 17, JEQ = 18, JNE = 19, JLT = 20, JGE = 21, JGT = 22, JLE = 23,
+            CALL = 24, MIN = 25, MAX = 26, ABS = 27, RET = 28,
+            PRINT = 29, PRINTS = 30, CHECK = 31, HALT = 32, FILL = 33, COPY = 34, JNZ = 35;
+
+    /**
+     * d slot written, s slot read, g global, l label, f function, n number. CALL has one s per argument
+     * */
+    private static final String[] FORMATS = {"ds", "dss", "dss", "dss", "dss",
+            "dss", "dss", "dss", "dss", "dss", "dss", "dssl",
+            "dg", "gs", "gs", "gs",
+            "l", "sl", "ssl", "ssl", "ssl", "ssl", "ssl", "ssl",
+            "dfn", "dss", "dss", "ds", "",
+            "s", "n", "ss", "", "nnns", "nnnnn", "sl"};
+
+    //A constant operand while its function is compiled, its slot is known at the end
+    private static final int CONSTANT = 1 << 30;
+    //Nested calls before the program is stopped
+    private static final int MAX_DEPTH = 1 << 20;
+    private static final int BUFFER_SIZE = 8192;
+
+    private TokenMgr tm;
+    private Token cur;
+    private SymTab st;
+
+    //Functions by number, created by their definition or their first call
+    private Map<String,Integer> functions;
+    private ArrayList<String> names;
+    private ArrayList<int[]> codes;
+    private ArrayList<int[]> templates;
+    private ArrayList<int[]> params;        //Slots of the arguments
+    private ArrayList<Integer> arg_counts;  //-1 until the function is defined
+    private Map<String,Integer> called;     //Number of arguments of the calls
+    private Map<String,Token> first_call;
+    private Map<String,Integer> strings;
+    private ArrayList<String> texts;
+    private int memo_bound;
+    private ArrayList<Boolean> memoized;
+
+    //The function being compiled
+    private String function;
+    //Intrinsics the program defines a function for further down, null until the first call of an intrinsic
+    private Set<String> shadowed;
+    private FuncSymTab ft;
+    private FuncInfo fi;
+    private int local_words;
+    private int variables;                  //Slots before the temporaries: $v0 and the variables
+    private int[] code;
+    private int size;
+    private int last;                       //Start of the last instruction, -1 if there is none to combine with
+    private int before_last;
+    private ArrayList<Integer> labels;
+    private ArrayList<Integer> constants;
+    private Map<Integer,Integer> constant_index;
+    private int next_temp;
+    private int max_temp;
+    private int exitpoint;
+    private int judgepoint;
+    private Map<String,Integer> dests;
+    //Number of the string literal the last expression was, -1 if it was something else
+    private int string;
+
+    private PrintStream out;
+    private StringBuilder buffer;
+
+    public Interpreter(TokenMgr tm, int memo_bound)
+    {
+        this.tm = tm;
+        this.memo_bound = memo_bound;
+        this.memoized = new ArrayList<>();
+        this.st = new SymTab();
+        this.functions = new HashMap<>();
+        this.names = new ArrayList<>();
+        this.codes = new ArrayList<>();
+        this.templates = new ArrayList<>();
+        this.params = new ArrayList<>();
+        this.arg_counts = new ArrayList<>();
+        this.called = new HashMap<>();
+        this.first_call = new HashMap<>();
+        this.strings = new HashMap<>();
+        this.texts = new ArrayList<>();
+        this.buffer = new StringBuilder();
+        this.cur = tm.getNextToken();
+    }
+
+    /**
+     * Compile the whole program, returns the number of words of bytecode
+     * */
+    public int compile()
+    {
+        while(cur.kind == DEF || cur.kind == INT || cur.kind == ARRAY)
+        {
+            if(cur.kind == DEF)
+                functionDefinition();
+            else
+                globalDeclaration();
+        }
+        if(cur.kind != EOF)
+            throw genEx("Expecting <EOF>");
+        for(Map.Entry<String,Integer> call : called.entrySet())
+        {
+            int params = arg_counts.get(functions.get(call.getKey()));
+            if(params < 0)
+            {
+                cur = first_call.get(call.getKey());
+                throw genEx("Function "+call.getKey()+" is not defined");
+            }
+            if(params != call.getValue())
+            {
+                cur = first_call.get(call.getKey());
+                throw genEx(call.getKey()+" takes "+params+" arguments");
+            }
+        }
+        Integer main = functions.get("main");
+        if(main == null || arg_counts.get(main) < 0)
+            throw new RuntimeException("Error: the program has no main function");
+        int words = 0;
+        for(int[] c : codes)
+            words += c == null ? 0 : c.length;
+        return words;
+    }
+
+    private RuntimeException genEx(String errorMessage)
+    {
+        return new RuntimeException("Encountered \"" +
+                cur.image + "\" on line " +
+                cur.beginLine + ", column " +
+                cur.beginColumn + "." +
+                errorMessage);
+    }
+
+    private void advance()
+    {
+        if(cur.next == null)
+            cur.next = tm.getNextToken();
+        cur = cur.next;
+    }
+
+    private void consume(int expected)
+    {
+        if(cur.kind != expected)
+            throw genEx("Expecting " + tokenImage[expected]);
+        advance();
+    }
+
+    private Token peek(Token t)
+    {
+        if(t.next == null)
+            t.next = tm.getNextToken();
+        return t.next;
+    }
+
+    //-----------------------------------------
+    // Declarations
+
+    private static boolean isElement(String var)
+    {
+        return var.indexOf('[') > 0 && var.indexOf(']') > 0;
+    }
+
+    private static String arrayName(String var)
+    {
+        return var.substring(0, var.indexOf('['));
+    }
+
+    private int arrayIndex(String var)
+    {
+        try
+        {
+            return Integer.parseInt(var.substring(var.indexOf('[')+1, var.indexOf(']')));
+        }
+        catch (NumberFormatException e)
+        {
+            throw genEx("The index of "+arrayName(var)+" must be a number");
+        }
+    }
+
+    /**
+     * "int a;", "int a, b;" or "array a[10];", like Parser.globalDeclarations() at most one comma
+     * */
+    private void globalDeclaration()
+    {
+        if(cur.kind == INT)
+        {
+            consume(INT);
+            st.addGlobal(cur.image);
+            consume(ID);
+            if(cur.kind == COMMA)
+            {
+                consume(COMMA);
+                st.addGlobal(cur.image);
+                consume(ID);
+            }
+        }
+        else
+        {
+            consume(ARRAY);
+            if(!isElement(cur.image))
+                throw genEx("Expecting the size of the array");
+            st.addGlobalArr(cur.image, 4*arrayIndex(cur.image));
+            consume(ID);
+        }
+        consume(SEMICOLON);
+    }
+
+    private int functionNumber(String name)
+    {
+        Integer index = functions.get(name);
+        if(index == null)
+        {
+            index = names.size();
+            functions.put(name, index);
+            names.add(name);
+            codes.add(null);
+            templates.add(null);
+            params.add(null);
+            arg_counts.add(-1);
+            memoized.add(false);
+        }
+        return index;
+    }
+
+    private void functionDefinition()
+    {
+        Token start = cur;
+        consume(DEF);
+        boolean returns_int = cur.kind == INT;
+        if(cur.kind == INT || cur.kind == VOID)
+            advance();
+        function = cur.image;
+        fi = new FuncInfo(function, start);
+        fi.returns_int = returns_int;
+        int index = functionNumber(function);
+        if(arg_counts.get(index) >= 0)
+            throw genEx(function+" is defined twice");
+        consume(ID);
+        ft = new FuncSymTab(function);
+        code = new int[64];
+        size = 0;
+        last = -1;
+        before_last = -1;
+        labels = new ArrayList<>();
+        constants = new ArrayList<>();
+        constant_index = new HashMap<>();
+        dests = new HashMap<>();
+        next_temp = 0;
+        max_temp = 0;
+        exitpoint = -1;
+        judgepoint = -1;
+
+        ArrayList<String> arg_names = new ArrayList<>();
+        consume(LEFTPAREN);
+        while(cur.kind == INT)
+        {
+            consume(INT);
+            ft.Enter(cur.image, ARGS);
+            fi.params.add(cur.image);
+            arg_names.add(cur.image);
+            consume(ID);
+            if(cur.kind != COMMA)
+                break;
+            consume(COMMA);
+        }
+        consume(RIGHTPAREN);
+        consume(LEFTBRACE);
+        localDeclarations();
+        statementList();
+        consume(RIGHTBRACE);
+        emit(RET);
+
+        for(Map.Entry<String,Integer> dest : dests.entrySet())
+            if(labels.get(dest.getValue()) < 0)
+                throw new RuntimeException("Error: the label "+dest.getKey()+" of goto is not in function "+function);
+        int[] slots = new int[arg_names.size()];
+        for(int i=0;i<slots.length;i++)
+            slots[i] = slot(arg_names.get(i), ARGS);
+        finish(index, slots);
+        fi.computePurity(st);
+        st.enterFuncInfo(fi);
+        memoized.set(index, memo_bound > 0 && fi.pure && fi.returns_int && slots.length == 1 && !fi.writes_args
+                && fi.callees.contains(function));
+        function = null;
+    }
+
+    /**
+     * Frame offsets of the variables, once they are all declared
+     * */
+    private void layout()
+    {
+        ft.initCalBasementValue();
+        local_words = ft.vars.isEmpty() ? 0 : (ft.space-8)/4-ft.local_args_num;
+        variables = 1+local_words+ft.local_args_num;
+    }
+
+    /**
+     * int and array locals start as 0, a const declaration ends the declarations like in Parser
+     * */
+    private void localDeclarations()
+    {
+        while(true)
+        {
+            switch (cur.kind)
+            {
+                case INT:
+                    do
+                    {
+                        advance();
+                        ft.Enter(cur.image, INT);
+                        consume(ID);
+                    } while(cur.kind == COMMA);
+                    consume(SEMICOLON);
+                    break;
+                case ARRAY:
+                    consume(ARRAY);
+                    if(!isElement(cur.image))
+                        throw genEx("Expecting the size of the array");
+                    ft.Enter(cur.image, ARRAY, 4*arrayIndex(cur.image));
+                    consume(ID);
+                    consume(SEMICOLON);
+                    break;
+                case CONST:
+                    consume(CONST);
+                    consume(INT);
+                    String var = cur.image;
+                    ft.Enter(var, CONST);
+                    layout();
+                    consume(ID);
+                    consume(ASSIGN);
+                    assign(slot(var, CONST), expr());
+                    consume(SEMICOLON);
+                    return;
+                default:
+                    layout();
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Frame slot of a variable of FuncSymTab, -1 if it has none of that type
+     * */
+    private int slot(String name, int type)
+    {
+        int offset = ft.getOffset(name, type);
+        if(offset < 0)
+            return -1;
+        return type == ARGS ? 1+local_words+(offset-8)/4 : 1+offset/4;
+    }
+
+    //-----------------------------------------
+    // Statements
+
+    private void statementList()
+    {
+        while(true)
+        {
+            switch (cur.kind)
+            {
+                case EOF:
+                case RIGHTBRACE:
+                case CASE:
+                case DEFAULT:
+                    return;
+                default:
+                    statement();
+            }
+        }
+    }
+
+    private void statement()
+    {
+        //No temporary lives from one statement to the next
+        next_temp = 0;
+        switch (cur.kind)
+        {
+            case ID:
+                if(TokenMgr.isAsm(cur, peek(cur)))
+                    throw genEx("asm statements can only be compiled to MIPS");
+                assignmentStatement();
+                break;
+            case PRINTLN:
+                consume(PRINTLN);
+                consume(LEFTPAREN);
+                int value = expr();
+                consume(RIGHTPAREN);
+                consume(SEMICOLON);
+                //The literal already ends with the newline
+                if(string >= 0)
+                    emit(PRINTS, string);
+                else
+                    emit(PRINT, value);
+                fi.side_effect = true;
+                break;
+            case WHILE:
+                whileStatement();
+                break;
+            case LEFTBRACE:
+                consume(LEFTBRACE);
+                statementList();
+                consume(RIGHTBRACE);
+                break;
+            case IF:
+                ifStatement();
+                break;
+            case RETURN:
+                consume(RETURN);
+                assign(0, expr());
+                consume(SEMICOLON);
+                break;
+            case CAL:
+                if(isIntrinsic(peek(cur)) && Intrinsics.isStatement(peek(cur).image))
+                {
+                    intrinsicStatement();
+                    break;
+                }
+                //A call statement is not followed by ";" and leaves its value in $v0
+                callExpr(0);
+                break;
+            case SWITCH:
+                switchStatement();
+                break;
+            case EXIT:
+                consume(EXIT);
+                consume(SEMICOLON);
+                emit(HALT);
+                fi.side_effect = true;
+                break;
+            case ASSERT:
+                consume(ASSERT);
+                consume(LEFTPAREN);
+                int a = expr();
+                consume(COMMA);
+                int b = expr();
+                consume(RIGHTPAREN);
+                consume(SEMICOLON);
+                emit(CHECK, a, b);
+                fi.side_effect = true;
+                break;
+            case GOTO:
+                consume(GOTO);
+                String destination = cur.image;
+                consume(ID);
+                consume(SEMICOLON);
+                emit(JMP, dest(destination));
+                break;
+            case DEST:
+                consume(DEST);
+                String place = cur.image;
+                int label = dest(place);
+                if(labels.get(label) >= 0)
+                    throw genEx("The label "+place+" is defined twice");
+                consume(ID);
+                consume(SEMICOLON);
+                place(label);
+                break;
+            case BREAK:
+            case CONTINUE:
+                int target = cur.kind == BREAK ? exitpoint : judgepoint;
+                if(target < 0)
+                    throw genEx("Expecting a while around "+cur.image);
+                advance();
+                consume(SEMICOLON);
+                emit(JMP, target);
+                break;
+            default:
+                throw genEx("Expecting statement");
+        }
+    }
+
+    private int dest(String name)
+    {
+        Integer label = dests.get(name);
+        if(label == null)
+        {
+            label = label();
+            dests.put(name, label);
+        }
+        return label;
+    }
+
+    private void assignmentStatement()
+    {
+        String var = cur.image;
+        consume(ID);
+        consume(ASSIGN);
+        int value = expr();
+        consume(SEMICOLON);
+        if(isElement(var))
+        {
+            String name = arrayName(var);
+            int index = arrayIndex(var);
+            if(st.locateGlobalArr(name) >= 0)
+                storeGlobal(globalElement(name, index), value);
+            else
+                assign(localElement(name, index), value);
+            return;
+        }
+        if(st.locateGlobal(var) >= 0)
+        {
+            storeGlobal(st.getGlobalOffset(var)/4, value);
+            return;
+        }
+        int slot = slot(var, ARGS);
+        if(slot >= 0)
+            fi.writes_args = true;
+        if(slot < 0)
+            slot = slot(var, INT);
+        if(slot < 0)
+        {
+            if(slot(var, CONST) >= 0)
+                throw new RuntimeException("Error: Const variable "+var+" is read only");
+            throw genEx(var+" not defined");
+        }
+        assign(slot, value);
+    }
+
+    /**
+     * slot = value: the instruction that computed a temporary writes the slot instead
+     * */
+    private void assign(int slot, int value)
+    {
+        if(isTemp(value) && last >= 0 && FORMATS[code[last]].startsWith("d") && code[last+1] == value)
+            code[last+1] = slot;
+        else if(value != slot)
+            emit(MOV, slot, value);
+    }
+
+    /**
+     * global = value, "g = g + v" and "g = g - v" become one ADDG or SUBG
+     * */
+    private void storeGlobal(int address, int value)
+    {
+        fi.touches_global = true;
+        if(isTemp(value) && before_last >= 0 && code[before_last] == LDG && code[before_last+2] == address
+                && (code[last] == ADD || code[last] == SUB) && code[last+1] == value
+                && code[last+2] == code[before_last+1] && code[last+3] != code[last+2])
+        {
+            int v = code[last+3];
+            int op = code[last] == ADD ? ADDG : SUBG;
+            size = before_last;
+            last = -1;
+            before_last = -1;
+            emit(op, address, v);
+            return;
+        }
+        emit(STG, address, value);
+    }
+
+    /**
+     * The test is compiled again behind the body from the same tokens, so an iteration takes no JMP:
+     * test, exit if false; body; continue: test, back to body if true
+     * */
+    private void whileStatement()
+    {
+        int judge_point = label();
+        int judge_exit = label();
+        int body = label();
+        exitpoint = judge_exit;
+        judgepoint = judge_point;
+        consume(WHILE);
+        consume(LEFTPAREN);
+        Token test = cur;
+        jump(expr(), false, judge_exit);
+        consume(RIGHTPAREN);
+        place(body);
+        statement();
+
+        //"and" in the copy still leaves this while, the labels of the while that started last stay for later
+        Token after = cur;
+        int later_exit = exitpoint;
+        int later_judge = judgepoint;
+        exitpoint = judge_exit;
+        judgepoint = judge_point;
+        next_temp = 0;
+        place(judge_point);
+        cur = test;
+        jump(expr(), true, body);
+        cur = after;
+        exitpoint = later_exit;
+        judgepoint = later_judge;
+        place(judge_exit);
+    }
+
+    private void ifStatement()
+    {
+        int judge_else = label();
+        int judge_exit = label();
+        consume(IF);
+        consume(LEFTPAREN);
+        int condition = expr();
+        consume(RIGHTPAREN);
+        jump(condition, false, judge_else);
+        statement();
+        if(cur.kind == ELSE)
+        {
+            emit(JMP, judge_exit);
+            place(judge_else);
+            consume(ELSE);
+            statement();
+        }
+        else
+            place(judge_else);
+        place(judge_exit);
+    }
+
+    /**
+     * Jump to label if the condition is true (when) or false. A comparison that computed the condition
+     * becomes a compare-branch
+     * */
+    private void jump(int condition, boolean when, int label)
+    {
+        if((condition & CONSTANT) != 0)
+        {
+            if((constants.get(condition & ~CONSTANT) != 0) == when)
+                emit(JMP, label);
+            return;
+        }
+        if(isTemp(condition) && last >= 0 && code[last] >= EQ && code[last] <= GE && code[last+1] == condition)
+        {
+            int a = code[last+2];
+            int b = code[last+3];
+            int op;
+            switch (code[last])
+            {
+                case EQ: op = when ? JEQ : JNE; break;
+                case LT: op = when ? JLT : JGE; break;
+                case LE: op = when ? JLE : JGT; break;
+                case GT: op = when ? JGT : JLE; break;
+                default: op = when ? JGE : JLT; break;
+            }
+            size = last;
+            last = -1;
+            before_last = -1;
+            emit(op, a, b, label);
+            return;
+        }
+        emit(when ? JNZ : JZ, condition, label);
+    }
+
+    /**
+     * Parser evaluates the value and then runs the statements of all cases and the default one after each other
+     * */
+    private void switchStatement()
+    {
+        consume(SWITCH);
+        consume(LEFTPAREN);
+        expr();
+        consume(RIGHTPAREN);
+        consume(LEFTBRACE);
+        while(cur.kind == CASE)
+        {
+            consume(CASE);
+            consume(UNSIGNED);
+            consume(COLON);
+            statementList();
+        }
+        if(cur.kind == DEFAULT)
+        {
+            consume(DEFAULT);
+            consume(COLON);
+            statementList();
+        }
+        consume(RIGHTBRACE);
+    }
+
+    //-----------------------------------------
+    // Intrinsics, see Intrinsics
+
+    /**
+     * Like Parser.isIntrinsic(): a function of the program is called instead, wherever it is defined
+     * */
+    private boolean isIntrinsic(Token name)
+    {
+        if(name.kind != ID || !Intrinsics.isIntrinsic(name.image) || name.image.equals(function))
+            return false;
+        Integer index = functions.get(name.image);
+        if(index != null && arg_counts.get(index) >= 0)
+            return false;
+        if(shadowed == null)
+            shadowed = Intrinsics.definedAfter(name, this::peek);
+        return !shadowed.contains(name.image);
+    }
+
+    /**
+     * "cal fill(arr, v)" or "cal copy(dst, src)"
+     * */
+    private void intrinsicStatement()
+    {
+        consume(CAL);
+        String name = cur.image;
+        consume(ID);
+        consume(LEFTPAREN);
+        int[] dst = array(cur.image);
+        consume(ID);
+        consume(COMMA);
+        if(name.equals("fill"))
+            emit(FILL, dst[0], dst[1], dst[2], expr());
+        else
+        {
+            int[] src = array(cur.image);
+            consume(ID);
+            emit(COPY, dst[0], dst[1], src[0], src[1], Math.min(dst[2], src[2]));
+        }
+        consume(RIGHTPAREN);
+    }
+
+    /**
+     * 0 for the frame or 1 for the globals, first slot and length of an array without index. Locals first,
+     * like Parser.arrayBytes()
+     * */
+    private int[] array(String name)
+    {
+        int slot = slot(name, ARRAY);
+        if(slot >= 0)
+            return new int[]{0, slot, ft.getSize(name, ARRAY)/4};
+        if(st.locateGlobalArr(name) >= 0)
+        {
+            fi.touches_global = true;
+            return new int[]{1, st.getGlobalOffset(name)/4, st.getGlobalArrSize(name)/4};
+        }
+        throw genEx(name+" is not an array");
+    }
+
+    private int localElement(String name, int index)
+    {
+        int slot = slot(name, ARRAY);
+        if(slot < 0)
+            throw genEx(name+" not defined");
+        if(index >= ft.getSize(name, ARRAY)/4)
+            throw genEx(name+"["+index+"] is out of the array");
+        return slot+index;
+    }
+
+    private int globalElement(String name, int index)
+    {
+        if(index >= st.getGlobalArrSize(name)/4)
+            throw genEx(name+"["+index+"] is out of the array");
+        return st.getGlobalOffset(name)/4+index;
+    }
+
+    //-----------------------------------------
+    // Expressions, each returns the slot of its value and sets string
+
+    private int expr()
+    {
+        int value = term();
+        int literal = string;
+        while(cur.kind == PLUS || cur.kind == MINUS)
+        {
+            int op = cur.kind == PLUS ? ADD : SUB;
+            advance();
+            int right = term();
+            value = binary(op, value, right);
+            literal = -1;
+        }
+        switch (cur.kind)
+        {
+            case EQUAL:
+            case GREATER_EQUAL_THAN:
+            case SMALLER_EQUAL_THAN:
+            case GREATER_THAN:
+            case SMALLER_THAN:
+                value = comparison(value);
+                string = -1;
+                return value;
+            case RIGHTPAREN:
+            case SEMICOLON:
+            case OR:
+            case AND:
+            case COMMA:
+                string = literal;
+                return value;
+            default:
+                throw genEx("Expecting \"+\", \")\", or \";\"");
+        }
+    }
+
+    /**
+     * "left op expr" as 0 or 1
+     * */
+    private int comparison(int left)
+    {
+        int op;
+        switch (cur.kind)
+        {
+            case EQUAL: op = EQ; break;
+            case GREATER_EQUAL_THAN: op = GE; break;
+            case SMALLER_EQUAL_THAN: op = LE; break;
+            case GREATER_THAN: op = GT; break;
+            default: op = LT; break;
+        }
+        advance();
+        int right = expr();
+        return booleanExpression(binary(op, left, right));
+    }
+
+    /**
+     * "and" and "or" after a comparison. The right side of "and" is evaluated first, then the whole
+     * while that started last is left if the left side is false
+     * */
+    private int booleanExpression(int value)
+    {
+        while(cur.kind == AND || cur.kind == OR)
+        {
+            if(cur.kind == OR)
+            {
+                advance();
+                value = binary(IOR, value, expr());
+                continue;
+            }
+            if(exitpoint < 0)
+                throw genEx("Expecting a while around \"and\"");
+            advance();
+            int right = expr();
+            free(right);
+            free(value);
+            int result = temp();
+            emit(ANDJ, result, value, right, exitpoint);
+            value = result;
+        }
+        return value;
+    }
+
+    private int term()
+    {
+        //Like Parser.term(), a call is never followed by "*" or "/"
+        if(cur.kind == CAL)
+        {
+            int value = callExpr(-1);
+            string = -1;
+            return value;
+        }
+        int value = factor();
+        int literal = string;
+        while(cur.kind == TIMES || cur.kind == DIVIDE)
+        {
+            int op = cur.kind == TIMES ? MUL : DIV;
+            advance();
+            int right = factor();
+            value = binary(op, value, right);
+            literal = -1;
+        }
+        switch (cur.kind)
+        {
+            case PLUS:
+            case MINUS:
+            case RIGHTPAREN:
+            case SEMICOLON:
+            case EQUAL:
+            case GREATER_EQUAL_THAN:
+            case SMALLER_EQUAL_THAN:
+            case GREATER_THAN:
+            case SMALLER_THAN:
+            case COMMA:
+            case AND:
+            case OR:
+                string = literal;
+                return value;
+            default:
+                throw genEx("Expecting op, \")\", or \";\"");
+        }
+    }
+
+    private int factor()
+    {
+        Token t = cur;
+        string = -1;
+        switch (cur.kind)
+        {
+            case UNSIGNED:
+                advance();
+                return constant(number(t.image));
+            case PLUS:
+            case MINUS:
+                String sign = cur.kind == MINUS ? "-" : "";
+                advance();
+                t = cur;
+                consume(UNSIGNED);
+                return constant(number(sign+t.image));
+            case ID:
+                advance();
+                return loadVariable(t.image);
+            case STRING:
+                advance();
+                int index = string(t.image);
+                string = index;
+                return constant(index);
+            case LEFTPAREN:
+                advance();
+                int value = expr();
+                consume(RIGHTPAREN);
+                return value;
+            case CAL:
+                return callExpr(-1);
+            default:
+                throw genEx("Expecting factor");
+        }
+    }
+
+    private int number(String image)
+    {
+        try
+        {
+            return Integer.parseInt(image);
+        }
+        catch (NumberFormatException e)
+        {
+            throw genEx(image+" does not fit in an int");
+        }
+    }
+
+    /**
+     * Number of a literal, the same text always gets the same one. The text ends with a newline, like in StringMgr
+     * */
+    private int string(String image)
+    {
+        String text = StringMgr.unescape(image.substring(1, image.length()-1))+"\n";
+        Integer index = strings.get(text);
+        if(index == null)
+        {
+            index = texts.size();
+            strings.put(text, index);
+            texts.add(text);
+        }
+        return index;
+    }
+
+    /**
+     * "cal f(...)" into target, or into a new temporary if target is -1. min, max and abs are instructions,
+     * other calls leave their value in $v0 as well
+     * */
+    private int callExpr(int target)
+    {
+        consume(CAL);
+        Token name = cur;
+        boolean intrinsic = isIntrinsic(name);
+        consume(ID);
+        consume(LEFTPAREN);
+        if(intrinsic && Intrinsics.isStatement(name.image))
+            throw genEx(name.image+" has no value");
+        ArrayList<Integer> args = new ArrayList<>();
+        if(cur.kind != RIGHTPAREN)
+        {
+            args.add(expr());
+            while(cur.kind == COMMA)
+            {
+                consume(COMMA);
+                args.add(expr());
+            }
+        }
+        consume(RIGHTPAREN);
+        for(int i=args.size()-1;i>=0;i--)
+            free(args.get(i));
+        int result = target >= 0 ? target : temp();
+        if(intrinsic)
+        {
+            if(args.size() != Intrinsics.arguments(name.image))
+                throw genEx(name.image+" takes "+Intrinsics.arguments(name.image)+" arguments");
+            if(name.image.equals("abs"))
+                emit(ABS, result, args.get(0));
+            else
+                emit(name.image.equals("min") ? MIN : MAX, result, args.get(0), args.get(1));
+            return result;
+        }
+        Integer other = called.get(name.image);
+        if(other != null && other != args.size())
+            throw genEx(name.image+" is called with "+other+" and with "+args.size()+" arguments");
+        fi.callees.add(name.image);
+        if(other == null)
+        {
+            called.put(name.image, args.size());
+            first_call.put(name.image, name);
+        }
+        int[] words = new int[4+args.size()];
+        words[0] = CALL;
+        words[1] = result;
+        words[2] = functionNumber(name.image);
+        words[3] = args.size();
+        for(int i=0;i<args.size();i++)
+            words[4+i] = args.get(i);
+        emit(words);
+        return result;
+    }
+
+    //-----------------------------------------
+    // Variables, globals first like Parser.loadVariable()
+
+    private int loadVariable(String var)
+    {
+        if(isElement(var))
+        {
+            String name = arrayName(var);
+            int index = arrayIndex(var);
+            if(st.locateGlobalArr(name) >= 0)
+                return loadGlobal(globalElement(name, index));
+            return localElement(name, index);
+        }
+        if(st.locateGlobal(var) >= 0)
+            return loadGlobal(st.getGlobalOffset(var)/4);
+        int slot = slot(var, ARGS);
+        if(slot < 0)
+            slot = slot(var, INT);
+        if(slot < 0)
+            slot = slot(var, CONST);
+        if(slot < 0)
+            throw genEx(var+" not defined");
+        return slot;
+    }
+
+    private int loadGlobal(int address)
+    {
+        fi.touches_global = true;
+        int t = temp();
+        emit(LDG, t, address);
+        return t;
+    }
+
+    //-----------------------------------------
+    // Bytecode
+
+    private boolean isTemp(int slot)
+    {
+        return slot >= variables && (slot & CONSTANT) == 0;
+    }
+
+    private int temp()
+    {
+        int t = variables+next_temp++;
+        max_temp = Math.max(max_temp, next_temp);
+        return t;
+    }
+
+    /**
+     * The temporaries are a stack, only the top one can be given back
+     * */
+    private void free(int slot)
+    {
+        if(isTemp(slot) && slot == variables+next_temp-1)
+            next_temp--;
+    }
+
+    private int binary(int op, int a, int b)
+    {
+        free(b);
+        free(a);
+        int d = temp();
+        emit(op, d, a, b);
+        return d;
+    }
+
+    private int constant(int value)
+    {
+        Integer index = constant_index.get(value);
+        if(index == null)
+        {
+            index = constants.size();
+            constants.add(value);
+            constant_index.put(value, index);
+        }
+        return CONSTANT | index;
+    }
+
+    private int label()
+    {
+        labels.add(-1);
+        return labels.size()-1;
+    }
+
+    /**
+     * Code that jumps here may not see a combined instruction
+     * */
+    private void place(int label)
+    {
+        labels.set(label, size);
+        last = -1;
+        before_last = -1;
+    }
+
+    private void emit(int... words)
+    {
+        if(size+words.length > code.length)
+            code = Arrays.copyOf(code, Math.max(2*code.length, size+words.length));
+        before_last = last;
+        last = size;
+        System.arraycopy(words, 0, code, size, words.length);
+        size += words.length;
+    }
+
+    /**
+     * Constants get their slots behind the temporaries, labels their positions
+     * */
+    private void finish(int index, int[] slots)
+    {
+        int base = variables+max_temp;
+        int[] c = Arrays.copyOf(code, size);
+        for(int pc=0;pc<size;)
+        {
+            String format = FORMATS[c[pc]];
+            int length = 1+format.length()+(c[pc] == CALL ? c[pc+3] : 0);
+            for(int i=1;i<length;i++)
+            {
+                char kind = i <= format.length() ? format.charAt(i-1) : 's';
+                if(kind == 's' && (c[pc+i] & CONSTANT) != 0)
+                    c[pc+i] = base+(c[pc+i] & ~CONSTANT);
+                else if(kind == 'l')
+                    c[pc+i] = labels.get(c[pc+i]);
+            }
+            pc += length;
+        }
+        int[] template = new int[base+constants.size()];
+        for(int i=0;i<constants.size();i++)
+            template[base+i] = constants.get(i);
+        codes.set(index, c);
+        templates.set(index, template);
+        params.set(index, slots);
+        arg_counts.set(index, slots.length);
+    }
+
+    //-----------------------------------------
+    // Execution
+
+    /**
+     * Run main() with all its arguments 0, the output goes to stream
+     * */
+    public void run(PrintStream stream)
+    {
+        out = stream;
+        try
+        {
+            execute();
+        }
+        catch (ArithmeticException e)
+        {
+            //From "/", or from Math.addExact and subtractExact
+            throw new RuntimeException(e.getMessage().equals("/ by zero") ? "Program stopped: division by zero"
+                    : "Program stopped: arithmetic overflow");
+        }
+        finally
+        {
+            flush();
+        }
+    }
+
+    private void execute()
+    {
+        int[][] codes = this.codes.toArray(new int[0][]);
+        int[][] templates = this.templates.toArray(new int[0][]);
+        int[][] params = this.params.toArray(new int[0][]);
+        String[] texts = this.texts.toArray(new String[0]);
+        int[] memory = new int[st.getGlobalDataSize()/4];
+        //Results of the memoized functions, and whether they are known
+        int[][] memos = new int[codes.length][];
+        boolean[][] known = new boolean[codes.length][];
+        for(int i=0;i<codes.length;i++)
+        {
+            if(memoized.get(i))
+            {
+                memos[i] = new int[memo_bound];
+                known[i] = new boolean[memo_bound];
+            }
+        }
+
+        int[][] frames = new int[64][];
+        int[][] returns = new int[64][];
+        int[] return_pcs = new int[64];
+        int depth = 0;
+
+        int[] code = codes[functions.get("main")];
+        int[] f = templates[functions.get("main")].clone();
+        int pc = 0;
+        while(true)
+        {
+            switch (code[pc])
+            {
+                case MOV:
+                    f[code[pc+1]] = f[code[pc+2]];
+                    pc += 3;
+                    break;
+                case ADD:
+                    f[code[pc+1]] = Math.addExact(f[code[pc+2]], f[code[pc+3]]);
+                    pc += 4;
+                    break;
+                case SUB:
+                    f[code[pc+1]] = Math.subtractExact(f[code[pc+2]], f[code[pc+3]]);
+                    pc += 4;
+                    break;
+                case MUL:
+                    f[code[pc+1]] = f[code[pc+2]] * f[code[pc+3]];
+                    pc += 4;
+                    break;
+                case DIV:
+                    f[code[pc+1]] = f[code[pc+2]] / f[code[pc+3]];
+                    pc += 4;
+                    break;
+                case EQ:
+                    f[code[pc+1]] = f[code[pc+2]] == f[code[pc+3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LT:
+                    f[code[pc+1]] = f[code[pc+2]] < f[code[pc+3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case LE:
+                    f[code[pc+1]] = f[code[pc+2]] <= f[code[pc+3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case GT:
+                    f[code[pc+1]] = f[code[pc+2]] > f[code[pc+3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case GE:
+                    f[code[pc+1]] = f[code[pc+2]] >= f[code[pc+3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case IOR:
+                    f[code[pc+1]] = f[code[pc+2]] | f[code[pc+3]];
+                    pc += 4;
+                    break;
+                case ANDJ:
+                    if(f[code[pc+2]] == 0)
+                        pc = code[pc+4];
+                    else
+                    {
+                        f[code[pc+1]] = f[code[pc+2]] & f[code[pc+3]];
+                        pc += 5;
+                    }
+                    break;
+                case LDG:
+                    f[code[pc+1]] = memory[code[pc+2]];
+                    pc += 3;
+                    break;
+                case STG:
+                    memory[code[pc+1]] = f[code[pc+2]];
+                    pc += 3;
+                    break;
+                case ADDG:
+                    memory[code[pc+1]] = Math.addExact(memory[code[pc+1]], f[code[pc+2]]);
+                    pc += 3;
+                    break;
+                case SUBG:
+                    memory[code[pc+1]] = Math.subtractExact(memory[code[pc+1]], f[code[pc+2]]);
+                    pc += 3;
+                    break;
+                case JMP:
+                    pc = code[pc+1];
+                    break;
+                case JZ:
+                    pc = f[code[pc+1]] == 0 ? code[pc+2] : pc+3;
+                    break;
+                case JNZ:
+                    pc = f[code[pc+1]] != 0 ? code[pc+2] : pc+3;
+                    break;
+                case JEQ:
+                    pc = f[code[pc+1]] == f[code[pc+2]] ? code[pc+3] : pc+4;
+                    break;
+                case JNE:
+                    pc = f[code[pc+1]] != f[code[pc+2]] ? code[pc+3] : pc+4;
+                    break;
+                case JLT:
+                    pc = f[code[pc+1]] < f[code[pc+2]] ? code[pc+3] : pc+4;
+                    break;
+                case JGE:
+                    pc = f[code[pc+1]] >= f[code[pc+2]] ? code[pc+3] : pc+4;
+                    break;
+                case JGT:
+                    pc = f[code[pc+1]] > f[code[pc+2]] ? code[pc+3] : pc+4;
+                    break;
+                case JLE:
+                    pc = f[code[pc+1]] <= f[code[pc+2]] ? code[pc+3] : pc+4;
+                    break;
+                case CALL:
+                {
+                    int callee = code[pc+2];
+                    if(memos[callee] != null)
+                    {
+                        int n = f[code[pc+4]];
+                        if(n >= 0 && n < memo_bound && known[callee][n])
+                        {
+                            f[code[pc+1]] = memos[callee][n];
+                            f[0] = memos[callee][n];
+                            pc += 5;
+                            break;
+                        }
+                    }
+                    int[] frame = templates[callee].clone();
+                    int[] slots = params[callee];
+                    for(int i=0;i<slots.length;i++)
+                        frame[slots[i]] = f[code[pc+4+i]];
+                    if(depth == frames.length)
+                    {
+                        if(depth == MAX_DEPTH)
+                            throw new RuntimeException("Program stopped: more than "+MAX_DEPTH+" nested calls");
+                        frames = Arrays.copyOf(frames, 2*depth);
+                        returns = Arrays.copyOf(returns, 2*depth);
+                        return_pcs = Arrays.copyOf(return_pcs, 2*depth);
+                    }
+                    frames[depth] = f;
+                    returns[depth] = code;
+                    return_pcs[depth] = pc;
+                    depth++;
+                    f = frame;
+                    code = codes[callee];
+                    pc = 0;
+                    break;
+                }
+                case RET:
+                {
+                    if(depth == 0)
+                        return;
+                    int value = f[0];
+                    int[] frame = f;
+                    depth--;
+                    f = frames[depth];
+                    code = returns[depth];
+                    pc = return_pcs[depth];
+                    frames[depth] = null;
+                    int callee = code[pc+2];
+                    if(memos[callee] != null)
+                    {
+                        //The argument is never assigned, it is still the key
+                        int n = frame[params[callee][0]];
+                        if(n >= 0 && n < memo_bound)
+                        {
+                            memos[callee][n] = value;
+                            known[callee][n] = true;
+                        }
+                    }
+                    f[code[pc+1]] = value;
+                    f[0] = value;
+                    pc += 4+code[pc+3];
+                    break;
+                }
+                case MIN:
+                    f[code[pc+1]] = Math.min(f[code[pc+2]], f[code[pc+3]]);
+                    pc += 4;
+                    break;
+                case MAX:
+                    f[code[pc+1]] = Math.max(f[code[pc+2]], f[code[pc+3]]);
+                    pc += 4;
+                    break;
+                case ABS:
+                    f[code[pc+1]] = Math.abs(f[code[pc+2]]);
+                    pc += 3;
+                    break;
+                case PRINT:
+                    buffer.append(f[code[pc+1]]).append('\n');
+                    if(buffer.length() >= BUFFER_SIZE)
+                        flush();
+                    pc += 2;
+                    break;
+                case PRINTS:
+                    buffer.append(texts[code[pc+1]]);
+                    if(buffer.length() >= BUFFER_SIZE)
+                        flush();
+                    pc += 2;
+                    break;
+                case CHECK:
+                    if(f[code[pc+1]] != f[code[pc+2]])
+                        return;
+                    pc += 3;
+                    break;
+                case HALT:
+                    return;
+                case FILL:
+                {
+                    int[] array = code[pc+1] == 0 ? f : memory;
+                    Arrays.fill(array, code[pc+2], code[pc+2]+code[pc+3], f[code[pc+4]]);
+                    pc += 5;
+                    break;
+                }
+                case COPY:
+                    System.arraycopy(code[pc+3] == 0 ? f : memory, code[pc+4],
+                            code[pc+1] == 0 ? f : memory, code[pc+2], code[pc+5]);
+                    pc += 6;
+                    break;
+                default:
+                    throw new RuntimeException("Bad opcode "+code[pc]+" at "+pc);
+            }
+        }
+    }
+
+    private void flush()
+    {
+        out.print(buffer);
+        out.flush();
+        buffer.setLength(0);
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Built-in functions, called like any other function ("cal min(a, b)") but expanded inline by the parser
+ *  min(a, b), max(a, b), abs(a)    branchless: slt/movn and sra/xor/subu
+ *  fill(arr, v)                     every element of arr is v
+ *  copy(dst, src)                   the elements of src into dst, as many as the smaller array has
+ * The array sizes are known from the declarations, so fill and copy are straight lines of lw/sw,
+ * or a loop that moves 4 words per iteration for big arrays.
+ * A function the program defines with one of these names is called instead, also when it is defined
+ * after the call.
+ * */
+class Intrinsics implements Constants
+{
+    /**
+     * Number of arguments, -1 if name is not an intrinsic
+     * */
+    static int arguments(String name)
+    {
+        switch (name)
+        {
+            case "abs":
+                return 1;
+            case "min":
+            case "max":
+            case "fill":
+            case "copy":
+                return 2;
+            default:
+                return -1;
+        }
+    }
+
+    static boolean isIntrinsic(String name)
+    {
+        return arguments(name) >= 0;
+    }
+
+    /**
+     * Intrinsics that only take arrays and give no value
+     * */
+    static boolean isStatement(String name)
+    {
+        return name.equals("fill") || name.equals("copy");
+    }
+
+    /**
+     * The value of an intrinsic on constants, null if it has none
+     * */
+    static Integer evaluate(String name, int[] args)
+    {
+        if(args.length != arguments(name))
+            return null;
+        switch (name)
+        {
+            case "abs":
+                return Math.abs(args[0]);
+            case "min":
+                return Math.min(args[0], args[1]);
+            case "max":
+                return Math.max(args[0], args[1]);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The intrinsics the program defines a function for after t, the tokens up to EOF are read through next
+     * */
+    static Set<String> definedAfter(Token t, UnaryOperator<Token> next)
+    {
+        Set<String> names = new HashSet<>();
+        for(;t.kind != EOF;t = next.apply(t))
+        {
+            if(t.kind != DEF)
+                continue;
+            Token type = next.apply(t);
+            Token name = type.kind == EOF ? type : next.apply(type);
+            if(name.kind == ID && isIntrinsic(name.image))
+                names.add(name.image);
+        }
+        return names;
+    }
+}
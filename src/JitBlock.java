@@ -0,0 +1,28 @@
+/**
+ * A basic block of MIPS code that JitCompiler translated into a JVM class, see MipsSimulator.
+ * Public, like Memory, because the translated classes live in their own class loader
+ * */
+public interface JitBlock
+{
+    /**
+     * Run the block on the registers r ($0~$31, then the sink, hi and lo), returns the index of the
+     * next instruction, or ~index when the branch that ends the block was taken
+     * */
+    int run(int[] r, Memory memory);
+
+    /**
+     * What the translated code cannot do by itself
+     * */
+    interface Memory
+    {
+        int load(int pc, int address, int size);
+
+        void store(int pc, int address, int value, int size);
+
+        //add, sub or addi at pc overflowed, throws
+        void overflow(int pc);
+
+        //Index of the instruction at address, for jr and jalr
+        int target(int pc, int address);
+    }
+}
@@ -0,0 +1,464 @@
+/**
+ * Translates basic blocks of the code MipsSimulator decoded into JVM classes that implement JitBlock.
+ * The class files are written by ClassWriter and defined by a class loader that only lives in memory.
+ *
+ * The run() of a block loads the registers it uses from r into locals, executes the instructions on
+ * the locals, and stores the registers it wrote back into r on its way out. Loads, stores and jr
+ * call back into the simulator through JitBlock.Memory.
+ * */
+class JitCompiler implements Opcodes
+{
+    //Longer blocks are cut, a method has at most 64K of bytecode
+    private static final int MAX_BLOCK = 400;
+
+    //Locals of run(): this, r, memory, then one per register
+    private static final int R = 1, MEMORY = 2, FIRST_REGISTER = 3;
+    private static final int TEMPORARY = FIRST_REGISTER + MipsSimulator.REGISTERS;
+
+    private static final String MEMORY_CLASS = "JitBlock$Memory";
+
+    private int[] code;
+    private int length;
+    private ClassWriter.Loader loader;
+    private int compiled_blocks;
+
+    public JitCompiler(int[] code, int length)
+    {
+        this.code = code;
+        this.length = length;
+        this.loader = new ClassWriter.Loader(JitCompiler.class.getClassLoader());
+        this.compiled_blocks = 0;
+    }
+
+    public int getCompiledBlocks()
+    {
+        return compiled_blocks;
+    }
+
+    /**
+     * The block that starts at index ends before the next leader or syscall, or after a branch or jump
+     * */
+    public int blockEnd(int start, boolean[] leader)
+    {
+        int i = start;
+        while(i < length && i-start < MAX_BLOCK)
+        {
+            int op = code[4*i];
+            if((i > start && leader[i]) || op == MipsSimulator.SYSCALL || op == MipsSimulator.BREAK)
+                break;
+            i++;
+            if(op >= MipsSimulator.BEQ && op <= MipsSimulator.JALR)
+                break;
+        }
+        return i;
+    }
+
+    /**
+     * Translate the instructions start .. end-1
+     * */
+    public JitBlock compile(int start, int end)
+    {
+        String name = "MipsBlock_"+start;
+        byte[] bytes = classFile(name, start, end);
+        try
+        {
+            JitBlock block = (JitBlock)loader.define(name, bytes).getDeclaredConstructor().newInstance();
+            compiled_blocks++;
+            return block;
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            throw new RuntimeException("JIT: cannot load the block at "+String.format("%08x", MipsAssembler.TEXT_BASE+4*start)+": "+e);
+        }
+    }
+
+    //-----------------------------------------
+    // Bytecode of run()
+
+    private ClassWriter.Method method;
+    private boolean[] used;
+    private boolean[] written;
+
+    private void translate(int start, int end)
+    {
+        used = new boolean[MipsSimulator.REGISTERS];
+        written = new boolean[MipsSimulator.REGISTERS];
+        for(int i=start;i<end;i++)
+        {
+            int op = code[4*i];
+            for(int k=1;k<=3;k++)
+                if(isRegister(op, k))
+                    used[code[4*i+k]] = true;
+            if(op == MipsSimulator.JAL)
+                used[MipsSimulator.RA] = true;
+            if(op >= MipsSimulator.MULT && op <= MipsSimulator.DIVU)
+                used[MipsSimulator.HI] = used[MipsSimulator.LO] = true;
+            if(op == MipsSimulator.MFHI)
+                used[MipsSimulator.HI] = true;
+            if(op == MipsSimulator.MFLO)
+                used[MipsSimulator.LO] = true;
+        }
+        for(int reg=0;reg<MipsSimulator.REGISTERS;reg++)
+        {
+            if(!used[reg])
+                continue;
+            method.op(ALOAD, R);
+            method.push(reg);
+            method.op(IALOAD);
+            method.op(ISTORE, FIRST_REGISTER+reg);
+        }
+
+        for(int i=start;i<end;i++)
+        {
+            int op = code[4*i], a = code[4*i+1], b = code[4*i+2], x = code[4*i+3];
+            if(op >= MipsSimulator.BEQ && op <= MipsSimulator.JALR)
+            {
+                terminator(i, op, a, b, x);
+                return;
+            }
+            instruction(i, op, a, b, x);
+        }
+        exit();
+        method.push(end);
+        method.op(IRETURN);
+    }
+
+    /**
+     * Is operand k of op a register
+     * */
+    private static boolean isRegister(int op, int k)
+    {
+        switch (op)
+        {
+            case MipsSimulator.SLL: case MipsSimulator.SRL: case MipsSimulator.SRA:
+            case MipsSimulator.ADDI: case MipsSimulator.ADDIU: case MipsSimulator.SLTI: case MipsSimulator.SLTIU:
+            case MipsSimulator.ANDI: case MipsSimulator.ORI: case MipsSimulator.XORI:
+            case MipsSimulator.LW: case MipsSimulator.LB: case MipsSimulator.LBU: case MipsSimulator.LH: case MipsSimulator.LHU:
+            case MipsSimulator.SW: case MipsSimulator.SB: case MipsSimulator.SH:
+                return k <= 2;
+            case MipsSimulator.LUI: case MipsSimulator.MFHI: case MipsSimulator.MFLO:
+                return k == 1;
+            case MipsSimulator.BEQ: case MipsSimulator.BNE:
+                return k <= 2;
+            case MipsSimulator.BLEZ: case MipsSimulator.BGTZ: case MipsSimulator.BLTZ: case MipsSimulator.BGEZ:
+                return k == 1;
+            case MipsSimulator.J: case MipsSimulator.JAL:
+                return false;
+            case MipsSimulator.JR:
+                return k == 2;
+            case MipsSimulator.JALR:
+                return k <= 2;
+            case MipsSimulator.MULT: case MipsSimulator.MULTU: case MipsSimulator.DIV: case MipsSimulator.DIVU:
+                return k >= 2;
+            default:
+                return true;
+        }
+    }
+
+    private void load(int reg)
+    {
+        method.op(ILOAD, FIRST_REGISTER+reg);
+    }
+
+    private void store(int reg)
+    {
+        method.op(ISTORE, FIRST_REGISTER+reg);
+        written[reg] = true;
+    }
+
+    private void binary(int opcode, int a, int b, int x)
+    {
+        load(b);
+        load(x);
+        method.op(opcode);
+        store(a);
+    }
+
+    private void immediate(int opcode, int a, int b, int x)
+    {
+        load(b);
+        method.push(x);
+        method.op(opcode);
+        store(a);
+    }
+
+    /**
+     * a = (b < x) with a JVM compare, x is a register or a constant
+     */
+    private void setLess(int a, int b, int x, boolean constant, boolean unsigned)
+    {
+        load(b);
+        if(unsigned)
+        {
+            method.push(Integer.MIN_VALUE);
+            method.op(IXOR);
+        }
+        if(constant)
+            method.push(x);
+        else
+            load(x);
+        if(unsigned)
+        {
+            method.push(Integer.MIN_VALUE);
+            method.op(IXOR);
+        }
+        int less = method.label();
+        int done = method.label();
+        method.jump(IF_ICMPLT, less);
+        method.op(ICONST_0);
+        method.jump(GOTO, done);
+        method.place(less);
+        method.op(ICONST_1);
+        method.place(done);
+        store(a);
+    }
+
+    private void memory(int pc, int address, int offset)
+    {
+        method.op(ALOAD, MEMORY);
+        method.push(pc);
+        load(address);
+        method.push(offset);
+        method.op(IADD);
+    }
+
+    private void instruction(int pc, int op, int a, int b, int x)
+    {
+        switch (op)
+        {
+            case MipsSimulator.NOP: break;
+            case MipsSimulator.ADD: checked(pc, LADD, a, b, x, false); break;
+            case MipsSimulator.SUB: checked(pc, LSUB, a, b, x, false); break;
+            case MipsSimulator.ADDU: binary(IADD, a, b, x); break;
+            case MipsSimulator.SUBU: binary(ISUB, a, b, x); break;
+            case MipsSimulator.AND: binary(IAND, a, b, x); break;
+            case MipsSimulator.OR: binary(IOR, a, b, x); break;
+            case MipsSimulator.XOR: binary(IXOR, a, b, x); break;
+            case MipsSimulator.NOR:
+                load(b);
+                load(x);
+                method.op(IOR);
+                method.op(ICONST_M1);
+                method.op(IXOR);
+                store(a);
+                break;
+            case MipsSimulator.SLT: setLess(a, b, x, false, false); break;
+            case MipsSimulator.SLTU: setLess(a, b, x, false, true); break;
+            case MipsSimulator.SLLV: binary(ISHL, a, b, x); break;
+            case MipsSimulator.SRLV: binary(IUSHR, a, b, x); break;
+            case MipsSimulator.SRAV: binary(ISHR, a, b, x); break;
+            case MipsSimulator.SLL: immediate(ISHL, a, b, x); break;
+            case MipsSimulator.SRL: immediate(IUSHR, a, b, x); break;
+            case MipsSimulator.SRA: immediate(ISHR, a, b, x); break;
+            case MipsSimulator.MOVZ:
+            case MipsSimulator.MOVN:
+            {
+                int skip = method.label();
+                load(x);
+                method.jump(op == MipsSimulator.MOVZ ? IFNE : IFEQ, skip);
+                load(b);
+                store(a);
+                method.place(skip);
+                break;
+            }
+            case MipsSimulator.ADDI: checked(pc, LADD, a, b, x, true); break;
+            case MipsSimulator.ADDIU: immediate(IADD, a, b, x); break;
+            case MipsSimulator.SLTI: setLess(a, b, x, true, false); break;
+            case MipsSimulator.SLTIU: setLess(a, b, x, true, true); break;
+            case MipsSimulator.ANDI: immediate(IAND, a, b, x); break;
+            case MipsSimulator.ORI: immediate(IOR, a, b, x); break;
+            case MipsSimulator.XORI: immediate(IXOR, a, b, x); break;
+            case MipsSimulator.LUI:
+                method.push(x);
+                store(a);
+                break;
+            case MipsSimulator.LW: case MipsSimulator.LB: case MipsSimulator.LBU: case MipsSimulator.LH: case MipsSimulator.LHU:
+                memory(pc, b, x);
+                method.push(op == MipsSimulator.LW ? 4 : op == MipsSimulator.LH || op == MipsSimulator.LHU ? 2 : 1);
+                method.invokeInterface(MEMORY_CLASS, "load", "(III)I", 4);
+                if(op == MipsSimulator.LB)
+                    method.op(I2B);
+                else if(op == MipsSimulator.LH)
+                    method.op(I2S);
+                store(a);
+                break;
+            case MipsSimulator.SW: case MipsSimulator.SB: case MipsSimulator.SH:
+                memory(pc, b, x);
+                load(a);
+                method.push(op == MipsSimulator.SW ? 4 : op == MipsSimulator.SH ? 2 : 1);
+                method.invokeInterface(MEMORY_CLASS, "store", "(IIII)V", 5);
+                break;
+            case MipsSimulator.MULT:
+            case MipsSimulator.MULTU:
+                load(b);
+                widen(op == MipsSimulator.MULTU);
+                load(x);
+                widen(op == MipsSimulator.MULTU);
+                method.op(LMUL);
+                method.op(DUP2);
+                method.op(L2I);
+                store(MipsSimulator.LO);
+                method.push(32);
+                method.op(LSHR);
+                method.op(L2I);
+                store(MipsSimulator.HI);
+                break;
+            case MipsSimulator.DIV:
+            case MipsSimulator.DIVU:
+            {
+                //Division by zero leaves hi and lo alone
+                int skip = method.label();
+                load(x);
+                method.jump(IFEQ, skip);
+                load(b);
+                load(x);
+                if(op == MipsSimulator.DIV)
+                    method.op(IDIV);
+                else
+                    method.invokeStatic("java/lang/Integer", "divideUnsigned", "(II)I");
+                store(MipsSimulator.LO);
+                load(b);
+                load(x);
+                if(op == MipsSimulator.DIV)
+                    method.op(IREM);
+                else
+                    method.invokeStatic("java/lang/Integer", "remainderUnsigned", "(II)I");
+                store(MipsSimulator.HI);
+                method.place(skip);
+                break;
+            }
+            case MipsSimulator.MFHI:
+                load(MipsSimulator.HI);
+                store(a);
+                break;
+            case MipsSimulator.MFLO:
+                load(MipsSimulator.LO);
+                store(a);
+                break;
+            case MipsSimulator.MUL: binary(IMUL, a, b, x); break;
+            default:
+                throw new RuntimeException("JIT: operation "+op+" cannot be translated");
+        }
+    }
+
+    /**
+     * add, sub or addi in 64 bits, a result that does not fit in 32 traps through Memory.overflow()
+     * */
+    private void checked(int pc, int opcode, int a, int b, int x, boolean immediate)
+    {
+        load(b);
+        method.op(I2L);
+        if(immediate)
+            method.push(x);
+        else
+            load(x);
+        method.op(I2L);
+        method.op(opcode);
+        //One copy is stored, the other is compared with itself cut to 32 bits
+        method.op(DUP2);
+        method.op(DUP2);
+        method.op(L2I);
+        method.op(I2L);
+        method.op(LCMP);
+        int fits = method.label();
+        method.jump(IFEQ, fits);
+        method.op(ALOAD, MEMORY);
+        method.push(pc);
+        method.invokeInterface(MEMORY_CLASS, "overflow", "(I)V", 2);
+        method.place(fits);
+        method.op(L2I);
+        store(a);
+    }
+
+    private void widen(boolean unsigned)
+    {
+        if(unsigned)
+            method.invokeStatic("java/lang/Integer", "toUnsignedLong", "(I)J");
+        else
+            method.op(I2L);
+    }
+
+    /**
+     * The branch or jump at the end of the block
+     * */
+    private void terminator(int pc, int op, int a, int b, int x)
+    {
+        switch (op)
+        {
+            case MipsSimulator.J:
+                exit();
+                method.push(a);
+                method.op(IRETURN);
+                return;
+            case MipsSimulator.JAL:
+                method.push(MipsAssembler.TEXT_BASE+4*(pc+1));
+                store(MipsSimulator.RA);
+                exit();
+                method.push(a);
+                method.op(IRETURN);
+                return;
+            case MipsSimulator.JR:
+            case MipsSimulator.JALR:
+                load(b);
+                method.op(ISTORE, TEMPORARY);
+                if(op == MipsSimulator.JALR)
+                {
+                    method.push(MipsAssembler.TEXT_BASE+4*(pc+1));
+                    store(a);
+                }
+                exit();
+                method.op(ALOAD, MEMORY);
+                method.push(pc);
+                method.op(ILOAD, TEMPORARY);
+                method.invokeInterface(MEMORY_CLASS, "target", "(II)I", 3);
+                method.op(IRETURN);
+                return;
+            default:
+                break;
+        }
+        int taken = method.label();
+        load(a);
+        switch (op)
+        {
+            case MipsSimulator.BEQ: load(b); method.jump(IF_ICMPEQ, taken); break;
+            case MipsSimulator.BNE: load(b); method.jump(IF_ICMPNE, taken); break;
+            case MipsSimulator.BLEZ: method.jump(IFLE, taken); break;
+            case MipsSimulator.BGTZ: method.jump(IFGT, taken); break;
+            case MipsSimulator.BLTZ: method.jump(IFLT, taken); break;
+            default: method.jump(IFGE, taken); break;
+        }
+        exit();
+        method.push(pc+1);
+        method.op(IRETURN);
+        method.place(taken);
+        exit();
+        method.push(~x);
+        method.op(IRETURN);
+    }
+
+    /**
+     * Store the registers the block wrote back into r
+     * */
+    private void exit()
+    {
+        for(int reg=0;reg<MipsSimulator.REGISTERS;reg++)
+        {
+            if(!written[reg] || reg == MipsSimulator.SINK)
+                continue;
+            method.op(ALOAD, R);
+            method.push(reg);
+            method.op(ILOAD, FIRST_REGISTER+reg);
+            method.op(IASTORE);
+        }
+    }
+
+    private byte[] classFile(String name, int start, int end)
+    {
+        ClassWriter writer = new ClassWriter(name, "java/lang/Object", "JitBlock");
+        writer.defaultConstructor();
+        method = new ClassWriter.Method(writer.getPool());
+        translate(start, end);
+        writer.method(ACC_PUBLIC, "run", "([I"+"L"+MEMORY_CLASS+";)I", method, 8, TEMPORARY+1);
+        return writer.bytes();
+    }
+}
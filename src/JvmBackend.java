@@ -0,0 +1,1030 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles a C-- program into one JVM class instead of MIPS code, so that it can be loaded into any JVM and
+ * run by HotSpot. The methods follow the grammar of Parser and, like ConstEvaluator, the semantics of the
+ * code Parser generates:
+ *  - every function is a static method taking its int arguments and returning an int: the value of the last
+ *    "return" or call it executed ($v0), 0 if there was none. "return" does not leave the function
+ *  - global ints are static int fields, global arrays static int[] fields, locals are locals
+ *  - break and continue go to the while that started last, "and" leaves it when its left side is false
+ *  - println, assert and exit call JvmRuntime
+ *  - "+" and "-" are Math.addExact and subtractExact, the program stops on an overflow like it does at add and sub
+ * A string literal used as a value is its number in the pool. asm statements are MIPS and are not accepted.
+ * The optimizations of Parser (memoization, clones, unrolling) are left to the JIT of the JVM.
+ * */
+class JvmBackend implements Constants, Opcodes
+{
+    private static final String RUNTIME = "JvmRuntime";
+
+    private TokenMgr tm;
+    private Token cur;
+    private String class_name;
+    private ClassWriter writer;
+
+    //Global name -> size of the array, 0 for an int
+    private Map<String,Integer> globals;
+    //Literal -> its number, and the literals in order
+    private Map<String,Integer> strings;
+    private ArrayList<String> texts;
+    //Parameters of the functions defined so far, and the number of arguments they are called with
+    private Map<String,Integer> defined;
+    private Map<String,Integer> called;
+    private Map<String,Token> first_call;
+
+    //The function being compiled
+    private String function;
+    //Intrinsics the program defines a function for further down, null until the first call of an intrinsic
+    private Set<String> shadowed;
+    private ClassWriter.Method method;
+    private Map<String,Integer> args;
+    private Map<String,Integer> locals;
+    private Map<String,Integer> arrays;     //Local array -> slot
+    private Map<String,Integer> array_sizes;
+    private Set<String> consts;
+    private int v0;
+    private int next_local;
+    private int depth;
+    private int max_depth;
+    //Labels of the while that started last, -1 before the first one of the function
+    private int exitpoint;
+    private int judgepoint;
+    private Map<String,Integer> dests;
+
+    public JvmBackend(TokenMgr tm, String class_name)
+    {
+        this.tm = tm;
+        this.class_name = class_name;
+        this.globals = new LinkedHashMap<>();
+        this.strings = new HashMap<>();
+        this.texts = new ArrayList<>();
+        this.defined = new HashMap<>();
+        this.called = new HashMap<>();
+        this.first_call = new HashMap<>();
+        this.cur = tm.getNextToken();
+    }
+
+    /**
+     * A class name for the program in fileName: the name without directory and extension, made a Java identifier
+     * */
+    public static String className(String fileName)
+    {
+        String name = new java.io.File(fileName).getName();
+        if(name.indexOf('.') > 0)
+            name = name.substring(0, name.indexOf('.'));
+        StringBuilder sb = new StringBuilder();
+        for(int i=0;i<name.length();i++)
+            sb.append(Character.isJavaIdentifierPart(name.charAt(i)) ? name.charAt(i) : '_');
+        if(sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0)))
+            sb.insert(0, '_');
+        return sb.toString();
+    }
+
+    /**
+     * Define the class in a loader of its own
+     * */
+    public static Class<?> load(String class_name, byte[] bytes)
+    {
+        return new ClassWriter.Loader(JvmBackend.class.getClassLoader()).define(class_name, bytes);
+    }
+
+    /**
+     * The class file of the whole program
+     * */
+    public byte[] compile()
+    {
+        writer = new ClassWriter(class_name, "java/lang/Object");
+        while(cur.kind == DEF || cur.kind == INT || cur.kind == ARRAY)
+        {
+            if(cur.kind == DEF)
+                functionDefinition();
+            else
+                globalDeclaration();
+        }
+        if(cur.kind != EOF)
+            throw genEx("Expecting <EOF>");
+        for(Map.Entry<String,Integer> call : called.entrySet())
+        {
+            Integer params = defined.get(call.getKey());
+            if(params == null)
+            {
+                cur = first_call.get(call.getKey());
+                throw genEx("Function "+call.getKey()+" is not defined");
+            }
+            if(params.intValue() != call.getValue())
+            {
+                cur = first_call.get(call.getKey());
+                throw genEx(call.getKey()+" takes "+params+" arguments");
+            }
+        }
+        staticInitializer();
+        javaMain();
+        return writer.bytes();
+    }
+
+    /**
+     * Where compile() stopped, the position of a compilation error
+     * */
+    public Token getCurrentToken()
+    {
+        return cur;
+    }
+
+    private RuntimeException genEx(String errorMessage)
+    {
+        return new RuntimeException("Encountered \"" +
+                cur.image + "\" on line " +
+                cur.beginLine + ", column " +
+                cur.beginColumn + "." +
+                errorMessage);
+    }
+
+    private void advance()
+    {
+        if(cur.next == null)
+            cur.next = tm.getNextToken();
+        cur = cur.next;
+    }
+
+    private void consume(int expected)
+    {
+        if(cur.kind != expected)
+            throw genEx("Expecting " + tokenImage[expected]);
+        advance();
+    }
+
+    //-----------------------------------------
+    // Declarations
+
+    private static boolean isElement(String var)
+    {
+        return var.indexOf('[') > 0 && var.indexOf(']') > 0;
+    }
+
+    private static String arrayName(String var)
+    {
+        return var.substring(0, var.indexOf('['));
+    }
+
+    private int arrayIndex(String var)
+    {
+        try
+        {
+            return Integer.parseInt(var.substring(var.indexOf('[')+1, var.indexOf(']')));
+        }
+        catch (NumberFormatException e)
+        {
+            throw genEx("The index of "+arrayName(var)+" must be a number");
+        }
+    }
+
+    /**
+     * "int a;", "int a, b;" or "array a[10];", like Parser.globalDeclarations() at most one comma
+     * */
+    private void globalDeclaration()
+    {
+        if(cur.kind == INT)
+        {
+            consume(INT);
+            globalInt();
+            if(cur.kind == COMMA)
+            {
+                consume(COMMA);
+                globalInt();
+            }
+        }
+        else
+        {
+            consume(ARRAY);
+            if(!isElement(cur.image))
+                throw genEx("Expecting the size of the array");
+            String name = arrayName(cur.image);
+            globals.put(name, arrayIndex(cur.image));
+            writer.field(ACC_PUBLIC | ACC_STATIC, name, "[I");
+            consume(ID);
+        }
+        consume(SEMICOLON);
+    }
+
+    private void globalInt()
+    {
+        globals.put(cur.image, 0);
+        writer.field(ACC_PUBLIC | ACC_STATIC, cur.image, "I");
+        consume(ID);
+    }
+
+    private void functionDefinition()
+    {
+        Token start = cur;
+        functionDefinition(false);
+        //A long function is compiled again with 32 bit jumps
+        if(method.hasFarJumps())
+        {
+            cur = start;
+            functionDefinition(true);
+        }
+        StringBuilder descriptor = new StringBuilder("(");
+        for(int i=0;i<args.size();i++)
+            descriptor.append('I');
+        descriptor.append(")I");
+        writer.method(ACC_PUBLIC | ACC_STATIC, function, descriptor.toString(), method, max_depth, next_local);
+        defined.put(function, args.size());
+        function = null;
+    }
+
+    private void functionDefinition(boolean wide)
+    {
+        consume(DEF);
+        if(cur.kind == INT || cur.kind == VOID)
+            advance();
+        function = cur.image;
+        if(defined.containsKey(function))
+            throw genEx(function+" is defined twice");
+        consume(ID);
+        method = new ClassWriter.Method(writer.getPool(), wide);
+        args = new HashMap<>();
+        locals = new HashMap<>();
+        arrays = new HashMap<>();
+        array_sizes = new HashMap<>();
+        consts = new HashSet<>();
+        dests = new HashMap<>();
+        exitpoint = -1;
+        judgepoint = -1;
+        depth = 0;
+        max_depth = 0;
+        next_local = 0;
+
+        consume(LEFTPAREN);
+        while(cur.kind == INT)
+        {
+            consume(INT);
+            args.put(cur.image, next_local++);
+            consume(ID);
+            if(cur.kind != COMMA)
+                break;
+            consume(COMMA);
+        }
+        consume(RIGHTPAREN);
+        consume(LEFTBRACE);
+        v0 = next_local++;
+        push(0);
+        store(v0);
+        localDeclarations();
+        statementList();
+        consume(RIGHTBRACE);
+        load(v0);
+        op(IRETURN, -1);
+
+        for(Map.Entry<String,Integer> dest : dests.entrySet())
+            if(!method.isPlaced(dest.getValue()))
+                throw new RuntimeException("Error: the label "+dest.getKey()+" of goto is not in function "+function);
+    }
+
+    /**
+     * int and array locals start as 0, a const declaration ends the declarations like in Parser
+     * */
+    private void localDeclarations()
+    {
+        while(true)
+        {
+            switch (cur.kind)
+            {
+                case INT:
+                    do
+                    {
+                        advance();
+                        int slot = next_local++;
+                        locals.put(cur.image, slot);
+                        push(0);
+                        store(slot);
+                        consume(ID);
+                    } while(cur.kind == COMMA);
+                    consume(SEMICOLON);
+                    break;
+                case ARRAY:
+                    consume(ARRAY);
+                    if(!isElement(cur.image))
+                        throw genEx("Expecting the size of the array");
+                    String name = arrayName(cur.image);
+                    int slot = next_local++;
+                    arrays.put(name, slot);
+                    array_sizes.put(name, arrayIndex(cur.image));
+                    push(arrayIndex(cur.image));
+                    method.op(NEWARRAY, T_INT);
+                    op(ASTORE, slot, -1);
+                    consume(ID);
+                    consume(SEMICOLON);
+                    break;
+                case CONST:
+                    consume(CONST);
+                    consume(INT);
+                    String var = cur.image;
+                    consume(ID);
+                    consume(ASSIGN);
+                    expr();
+                    int c = next_local++;
+                    locals.put(var, c);
+                    consts.add(var);
+                    store(c);
+                    consume(SEMICOLON);
+                    return;
+                default:
+                    return;
+            }
+        }
+    }
+
+    //-----------------------------------------
+    // Statements
+
+    private void statementList()
+    {
+        while(true)
+        {
+            switch (cur.kind)
+            {
+                case EOF:
+                case RIGHTBRACE:
+                case CASE:
+                case DEFAULT:
+                    return;
+                default:
+                    statement();
+            }
+        }
+    }
+
+    private void statement()
+    {
+        switch (cur.kind)
+        {
+            case ID:
+                if(TokenMgr.isAsm(cur, peek(cur)))
+                    throw genEx("asm statements can only be compiled to MIPS");
+                assignmentStatement();
+                break;
+            case PRINTLN:
+                printlnStatement();
+                break;
+            case WHILE:
+                whileStatement();
+                break;
+            case LEFTBRACE:
+                consume(LEFTBRACE);
+                statementList();
+                consume(RIGHTBRACE);
+                break;
+            case IF:
+                ifStatement();
+                break;
+            case Constants.RETURN:
+                consume(Constants.RETURN);
+                expr();
+                store(v0);
+                consume(SEMICOLON);
+                break;
+            case CAL:
+                if(isIntrinsic(peek(cur)) && Intrinsics.isStatement(peek(cur).image))
+                {
+                    intrinsicStatement();
+                    break;
+                }
+                //A call statement is not followed by ";" and leaves its value in $v0
+                callExpr();
+                store(v0);
+                break;
+            case SWITCH:
+                switchStatement();
+                break;
+            case EXIT:
+                consume(EXIT);
+                consume(SEMICOLON);
+                method.invokeStatic(RUNTIME, "exit", "()V");
+                break;
+            case ASSERT:
+                consume(ASSERT);
+                consume(LEFTPAREN);
+                expr();
+                consume(COMMA);
+                expr();
+                consume(RIGHTPAREN);
+                consume(SEMICOLON);
+                method.invokeStatic(RUNTIME, "check", "(II)V");
+                depth -= 2;
+                break;
+            case Constants.GOTO:
+                consume(Constants.GOTO);
+                String destination = cur.image;
+                consume(ID);
+                consume(SEMICOLON);
+                method.jump(Opcodes.GOTO, dest(destination));
+                break;
+            case DEST:
+                consume(DEST);
+                String place = cur.image;
+                int label = dest(place);
+                if(method.isPlaced(label))
+                    throw genEx("The label "+place+" is defined twice");
+                consume(ID);
+                consume(SEMICOLON);
+                method.place(label);
+                break;
+            case BREAK:
+            case CONTINUE:
+                int target = cur.kind == BREAK ? exitpoint : judgepoint;
+                if(target < 0)
+                    throw genEx("Expecting a while around "+cur.image);
+                advance();
+                consume(SEMICOLON);
+                method.jump(Opcodes.GOTO, target);
+                break;
+            default:
+                throw genEx("Expecting statement");
+        }
+    }
+
+    private int dest(String name)
+    {
+        Integer label = dests.get(name);
+        if(label == null)
+        {
+            label = method.label();
+            dests.put(name, label);
+        }
+        return label;
+    }
+
+    private void assignmentStatement()
+    {
+        String var = cur.image;
+        consume(ID);
+        consume(ASSIGN);
+        if(isElement(var))
+        {
+            arrayRef(var, true);
+            push(arrayIndex(var));
+            expr();
+            op(IASTORE, -3);
+        }
+        else
+        {
+            expr();
+            storeVariable(var);
+        }
+        consume(SEMICOLON);
+    }
+
+    private void printlnStatement()
+    {
+        consume(PRINTLN);
+        consume(LEFTPAREN);
+        int string = expr();
+        consume(RIGHTPAREN);
+        consume(SEMICOLON);
+        //The literal already ends with the newline
+        if(string >= 0)
+        {
+            op(POP, -1);
+            method.push(texts.get(string));
+            method.invokeStatic(RUNTIME, "print", "(Ljava/lang/String;)V");
+            return;
+        }
+        method.invokeStatic(RUNTIME, "println", "(I)V");
+        depth--;
+    }
+
+    private void whileStatement()
+    {
+        int judge_point = method.label();
+        int judge_exit = method.label();
+        exitpoint = judge_exit;
+        judgepoint = judge_point;
+        method.place(judge_point);
+        consume(WHILE);
+        consume(LEFTPAREN);
+        expr();
+        consume(RIGHTPAREN);
+        jump(IFEQ, judge_exit, -1);
+        statement();
+        method.jump(Opcodes.GOTO, judge_point);
+        method.place(judge_exit);
+    }
+
+    private void ifStatement()
+    {
+        int judge_else = method.label();
+        int judge_exit = method.label();
+        consume(IF);
+        consume(LEFTPAREN);
+        expr();
+        consume(RIGHTPAREN);
+        jump(IFEQ, judge_else, -1);
+        statement();
+        method.jump(Opcodes.GOTO, judge_exit);
+        method.place(judge_else);
+        if(cur.kind == ELSE)
+        {
+            consume(ELSE);
+            statement();
+        }
+        method.place(judge_exit);
+    }
+
+    /**
+     * Parser evaluates the value and then runs the statements of all cases and the default one after each other
+     * */
+    private void switchStatement()
+    {
+        consume(SWITCH);
+        consume(LEFTPAREN);
+        expr();
+        op(POP, -1);
+        consume(RIGHTPAREN);
+        consume(LEFTBRACE);
+        while(cur.kind == CASE)
+        {
+            consume(CASE);
+            consume(UNSIGNED);
+            consume(COLON);
+            statementList();
+        }
+        if(cur.kind == DEFAULT)
+        {
+            consume(DEFAULT);
+            consume(COLON);
+            statementList();
+        }
+        consume(RIGHTBRACE);
+    }
+
+    //-----------------------------------------
+    // Intrinsics, see Intrinsics
+
+    private Token peek(Token t)
+    {
+        if(t.next == null)
+            t.next = tm.getNextToken();
+        return t.next;
+    }
+
+    /**
+     * Like Parser.isIntrinsic(): a function of the program is called instead, wherever it is defined
+     * */
+    private boolean isIntrinsic(Token name)
+    {
+        if(name.kind != ID || !Intrinsics.isIntrinsic(name.image)
+                || defined.containsKey(name.image) || name.image.equals(function))
+            return false;
+        if(shadowed == null)
+            shadowed = Intrinsics.definedAfter(name, this::peek);
+        return !shadowed.contains(name.image);
+    }
+
+    /**
+     * "cal fill(arr, v)" or "cal copy(dst, src)"
+     * */
+    private void intrinsicStatement()
+    {
+        consume(CAL);
+        String name = cur.image;
+        consume(ID);
+        consume(LEFTPAREN);
+        String dst = cur.image;
+        int words = arrayWords(dst);
+        consume(ID);
+        consume(COMMA);
+        if(name.equals("fill"))
+        {
+            arrayRef(dst, true);
+            expr();
+            method.invokeStatic("java/util/Arrays", "fill", "([II)V");
+            depth -= 2;
+        }
+        else
+        {
+            String src = cur.image;
+            int length = Math.min(words, arrayWords(src));
+            arrayRef(src, false);
+            push(0);
+            arrayRef(dst, true);
+            push(0);
+            push(length);
+            consume(ID);
+            method.invokeStatic("java/lang/System", "arraycopy", "(Ljava/lang/Object;ILjava/lang/Object;II)V");
+            depth -= 5;
+        }
+        consume(RIGHTPAREN);
+    }
+
+    /**
+     * Length of a local or global array, which must not have an index. Locals first, like Parser.arrayBytes()
+     * */
+    private int arrayWords(String name)
+    {
+        if(array_sizes.containsKey(name))
+            return array_sizes.get(name);
+        Integer size = globals.get(name);
+        if(size != null && size > 0)
+            return size;
+        throw genEx(name+" is not an array");
+    }
+
+    //-----------------------------------------
+    // Expressions, each returns the number of the string literal if it is nothing but one, otherwise -1
+
+    private int expr()
+    {
+        int string = term();
+        while(cur.kind == PLUS || cur.kind == MINUS)
+        {
+            int op = cur.kind;
+            advance();
+            term();
+            //add and sub trap on overflow, so do these
+            method.invokeStatic("java/lang/Math", op == PLUS ? "addExact" : "subtractExact", "(II)I");
+            depth--;
+            string = -1;
+        }
+        switch (cur.kind)
+        {
+            case EQUAL:
+            case GREATER_EQUAL_THAN:
+            case SMALLER_EQUAL_THAN:
+            case GREATER_THAN:
+            case SMALLER_THAN:
+                comparison();
+                return -1;
+            case RIGHTPAREN:
+            case SEMICOLON:
+            case OR:
+            case AND:
+            case COMMA:
+                return string;
+            default:
+                throw genEx("Expecting \"+\", \")\", or \";\"");
+        }
+    }
+
+    /**
+     * "left op expr" as 0 or 1, the left side is on the stack
+     * */
+    private void comparison()
+    {
+        int op = cur.kind;
+        advance();
+        expr();
+        int opcode;
+        switch (op)
+        {
+            case EQUAL: opcode = IF_ICMPEQ; break;
+            case GREATER_EQUAL_THAN: opcode = IF_ICMPGE; break;
+            case SMALLER_EQUAL_THAN: opcode = IF_ICMPLE; break;
+            case GREATER_THAN: opcode = IF_ICMPGT; break;
+            default: opcode = IF_ICMPLT; break;
+        }
+        int yes = method.label();
+        int done = method.label();
+        jump(opcode, yes, -2);
+        push(0);
+        method.jump(Opcodes.GOTO, done);
+        method.place(yes);
+        method.op(ICONST_1);
+        method.place(done);
+        booleanExpression();
+    }
+
+    /**
+     * "and" and "or" after a comparison. The right side of "and" is evaluated first, then the whole
+     * while that started last is left if the left side is false
+     * */
+    private void booleanExpression()
+    {
+        while(cur.kind == AND || cur.kind == OR)
+        {
+            if(cur.kind == OR)
+            {
+                advance();
+                expr();
+                op(IOR, -1);
+                continue;
+            }
+            if(exitpoint < 0)
+                throw genEx("Expecting a while around \"and\"");
+            advance();
+            expr();
+            //The stack is emptied before the jump, the exit label expects it so
+            int go_on = method.label();
+            method.op(SWAP);
+            op(DUP, 1);
+            jump(IFNE, go_on, -1);
+            for(int i=0;i<depth;i++)
+                method.op(POP);
+            method.jump(Opcodes.GOTO, exitpoint);
+            method.place(go_on);
+            op(IAND, -1);
+        }
+    }
+
+    private int term()
+    {
+        //Like Parser.term(), a call is never followed by "*" or "/"
+        if(cur.kind == CAL)
+        {
+            callExpr();
+            return -1;
+        }
+        int string = factor();
+        while(cur.kind == TIMES || cur.kind == DIVIDE)
+        {
+            int op = cur.kind;
+            advance();
+            factor();
+            op(op == TIMES ? IMUL : IDIV, -1);
+            string = -1;
+        }
+        switch (cur.kind)
+        {
+            case PLUS:
+            case MINUS:
+            case RIGHTPAREN:
+            case SEMICOLON:
+            case EQUAL:
+            case GREATER_EQUAL_THAN:
+            case SMALLER_EQUAL_THAN:
+            case GREATER_THAN:
+            case SMALLER_THAN:
+            case COMMA:
+            case AND:
+            case OR:
+                return string;
+            default:
+                throw genEx("Expecting op, \")\", or \";\"");
+        }
+    }
+
+    private int factor()
+    {
+        Token t = cur;
+        switch (cur.kind)
+        {
+            case UNSIGNED:
+                advance();
+                push(number(t.image));
+                return -1;
+            case PLUS:
+            case MINUS:
+                String sign = cur.kind == MINUS ? "-" : "";
+                advance();
+                t = cur;
+                consume(UNSIGNED);
+                push(number(sign+t.image));
+                return -1;
+            case ID:
+                advance();
+                loadVariable(t.image);
+                return -1;
+            case STRING:
+                advance();
+                int string = string(t.image);
+                push(string);
+                return string;
+            case LEFTPAREN:
+                advance();
+                int value = expr();
+                consume(RIGHTPAREN);
+                return value;
+            case CAL:
+                callExpr();
+                return -1;
+            default:
+                throw genEx("Expecting factor");
+        }
+    }
+
+    private int number(String image)
+    {
+        try
+        {
+            return Integer.parseInt(image);
+        }
+        catch (NumberFormatException e)
+        {
+            throw genEx(image+" does not fit in an int");
+        }
+    }
+
+    /**
+     * Number of a literal, the same text always gets the same one. The text ends with a newline, like in StringMgr
+     * */
+    private int string(String image)
+    {
+        String text = StringMgr.unescape(image.substring(1, image.length()-1))+"\n";
+        Integer index = strings.get(text);
+        if(index == null)
+        {
+            index = texts.size();
+            strings.put(text, index);
+            texts.add(text);
+        }
+        return index;
+    }
+
+    /**
+     * "cal f(...)": min, max and abs are Math methods, other calls leave their value in $v0 as well
+     * */
+    private void callExpr()
+    {
+        consume(CAL);
+        Token name = cur;
+        boolean intrinsic = isIntrinsic(name);
+        consume(ID);
+        consume(LEFTPAREN);
+        if(intrinsic && Intrinsics.isStatement(name.image))
+            throw genEx(name.image+" has no value");
+        int count = 0;
+        if(cur.kind != RIGHTPAREN)
+        {
+            expr();
+            count++;
+            while(cur.kind == COMMA)
+            {
+                consume(COMMA);
+                expr();
+                count++;
+            }
+        }
+        consume(RIGHTPAREN);
+        StringBuilder descriptor = new StringBuilder("(");
+        for(int i=0;i<count;i++)
+            descriptor.append('I');
+        descriptor.append(")I");
+        if(intrinsic)
+        {
+            if(count != Intrinsics.arguments(name.image))
+                throw genEx(name.image+" takes "+Intrinsics.arguments(name.image)+" arguments");
+            method.invokeStatic("java/lang/Math", name.image, descriptor.toString());
+            depth += 1-count;
+            return;
+        }
+        Integer other = called.get(name.image);
+        if(other != null && other != count)
+            throw genEx(name.image+" is called with "+other+" and with "+count+" arguments");
+        if(other == null)
+        {
+            called.put(name.image, count);
+            first_call.put(name.image, name);
+        }
+        method.invokeStatic(class_name, name.image, descriptor.toString());
+        depth += 1-count;
+        op(DUP, 1);
+        store(v0);
+    }
+
+    //-----------------------------------------
+    // Variables, globals first like Parser.loadVariable()
+
+    private void loadVariable(String var)
+    {
+        if(isElement(var))
+        {
+            arrayRef(var, false);
+            push(arrayIndex(var));
+            op(IALOAD, -1);
+            return;
+        }
+        Integer size = globals.get(var);
+        if(size != null && size == 0)
+        {
+            method.field(GETSTATIC, class_name, var, "I");
+            depth++;
+            updateMax();
+            return;
+        }
+        Integer slot = args.get(var);
+        if(slot == null)
+            slot = locals.get(var);
+        if(slot == null)
+            throw genEx(var+" not defined");
+        load(slot);
+    }
+
+    private void storeVariable(String var)
+    {
+        if(consts.contains(var))
+            throw new RuntimeException("Error: Const variable "+var+" is read only");
+        Integer size = globals.get(var);
+        if(size != null && size == 0)
+        {
+            method.field(PUTSTATIC, class_name, var, "I");
+            depth--;
+            return;
+        }
+        Integer slot = args.get(var);
+        if(slot == null)
+            slot = locals.get(var);
+        if(slot == null)
+            throw genEx(var+" not defined");
+        store(slot);
+    }
+
+    /**
+     * Push the array of an element ("a[3]") or of a name. The global array comes first, except for the
+     * arguments of fill and copy (locals)
+     * */
+    private void arrayRef(String var, boolean locals_first)
+    {
+        String name = isElement(var) ? arrayName(var) : var;
+        Integer size = globals.get(name);
+        boolean global = size != null && size > 0;
+        if(arrays.containsKey(name) && (locals_first || !global))
+            op(ALOAD, arrays.get(name), 1);
+        else if(global)
+        {
+            method.field(GETSTATIC, class_name, name, "[I");
+            depth++;
+            updateMax();
+        }
+        else
+            throw genEx(name+" not defined");
+    }
+
+    //-----------------------------------------
+    // Bytecode, with the depth of the operand stack
+
+    private void updateMax()
+    {
+        max_depth = Math.max(max_depth, depth);
+    }
+
+    private void op(int opcode, int effect)
+    {
+        method.op(opcode);
+        depth += effect;
+        updateMax();
+    }
+
+    private void op(int opcode, int local, int effect)
+    {
+        method.op(opcode, local);
+        depth += effect;
+        updateMax();
+    }
+
+    private void push(int value)
+    {
+        method.push(value);
+        depth++;
+        updateMax();
+    }
+
+    private void load(int slot)
+    {
+        op(ILOAD, slot, 1);
+    }
+
+    private void store(int slot)
+    {
+        op(ISTORE, slot, -1);
+    }
+
+    private void jump(int opcode, int label, int effect)
+    {
+        method.jump(opcode, label);
+        depth += effect;
+    }
+
+    /**
+     * <clinit> creates the global arrays
+     * */
+    private void staticInitializer()
+    {
+        ClassWriter.Method init = new ClassWriter.Method(writer.getPool());
+        for(Map.Entry<String,Integer> global : globals.entrySet())
+        {
+            if(global.getValue() == 0)
+                continue;
+            init.push(global.getValue());
+            init.op(NEWARRAY, T_INT);
+            init.field(PUTSTATIC, class_name, global.getKey(), "[I");
+        }
+        init.op(Opcodes.RETURN);
+        writer.method(ACC_STATIC, "<clinit>", "()V", init, 1, 0);
+    }
+
+    /**
+     * So that "java NAME" runs the program: main(String[]) hands the class to JvmRuntime.run()
+     * */
+    private void javaMain()
+    {
+        ClassWriter.Method main = new ClassWriter.Method(writer.getPool());
+        main.type(LDC_W, class_name);
+        main.invokeStatic(RUNTIME, "run", "(Ljava/lang/Class;)V");
+        main.op(Opcodes.RETURN);
+        writer.method(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V", main, 1, 1);
+    }
+}
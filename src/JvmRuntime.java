@@ -0,0 +1,117 @@
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * What the classes of JvmBackend call for println, assert and exit.
+ * Output is collected like Print_buffer in PrintRuntime and written when it is full or the program stops.
+ * The stream and the buffer belong to the thread, so programs run by different threads at the same time
+ * (e.g. in -batch or by an embedding program) do not mix their output.
+ * Public, like JitBlock, because the compiled classes live in their own class loader
+ * */
+public class JvmRuntime
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<JvmRuntime> current = ThreadLocal.withInitial(JvmRuntime::new);
+
+    private PrintStream out = System.out;
+    private final StringBuilder buffer = new StringBuilder();
+
+    /**
+     * Thrown by exit and a failed assert, the program stops without leaving the JVM
+     * */
+    public static class Exit extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        Exit()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Where the programs run by this thread print
+     * */
+    public static void setOut(PrintStream stream)
+    {
+        flush();
+        current.get().out = stream;
+    }
+
+    //The decimal value and a newline, like Print_int
+    public static void println(int value)
+    {
+        StringBuilder buffer = current.get().buffer;
+        buffer.append(value).append('\n');
+        if(buffer.length() >= BUFFER_SIZE)
+            flush();
+    }
+
+    //String literals carry their newline already
+    public static void print(String text)
+    {
+        StringBuilder buffer = current.get().buffer;
+        buffer.append(text);
+        if(buffer.length() >= BUFFER_SIZE)
+            flush();
+    }
+
+    public static void flush()
+    {
+        JvmRuntime runtime = current.get();
+        runtime.out.print(runtime.buffer);
+        runtime.out.flush();
+        runtime.buffer.setLength(0);
+    }
+
+    public static void exit()
+    {
+        flush();
+        throw new Exit();
+    }
+
+    public static void check(int value, int expected)
+    {
+        if(value != expected)
+            exit();
+    }
+
+    /**
+     * Run main() of a compiled program with all its arguments 0, returns when the program stops
+     * */
+    public static void run(Class<?> program)
+    {
+        Method main = null;
+        for(Method m : program.getMethods())
+            if(m.getName().equals("main") && m.getReturnType() == int.class)
+                main = m;
+        if(main == null)
+            throw new RuntimeException(program.getName()+" has no main function");
+        Object[] args = new Object[main.getParameterTypes().length];
+        for(int i=0;i<args.length;i++)
+            args[i] = 0;
+        try
+        {
+            main.invoke(null, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            if(!(e.getCause() instanceof Exit))
+            {
+                flush();
+                //From idiv, or from Math.addExact and subtractExact
+                if(e.getCause() instanceof ArithmeticException)
+                    throw new RuntimeException(e.getCause().getMessage().equals("/ by zero")
+                            ? "Program stopped: division by zero" : "Program stopped: arithmetic overflow", e.getCause());
+                throw new RuntimeException("Program stopped: "+e.getCause(), e.getCause());
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new RuntimeException(e);
+        }
+        flush();
+    }
+}
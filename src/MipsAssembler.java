@@ -0,0 +1,875 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Encodes the program the parser generated into MIPS32 machine code, no external assembler is needed.
+ * The layout is the one of MARS: .text at 0x00400000, .data at 0x10010000, little endian, no delay slots
+ * (the generated code never relies on them).
+ *
+ *  pass 1  every line gets its size and address, labels are collected
+ *  relax   a branch whose label is out of the 16 bit range becomes the inverted branch over a "j label",
+ *          then the addresses are computed again until no branch grows any more
+ *  pass 2  the lines are encoded, labels are resolved from the table of pass 1
+ *
+ * The pseudo instructions of MARS the compiler or an asm statement may use are expanded here
+ * (li, la, move, lw/sw of a label, b/beqz/bnez/blt/bge/bgt/ble, seq/sne/sge/sgt/sle and their unsigned
+ * forms, immediates out of range, ...),
+ * $at is the scratch register of the expansions.
+ *
+ * The image written by writeImage():
+ *  "MIPS", text base, text bytes, data base, data bytes   (little endian ints)
+ *  the text words, then the data bytes
+ * */
+class MipsAssembler
+{
+    static final int TEXT_BASE = 0x00400000;
+    static final int DATA_BASE = 0x10010000;
+
+    private static final int AT = 1;
+
+    private static final Map<String,Integer> REGISTERS = new HashMap<>();
+    static
+    {
+        String[] names = {"zero","at","v0","v1","a0","a1","a2","a3",
+                "t0","t1","t2","t3","t4","t5","t6","t7",
+                "s0","s1","s2","s3","s4","s5","s6","s7",
+                "t8","t9","k0","k1","gp","sp","fp","ra"};
+        for(int i=0;i<names.length;i++)
+        {
+            REGISTERS.put("$"+names[i], i);
+            REGISTERS.put("$"+i, i);
+        }
+        REGISTERS.put("$s8", 30);
+    }
+
+    //funct of the R-type instructions "op rd, rs, rt"
+    private static final Map<String,Integer> ARITHMETIC = new HashMap<>();
+    //opcode of the I-type instructions "op rt, rs, imm", and which of them take a zero extended immediate
+    private static final Map<String,Integer> IMMEDIATE = new HashMap<>();
+    //The I-type form of an R-type instruction with a constant as last operand, and back
+    private static final Map<String,String> TO_IMMEDIATE = new HashMap<>();
+    private static final Map<String,String> TO_REGISTER = new HashMap<>();
+    //opcode of loads and stores
+    private static final Map<String,Integer> MEMORY = new HashMap<>();
+    static
+    {
+        String[][] arithmetic = {{"add","32"},{"addu","33"},{"sub","34"},{"subu","35"},{"and","36"},{"or","37"},
+                {"xor","38"},{"nor","39"},{"slt","42"},{"sltu","43"},{"movz","10"},{"movn","11"}};
+        for(String[] a : arithmetic)
+            ARITHMETIC.put(a[0], Integer.parseInt(a[1]));
+        String[][] immediate = {{"addi","8"},{"addiu","9"},{"slti","10"},{"sltiu","11"},{"andi","12"},{"ori","13"},{"xori","14"}};
+        for(String[] a : immediate)
+            IMMEDIATE.put(a[0], Integer.parseInt(a[1]));
+        String[][] forms = {{"add","addi"},{"addu","addiu"},{"slt","slti"},{"sltu","sltiu"},{"and","andi"},{"or","ori"},{"xor","xori"}};
+        for(String[] f : forms)
+        {
+            TO_IMMEDIATE.put(f[0], f[1]);
+            TO_REGISTER.put(f[1], f[0]);
+        }
+        String[][] memory = {{"lb","32"},{"lh","33"},{"lw","35"},{"lbu","36"},{"lhu","37"},{"sb","40"},{"sh","41"},{"sw","43"}};
+        for(String[] a : memory)
+            MEMORY.put(a[0], Integer.parseInt(a[1]));
+    }
+
+    private static class Line
+    {
+        int number;             //Line of the listing, for the error messages
+        String text;
+        String op;
+        String[] operands;
+        boolean data;
+        int address;
+        int size;               //Bytes
+        boolean far;            //Branch relaxed to "inverted branch, j"
+    }
+
+    private ArrayList<Line> lines;
+    private Map<String,Integer> symbols;
+    private Map<String,Boolean> data_symbols;
+    private int[] text;
+    private byte[] data;
+    private int relaxed;
+
+    public MipsAssembler()
+    {
+        this.lines = new ArrayList<>();
+        this.symbols = new HashMap<>();
+        this.data_symbols = new HashMap<>();
+        this.relaxed = 0;
+    }
+
+    /**
+     * Assemble the whole program, source is the text the parser wrote
+     * */
+    public void assemble(String source)
+    {
+        parse(source.split("\n"));
+        //Branches only ever grow, so this ends
+        while(layout())
+            ;
+        encode();
+    }
+
+    public int[] getText()
+    {
+        return text;
+    }
+
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    public int getRelaxedBranches()
+    {
+        return relaxed;
+    }
+
+    /**
+     * Address of each label
+     * */
+    public Map<String,Integer> getSymbols()
+    {
+        return symbols;
+    }
+
+    //-----------------------------------------
+    // Pass 1
+
+    private void parse(String[] source)
+    {
+        boolean in_data = false;
+        for(int n=0;n<source.length;n++)
+        {
+            String s = stripComment(source[n]).trim();
+            //Labels, possibly followed by an instruction or a directive
+            int colon;
+            while((colon = labelEnd(s)) > 0)
+            {
+                String label = s.substring(0, colon);
+                if(symbols.containsKey(label))
+                    throw error(n+1, source[n], "label "+label+" is defined twice");
+                symbols.put(label, 0);
+                Line line = new Line();
+                line.number = n+1;
+                line.text = source[n];
+                line.op = label+":";
+                line.operands = new String[0];
+                line.data = in_data;
+                lines.add(line);
+                s = s.substring(colon+1).trim();
+            }
+            if(s.isEmpty())
+                continue;
+            if(s.equals(".text") || s.equals(".data"))
+            {
+                in_data = s.equals(".data");
+                continue;
+            }
+            if(s.startsWith(".globl"))
+                continue;
+            Line line = new Line();
+            line.number = n+1;
+            line.text = source[n];
+            int space = 0;
+            while(space < s.length() && !Character.isWhitespace(s.charAt(space)))
+                space++;
+            line.op = s.substring(0, space);
+            String rest = s.substring(space).trim();
+            if(line.op.equals(".ascii") || line.op.equals(".asciiz"))
+                line.operands = new String[]{rest};
+            else if(rest.isEmpty())
+                line.operands = new String[0];
+            else
+            {
+                line.operands = rest.split(",");
+                for(int i=0;i<line.operands.length;i++)
+                    line.operands[i] = line.operands[i].trim();
+            }
+            line.data = in_data;
+            lines.add(line);
+        }
+    }
+
+    static String stripComment(String s)
+    {
+        boolean quoted = false;
+        for(int i=0;i<s.length();i++)
+        {
+            char c = s.charAt(i);
+            if(c == '\\' && quoted)
+                i++;
+            else if(c == '"')
+                quoted = !quoted;
+            else if(c == '#' && !quoted)
+                return s.substring(0, i);
+        }
+        return s;
+    }
+
+    /**
+     * Index of the ':' after a leading label, -1 if s does not start with one
+     * */
+    static int labelEnd(String s)
+    {
+        int i = 0;
+        while(i < s.length() && (Character.isLetterOrDigit(s.charAt(i)) || s.charAt(i) == '_' || s.charAt(i) == '.' || s.charAt(i) == '$'))
+            i++;
+        return i > 0 && i < s.length() && s.charAt(i) == ':' && s.charAt(0) != '.' ? i : -1;
+    }
+
+    /**
+     * Addresses of all lines and labels, returns true if a branch had to be relaxed
+     * */
+    private boolean layout()
+    {
+        int text_address = TEXT_BASE;
+        int data_address = DATA_BASE;
+        for(Line line : lines)
+        {
+            line.address = line.data ? data_address : text_address;
+            if(line.op.endsWith(":"))
+            {
+                String label = line.op.substring(0, line.op.length()-1);
+                symbols.put(label, line.address);
+                data_symbols.put(label, line.data);
+                line.size = 0;
+                continue;
+            }
+            if(line.data)
+                line.size = directive(line, null).length;
+            else
+                line.size = 4*instruction(line, null).size();
+            if(line.data)
+                data_address += line.size;
+            else
+                text_address += line.size;
+        }
+        boolean grown = false;
+        for(Line line : lines)
+        {
+            if(line.data || line.far || !isBranch(line.op))
+                continue;
+            String label = line.operands[line.operands.length-1];
+            if(!symbols.containsKey(label))
+                throw error(line, "undefined label "+label);
+            //The compare instruction of a pseudo branch comes first
+            int branch = line.address+line.size-4;
+            int offset = (symbols.get(label)-branch-4) >> 2;
+            if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+            {
+                line.far = true;
+                relaxed++;
+                grown = true;
+            }
+        }
+        return grown;
+    }
+
+    //-----------------------------------------
+    // Pass 2
+
+    private void encode()
+    {
+        ArrayList<Integer> words = new ArrayList<>();
+        ByteBuffer bytes = ByteBuffer.allocate(Math.max(0, dataEnd()-DATA_BASE)).order(ByteOrder.LITTLE_ENDIAN);
+        for(Line line : lines)
+        {
+            if(line.size == 0)
+                continue;
+            if(line.data)
+            {
+                bytes.position(line.address-DATA_BASE);
+                bytes.put(directive(line, symbols));
+            }
+            else
+                words.addAll(instruction(line, symbols));
+        }
+        text = new int[words.size()];
+        for(int i=0;i<text.length;i++)
+            text[i] = words.get(i);
+        data = bytes.array();
+    }
+
+    private int dataEnd()
+    {
+        int end = DATA_BASE;
+        for(Line line : lines)
+            if(line.data)
+                end = Math.max(end, line.address+line.size);
+        return end;
+    }
+
+    //-----------------------------------------
+    // Data directives
+
+    /**
+     * The bytes of a directive, labels are resolved from symbols (null while laying out)
+     * */
+    private byte[] directive(Line line, Map<String,Integer> symbols)
+    {
+        switch (line.op)
+        {
+            case ".ascii":
+            case ".asciiz":
+                return string(line, line.operands[0], line.op.equals(".asciiz"));
+            case ".space":
+                return new byte[value(line, line.operands[0])];
+            case ".align":
+            {
+                int alignment = 1 << value(line, line.operands[0]);
+                int address = line.address;
+                return new byte[(alignment - address % alignment) % alignment];
+            }
+            case ".word":
+            case ".half":
+            case ".byte":
+            {
+                int size = line.op.equals(".word") ? 4 : line.op.equals(".half") ? 2 : 1;
+                ByteBuffer b = ByteBuffer.allocate(size*line.operands.length).order(ByteOrder.LITTLE_ENDIAN);
+                for(String operand : line.operands)
+                {
+                    int v = isNumber(operand) ? value(line, operand) : symbols == null ? 0 : address(line, operand, symbols);
+                    if(size == 4)
+                        b.putInt(v);
+                    else if(size == 2)
+                        b.putShort((short)v);
+                    else
+                        b.put((byte)v);
+                }
+                return b.array();
+            }
+            default:
+                throw error(line, "unknown directive "+line.op);
+        }
+    }
+
+    private byte[] string(Line line, String literal, boolean terminated)
+    {
+        if(literal.length() < 2 || !literal.startsWith("\"") || !literal.endsWith("\""))
+            throw error(line, "expecting a string");
+        ArrayList<Byte> out = new ArrayList<>();
+        for(int i=1;i<literal.length()-1;i++)
+        {
+            char c = literal.charAt(i);
+            if(c == '\\' && i+1 < literal.length()-1)
+            {
+                char e = literal.charAt(++i);
+                switch (e)
+                {
+                    case 'n': c = '\n'; break;
+                    case 't': c = '\t'; break;
+                    case 'r': c = '\r'; break;
+                    case '0': c = '\0'; break;
+                    default: c = e; break;
+                }
+            }
+            out.add((byte)c);
+        }
+        if(terminated)
+            out.add((byte)0);
+        byte[] bytes = new byte[out.size()];
+        for(int i=0;i<bytes.length;i++)
+            bytes[i] = out.get(i);
+        return bytes;
+    }
+
+    //-----------------------------------------
+    // Instructions
+
+    private static boolean isBranch(String op)
+    {
+        switch (op)
+        {
+            case "beq": case "bne": case "blez": case "bgtz": case "bltz": case "bgez":
+            case "b": case "beqz": case "bnez": case "blt": case "bge": case "bgt": case "ble":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int r(int rs, int rt, int rd, int shamt, int funct)
+    {
+        return (rs << 21) | (rt << 16) | (rd << 11) | (shamt << 6) | funct;
+    }
+
+    private static int i(int op, int rs, int rt, int imm)
+    {
+        return (op << 26) | (rs << 21) | (rt << 16) | (imm & 0xffff);
+    }
+
+    private static boolean fitsSigned(long v)
+    {
+        return v >= Short.MIN_VALUE && v <= Short.MAX_VALUE;
+    }
+
+    private static boolean fitsUnsigned(long v)
+    {
+        return v >= 0 && v <= 0xffff;
+    }
+
+    /**
+     * The words of an instruction. While laying out symbols is null: labels are 0, only the number of words counts
+     * */
+    private List<Integer> instruction(Line line, Map<String,Integer> symbols)
+    {
+        ArrayList<Integer> out = new ArrayList<>();
+        String op = line.op;
+        String[] ops = line.operands;
+        if(ARITHMETIC.containsKey(op))
+        {
+            expect(line, 3);
+            if(!isRegister(ops[2]))
+            {
+                long v = value(line, ops[2]);
+                if(op.equals("sub") || op.equals("subu"))
+                {
+                    op = op.equals("sub") ? "add" : "addu";
+                    v = -v;
+                }
+                if(!TO_IMMEDIATE.containsKey(op))
+                    throw error(line, op+" needs a register");
+                String immediate = TO_IMMEDIATE.get(op);
+                boolean fits = isZeroExtended(immediate) ? fitsUnsigned(v) : fitsSigned(v);
+                if(fits)
+                {
+                    out.add(i(IMMEDIATE.get(immediate), reg(line, ops[1]), reg(line, ops[0]), (int)v));
+                    return out;
+                }
+                loadImmediate(out, AT, (int)v);
+                out.add(r(reg(line, ops[1]), AT, reg(line, ops[0]), 0, ARITHMETIC.get(op)));
+                return out;
+            }
+            out.add(r(reg(line, ops[1]), reg(line, ops[2]), reg(line, ops[0]), 0, ARITHMETIC.get(op)));
+            return out;
+        }
+        if(IMMEDIATE.containsKey(op))
+        {
+            expect(line, 3);
+            long v = value(line, ops[2]);
+            boolean fits = isZeroExtended(op) ? fitsUnsigned(v) : fitsSigned(v);
+            if(fits)
+                out.add(i(IMMEDIATE.get(op), reg(line, ops[1]), reg(line, ops[0]), (int)v));
+            else
+            {
+                loadImmediate(out, AT, (int)v);
+                out.add(r(reg(line, ops[1]), AT, reg(line, ops[0]), 0, ARITHMETIC.get(TO_REGISTER.get(op))));
+            }
+            return out;
+        }
+        if(MEMORY.containsKey(op))
+        {
+            expect(line, 2);
+            memory(out, line, MEMORY.get(op), reg(line, ops[0]), ops[1], symbols);
+            return out;
+        }
+        if(isBranch(op))
+        {
+            branch(out, line, symbols);
+            return out;
+        }
+        switch (op)
+        {
+            case "sll": case "srl": case "sra":
+                expect(line, 3);
+                out.add(r(0, reg(line, ops[1]), reg(line, ops[0]), value(line, ops[2]) & 31,
+                        op.equals("sll") ? 0 : op.equals("srl") ? 2 : 3));
+                break;
+            case "sllv": case "srlv": case "srav":
+                expect(line, 3);
+                out.add(r(reg(line, ops[2]), reg(line, ops[1]), reg(line, ops[0]), 0,
+                        op.equals("sllv") ? 4 : op.equals("srlv") ? 6 : 7));
+                break;
+            case "mult": case "multu": case "div": case "divu":
+                if(ops.length == 3)
+                {
+                    //div rd, rs, rt
+                    out.add(r(reg(line, ops[1]), reg(line, ops[2]), 0, 0, op.equals("div") ? 26 : op.equals("divu") ? 27 : op.equals("mult") ? 24 : 25));
+                    out.add(r(0, 0, reg(line, ops[0]), 0, 18));
+                    break;
+                }
+                expect(line, 2);
+                out.add(r(reg(line, ops[0]), reg(line, ops[1]), 0, 0,
+                        op.equals("mult") ? 24 : op.equals("multu") ? 25 : op.equals("div") ? 26 : 27));
+                break;
+            case "rem":
+                expect(line, 3);
+                out.add(r(reg(line, ops[1]), reg(line, ops[2]), 0, 0, 26));
+                out.add(r(0, 0, reg(line, ops[0]), 0, 16));
+                break;
+            case "mul":
+                expect(line, 3);
+                out.add((0x1c << 26) | r(reg(line, ops[1]), reg(line, ops[2]), reg(line, ops[0]), 0, 2));
+                break;
+            case "seq": case "sne": case "sge": case "sgeu": case "sgt": case "sgtu": case "sle": case "sleu":
+                set(out, line);
+                break;
+            case "mfhi": case "mflo":
+                expect(line, 1);
+                out.add(r(0, 0, reg(line, ops[0]), 0, op.equals("mfhi") ? 16 : 18));
+                break;
+            case "lui":
+                expect(line, 2);
+                out.add(i(15, 0, reg(line, ops[0]), value(line, ops[1])));
+                break;
+            case "li":
+                expect(line, 2);
+                loadImmediate(out, reg(line, ops[0]), value(line, ops[1]));
+                break;
+            case "la":
+                expect(line, 2);
+                if(ops[1].endsWith(")"))
+                    memory(out, line, IMMEDIATE.get("addiu"), reg(line, ops[0]), ops[1], symbols);
+                else
+                {
+                    int a = symbols == null ? 0 : address(line, ops[1], symbols);
+                    out.add(i(15, 0, reg(line, ops[0]), a >>> 16));
+                    out.add(i(13, reg(line, ops[0]), reg(line, ops[0]), a));
+                }
+                break;
+            case "move":
+                expect(line, 2);
+                out.add(r(reg(line, ops[1]), 0, reg(line, ops[0]), 0, 33));
+                break;
+            case "neg":
+                expect(line, 2);
+                out.add(r(0, reg(line, ops[1]), reg(line, ops[0]), 0, 34));
+                break;
+            case "not":
+                expect(line, 2);
+                out.add(r(reg(line, ops[1]), 0, reg(line, ops[0]), 0, 39));
+                break;
+            case "j": case "jal":
+                expect(line, 1);
+                out.add(jump(line, op.equals("j") ? 2 : 3, ops[0], symbols));
+                break;
+            case "jr":
+                expect(line, 1);
+                out.add(r(reg(line, ops[0]), 0, 0, 0, 8));
+                break;
+            case "jalr":
+                if(ops.length == 1)
+                    out.add(r(reg(line, ops[0]), 0, 31, 0, 9));
+                else
+                {
+                    expect(line, 2);
+                    out.add(r(reg(line, ops[1]), 0, reg(line, ops[0]), 0, 9));
+                }
+                break;
+            case "syscall":
+                out.add(12);
+                break;
+            case "break":
+                //"break" or "break code", the code is in bits 6~25
+                if(ops.length == 0)
+                    out.add(13);
+                else
+                {
+                    expect(line, 1);
+                    out.add((value(line, ops[0]) & 0xfffff) << 6 | 13);
+                }
+                break;
+            case "nop":
+                out.add(0);
+                break;
+            default:
+                throw error(line, "unknown instruction "+op);
+        }
+        return out;
+    }
+
+    /**
+     * The set pseudo instructions "op rd, rs, rt", a constant rt is loaded into $at first
+     *  seq  subu rd,rs,rt / sltiu rd,rd,1      sne  subu rd,rs,rt / sltu rd,$zero,rd
+     *  sgt  slt rd,rt,rs                        sle  slt rd,rt,rs / xori rd,rd,1
+     *  sge  slt rd,rs,rt / xori rd,rd,1         sgeu, sgtu and sleu use sltu
+     * */
+    private void set(List<Integer> out, Line line)
+    {
+        expect(line, 3);
+        String op = line.op;
+        int rd = reg(line, line.operands[0]);
+        int rs = reg(line, line.operands[1]);
+        int rt = operand(out, line, line.operands[2]);
+        if(op.equals("seq") || op.equals("sne"))
+        {
+            out.add(r(rs, rt, rd, 0, 35));
+            out.add(op.equals("seq") ? i(11, rd, rd, 1) : r(0, rd, rd, 0, 43));
+            return;
+        }
+        boolean swap = op.startsWith("sgt") || op.startsWith("sle");
+        out.add(r(swap ? rt : rs, swap ? rs : rt, rd, 0, op.endsWith("u") ? 43 : 42));
+        if(op.startsWith("sge") || op.startsWith("sle"))
+            out.add(i(14, rd, rd, 1));
+    }
+
+    private static boolean isZeroExtended(String op)
+    {
+        return op.equals("andi") || op.equals("ori") || op.equals("xori");
+    }
+
+    private static void loadImmediate(List<Integer> out, int rt, int v)
+    {
+        if(fitsSigned(v))
+            out.add(i(9, 0, rt, v));
+        else if(fitsUnsigned(v))
+            out.add(i(13, 0, rt, v));
+        else
+        {
+            out.add(i(15, 0, rt, v >>> 16));
+            if((v & 0xffff) != 0)
+                out.add(i(13, rt, rt, v));
+        }
+    }
+
+    /**
+     * Load, store or addiu with an address "offset($reg)", "label" or "label+offset"
+     * */
+    private void memory(List<Integer> out, Line line, int opcode, int rt, String operand, Map<String,Integer> symbols)
+    {
+        int open = operand.indexOf('(');
+        if(open >= 0 && operand.endsWith(")"))
+        {
+            int base = reg(line, operand.substring(open+1, operand.length()-1));
+            String offset = operand.substring(0, open).trim();
+            int v = offset.isEmpty() ? 0 : value(line, offset);
+            if(fitsSigned(v))
+            {
+                out.add(i(opcode, base, rt, v));
+                return;
+            }
+            out.add(i(15, 0, AT, (v + 0x8000) >>> 16));
+            out.add(r(AT, base, AT, 0, 33));
+            out.add(i(opcode, AT, rt, v));
+            return;
+        }
+        int a = symbols == null ? 0 : address(line, operand, symbols);
+        out.add(i(15, 0, AT, (a + 0x8000) >>> 16));
+        out.add(i(opcode, AT, rt, a));
+    }
+
+    private int jump(Line line, int opcode, String label, Map<String,Integer> symbols)
+    {
+        if(symbols == null)
+            return opcode << 26;
+        int target = address(line, label, symbols);
+        if(((target ^ line.address) & 0xf0000000) != 0)
+            throw error(line, label+" is out of reach of "+line.op);
+        return (opcode << 26) | ((target >>> 2) & 0x3ffffff);
+    }
+
+    /**
+     * Conditional branches, relaxed ones jump over a "j label" when the condition is false
+     * */
+    private void branch(List<Integer> out, Line line, Map<String,Integer> symbols)
+    {
+        String op = line.op;
+        String[] ops = line.operands;
+        int rs, rt = 0;
+        String label = ops[ops.length-1];
+        //Reduce everything to beq, bne, blez, bgtz, bltz, bgez
+        switch (op)
+        {
+            case "b":
+                expect(line, 1);
+                op = "beq";
+                rs = 0;
+                break;
+            case "beqz": case "bnez":
+                expect(line, 2);
+                op = op.equals("beqz") ? "beq" : "bne";
+                rs = reg(line, ops[0]);
+                break;
+            case "beq": case "bne":
+                expect(line, 3);
+                rs = reg(line, ops[0]);
+                rt = operand(out, line, ops[1]);
+                break;
+            case "blt": case "bge": case "bgt": case "ble":
+            {
+                expect(line, 3);
+                int a = reg(line, ops[0]);
+                int b = operand(out, line, ops[1]);
+                boolean swap = op.equals("bgt") || op.equals("ble");
+                out.add(r(swap ? b : a, swap ? a : b, AT, 0, 42));
+                op = op.equals("blt") || op.equals("bgt") ? "bne" : "beq";
+                rs = AT;
+                break;
+            }
+            default:
+                expect(line, 2);
+                rs = reg(line, ops[0]);
+                break;
+        }
+        int target = symbols == null ? 0 : address(line, label, symbols);
+        int here = line.address + 4*out.size();
+        if(line.far)
+        {
+            //Skip the j that follows
+            String inverse = op.equals("beq") ? "bne" : op.equals("bne") ? "beq" : op.equals("blez") ? "bgtz"
+                    : op.equals("bgtz") ? "blez" : op.equals("bltz") ? "bgez" : "bltz";
+            out.add(conditional(inverse, rs, rt, 1));
+            Line j = new Line();
+            j.number = line.number;
+            j.text = line.text;
+            j.op = "j";
+            j.address = here+4;
+            out.add(jump(j, 2, label, symbols));
+            return;
+        }
+        int offset = (target-here-4) >> 2;
+        if(symbols != null && !fitsSigned(offset))
+            throw error(line, label+" is out of range");
+        out.add(conditional(op, rs, rt, offset));
+    }
+
+    private static int conditional(String op, int rs, int rt, int offset)
+    {
+        switch (op)
+        {
+            case "beq": return i(4, rs, rt, offset);
+            case "bne": return i(5, rs, rt, offset);
+            case "blez": return i(6, rs, 0, offset);
+            case "bgtz": return i(7, rs, 0, offset);
+            case "bltz": return i(1, rs, 0, offset);
+            default: return i(1, rs, 1, offset);    //bgez
+        }
+    }
+
+    /**
+     * A register operand of a branch, a constant is loaded into $at first
+     * */
+    private int operand(List<Integer> out, Line line, String operand)
+    {
+        if(isRegister(operand))
+            return reg(line, operand);
+        loadImmediate(out, AT, value(line, operand));
+        return AT;
+    }
+
+    //-----------------------------------------
+    // Operands
+
+    private static boolean isRegister(String s)
+    {
+        return s.startsWith("$");
+    }
+
+    private static boolean isNumber(String s)
+    {
+        return !s.isEmpty() && (Character.isDigit(s.charAt(0)) || s.charAt(0) == '-' || s.charAt(0) == '+');
+    }
+
+    private int reg(Line line, String s)
+    {
+        Integer r = REGISTERS.get(s);
+        if(r == null)
+            throw error(line, "unknown register "+s);
+        return r;
+    }
+
+    private int value(Line line, String s)
+    {
+        try
+        {
+            long v;
+            if(s.startsWith("0x") || s.startsWith("0X"))
+                v = Long.parseLong(s.substring(2), 16);
+            else if(s.startsWith("-0x"))
+                v = -Long.parseLong(s.substring(3), 16);
+            else
+                v = Long.parseLong(s);
+            if(v < Integer.MIN_VALUE || v > 0xffffffffL)
+                throw new NumberFormatException();
+            return (int)v;
+        }
+        catch (NumberFormatException e)
+        {
+            throw error(line, "bad number "+s);
+        }
+    }
+
+    /**
+     * "label" or "label+offset"
+     * */
+    private int address(Line line, String s, Map<String,Integer> symbols)
+    {
+        int plus = s.indexOf('+');
+        String label = plus >= 0 ? s.substring(0, plus).trim() : s;
+        Integer a = symbols.get(label);
+        if(a == null)
+            throw error(line, "undefined label "+label);
+        return a + (plus >= 0 ? value(line, s.substring(plus+1).trim()) : 0);
+    }
+
+    private void expect(Line line, int operands)
+    {
+        if(line.operands.length != operands)
+            throw error(line, line.op+" needs "+operands+" operands");
+    }
+
+    private static RuntimeException error(Line line, String message)
+    {
+        return error(line.number, line.text, message);
+    }
+
+    private static RuntimeException error(int number, String text, String message)
+    {
+        return new RuntimeException("Assembler: line "+number+" \""+text.trim()+"\": "+message);
+    }
+
+    //-----------------------------------------
+    // Output
+
+    public void writeImage(String fileName) throws IOException
+    {
+        try(OutputStream out = new FileOutputStream(fileName))
+        {
+            writeImage(out);
+        }
+    }
+
+    public void writeImage(OutputStream out) throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate(20+4*text.length+data.length).order(ByteOrder.LITTLE_ENDIAN);
+        b.put(new byte[]{'M', 'I', 'P', 'S'});
+        b.putInt(TEXT_BASE).putInt(4*text.length);
+        b.putInt(DATA_BASE).putInt(data.length);
+        for(int word : text)
+            b.putInt(word);
+        b.put(data);
+        out.write(b.array());
+    }
+
+    /**
+     * One label per line, sorted by address: "00400000 T main"
+     * */
+    public void writeMap(String fileName) throws IOException
+    {
+        TreeMap<Integer,ArrayList<String>> sorted = new TreeMap<>();
+        for(Map.Entry<String,Integer> e : symbols.entrySet())
+            sorted.computeIfAbsent(e.getValue(), k -> new ArrayList<>()).add(e.getKey());
+        try(PrintWriter out = new PrintWriter(fileName))
+        {
+            out.println("# text "+String.format("%08x", TEXT_BASE)+" "+4*text.length+" bytes");
+            out.println("# data "+String.format("%08x", DATA_BASE)+" "+data.length+" bytes");
+            for(Map.Entry<Integer,ArrayList<String>> e : sorted.entrySet())
+            {
+                ArrayList<String> names = e.getValue();
+                names.sort(null);
+                for(String name : names)
+                    out.println(String.format("%08x", e.getKey())+" "+(data_symbols.get(name) ? "D" : "T")+" "+name);
+            }
+        }
+    }
+}
@@ -0,0 +1,577 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs the machine code of MipsAssembler, with the registers, memory and syscalls of MARS (no delay slots).
+ * Every word is decoded once before the run into four ints of code[]: operation, then its operands
+ * (register numbers, the immediate, or the index of the instruction a branch goes to), so the loop
+ * that executes them is a single switch.
+ *
+ * Counted while running: how often each instruction was executed and how often each branch was taken.
+ * Loads, stores and the estimated cycles follow from that when the report is made:
+ *  1 cycle per instruction, +1 for a load (its value is used next), +1 for a taken branch or a jump,
+ *  mult +4, div +34
+ * Instructions belong to the function whose label is the last jal target before them.
+ *
+ * With the JIT, the interpreter counts how often each basic block is entered, and a block entered JIT_THRESHOLD
+ * times is translated by JitCompiler into a JVM class, which runs it from then on with the registers in locals.
+ * Blocks end before a syscall, those always go back to the interpreter.
+ *
+ * An add, sub or addi that overflows goes on at PrintRuntime.OVERFLOW, the handler of the program, like MARS
+ * runs its exception handler. The handler writes out the buffered output and stops the program with a break.
+ * Without one (a program not made by Parser), the overflow stops the simulator with an error.
+ * */
+class MipsSimulator implements JitBlock.Memory
+{
+    //Decoded operations
+    static final int NOP = 0, ADD = 1, SUB = 2, AND = 3, OR = 4, XOR = 5, NOR = 6, SLT = 7, SLTU = 8,
+            SLLV = 9, SRLV = 10, SRAV = 11, SLL = 12, SRL = 13, SRA = 14, MOVZ = 15, MOVN = 16,
+            ADDI = 17, SLTI = 18, SLTIU = 19, ANDI = 20, ORI = 21, XORI = 22, LUI = 23,
+            LW = 24, LB = 25, LBU = 26, LH = 27, LHU = 28, SW = 29, SB = 30, SH = 31,
+            BEQ = 32, BNE = 33, BLEZ = 34, BGTZ = 35, BLTZ = 36, BGEZ = 37, J = 38, JAL = 39, JR = 40, JALR = 41,
+            MULT = 42, MULTU = 43, DIV = 44, DIVU = 45, MFHI = 46, MFLO = 47, MUL = 48, SYSCALL = 49, BREAK = 50,
+            ADDU = 51, SUBU = 52, ADDIU = 53;
+
+    //The codes of "break" that stop a program on an overflow or a division by zero, see PrintRuntime
+    static final int BREAK_OVERFLOW = 6, BREAK_DIVISION_BY_ZERO = 7;
+
+    private static final int MULT_CYCLES = 4;
+    private static final int DIV_CYCLES = 34;
+
+    private static final int STACK_SIZE = 4 << 20;
+    private static final int STACK_BASE = (int)(0x80000000L - STACK_SIZE);
+    //Room after the .data of the program, nothing allocates there but a program may read it
+    private static final int DATA_EXTRA = 64 << 10;
+
+    static final int SP = 29, GP = 28, RA = 31, V0 = 2, A0 = 4;
+    //Instructions that would write $zero write this register instead, nothing reads it
+    static final int SINK = 32;
+    //hi and lo are kept after the registers
+    static final int HI = 33, LO = 34, REGISTERS = 35;
+
+    //Entries of a basic block before it is translated
+    private static final int JIT_THRESHOLD = 100;
+
+    private int[] code;
+    private int[] words;        //The encoded instructions
+    private int[] data;         //From DATA_BASE, little endian words
+    private int[] stack;        //The STACK_SIZE bytes below 0x80000000
+    private long[] executed;
+    private long[] taken;
+    private long steps;
+    private long max_steps;
+    private int exit_code;
+
+    //Entry of each function, by instruction index
+    private TreeMap<Integer,String> functions;
+    //Index of the overflow handler, -1 if the program has none
+    private int overflow_handler;
+
+    //Null without the JIT. Per instruction: starts a basic block, entries of that block while interpreted
+    //(-1 once it has been tried), its translation, how often that ran and where it ends
+    private JitCompiler jit;
+    private boolean[] leader;
+    private int[] entries;
+    private JitBlock[] compiled;
+    private long[] compiled_runs;
+    private int[] block_end;
+
+    public MipsSimulator(MipsAssembler assembler, long max_steps)
+    {
+        this.max_steps = max_steps;
+        this.words = assembler.getText();
+        this.code = new int[4*words.length];
+        for(int i=0;i<words.length;i++)
+            decode(i, words[i]);
+        byte[] image = assembler.getData();
+        this.data = new int[(image.length+DATA_EXTRA+3)/4];
+        for(int i=0;i<image.length;i++)
+            data[i>>2] |= (image[i] & 0xff) << (8*(i&3));
+        this.stack = new int[STACK_SIZE/4];
+        this.executed = new long[words.length];
+        this.taken = new long[words.length];
+        this.functions = new TreeMap<>();
+        functions.put(0, "(start)");
+        TreeMap<Integer,String> labels = new TreeMap<>();
+        for(Map.Entry<String,Integer> e : assembler.getSymbols().entrySet())
+        {
+            String name = labels.get(e.getValue());
+            if(name == null || e.getKey().compareTo(name) < 0)
+                labels.put(e.getValue(), e.getKey());
+        }
+        for(int i=0;i<words.length;i++)
+            if(code[4*i] == JAL)
+                functions.put(code[4*i+1], labels.getOrDefault(MipsAssembler.TEXT_BASE+4*code[4*i+1], "?"));
+        Integer handler = assembler.getSymbols().get(PrintRuntime.OVERFLOW);
+        this.overflow_handler = handler == null ? -1 : (handler - MipsAssembler.TEXT_BASE) >> 2;
+    }
+
+    public long getSteps()
+    {
+        return steps;
+    }
+
+    /**
+     * Run hot basic blocks as translated JVM code
+     * */
+    public void useJit()
+    {
+        jit = new JitCompiler(code, words.length);
+        leader = new boolean[words.length+1];
+        leader[0] = true;
+        for(int i=0;i<words.length;i++)
+        {
+            int op = code[4*i];
+            if(op >= BEQ && op <= BGEZ)
+                leader[code[4*i+3]] = true;
+            else if(op == J || op == JAL)
+                leader[code[4*i+1]] = true;
+            if((op >= BEQ && op <= JALR) || op == SYSCALL || op == BREAK)
+                leader[i+1] = true;
+        }
+        entries = new int[words.length];
+        compiled = new JitBlock[words.length];
+        compiled_runs = new long[words.length];
+        block_end = new int[words.length];
+    }
+
+    public int getCompiledBlocks()
+    {
+        return jit == null ? 0 : jit.getCompiledBlocks();
+    }
+
+    /**
+     * Run from the first instruction until it drops off the end of the code or calls exit,
+     * returns the exit code
+     * */
+    public int run(PrintStream out)
+    {
+        int[] r = new int[REGISTERS];
+        r[SP] = 0x7fffeffc;
+        r[GP] = 0x10008000;
+        int pc = 0;
+        exit_code = 0;
+        while(true)
+        {
+            try
+            {
+                return execute(r, pc, out);
+            }
+            catch (Trap e)
+            {
+                pc = overflow_handler;
+            }
+        }
+    }
+
+    private int execute(int[] r, int pc, PrintStream out)
+    {
+        int[] c = code;
+        while(pc != words.length)
+        {
+            if(pc < 0 || pc > words.length)
+                throw error(pc, "jump out of the code");
+            if(jit != null && leader[pc])
+            {
+                JitBlock block = compiled[pc];
+                if(block == null && entries[pc] >= 0 && ++entries[pc] == JIT_THRESHOLD)
+                {
+                    entries[pc] = -1;
+                    block_end[pc] = jit.blockEnd(pc, leader);
+                    if(block_end[pc] > pc)
+                        block = compiled[pc] = jit.compile(pc, block_end[pc]);
+                }
+                if(block != null)
+                {
+                    compiled_runs[pc]++;
+                    steps += block_end[pc] - pc;
+                    if(steps > max_steps)
+                        throw error(pc, "more than "+max_steps+" instructions executed");
+                    int next = block.run(r, this);
+                    if(next < 0)
+                    {
+                        taken[block_end[pc]-1]++;
+                        next = ~next;
+                    }
+                    pc = next;
+                    continue;
+                }
+            }
+            if(++steps > max_steps)
+                throw error(pc, "more than "+max_steps+" instructions executed");
+            executed[pc]++;
+            int k = pc << 2;
+            int a = c[k+1], b = c[k+2], x = c[k+3];
+            pc++;
+            switch (c[k])
+            {
+                case NOP: break;
+                case ADD: r[a] = checked(pc-1, (long)r[b] + r[x]); break;
+                case SUB: r[a] = checked(pc-1, (long)r[b] - r[x]); break;
+                case ADDU: r[a] = r[b] + r[x]; break;
+                case SUBU: r[a] = r[b] - r[x]; break;
+                case AND: r[a] = r[b] & r[x]; break;
+                case OR: r[a] = r[b] | r[x]; break;
+                case XOR: r[a] = r[b] ^ r[x]; break;
+                case NOR: r[a] = ~(r[b] | r[x]); break;
+                case SLT: r[a] = r[b] < r[x] ? 1 : 0; break;
+                case SLTU: r[a] = Integer.compareUnsigned(r[b], r[x]) < 0 ? 1 : 0; break;
+                case SLLV: r[a] = r[b] << r[x]; break;
+                case SRLV: r[a] = r[b] >>> r[x]; break;
+                case SRAV: r[a] = r[b] >> r[x]; break;
+                case SLL: r[a] = r[b] << x; break;
+                case SRL: r[a] = r[b] >>> x; break;
+                case SRA: r[a] = r[b] >> x; break;
+                case MOVZ: if(r[x] == 0) r[a] = r[b]; break;
+                case MOVN: if(r[x] != 0) r[a] = r[b]; break;
+                case ADDI: r[a] = checked(pc-1, (long)r[b] + x); break;
+                case ADDIU: r[a] = r[b] + x; break;
+                case SLTI: r[a] = r[b] < x ? 1 : 0; break;
+                case SLTIU: r[a] = Integer.compareUnsigned(r[b], x) < 0 ? 1 : 0; break;
+                case ANDI: r[a] = r[b] & x; break;
+                case ORI: r[a] = r[b] | x; break;
+                case XORI: r[a] = r[b] ^ x; break;
+                case LUI: r[a] = x; break;
+                case LW: r[a] = load(pc-1, r[b] + x, 4); break;
+                case LB: r[a] = (byte)load(pc-1, r[b] + x, 1); break;
+                case LBU: r[a] = load(pc-1, r[b] + x, 1); break;
+                case LH: r[a] = (short)load(pc-1, r[b] + x, 2); break;
+                case LHU: r[a] = load(pc-1, r[b] + x, 2); break;
+                case SW: store(pc-1, r[b] + x, r[a], 4); break;
+                case SB: store(pc-1, r[b] + x, r[a], 1); break;
+                case SH: store(pc-1, r[b] + x, r[a], 2); break;
+                case BEQ: if(r[a] == r[b]) { taken[pc-1]++; pc = x; } break;
+                case BNE: if(r[a] != r[b]) { taken[pc-1]++; pc = x; } break;
+                case BLEZ: if(r[a] <= 0) { taken[pc-1]++; pc = x; } break;
+                case BGTZ: if(r[a] > 0) { taken[pc-1]++; pc = x; } break;
+                case BLTZ: if(r[a] < 0) { taken[pc-1]++; pc = x; } break;
+                case BGEZ: if(r[a] >= 0) { taken[pc-1]++; pc = x; } break;
+                case J: pc = a; break;
+                case JAL: r[RA] = MipsAssembler.TEXT_BASE + 4*pc; pc = a; break;
+                case JR: pc = target(pc-1, r[b]); break;
+                case JALR:
+                {
+                    int target = r[b];
+                    r[a] = MipsAssembler.TEXT_BASE + 4*pc;
+                    pc = target(pc-1, target);
+                    break;
+                }
+                case MULT:
+                {
+                    long p = (long)r[b] * r[x];
+                    r[LO] = (int)p;
+                    r[HI] = (int)(p >> 32);
+                    break;
+                }
+                case MULTU:
+                {
+                    long p = (r[b] & 0xffffffffL) * (r[x] & 0xffffffffL);
+                    r[LO] = (int)p;
+                    r[HI] = (int)(p >> 32);
+                    break;
+                }
+                //Division by zero leaves hi and lo alone, like MARS
+                case DIV:
+                    if(r[x] != 0)
+                    {
+                        r[LO] = r[b] / r[x];
+                        r[HI] = r[b] % r[x];
+                    }
+                    break;
+                case DIVU:
+                    if(r[x] != 0)
+                    {
+                        r[LO] = Integer.divideUnsigned(r[b], r[x]);
+                        r[HI] = Integer.remainderUnsigned(r[b], r[x]);
+                    }
+                    break;
+                case MFHI: r[a] = r[HI]; break;
+                case MFLO: r[a] = r[LO]; break;
+                case MUL: r[a] = r[b] * r[x]; break;
+                case SYSCALL:
+                    switch (r[V0])
+                    {
+                        case 1:
+                            out.print(r[A0]);
+                            break;
+                        case 4:
+                            for(int address = r[A0];;address++)
+                            {
+                                int ch = load(pc-1, address, 1);
+                                if(ch == 0)
+                                    break;
+                                out.print((char)ch);
+                            }
+                            break;
+                        case 11:
+                            out.print((char)(r[A0] & 0xff));
+                            break;
+                        case 10:
+                            return exit_code;
+                        case 17:
+                            exit_code = r[A0];
+                            return exit_code;
+                        default:
+                            throw error(pc-1, "syscall "+r[V0]+" is not supported");
+                    }
+                    break;
+                case BREAK:
+                    if(x == BREAK_OVERFLOW)
+                        throw new RuntimeException("Program stopped: arithmetic overflow");
+                    if(x == BREAK_DIVISION_BY_ZERO)
+                        throw new RuntimeException("Program stopped: division by zero");
+                    throw error(pc-1, "break");
+                default:
+                    throw error(pc-1, "bad operation");
+            }
+        }
+        return exit_code;
+    }
+
+    /**
+     * The result of add, sub or addi, which trap like MARS when it does not fit in 32 bits
+     * */
+    private int checked(int pc, long value)
+    {
+        if(value != (int)value)
+            overflow(pc);
+        return (int)value;
+    }
+
+    public void overflow(int pc)
+    {
+        if(overflow_handler < 0)
+            throw error(pc, "arithmetic overflow");
+        throw new Trap();
+    }
+
+    /**
+     * Leaves the interpreter or a translated block for the overflow handler
+     * */
+    private static class Trap extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        Trap()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    public int target(int pc, int address)
+    {
+        int offset = address - MipsAssembler.TEXT_BASE;
+        if((offset & 3) != 0 || offset < 0 || offset > 4*words.length)
+            throw error(pc, "jump to "+String.format("%08x", address));
+        return offset >> 2;
+    }
+
+    /**
+     * The word array and the index in it of a word aligned address
+     * */
+    private int[] region(int pc, int address)
+    {
+        if(address - MipsAssembler.DATA_BASE >= 0 && address - MipsAssembler.DATA_BASE < 4*data.length)
+            return data;
+        if(address - STACK_BASE >= 0 && address - STACK_BASE < STACK_SIZE)
+            return stack;
+        throw error(pc, "address "+String.format("%08x", address)+" is outside .data and the stack");
+    }
+
+    public int load(int pc, int address, int size)
+    {
+        if((address & (size-1)) != 0)
+            throw error(pc, "unaligned address "+String.format("%08x", address));
+        int[] m = region(pc, address);
+        int word = m[(address - (m == data ? MipsAssembler.DATA_BASE : STACK_BASE)) >> 2];
+        if(size == 4)
+            return word;
+        int shift = 8*(address & 3);
+        return (word >>> shift) & (size == 1 ? 0xff : 0xffff);
+    }
+
+    public void store(int pc, int address, int value, int size)
+    {
+        if((address & (size-1)) != 0)
+            throw error(pc, "unaligned address "+String.format("%08x", address));
+        int[] m = region(pc, address);
+        int i = (address - (m == data ? MipsAssembler.DATA_BASE : STACK_BASE)) >> 2;
+        if(size == 4)
+        {
+            m[i] = value;
+            return;
+        }
+        int shift = 8*(address & 3);
+        int mask = (size == 1 ? 0xff : 0xffff) << shift;
+        m[i] = (m[i] & ~mask) | ((value << shift) & mask);
+    }
+
+    private RuntimeException error(int pc, String message)
+    {
+        return new RuntimeException("Simulator: "+message+" at "+String.format("%08x", MipsAssembler.TEXT_BASE+4*pc)
+                +" in "+functions.floorEntry(Math.max(0, pc)).getValue());
+    }
+
+    //-----------------------------------------
+    // Report
+
+    private static class Counts
+    {
+        String function;
+        long instructions, loads, stores, taken, cycles;
+
+        void add(Counts c)
+        {
+            instructions += c.instructions;
+            loads += c.loads;
+            stores += c.stores;
+            taken += c.taken;
+            cycles += c.cycles;
+        }
+    }
+
+    /**
+     * Totals, then one line per function, the most expensive first
+     * */
+    public void report(PrintStream out)
+    {
+        TreeMap<String,Counts> per_function = new TreeMap<>();
+        Counts total = new Counts();
+        //Every instruction of a translated block ran as often as the block
+        long[] executed = this.executed.clone();
+        for(int i=0;jit != null && i<words.length;i++)
+            for(int k=i;compiled_runs[i] > 0 && k<block_end[i];k++)
+                executed[k] += compiled_runs[i];
+        for(int i=0;i<words.length;i++)
+        {
+            if(executed[i] == 0)
+                continue;
+            Counts c = new Counts();
+            int op = code[4*i];
+            c.instructions = executed[i];
+            c.loads = op >= LW && op <= LHU ? executed[i] : 0;
+            c.stores = op >= SW && op <= SH ? executed[i] : 0;
+            c.taken = taken[i];
+            c.cycles = executed[i] + c.loads + taken[i];
+            if(op >= J && op <= JALR)
+                c.cycles += executed[i];
+            else if(op == MULT || op == MULTU || op == MUL)
+                c.cycles += MULT_CYCLES*executed[i];
+            else if(op == DIV || op == DIVU)
+                c.cycles += DIV_CYCLES*executed[i];
+            String name = functions.floorEntry(i).getValue();
+            per_function.computeIfAbsent(name, n -> {
+                Counts f = new Counts();
+                f.function = n;
+                return f;
+            }).add(c);
+            total.add(c);
+        }
+        out.println("Simulated "+total.instructions+" instructions: "+total.loads+" loads, "+total.stores+" stores, "
+                +total.taken+" branches taken, "+total.cycles+" cycles (estimated)"
+                +(jit != null ? ", "+getCompiledBlocks()+" blocks translated" : ""));
+        out.println(String.format("%12s %6s %12s %10s %10s %10s  %s", "cycles", "%", "instructions", "loads", "stores", "taken", "function"));
+        ArrayList<Counts> rows = new ArrayList<>(per_function.values());
+        rows.sort((p, q) -> Long.compare(q.cycles, p.cycles));
+        for(Counts f : rows)
+            out.println(String.format("%12d %6.2f %12d %10d %10d %10d  %s", f.cycles, 100.0*f.cycles/Math.max(1, total.cycles),
+                    f.instructions, f.loads, f.stores, f.taken, f.function));
+    }
+
+    //-----------------------------------------
+    // Decoding
+
+    private void decode(int index, int w)
+    {
+        int op = w >>> 26, rs = (w >> 21) & 31, rt = (w >> 16) & 31, rd = (w >> 11) & 31, shamt = (w >> 6) & 31;
+        int imm = (short)w;
+        int target = index + 1 + imm;
+        int[] d;
+        switch (op)
+        {
+            case 0:
+                d = special(w & 63, rs, rt, rd, shamt, (w >> 6) & 0xfffff);
+                break;
+            case 1:
+                d = rt == 0 || rt == 1 ? new int[]{rt == 0 ? BLTZ : BGEZ, rs, 0, target} : null;
+                break;
+            case 2: case 3:
+            {
+                int address = ((MipsAssembler.TEXT_BASE+4*index) & 0xf0000000) | ((w & 0x3ffffff) << 2);
+                d = new int[]{op == 2 ? J : JAL, (address-MipsAssembler.TEXT_BASE) >> 2, 0, 0};
+                break;
+            }
+            case 4: d = new int[]{BEQ, rs, rt, target}; break;
+            case 5: d = new int[]{BNE, rs, rt, target}; break;
+            case 6: d = new int[]{BLEZ, rs, 0, target}; break;
+            case 7: d = new int[]{BGTZ, rs, 0, target}; break;
+            case 8: d = new int[]{ADDI, rt, rs, imm}; break;
+            case 9: d = new int[]{ADDIU, rt, rs, imm}; break;
+            case 10: d = new int[]{SLTI, rt, rs, imm}; break;
+            case 11: d = new int[]{SLTIU, rt, rs, imm}; break;
+            case 12: d = new int[]{ANDI, rt, rs, w & 0xffff}; break;
+            case 13: d = new int[]{ORI, rt, rs, w & 0xffff}; break;
+            case 14: d = new int[]{XORI, rt, rs, w & 0xffff}; break;
+            case 15: d = new int[]{LUI, rt, 0, w << 16}; break;
+            case 32: d = new int[]{LB, rt, rs, imm}; break;
+            case 33: d = new int[]{LH, rt, rs, imm}; break;
+            case 35: d = new int[]{LW, rt, rs, imm}; break;
+            case 36: d = new int[]{LBU, rt, rs, imm}; break;
+            case 37: d = new int[]{LHU, rt, rs, imm}; break;
+            case 40: d = new int[]{SB, rt, rs, imm}; break;
+            case 41: d = new int[]{SH, rt, rs, imm}; break;
+            case 43: d = new int[]{SW, rt, rs, imm}; break;
+            case 28: d = (w & 63) == 2 ? new int[]{MUL, rd, rs, rt} : null; break;
+            default: d = null; break;
+        }
+        if(d == null)
+            throw new RuntimeException("Simulator: unknown instruction "+String.format("%08x", w)+" at "
+                    +String.format("%08x", MipsAssembler.TEXT_BASE+4*index));
+        if(d[1] == 0 && writesFirst(d[0]))
+            d[1] = SINK;
+        System.arraycopy(d, 0, code, 4*index, 4);
+    }
+
+    private static boolean writesFirst(int op)
+    {
+        return (op >= ADD && op <= LHU) || (op >= ADDU && op <= ADDIU) || op == MFHI || op == MFLO || op == MUL || op == JALR;
+    }
+
+    private static int[] special(int funct, int rs, int rt, int rd, int shamt, int code)
+    {
+        switch (funct)
+        {
+            case 0: return new int[]{SLL, rd, rt, shamt};
+            case 2: return new int[]{SRL, rd, rt, shamt};
+            case 3: return new int[]{SRA, rd, rt, shamt};
+            case 4: return new int[]{SLLV, rd, rt, rs};
+            case 6: return new int[]{SRLV, rd, rt, rs};
+            case 7: return new int[]{SRAV, rd, rt, rs};
+            case 8: return new int[]{JR, 0, rs, 0};
+            case 9: return new int[]{JALR, rd, rs, 0};
+            case 10: return new int[]{MOVZ, rd, rs, rt};
+            case 11: return new int[]{MOVN, rd, rs, rt};
+            case 12: return new int[]{SYSCALL, 0, 0, 0};
+            case 13: return new int[]{BREAK, 0, 0, code};
+            case 16: return new int[]{MFHI, rd, 0, 0};
+            case 18: return new int[]{MFLO, rd, 0, 0};
+            case 24: return new int[]{MULT, 0, rs, rt};
+            case 25: return new int[]{MULTU, 0, rs, rt};
+            case 26: return new int[]{DIV, 0, rs, rt};
+            case 27: return new int[]{DIVU, 0, rs, rt};
+            case 32: return new int[]{ADD, rd, rs, rt};
+            case 33: return new int[]{ADDU, rd, rs, rt};
+            case 34: return new int[]{SUB, rd, rs, rt};
+            case 35: return new int[]{SUBU, rd, rs, rt};
+            case 36: return new int[]{AND, rd, rs, rt};
+            case 37: return new int[]{OR, rd, rs, rt};
+            case 38: return new int[]{XOR, rd, rs, rt};
+            case 39: return new int[]{NOR, rd, rs, rt};
+            case 42: return new int[]{SLT, rd, rs, rt};
+            case 43: return new int[]{SLTU, rd, rs, rt};
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Copy propagation and move coalescing on the instructions of one function, run after CfgOptimizer
+ * - "op s,... / move d,s" becomes "op d,..." when s is not read afterwards: the value is computed
+ *   straight into $aN, $v0 or the register it was copied to
+ * - otherwise "move d,s" is removed when every later read of d can read s instead
+ * The instructions rewritten are only looked for in straight line code, labels, branches and jal end
+ * that search. Whether s is read again follows j, beq and bne to their labels and goes past a jal,
+ * which only reads $a0-$a3 of the caller's registers
+ * */
+public class MoveCoalescer
+{
+    private static final Pattern REGISTER = Pattern.compile("\\$[a-z]+\\d*");
+
+    private ArrayList<String> lines;
+    private int removed_moves;
+
+    public MoveCoalescer(List<String> lines)
+    {
+        this.lines = new ArrayList<>(lines);
+        this.removed_moves = 0;
+    }
+
+    public ArrayList<String> optimize()
+    {
+        for(int i=0;i<lines.size();i++)
+        {
+            String line = lines.get(i);
+            if(!CfgOptimizer.isInstruction(line) || !CfgOptimizer.opcode(line).equals("move"))
+                continue;
+            String[] ops = CfgOptimizer.operands(line);
+            if(ops.length != 2)
+                continue;
+            if(ops[0].equals(ops[1]) || coalesce(i, ops[0], ops[1]) || propagate(i, ops[0], ops[1]))
+            {
+                lines.remove(i);
+                removed_moves++;
+                //The instruction before may now be followed by another move of the same value
+                i = Math.max(-1, i-2);
+            }
+        }
+        return lines;
+    }
+
+    public int getRemovedMoves()
+    {
+        return removed_moves;
+    }
+
+    //-----------------------------------------
+    // What an instruction reads and writes
+
+    private static boolean isTemporary(String reg)
+    {
+        return reg.matches("\\$[ts]\\d");
+    }
+
+    /**
+     * Instructions whose first operand is the only register they write
+     * */
+    private static boolean writesFirst(String op)
+    {
+        switch (op)
+        {
+            case "add": case "addi": case "addu": case "addiu": case "sub": case "subu":
+            case "and": case "andi": case "or": case "ori": case "xor": case "xori": case "nor":
+            case "sll": case "srl": case "sra": case "sllv": case "srlv": case "srav":
+            case "slt": case "slti": case "sltu": case "sltiu":
+            case "seq": case "sne": case "sge": case "sle": case "sgt":
+            case "li": case "la": case "lw": case "lb": case "lbu": case "move": case "mflo": case "mfhi":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Instructions that only read registers
+     * */
+    private static boolean onlyReads(String op)
+    {
+        switch (op)
+        {
+            case "sw": case "sb": case "mult": case "div":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Control leaves the straight line code, or registers are used without being named
+     * */
+    private static boolean isBoundary(String line)
+    {
+        if(!CfgOptimizer.isInstruction(line))
+            return CfgOptimizer.isLabel(line);
+        String op = CfgOptimizer.opcode(line);
+        return !writesFirst(op) && !onlyReads(op) && !op.equals("movn") && !op.equals("movz") && !op.equals("syscall");
+    }
+
+    private static boolean mentions(String operand, String reg)
+    {
+        Matcher m = REGISTER.matcher(operand);
+        while(m.find())
+            if(m.group().equals(reg))
+                return true;
+        return false;
+    }
+
+    private static boolean reads(String line, String reg)
+    {
+        String op = CfgOptimizer.opcode(line);
+        String[] ops = CfgOptimizer.operands(line);
+        if(op.equals("syscall"))
+            return reg.equals("$v0") || reg.equals("$a0");
+        //movn and movz keep the old value when the condition fails, so they read their target too
+        int from = writesFirst(op) ? 1 : 0;
+        for(int i=from;i<ops.length;i++)
+            if(mentions(ops[i], reg))
+                return true;
+        return false;
+    }
+
+    private static boolean writes(String line, String reg)
+    {
+        String op = CfgOptimizer.opcode(line);
+        String[] ops = CfgOptimizer.operands(line);
+        if(op.equals("syscall"))
+            return reg.equals("$v0");
+        return !onlyReads(op) && ops.length > 0 && ops[0].equals(reg);
+    }
+
+    private static String replaceReads(String line, String from, String to)
+    {
+        String op = CfgOptimizer.opcode(line);
+        String[] ops = CfgOptimizer.operands(line);
+        for(int i=writesFirst(op) ? 1 : 0;i<ops.length;i++)
+            ops[i] = ops[i].replaceAll(Pattern.quote(from)+"\\b", Matcher.quoteReplacement(to));
+        return CfgOptimizer.instruction(op, ops);
+    }
+
+    //-----------------------------------------
+
+    /**
+     * Is the value of reg never read again after line "from"
+     * */
+    private static boolean isReturn(String line)
+    {
+        if(!CfgOptimizer.isInstruction(line))
+            return false;
+        String op = CfgOptimizer.opcode(line);
+        return op.equals("jr") || (op.equals("j") && CfgOptimizer.target(line).startsWith(FrameLayout.EPILOGUE));
+    }
+
+    /**
+     * A jal reads its arguments, the Save_t and Restore_t helpers read and write the $t registers too
+     * */
+    private static boolean callReads(String line, String reg)
+    {
+        String callee = CfgOptimizer.operands(line)[0];
+        if((callee.startsWith("Save_t") || callee.startsWith("Restore_t")) && reg.startsWith("$t"))
+            return true;
+        return reg.matches("\\$a[0-3]");
+    }
+
+    private int labelIndex(String name)
+    {
+        for(int i=0;i<lines.size();i++)
+            if(CfgOptimizer.isLabel(lines.get(i)) && CfgOptimizer.labelName(lines.get(i)).equals(name))
+                return i;
+        return -1;
+    }
+
+    private boolean deadAfter(int from, String reg)
+    {
+        return deadFrom(from+1, reg, new HashSet<>());
+    }
+
+    /**
+     * Every path from line "start" writes reg or leaves the function before reading it.
+     * A line already visited adds nothing new, whatever reads it leads to is found from its first visit
+     * */
+    private boolean deadFrom(int start, String reg, HashSet<Integer> visited)
+    {
+        for(int i=start;i<lines.size();i++)
+        {
+            if(!visited.add(i))
+                return true;
+            String line = lines.get(i);
+            if(isReturn(line))
+                return isTemporary(reg);
+            if(!CfgOptimizer.isInstruction(line))
+                continue;
+            String op = CfgOptimizer.opcode(line);
+            if(op.equals("j") || CfgOptimizer.isBranch(op))
+            {
+                if(reads(line, reg))
+                    return false;
+                int target = labelIndex(CfgOptimizer.target(line));
+                if(target < 0)
+                    return false;
+                if(op.equals("j"))
+                {
+                    i = target-1;
+                    continue;
+                }
+                if(!deadFrom(target, reg, visited))
+                    return false;
+                continue;
+            }
+            if(op.equals("jal"))
+            {
+                //Whether the callee keeps reg or not, a later read of it is found further on
+                if(callReads(line, reg))
+                    return false;
+                continue;
+            }
+            if(isBoundary(line))
+                return false;
+            if(reads(line, reg))
+                return false;
+            if(writes(line, reg))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * "op s,... / ... / move d,s": write d in op instead
+     * */
+    private boolean coalesce(int move, String d, String s)
+    {
+        if(!isTemporary(s) || !deadAfter(move, s))
+            return false;
+        for(int i=move-1;i>=0;i--)
+        {
+            String line = lines.get(i);
+            if(isBoundary(line))
+                return false;
+            if(!CfgOptimizer.isInstruction(line))
+                continue;
+            if(writes(line, s))
+            {
+                String op = CfgOptimizer.opcode(line);
+                if(!writesFirst(op))
+                    return false;
+                String[] ops = CfgOptimizer.operands(line);
+                ops[0] = d;
+                lines.set(i, CfgOptimizer.instruction(op, ops));
+                return true;
+            }
+            //d must keep its old value until the move, and s is only read by the move
+            if(reads(line, s) || reads(line, d) || writes(line, d))
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * "move d,s / ... reads of d ...": read s instead, as long as neither is written in between
+     */
+    private boolean propagate(int move, String d, String s)
+    {
+        if(!isTemporary(d))
+            return false;
+        ArrayList<Integer> uses = new ArrayList<>();
+        boolean dead = false;
+        for(int i=move+1;i<lines.size() && !dead;i++)
+        {
+            String line = lines.get(i);
+            if(isReturn(line))
+            {
+                dead = true;
+                break;
+            }
+            if(isBoundary(line))
+                return false;
+            if(!CfgOptimizer.isInstruction(line))
+                continue;
+            if(reads(line, d))
+            {
+                //movn writes the register it reads
+                if(!writesFirst(CfgOptimizer.opcode(line)) && writes(line, d))
+                    return false;
+                uses.add(i);
+            }
+            if(writes(line, d))
+                dead = true;
+            else if(writes(line, s))
+                return false;
+        }
+        if(!dead)
+            return false;
+        for(int i : uses)
+            lines.set(i, replaceReads(lines.get(i), d, s));
+        return true;
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * The opcodes and access flags ClassWriter users need
+ * */
+interface Opcodes
+{
+    int ICONST_M1 = 2, ICONST_0 = 3, ICONST_1 = 4, BIPUSH = 16, SIPUSH = 17, LDC_W = 19,
+            ILOAD = 21, ALOAD = 25, IALOAD = 46, AALOAD = 50, ISTORE = 54, ASTORE = 58, IASTORE = 79, AASTORE = 83,
+            POP = 87, DUP = 89, DUP_X1 = 90, DUP2 = 92, SWAP = 95,
+            IADD = 96, LADD = 97, ISUB = 100, LSUB = 101, IMUL = 104, LMUL = 105, IDIV = 108, IREM = 112, INEG = 116,
+            ISHL = 120, ISHR = 122, LSHR = 123, IUSHR = 124, IAND = 126, IOR = 128, IXOR = 130,
+            I2L = 133, L2I = 136, I2B = 145, I2S = 147, LCMP = 148,
+            IFEQ = 153, IFNE = 154, IFLT = 155, IFGE = 156, IFGT = 157, IFLE = 158,
+            IF_ICMPEQ = 159, IF_ICMPNE = 160, IF_ICMPLT = 161, IF_ICMPGE = 162, IF_ICMPGT = 163, IF_ICMPLE = 164,
+            GOTO = 167, IRETURN = 172, RETURN = 177, GETSTATIC = 178, PUTSTATIC = 179,
+            INVOKESPECIAL = 183, INVOKESTATIC = 184, INVOKEINTERFACE = 185,
+            NEWARRAY = 188, ANEWARRAY = 189, WIDE = 196, GOTO_W = 200;
+
+    //Element type of newarray
+    int T_INT = 10;
+
+    int ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+}
@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+
+/**
+ * Command line switches of the compiler
+ * Usage: Compiler [-memo N] [-unroll N] [-Os] [-bin [-list]] [-run [-jit]] [-jvm] [-x86] [-interp] [-debug] file
+ *        Compiler [-memo N] [-unroll N] [-Os] [-bin [-list]] [-jvm] [-x86] -batch [-jobs N] input...
+ *        Compiler -daemon [-port N] [-jobs N]
+ *        Compiler -client [-port N] (-stats | [the options of -batch] input...)
+ * */
+public class Options
+{
+    public String inFileName;
+    //Memoize pure recursive functions of one int argument for 0 <= n < memo_bound, 0 turns it off
+    public int memo_bound;
+    //Iterations of a counted while loop run per test, 0 or 1 turns unrolling off
+    public int unroll;
+    //Prefer smaller code: shared epilogues, helpers for saving registers, no unrolling or copied loop tests
+    public boolean size;
+    //Write machine code (file.bin and its symbols in file.map) instead of the assembly text
+    public boolean binary;
+    //With -bin, still write the assembly text as a listing
+    public boolean listing;
+    //Run the program in MipsSimulator after compiling it, and report where the cycles went
+    public boolean run;
+    //With -run, translate hot blocks into JVM classes
+    public boolean jit;
+    //Compile to a JVM class (NAME.class next to the file) instead of MIPS code, with -run run it in this JVM
+    public boolean jvm;
+    //Also write the program as x86-64 assembly for GAS (file.s), translated from the MIPS code
+    public boolean x86;
+    //Run the program in Interpreter instead of compiling it
+    public boolean interpret;
+    //Print what Parser is doing (operands, registers, globals) on stdout
+    public boolean debug;
+    //Compile every file the inputs name (files, directories, globs, @list files), each on its own
+    public boolean batch;
+    public ArrayList<String> inputs;
+    //Threads of the batch, 0 is one per processor
+    public int jobs;
+    //Serve compilations on a localhost port, or hand this one to that server (as a batch)
+    public boolean daemon;
+    public boolean client;
+    public int port;
+    //With -client, ask the daemon for its latency histogram
+    public boolean stats;
+
+    public Options()
+    {
+        this.inFileName = null;
+        this.memo_bound = 0;
+        this.unroll = 4;
+        this.size = false;
+        this.binary = false;
+        this.listing = false;
+        this.run = false;
+        this.jit = false;
+        this.jvm = false;
+        this.x86 = false;
+        this.interpret = false;
+        this.debug = false;
+        this.batch = false;
+        this.inputs = new ArrayList<>();
+        this.jobs = 0;
+        this.daemon = false;
+        this.client = false;
+        this.port = Daemon.DEFAULT_PORT;
+        this.stats = false;
+    }
+
+    /**
+     * The same options for one file of a batch, each compilation gets its own copy
+     * */
+    public Options forFile(String fileName)
+    {
+        Options options = new Options();
+        options.inFileName = fileName;
+        options.memo_bound = memo_bound;
+        options.unroll = unroll;
+        options.size = size;
+        options.binary = binary;
+        options.listing = listing;
+        options.run = run;
+        options.jit = jit;
+        options.jvm = jvm;
+        options.x86 = x86;
+        options.interpret = interpret;
+        options.debug = debug;
+        return options;
+    }
+
+    public static Options parse(String[] args)
+    {
+        Options options = new Options();
+        for(int i=0;i<args.length;i++)
+        {
+            String arg = args[i];
+            if(arg.equals("-memo"))
+            {
+                options.memo_bound = intValue(args, ++i, arg);
+            }
+            else if(arg.equals("-unroll"))
+            {
+                options.unroll = intValue(args, ++i, arg);
+            }
+            else if(arg.equals("-Os"))
+            {
+                options.size = true;
+            }
+            else if(arg.equals("-bin"))
+            {
+                options.binary = true;
+            }
+            else if(arg.equals("-list"))
+            {
+                options.listing = true;
+            }
+            else if(arg.equals("-run"))
+            {
+                options.run = true;
+            }
+            else if(arg.equals("-jit"))
+            {
+                options.jit = true;
+            }
+            else if(arg.equals("-jvm"))
+            {
+                options.jvm = true;
+            }
+            else if(arg.equals("-x86"))
+            {
+                options.x86 = true;
+            }
+            else if(arg.equals("-interp"))
+            {
+                options.interpret = true;
+            }
+            else if(arg.equals("-debug"))
+            {
+                options.debug = true;
+            }
+            else if(arg.equals("-batch"))
+            {
+                options.batch = true;
+            }
+            else if(arg.equals("-jobs"))
+            {
+                options.jobs = intValue(args, ++i, arg);
+            }
+            else if(arg.equals("-daemon"))
+            {
+                options.daemon = true;
+            }
+            else if(arg.equals("-client"))
+            {
+                options.client = true;
+            }
+            else if(arg.equals("-port"))
+            {
+                options.port = intValue(args, ++i, arg);
+            }
+            else if(arg.equals("-stats"))
+            {
+                options.stats = true;
+            }
+            else if(arg.startsWith("-"))
+            {
+                throw new RuntimeException("Unknown option "+arg);
+            }
+            else
+            {
+                options.inputs.add(arg);
+            }
+        }
+        if(options.stats && !options.client)
+            throw new RuntimeException("Option -stats needs -client");
+        if(options.daemon || options.stats)
+        {
+            if(options.daemon && options.client)
+                throw new RuntimeException("Option -daemon cannot be used with -client");
+            if(!options.inputs.isEmpty())
+                throw new RuntimeException("Options -daemon and -stats take no input");
+            return options;
+        }
+        //What a client sends is compiled as a batch, the same by the daemon or by the client itself
+        if(options.client)
+            options.batch = true;
+        if(options.batch)
+        {
+            if(options.inputs.isEmpty())
+                throw new RuntimeException("Option -batch needs at least one input");
+            if(options.run || options.interpret)
+                throw new RuntimeException("Option -batch cannot be used with -run or -interp");
+        }
+        else if(options.inputs.size() != 1)
+            throw new RuntimeException("Wrong number cmd line args");
+        else
+            options.inFileName = options.inputs.get(0);
+        if(options.size)
+            options.unroll = 0;
+        if(options.jvm && options.binary)
+            throw new RuntimeException("Option -jvm cannot be used with -bin");
+        if(options.jvm && options.x86)
+            throw new RuntimeException("Option -jvm cannot be used with -x86");
+        if(options.interpret && (options.binary || options.jvm || options.x86 || options.run))
+            throw new RuntimeException("Option -interp cannot be used with -bin, -jvm, -x86 or -run");
+        //Without -bin, -jvm or -interp the assembly text is the output
+        if(!options.binary && !options.jvm && !options.interpret)
+            options.listing = true;
+        return options;
+    }
+
+    private static int intValue(String[] args, int index, String option)
+    {
+        try
+        {
+            int value = Integer.parseInt(args[index]);
+            if(value < 0)
+                throw new NumberFormatException();
+            return value;
+        }
+        catch (RuntimeException e)
+        {
+            throw new RuntimeException("Option "+option+" needs a non-negative number");
+        }
+    }
+}
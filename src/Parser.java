@@ -1,9 +1,24 @@
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 public class Parser implements Constants
 {
+    //Upper bound of specialized clones per function, recursion could otherwise create them endlessly
+    private static final int MAX_CLONES = 8;
+
+    //"%0" is the register of the first operand of an asm statement, "%=" a number unique to the statement
+    private static final Pattern ASM_OPERAND = Pattern.compile("%(\\d+|=|%)");
+    //What an asm statement may clobber, $zero, $sp, $fp and $gp are needed by the generated code
+    private static final Pattern ASM_CLOBBER = Pattern.compile("\\$(t\\d|s[0-7]|v[01]|a[0-3]|at|ra)");
+
     private SymTab st;
     private TokenMgr tm;
     private PrintWriter outFile;
@@ -23,8 +38,54 @@ public class Parser implements Constants
     private FuncSymTab ft;
     //the function we are working in
     private String currentfunction;
+    //Intrinsics the program defines a function for further down, null until the first call of an intrinsic
+    private Set<String> shadowed;
+    //Purity information of the function we are working in
+    private FuncInfo fi;
+    //Specialized clones waiting to be generated, and the one being generated
+    private ArrayList<FuncInfo> pending_clones;
+    private FuncInfo clone;
+    private ConstEvaluator ce;
+    //>0 while compiling a branch whose condition is a constant that never selects it
+    private int dead_code;
+    //Slots of the locals of the current function, and how many values are spilled right now
+    private FrameLayout frame;
+    private int spill_depth;
+    private Options options;
+    //Functions with a memo table in the .data segment
+    private ArrayList<String> memo_tables;
+    //Reported when the compilation is done
+    private int removed_jumps;
+    private int removed_moves;
+    //Text of the asm statements, a function refers to them by "asm <index>" until it is written out
+    private ArrayList<String> asm_blocks;
+    //Finished functions, identical ones are written once
+    private FunctionMerger merger;
+    //-Os: frame sizes with a shared epilogue, and the most $t registers saved by one Save_t helper
+    private TreeSet<Integer> epilogues;
+    private int save_helpers;
+    //Registers each generated function may change, and the ones the asm statements of this function clobber
+    private ClobberSets clobbers;
+    private HashSet<String> asm_clobbers;
+    //"x = constant;" just parsed in a statement list, the value x has when the next statement starts
+    private Token[] preceding_constant;
     public Parser(SymTab st, TokenMgr tm, PrintWriter outFile)
     {
+        this(st, tm, outFile, new Options());
+    }
+
+    public Parser(SymTab st, TokenMgr tm, PrintWriter outFile, Options options)
+    {
+        this.options = options;
+        this.memo_tables = new ArrayList<>();
+        this.asm_blocks = new ArrayList<>();
+        this.merger = new FunctionMerger();
+        this.epilogues = new TreeSet<>();
+        this.save_helpers = 0;
+        this.clobbers = new ClobberSets();
+        this.asm_clobbers = new HashSet<>();
+        this.removed_jumps = 0;
+        this.removed_moves = 0;
         this.st = st;
         this.tm = tm;
         this.outFile = outFile;
@@ -41,7 +102,12 @@ public class Parser implements Constants
         this.currentfunction = "main";
         //This instance is shared between different functions, after parsing one, it will be reset
         this.ft = new FuncSymTab("main");
-
+        this.fi = null;
+        this.pending_clones = new ArrayList<>();
+        this.clone = null;
+        this.ce = new ConstEvaluator(st, tm);
+        this.dead_code = 0;
+        this.spill_depth = 0;
 
         currentToken = tm.getNextToken();
         previousToken = null;
@@ -103,6 +169,36 @@ public class Parser implements Constants
         program();
     }
 
+    /**
+     * Where the parser stopped, the position of a compilation error
+     * */
+    public Token getCurrentToken()
+    {
+        return currentToken;
+    }
+
+    //What the parser is doing, only with -debug
+    private void trace(Object message)
+    {
+        if(options.debug)
+            System.out.println(message);
+    }
+
+    public int getRemovedJumps()
+    {
+        return removed_jumps;
+    }
+
+    public int getRemovedMoves()
+    {
+        return removed_moves;
+    }
+
+    public int getMergedFunctions()
+    {
+        return merger.getMergedFunctions();
+    }
+
     private void programUnitList()
     {
         switch (currentToken.kind)
@@ -136,22 +232,44 @@ public class Parser implements Constants
 
     private void functionDefinition()
     {
+        Token start = currentToken;
         consume(DEF);
+        boolean returns_int = currentToken.kind == INT;
         switch (currentToken.kind){
             case INT:consume(INT);break;
             case VOID:consume(VOID);break;
         }
+        //A specialized clone is the same definition compiled again under another name
+        fi = clone != null ? clone : new FuncInfo(currentToken.image, start);
+        fi.returns_int = returns_int;
+        //The function is written to the output once it is complete, see emitFunction()
+        PrintWriter program_out = outFile;
+        StringWriter function_text = new StringWriter();
+        outFile = new PrintWriter(function_text);
         //Entrance of a function
-        outFile.println("\n"+currentToken.image+":");
+        outFile.println(fi.name+":");
         //Update the function parsing in
-        currentfunction = currentToken.image;
+        currentfunction = fi.name;
         ft.name = currentfunction;
         consume(ID);
 
         consume(LEFTPAREN);
+        frame = new FrameLayout();
         int space_para = parameterList(); //empty
         consume(RIGHTPAREN);
         consume(LEFTBRACE);
+        asm_clobbers.clear();
+        steerRegisters();
+
+        //Whether the function can be memoized is only known at its end, so keep its body aside until then
+        PrintWriter function_out = outFile;
+        StringWriter body = null;
+        if(options.memo_bound > 0 && clone == null)
+        {
+            body = new StringWriter();
+            outFile = new PrintWriter(body);
+        }
+
         int space_local = localDeclarations();
 
         ft.initCalBasementValue();
@@ -159,15 +277,32 @@ public class Parser implements Constants
         statementList();
         returnStatement();
 
+        fi.computePurity(st);
+        if(body != null)
+        {
+            outFile.flush();
+            outFile = function_out;
+            boolean memo = isMemoizable(fi);
+            if(memo)
+                memoLookup(space_para);
+            outFile.print(body);
+            if(memo)
+                memoStore();
+        }
+
         outFile.println("#Restore register $ra and $fp");
-        emitInstruction("lw", "$ra","4($fp)");
-        emitInstruction("lw", "$fp","0($fp)");
-        emitInstruction("addi", "$sp","$sp",""+ft.space,"#pop stack all at once");
-        emitInstruction("jr", "$ra");
+        emitEpilogue(space_para, "#pop stack all at once");
+
+        outFile.flush();
+        outFile = program_out;
+        frame.layout();
+        emitFunction(fi.name, frame.resolve(function_text.toString()));
 
         consume(RIGHTBRACE);
 
         st.enterFunc(currentfunction, ft);
+        st.enterFuncInfo(fi);
+        fi = null;
         //Reset function
 
         ft.reset();
@@ -175,6 +310,204 @@ public class Parser implements Constants
         this.array_space = 0; //Reset the record for array space use within a function calling stack
     }
 
+    /**
+     * Restore $ra and $fp and return, space_para is minus the bytes of the saved $ra, $fp and arguments.
+     * With -Os functions jump to one copy of it that finds the caller's $sp above $fp
+     * */
+    private void emitEpilogue(int space_para, String comment)
+    {
+        if(options.size)
+        {
+            epilogues.add(-space_para);
+            emitInstruction("j", FrameLayout.EPILOGUE+(-space_para));
+            return;
+        }
+        emitInstruction("lw", "$ra","4($fp)");
+        emitInstruction("lw", "$fp","0($fp)");
+        emitInstruction("addi", "$sp","$sp",FrameLayout.frame(-space_para),comment);
+        emitInstruction("jr", "$ra");
+    }
+
+    /**
+     * -Os: the shared epilogues and the helpers that save and restore $t registers around calls.
+     * Save_tN stores $t(N-1) and falls into Save_t(N-1), down to $t0
+     * */
+    private void emitSharedCode()
+    {
+        for(int space : epilogues)
+        {
+            outFile.println(FrameLayout.EPILOGUE+space+":");
+            emitInstruction("lw", "$ra","4($fp)");
+            emitInstruction("addi", "$sp","$fp",""+space);
+            emitInstruction("lw", "$fp","0($fp)");
+            emitInstruction("jr", "$ra");
+        }
+        if(save_helpers == 0)
+            return;
+        for(String helper : new String[]{"Save_t", "Restore_t"})
+        {
+            for(int i=save_helpers;i>0;i--)
+            {
+                outFile.println(helper+i+":");
+                emitInstruction(helper.equals("Save_t") ? "sw" : "lw", "$t"+(i-1),4*(i-1)+"($sp)");
+            }
+            emitInstruction("jr", "$ra");
+        }
+    }
+
+    /**
+     * Control flow clean up of the finished function, then keep it for the merging of identical functions
+     * */
+    private void emitFunction(String name, String text)
+    {
+        ArrayList<String> lines = new ArrayList<>();
+        for(String line : text.split("\n"))
+            lines.add(line);
+        CfgOptimizer cfg = new CfgOptimizer(lines, !options.size);
+        lines = cfg.optimize();
+        MoveCoalescer moves = new MoveCoalescer(lines);
+        lines = moves.optimize();
+        removed_jumps += cfg.getRemovedJumps();
+        removed_moves += moves.getRemovedMoves();
+        //The optimizers see an asm statement as one instruction they know nothing about
+        ArrayList<String> code = new ArrayList<>();
+        for(String line : lines)
+        {
+            if(CfgOptimizer.isInstruction(line) && CfgOptimizer.opcode(line).equals("asm"))
+                code.add(asm_blocks.get(Integer.parseInt(CfgOptimizer.operands(line)[0])));
+            else
+                code.add(line);
+        }
+        clobbers.add(name, code, asm_clobbers);
+        merger.add(name, code);
+    }
+
+    /**
+     * Before the body of a function is parsed: hand out first the $t registers that the functions it calls
+     * change least, so that their values need not be saved around the calls.
+     * A call inside a loop counts ten times as much for every loop around it
+     * */
+    private void steerRegisters()
+    {
+        long[] cost = new long[RegMgr.T_REGISTERS];
+        ArrayList<Boolean> braces = new ArrayList<>(); //Whether each open brace is the body of a while
+        int loops = 0;
+        boolean loop_head = false;  //Between "while" and its body
+        for(Token t = currentToken;t.kind != EOF && !(t.kind == RIGHTBRACE && braces.isEmpty());t = peek(t))
+        {
+            switch (t.kind)
+            {
+                case WHILE:
+                    loop_head = true;
+                    break;
+                case LEFTBRACE:
+                    braces.add(loop_head);
+                    if(loop_head)
+                        loops++;
+                    loop_head = false;
+                    break;
+                case RIGHTBRACE:
+                    if(braces.remove(braces.size()-1))
+                        loops--;
+                    break;
+                case SEMICOLON:
+                    loop_head = false;
+                    break;
+                case CAL:
+                    String callee = peek(t).image;
+                    if(!clobbers.isKnown(callee))
+                        break;
+                    long weight = 1;
+                    for(int i=0;i<Math.min(loops+(loop_head ? 1 : 0), 4);i++)
+                        weight *= 10;
+                    for(int i=0;i<RegMgr.T_REGISTERS;i++)
+                        if(clobbers.get(callee).contains("$t"+i))
+                            cost[i] += weight;
+                    break;
+                default:
+                    break;
+            }
+        }
+        rm.steer(cost);
+    }
+
+    /**
+     * Pure, recursive, int valued, one int parameter never assigned to: its result only depends on that argument
+     * */
+    private boolean isMemoizable(FuncInfo info)
+    {
+        return info.pure && info.returns_int && info.params.size() == 1 && !info.writes_args
+                && info.callees.contains(info.name);
+    }
+
+    /**
+     * Emitted right after the prologue, before the locals are initialized:
+     * if 0 <= n < bound and the valid bit of n is set, return memo[n] at once
+     * */
+    private void memoLookup(int space_para)
+    {
+        String miss = identifierAvailable();
+        String table = "Memo_"+currentfunction;
+        memo_tables.add(currentfunction);
+        outFile.println("# Memoization of "+currentfunction+" for 0 <= "+fi.params.get(0)+" < "+options.memo_bound);
+        memoRangeCheck("$t0", "$a0");
+        emitInstruction("beq", "$zero","$t0",miss);
+        emitInstruction("srl", "$t1","$a0","5");
+        emitInstruction("sll", "$t1","$t1","2");
+        emitInstruction("la", "$t2",table+"_valid");
+        emitInstruction("addu", "$t2","$t2","$t1");
+        emitInstruction("lw", "$t2","0($t2)");
+        emitInstruction("srlv", "$t2","$t2","$a0");
+        emitInstruction("andi", "$t2","$t2","1");
+        emitInstruction("beq", "$zero","$t2",miss);
+        emitInstruction("sll", "$t1","$a0","2");
+        emitInstruction("la", "$t2",table);
+        emitInstruction("addu", "$t2","$t2","$t1");
+        emitInstruction("lw", "$v0","0($t2)");
+        //Only the prologue has been pushed so far
+        emitEpilogue(space_para, "#Memo hit, pop the frame");
+        outFile.println(miss+":");
+    }
+
+    private void memoRangeCheck(String res, String arg)
+    {
+        //Unsigned comparison, negative arguments are out of range as well
+        if(options.memo_bound <= 32767)
+        {
+            emitInstruction("sltiu", res,arg,""+options.memo_bound);
+            return;
+        }
+        emitInstruction("li", res,""+options.memo_bound);
+        emitInstruction("sltu", res,arg,res);
+    }
+
+    /**
+     * Emitted before the epilogue: the result in $v0 is written to memo[n] and the valid bit of n is set
+     * */
+    private void memoStore()
+    {
+        String skip = identifierAvailable();
+        String table = "Memo_"+currentfunction;
+        outFile.println("# Record the result of "+currentfunction);
+        loadVariable("$t0", fi.params.get(0));
+        memoRangeCheck("$t1", "$t0");
+        emitInstruction("beq", "$zero","$t1",skip);
+        emitInstruction("sll", "$t1","$t0","2");
+        emitInstruction("la", "$t2",table);
+        emitInstruction("addu", "$t2","$t2","$t1");
+        emitInstruction("sw", "$v0","0($t2)");
+        emitInstruction("srl", "$t1","$t0","5");
+        emitInstruction("sll", "$t1","$t1","2");
+        emitInstruction("la", "$t2",table+"_valid");
+        emitInstruction("addu", "$t2","$t2","$t1");
+        emitInstruction("lw", "$t3","0($t2)");
+        emitInstruction("li", "$t4","1");
+        emitInstruction("sllv", "$t4","$t4","$t0");
+        emitInstruction("or", "$t3","$t3","$t4");
+        emitInstruction("sw", "$t3","0($t2)");
+        outFile.println(skip+":");
+    }
+
     private int parameterList()
     {
         int space;
@@ -184,21 +517,22 @@ public class Parser implements Constants
                 parameter();
                 parameterTail();
                 space = -4*(ft.local_args_num+2);
-                emitInstruction("addi", "$sp","$sp",space+"","#Create space for args ,$ra and $fp");
+                //The locals are below $fp, the whole frame is allocated at once
+                emitInstruction("addi", "$sp","$sp","-"+FrameLayout.frame(-space),"#Create space for args ,$ra, $fp and the frame");
                 for(int i=0;i<ft.local_args_num;i++)
                 {
-                    emitInstruction("sw","$a"+i,(4*(ft.local_args_num+1-i))+"($sp)");
+                    emitInstruction("sw","$a"+i,FrameLayout.frame(8+4*i)+"($sp)"); //Same order as FuncSymTab.initCalBasementValue()
                 }
-                emitInstruction("sw", "$ra","4($sp)");
-                emitInstruction("sw", "$fp","0($sp)");
-                emitInstruction("move", "$fp","$sp");
+                emitInstruction("sw", "$ra",FrameLayout.frame(4)+"($sp)");
+                emitInstruction("sw", "$fp",FrameLayout.frame(0)+"($sp)");
+                emitInstruction("addi", "$fp","$sp",FrameLayout.frame(0));
                 return space;
             default:
                 space = -8;
-                emitInstruction("addi", "$sp","$sp",space+"","#Create space for $ra and $fp");
-                emitInstruction("sw", "$ra","4($sp)");
-                emitInstruction("sw", "$fp","0($sp)");
-                emitInstruction("move", "$fp","$sp");
+                emitInstruction("addi", "$sp","$sp","-"+FrameLayout.frame(-space),"#Create space for $ra, $fp and the frame");
+                emitInstruction("sw", "$ra",FrameLayout.frame(4)+"($sp)");
+                emitInstruction("sw", "$fp",FrameLayout.frame(0)+"($sp)");
+                emitInstruction("addi", "$fp","$sp",FrameLayout.frame(0));
                 return -8;
         }
     }
@@ -211,8 +545,7 @@ public class Parser implements Constants
             case INT:
                 consume(INT);
                 String nameGloble = currentToken.image;
-                st.addGlobal(nameGloble);// Add this global variable into the symbol table
-                emitInstruction("addi","$gp","$gp","4","#Space for variable: "+nameGloble); // Spare some space for global variabless
+                st.addGlobal(nameGloble);// Add this global variable into the symbol table, its space is in dataSegment()
                 consume(ID);
                 globalTail();
                 consume(SEMICOLON);
@@ -242,8 +575,8 @@ public class Parser implements Constants
                 consume(COMMA);
                 String nameGloble = currentToken.image;
                 st.addGlobal(nameGloble);
-                emitInstruction("addi","$gp","$gp","4","#Space for variable: "+nameGloble); // Spare some space for global variabless
                 consume(ID);
+                break;
             default:
                 break;
         }
@@ -258,11 +591,11 @@ public class Parser implements Constants
             case INT:
                 consume(INT);
                 ft.Enter(currentToken.image, INT);
+                frame.declare(currentToken.image, 4);
                 consume(ID);
                 localTail();
+                //The space is taken in the prologue, see FrameLayout
                 space = 4*ft.local_var_num;
-                //Expand memory space according to the declaration
-                emitInstruction("addi", "$sp","$sp","-"+space,"#Create space for local variables");
                 consume(SEMICOLON);
                 //Recursively call this function and sum the overall space together!
                 space += localDeclarations();
@@ -274,12 +607,11 @@ public class Parser implements Constants
                 space = Integer.parseInt(id.substring(id.indexOf('[')+1, id.indexOf(']')))*4;
 
                 ft.Enter(currentToken.image, ARRAY,space);
+                frame.declareArray(id.substring(0, id.indexOf('[')), space);
 
                 consume(ID);
                 consume(SEMICOLON);
-
-                emitInstruction("addi", "$sp","$sp","-"+space,"#Create space for :  "+id); //!!!!!!!!!!!!!!!!!!!!!!!!
-                System.out.println("Successfully parse array!");
+                trace("Successfully parse array!");
                 space += localDeclarations();
                 return space;
             case CONST:
@@ -287,14 +619,15 @@ public class Parser implements Constants
                 consume(INT);
                 String var = currentToken.image;
                 ft.Enter(var, CONST);
-                emitInstruction("addi", "$sp","$sp","-4","#Create space for const variable: "+var);
+                frame.declare(var, 4);
                 consume(ID);
                 consume(ASSIGN);
                 res_reg = expr();
                 res_reg = isNeedRegister(res_reg);
-                emitInstruction("sw", res_reg,"0($sp)");
+                emitInstruction("sw", res_reg,frame.use(var, 0, true)+"($sp)");
                 rm.resetRegister();
                 consume(SEMICOLON);
+                return 0;
             default:
                 return 0;
         }
@@ -307,8 +640,10 @@ public class Parser implements Constants
             case COMMA:
                 consume(COMMA);
                 ft.Enter(currentToken.image, INT);
+                frame.declare(currentToken.image, 4);
                 consume(ID);
                 localTail();
+                break;
             default:
                 break;
         }
@@ -317,8 +652,10 @@ public class Parser implements Constants
     private void parameter()
     {
         consume(INT);
-        //enter the args into the symtable of this function
-        ft.Enter(currentToken.image, ARGS);
+        fi.params.add(currentToken.image);
+        //enter the args into the symtable of this function, a parameter bound to a constant takes no slot
+        if(!fi.bound_args.containsKey(currentToken.image))
+            ft.Enter(currentToken.image, ARGS);
         consume(ID);
     }
 
@@ -339,14 +676,23 @@ public class Parser implements Constants
     private void program()
     {
         outFile.println("\t.text");
+        emitInstruction("la", "$gp","Globals");
+        PrintRuntime runtime = new PrintRuntime(outFile);
+        runtime.emitStartup();
         emitInstruction("move", "$fp","$sp");
         emitInstruction("jal", "main");
         emitInstruction("j", "exit");
         programUnitList();
         if (currentToken.kind != EOF)
             throw genEx("Expecting <EOF>");
+        specializedFunctions();
+        merger.emit(outFile);
+        emitSharedCode();
+        runtime.emitText();
         outFile.println("exit:");
+        emitInstruction("jal", PrintRuntime.FLUSH);
         dataSegment();
+        runtime.emitData();
     }
 
     private void statementList()
@@ -367,13 +713,16 @@ public class Parser implements Constants
             case SWITCH:
             case EXIT:
             case ASSERT:
+                Token first = currentToken;
                 statement();
+                preceding_constant = constantAssignment(first);
                 statementList();
                 break;
             case EOF:
             case RIGHTBRACE:
             case CASE:
             case DEFAULT:
+                preceding_constant = null;
                 break;
             default:
                 throw genEx("Expecting statement or <EOF>");
@@ -382,16 +731,22 @@ public class Parser implements Constants
 
     private void statement()
     {
+        frame.nextStatement();
+        Token[] before = preceding_constant;
+        preceding_constant = null;
         switch(currentToken.kind)
         {
             case ID:
-                assignmentStatement();
+                if(TokenMgr.isAsm(currentToken, peek(currentToken)))
+                    asmStatement();
+                else
+                    assignmentStatement();
                 break;
             case PRINTLN:
                 printlnStatement();
                 break;
             case WHILE:
-                whileStatement();
+                whileStatement(before);
                 break;
             case LEFTBRACE:
                 compoundStatement();
@@ -403,7 +758,18 @@ public class Parser implements Constants
                 returnStatement();
                 break;
             case CAL:
-                functionCall();
+                if(isIntrinsic(peek(currentToken)) && Intrinsics.isStatement(peek(currentToken).image))
+                {
+                    intrinsicStatement();
+                    break;
+                }
+                String ret = reduce(functionCall());
+                //A call statement still leaves its value in $v0
+                if(isConstant(ret))
+                    emitInstruction("li", "$v0",ret);
+                else if(!ret.equals("$v0"))
+                    emitInstruction("move", "$v0",ret);
+                rm.resetRegister();
                 break;
             case SWITCH:
                 switchStatement();
@@ -430,19 +796,18 @@ public class Parser implements Constants
         String judge_continue = identifierAvailable();
         String judge_exit = identifierAvailable();
         outFile.println("# Assert statement");
+        fi.side_effect = true;
         consume(ASSERT);
         consume(LEFTPAREN);
         String left_val = expr();
         consume(COMMA);
         String right_val = expr();
-        left_val = isNeedRegister(left_val);
-        right_val = isNeedRegister(right_val);
-        String res_reg = rm.registerS_Available();
+        String res_reg = reduce(ExprNode.compare(EQUAL, ExprNode.operand(left_val), ExprNode.operand(right_val)));
 
-        emitInstruction("seq", res_reg,left_val,right_val);
         emitInstruction("beq", "$zero",res_reg,judge_exit,"#If not equal, exit the hole program");
         emitInstruction("j", judge_continue);
         outFile.println(judge_exit+":");
+        emitInstruction("jal", PrintRuntime.FLUSH);
         emitInstruction("li", "$v0","10");
         outFile.println("syscall");
         outFile.println(judge_continue+":");
@@ -450,10 +815,123 @@ public class Parser implements Constants
         consume(RIGHTPAREN);
         consume(SEMICOLON);
     }
+    /**
+     * asm(x, =y, +z) clobber("$t8", "$v1") { "addu %2, %2, %0" "move %1, %2" }
+     * The operands and the clobber list may be left out: asm { ... }, asm clobber("$t8") { ... }
+     * Each operand is loaded into a register before the block (x), stored back after it (=y) or both (+z);
+     * the lines are written out as they are, with the operand registers in place of %0, %1 ...
+     * The registers listed in clobber are not used for operands. Control must leave the block at its end.
+     * */
+    private void asmStatement()
+    {
+        consume(ID);
+        outFile.println("# asm statement");
+        fi.side_effect = true;
+        ArrayList<Token> operands = new ArrayList<>();
+        ArrayList<Integer> modes = new ArrayList<>();
+        if(currentToken.kind == LEFTPAREN)
+        {
+            consume(LEFTPAREN);
+            do
+            {
+                if(!operands.isEmpty())
+                    consume(COMMA);
+                int mode = currentToken.kind == ASSIGN || currentToken.kind == PLUS ? currentToken.kind : 0;
+                if(mode != 0)
+                    consume(mode);
+                if(currentToken.kind != ID && (currentToken.kind != UNSIGNED || mode != 0))
+                    throw genEx("Expecting a variable as operand of asm");
+                operands.add(currentToken);
+                modes.add(mode);
+                consume(currentToken.kind);
+            } while(currentToken.kind == COMMA);
+            consume(RIGHTPAREN);
+        }
+        if(currentToken.kind == ID && currentToken.image.equals("clobber"))
+        {
+            consume(ID);
+            consume(LEFTPAREN);
+            do
+            {
+                if(currentToken.kind == COMMA)
+                    consume(COMMA);
+                String reg = currentToken.image.substring(1, currentToken.image.length()-1);
+                consume(STRING);
+                if(!ASM_CLOBBER.matcher(reg).matches())
+                    throw genEx(reg+" cannot be clobbered by asm");
+                rm.reserve(reg);
+                asm_clobbers.add(reg);
+            } while(currentToken.kind == COMMA);
+            consume(RIGHTPAREN);
+        }
+        consume(LEFTBRACE);
+        ArrayList<String> lines = new ArrayList<>();
+        while(currentToken.kind == STRING)
+        {
+            lines.add(currentToken.image.substring(1, currentToken.image.length()-1));
+            consume(STRING);
+        }
+
+        String[] regs = new String[operands.size()];
+        for(int i=0;i<regs.length;i++)
+        {
+            regs[i] = rm.registerAvailable();
+            String var = operands.get(i).image;
+            if(modes.get(i) == ASSIGN)
+                continue;
+            if(operands.get(i).kind == UNSIGNED)
+                emitInstruction("li", regs[i],var);
+            else if(fi.bound_args.containsKey(var))
+                emitInstruction("li", regs[i],fi.bound_args.get(var));
+            else
+                loadVariable(regs[i], var);
+        }
+
+        int id = asm_blocks.size();
+        StringBuilder block = new StringBuilder("#asm "+id);
+        for(String line : lines)
+        {
+            Matcher m = ASM_OPERAND.matcher(line);
+            StringBuffer sb = new StringBuffer();
+            while(m.find())
+            {
+                String replacement;
+                if(m.group(1).equals("="))
+                    replacement = ""+id;
+                else if(m.group(1).equals("%"))
+                    replacement = "%";
+                else if(Integer.parseInt(m.group(1)) < regs.length)
+                    replacement = regs[Integer.parseInt(m.group(1))];
+                else
+                    throw genEx("asm has no operand "+m.group());
+                m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+            }
+            m.appendTail(sb);
+            block.append("\n").append(sb);
+        }
+        block.append("\n#end asm "+id);
+        asm_blocks.add(block.toString());
+        outFile.println("asm\t"+id);
+        consume(RIGHTBRACE);
+
+        for(int i=0;i<regs.length;i++)
+        {
+            if(modes.get(i) == 0)
+                continue;
+            String var = operands.get(i).image;
+            st.enter(var);
+            StringIdentifiers.remove(var);
+            saveVariable(regs[i], var);
+        }
+        rm.resetRegister();
+    }
+
     private void exitStatement()
     {
         consume(EXIT);
         consume(SEMICOLON);
+        fi.side_effect = true;
+        emitInstruction("jal", PrintRuntime.FLUSH);
         emitInstruction("li", "$v0","10");
         outFile.println("syscall");
     }
@@ -464,6 +942,7 @@ public class Parser implements Constants
         {
             case GOTO:
                 consume(GOTO);
+                frame.disableSharing();
                 String destination = currentToken.image;
                 consume(ID);
                 consume(SEMICOLON);
@@ -481,6 +960,7 @@ public class Parser implements Constants
                 break;
             case DEST:
                 consume(DEST);
+                frame.disableSharing();
                 String place = currentToken.image;
                 consume(ID);
                 consume(SEMICOLON);
@@ -501,7 +981,7 @@ public class Parser implements Constants
         caseStatementList();
         defaultStatement();
         consume(RIGHTBRACE);
-        System.out.println("!!!!!!!!!!!!");
+        trace("!!!!!!!!!!!!");
     }
 
     private void caseStatementList()
@@ -511,6 +991,7 @@ public class Parser implements Constants
             case CASE:
                 caseStatement();
                 caseStatementList();
+                break;
             default:
                 break;
         }
@@ -526,6 +1007,7 @@ public class Parser implements Constants
                 consume(UNSIGNED);
                 consume(COLON);
                 statementList();
+                break;
             default:
                 break;
         }
@@ -539,6 +1021,7 @@ public class Parser implements Constants
                 consume(DEFAULT);
                 consume(COLON);
                 statementList();
+                break;
             default:
                 break;
         }
@@ -553,6 +1036,7 @@ public class Parser implements Constants
                 String reg_result = isNeedRegister(expr());
                 outFile.println("#return value of "+currentfunction);
                 emitInstruction("move", "$v0",reg_result);
+                rm.resetRegister();
                 consume(SEMICOLON);
 
                 return true;
@@ -561,141 +1045,498 @@ public class Parser implements Constants
         }
     }
 
-    private void functionCall()
+    /**
+     * Parse a call, the code is generated by emitCall() together with the rest of the expression.
+     * A call evaluated at compile time is just its value
+     * */
+    private ExprNode functionCall()
     {
         consume(CAL);
+        if(isIntrinsic(currentToken))
+            return intrinsicCall();
         String func_name = currentToken.image;
         consume(ID);
         consume(LEFTPAREN);
+        fi.callees.add(func_name);
+
+        FuncInfo callee = st.getFuncInfo(func_name);
+        ConstEvaluator.Arguments args = null;
+        if(callee != null && callee.pure)
+            args = ce.scanArguments(previousToken, fi.bound_args);
 
-        argumentList();
+        if(args != null && args.constants() == args.values.length)
+        {
+            int[] values = new int[args.values.length];
+            for(int i=0;i<values.length;i++)
+                values[i] = args.values[i];
+            Integer result = ce.evalCall(func_name, values);
+            if(result != null)
+            {
+                outFile.println("# Evaluated at compile time: "+func_name+" = "+result);
+                skipTo(args.ends.length > 0 ? args.ends[args.ends.length-1] : currentToken);
+                consume(RIGHTPAREN);
+                return ExprNode.number(result);
+            }
+        }
+        ArrayList<ExprNode> arguments;
+        //No new clones for code that can never run, a recursion guarded by a constant condition would never end
+        if(args != null && args.constants() > 0 && !callee.writes_args && callee.clones < MAX_CLONES && dead_code == 0)
+        {
+            func_name = specialize(callee, args);
+            arguments = specializedArgumentList(args);
+        }
+        else
+            arguments = argumentList();
 
         consume(RIGHTPAREN);
         //consume(SEMICOLON);
+        return ExprNode.call(func_name, arguments);
+    }
 
-        //argumentList will also consume registers
+    /**
+     * Returns "$v0"
+     * All arguments are computed before any $a register is set, so that calls inside them cannot overwrite those
+     * */
+    private String emitCall(ExprNode call)
+    {
+        //Registers in use before the arguments, only they are still needed after the call
         int reg_t = rm.registerT_count;
         int reg_s = rm.registerS_count;
-        int save_reg = (-4)*(reg_s+reg_t);
 
-        System.out.println("reg"+rm.registerT_count);
-        System.out.println("reg"+rm.registerS_count);
-
-        emitInstruction("addi", "$sp","$sp",""+save_reg,"# "+(reg_t+reg_s)+" registers need to be saved");
+        ArrayList<String> values = new ArrayList<>();
+        for(int i=0;i<call.args.size();i++)
+        {
+            ExprNode arg = call.args.get(i);
+            String value = emitNode(arg);
+            if(value.equals("$v0") && hasCall(call.args, i+1))
+            {
+                value = rm.registerAvailable();
+                emitInstruction("move", value,"$v0");
+            }
+            values.add(value);
+        }
+        rm.registerA_count = 0;
+        for(String value : values)
+        {
+            String reg = rm.registerA_Available();
+            if(isConstant(value))
+                emitInstruction("li", reg,value);
+            else if(value.startsWith("Str"))
+                emitInstruction("la", reg,value);
+            else
+                emitInstruction("move", reg,value);
+        }
 
-        int pointer = -save_reg-4;
-        for(int i=reg_s-1;i>=0;i--)
+        //Only the live registers the callee may change are saved, at the bottom of the frame
+        HashSet<String> changed = clobbers.get(call.image);
+        ArrayList<String> saved_t = new ArrayList<>();
+        ArrayList<String> saved_s = new ArrayList<>();
+        int top_t = 0;
+        for(int i=0;i<reg_t;i++)
+        {
+            String reg = rm.registerT(i);
+            if(!changed.contains(reg))
+                continue;
+            saved_t.add(reg);
+            top_t = Math.max(top_t, Integer.parseInt(reg.substring(2))+1);
+        }
+        for(int i=0;i<reg_s;i++)
+            if(changed.contains("$s"+i))
+                saved_s.add("$s"+i);
+
+        trace("reg"+reg_t);
+        trace("reg"+reg_s);
+
+        if(reg_t+reg_s > 0)
+            outFile.println("# "+(saved_t.size()+saved_s.size())+" of "+(reg_t+reg_s)+" registers need to be saved");
+        //With -Os a run of $t registers is saved by one jal, $ra is in the frame already.
+        //Save_tN stores $tK at 4*K, the others are stored one after another
+        boolean helper = options.size && saved_t.size() >= 2;
+        ArrayList<String> saved = new ArrayList<>();
+        ArrayList<Integer> offsets = new ArrayList<>();
+        for(String reg : saved_t)
         {
-            emitInstruction("sw", "$s"+i,pointer+"($sp)");
-            pointer-=4;
+            saved.add(reg);
+            offsets.add(helper ? 4*Integer.parseInt(reg.substring(2)) : 4*(saved.size()-1));
         }
-        for(int i=reg_t-1;i>=0;i--)
+        int base = helper ? 4*top_t : 4*saved_t.size();
+        for(String reg : saved_s)
         {
-            emitInstruction("sw", "$t"+i,pointer+"($sp)");
-            pointer-=4;
+            saved.add(reg);
+            offsets.add(base+4*(saved.size()-1-saved_t.size()));
         }
+        frame.callSave(base+4*saved_s.size());
 
-        //ft.base_offset += (reg_s+reg_t)*4;
+        if(helper)
+        {
+            save_helpers = Math.max(save_helpers, top_t);
+            emitInstruction("jal", "Save_t"+top_t);
+        }
+        for(int i=helper ? saved_t.size() : 0;i<saved.size();i++)
+            emitInstruction("sw", saved.get(i),offsets.get(i)+"($sp)");
 
-        rm.resetRegister();
+        outFile.println("# Execute function: "+call.image);
+        emitInstruction("jal",call.image);
 
-        outFile.println("# Execute function: "+func_name);
-        emitInstruction("jal",func_name);
+        //Reload the saved registers' value into the previous registers
+        if(helper)
+            emitInstruction("jal", "Restore_t"+top_t);
+        for(int i=helper ? saved_t.size() : 0;i<saved.size();i++)
+            emitInstruction("lw", saved.get(i),offsets.get(i)+"($sp)");
+
+        //The registers of the arguments are free again
+        rm.registerT_count = reg_t;
+        rm.registerS_count = reg_s;
+        rm.registerA_count = 0;
+        return "$v0";
+    }
 
-        pointer = 0;
+    private boolean hasCall(ArrayList<ExprNode> nodes, int from)
+    {
+        for(int i=from;i<nodes.size();i++)
+            if(nodes.get(i).hasCall())
+                return true;
+        return false;
+    }
 
-        //Reload the saved registers' value into the previous registers
-        for(int i=0;i<reg_t;i++)
+    //-----------------------------------------
+    // Intrinsics, see Intrinsics
+
+    //Arrays up to this many words are filled or copied without a loop
+    private static final int UNROLL_WORDS = 16;
+
+    private int unrollWords()
+    {
+        return options.size ? 4 : UNROLL_WORDS;
+    }
+
+    /**
+     * The name after "cal" is an intrinsic and not a function of the program, defined before or after the call
+     * */
+    private boolean isIntrinsic(Token name)
+    {
+        if(name.kind != ID || !Intrinsics.isIntrinsic(name.image)
+                || st.getFuncInfo(name.image) != null || name.image.equals(currentfunction))
+            return false;
+        if(shadowed == null)
+            shadowed = Intrinsics.definedAfter(name, this::peek);
+        return !shadowed.contains(name.image);
+    }
+
+    /**
+     * min, max or abs inside an expression, the "cal" is consumed
+     * */
+    private ExprNode intrinsicCall()
+    {
+        String name = currentToken.image;
+        consume(ID);
+        consume(LEFTPAREN);
+        if(Intrinsics.isStatement(name))
+            throw genEx(name+" has no value");
+        ArrayList<ExprNode> args = argumentList();
+        consume(RIGHTPAREN);
+        if(args.size() != Intrinsics.arguments(name))
+            throw genEx(name+" takes "+Intrinsics.arguments(name)+" arguments");
+
+        int[] values = new int[args.size()];
+        boolean constant = true;
+        for(int i=0;i<args.size() && constant;i++)
         {
-            emitInstruction("lw", "$t"+i,pointer+"($sp)");
-            pointer+=4;
+            constant = args.get(i).kind == ExprNode.NUM;
+            values[i] = args.get(i).value;
         }
+        if(constant)
+            return ExprNode.number(Intrinsics.evaluate(name, values));
 
-        for(int i=0;i<reg_s;i++)
+        switch (name)
         {
-            emitInstruction("lw", "$s"+i,pointer+"($sp)");
-            pointer+=4;
+            case "min":
+                return ExprNode.binary(ExprNode.OP_MIN, args.get(0), args.get(1));
+            case "max":
+                return ExprNode.binary(ExprNode.OP_MAX, args.get(0), args.get(1));
+            default:
+                return ExprNode.binary(ExprNode.OP_ABS, args.get(0), ExprNode.number(0));
         }
-
-        //ft.base_offset = 0;
-
-        emitInstruction("addi", "$sp","$sp",""+(-1)*save_reg,"#Saved "+(reg_s+reg_t)+" registers pop stack");
     }
+
     /**
-     * @ArgumentList
+     * "cal fill(arr, v)" or "cal copy(dst, src)"
      * */
-    private void argumentList()
+    private void intrinsicStatement()
     {
-        switch (currentToken.kind)
+        consume(CAL);
+        String name = currentToken.image;
+        consume(ID);
+        consume(LEFTPAREN);
+        outFile.println("# Intrinsic "+name);
+        String dst = currentToken.image;
+        consume(ID);
+        int words = arrayBytes(dst)/4;
+        consume(COMMA);
+        if(name.equals("fill"))
         {
-            case RIGHTPAREN:
-                break;
-            default:
-                String reg = rm.registerA_Available();
-                String reg_result = isNeedRegister(expr());
-                emitInstruction("move", reg,reg_result);
-                argtail();
-                break;
+            String value = reduce(exprNode());
+            String reg_value = value.equals("0") ? "$zero" : isNeedRegister(value);
+            consume(RIGHTPAREN);
+            fillArray(dst, reg_value, words);
+        }
+        else
+        {
+            String src = currentToken.image;
+            consume(ID);
+            consume(RIGHTPAREN);
+            copyArray(dst, src, Math.min(words, arrayBytes(src)/4));
         }
+        rm.resetRegister();
     }
 
-    private void argtail()
+    /**
+     * Size of a local or global array, which must not have an index
+     * */
+    private int arrayBytes(String name)
     {
-        switch (currentToken.kind)
+        int size = ft.getSize(name, ARRAY);
+        if(size >= 0)
+            return size;
+        if(st.locateGlobalArr(name) >= 0)
         {
-            case COMMA:
-                consume(COMMA);
-                String reg = rm.registerA_Available();
-                String reg_result = isNeedRegister(expr());
-                emitInstruction("move", reg,reg_result);
-                argtail();
-                break;
-            default:
-                break;
+            fi.touches_global = true;
+            return st.getGlobalArrSize(name);
         }
+        throw genEx(name+" is not an array");
     }
 
     /**
-     * This function is defined in order to unify the "load" operation from local variables and global varibales
+     * Address of the word at offset bytes into an array, for lw/sw
      * */
-    private void loadVariable(String reg,String var)
+    private String elementAddress(String name, int offset, boolean write)
     {
-        int index;
-        /***************
-         * First consider whether this variable is an array
-         * Then we need some code to loadvariable into register
-         * ********/
-        if(var.indexOf('[') > 0 && var.indexOf(']') > 0)
+        if(ft.getOffset(name, ARRAY) >= 0)
+            return frame.use(name, offset, write)+"($sp)";
+        return globalAddress(st.getGlobalOffset(name)+offset);
+    }
+
+    /**
+     * A register holding the address of an array
+     * */
+    private String arrayBase(String name, boolean write)
+    {
+        String reg = rm.registerAvailable();
+        if(ft.getOffset(name, ARRAY) >= 0)
+            emitInstruction("addi", reg,"$sp",frame.use(name, 0, write));
+        else if(st.getGlobalOffset(name) <= 32767)
+            emitInstruction("addi", reg,"$gp",""+st.getGlobalOffset(name));
+        else
+            emitInstruction("la", reg,"Globals+"+st.getGlobalOffset(name));
+        return reg;
+    }
+
+    private void fillArray(String name, String value, int words)
+    {
+        if(words <= unrollWords())
         {
-            String name = var.substring(0, var.indexOf('['));
-            int arr_index = Integer.parseInt(var.substring(var.indexOf('[')+1, var.indexOf(']')));
-            /**
-             * First consider if it's a global array
-             * */
-            int offset = st.locateGlobalArr(name);
-            if(offset < 0)
-            {
-                /**
-                 * If not global array, see if it's an array defined within function
-                 * */
-                offset = ft.getOffset(name, ARRAY);
-                emitInstruction("lw", reg,offset+arr_index*4+"($sp)");
-            }else
+            for(int i=0;i<words;i++)
+                emitInstruction("sw", value,elementAddress(name, 4*i, true));
+            return;
+        }
+        //4 words per iteration, then the rest
+        String loop = identifierAvailable();
+        String p = arrayBase(name, true);
+        String end = rm.registerAvailable();
+        emitInstruction("addi", end,p,""+16*(words/4));
+        outFile.println(loop+":");
+        for(int i=0;i<4;i++)
+            emitInstruction("sw", value,4*i+"("+p+")");
+        emitInstruction("addi", p,p,"16");
+        emitInstruction("bne", p,end,loop);
+        for(int i=0;i<words%4;i++)
+            emitInstruction("sw", value,4*i+"("+p+")");
+    }
+
+    private void copyArray(String dst, String src, int words)
+    {
+        String[] regs = new String[4];
+        if(words <= unrollWords())
+        {
+            //Loads are issued in groups ahead of their stores
+            for(int i=0;i<regs.length;i++)
+                regs[i] = rm.registerAvailable();
+            for(int i=0;i<words;i+=regs.length)
             {
-                int base = st.getGlobalVarSize(); //Start from the last item of global variables
-                emitInstruction("lw",reg,base+offset+arr_index*4+"($gp)");
+                int n = Math.min(regs.length, words-i);
+                for(int k=0;k<n;k++)
+                    emitInstruction("lw", regs[k],elementAddress(src, 4*(i+k), false));
+                for(int k=0;k<n;k++)
+                    emitInstruction("sw", regs[k],elementAddress(dst, 4*(i+k), true));
             }
-//            System.out.println("String name:"+name);
-//            System.out.println("String name:"+offset);
-        }else {
-            /**
-             * If not array, first consider if it's global variable
+            return;
+        }
+        String loop = identifierAvailable();
+        String s = arrayBase(src, false);
+        String d = arrayBase(dst, true);
+        String end = rm.registerAvailable();
+        for(int i=0;i<regs.length;i++)
+            regs[i] = rm.registerAvailable();
+        emitInstruction("addi", end,s,""+16*(words/4));
+        outFile.println(loop+":");
+        for(int k=0;k<4;k++)
+            emitInstruction("lw", regs[k],4*k+"("+s+")");
+        for(int k=0;k<4;k++)
+            emitInstruction("sw", regs[k],4*k+"("+d+")");
+        emitInstruction("addi", s,s,"16");
+        emitInstruction("addi", d,d,"16");
+        emitInstruction("bne", s,end,loop);
+        for(int k=0;k<words%4;k++)
+            emitInstruction("lw", regs[k],4*k+"("+s+")");
+        for(int k=0;k<words%4;k++)
+            emitInstruction("sw", regs[k],4*k+"("+d+")");
+    }
+
+    /**
+     * Name of the clone of callee with its constant arguments bound, queue the clone if it is new
+     * */
+    private String specialize(FuncInfo callee, ConstEvaluator.Arguments args)
+    {
+        StringBuilder name = new StringBuilder(callee.name).append("__s");
+        HashMap<String,String> bound_args = new HashMap<>();
+        for(int i=0;i<args.values.length && i<callee.params.size();i++)
+        {
+            if(args.values[i] == null)
+                continue;
+            bound_args.put(callee.params.get(i), ""+args.values[i]);
+            name.append("_").append(i).append("_").append((""+args.values[i]).replace('-', 'm'));
+        }
+        String clone_name = name.toString();
+        if(st.getFuncInfo(clone_name) == null)
+        {
+            callee.clones++;
+            FuncInfo info = new FuncInfo(clone_name, callee.start);
+            info.bound_args = bound_args;
+            //Registered now so that later calls reuse it, the purity is filled in when it is generated
+            st.enterFuncInfo(info);
+            pending_clones.add(info);
+        }
+        return clone_name;
+    }
+
+    /**
+     * Like argumentList, but the constant arguments are bound into the clone and not passed at all
+     * */
+    private ArrayList<ExprNode> specializedArgumentList(ConstEvaluator.Arguments args)
+    {
+        ArrayList<ExprNode> arguments = new ArrayList<>();
+        for(int i=0;i<args.values.length;i++)
+        {
+            if(i > 0)
+                consume(COMMA);
+            if(args.values[i] != null)
+            {
+                skipTo(args.ends[i]);
+                continue;
+            }
+            arguments.add(exprNode());
+        }
+        return arguments;
+    }
+
+    /**
+     * Generate the specialized clones requested by the calls, a clone may request further clones
+     * */
+    private void specializedFunctions()
+    {
+        Token resume = currentToken;
+        while(!pending_clones.isEmpty())
+        {
+            clone = pending_clones.remove(0);
+            currentToken = clone.start;
+            functionDefinition();
+        }
+        clone = null;
+        currentToken = resume;
+    }
+
+    /**
+     * Continue parsing at a token we have already looked at
+     * */
+    private void skipTo(Token t)
+    {
+        currentToken = t;
+    }
+    /**
+     * @ArgumentList
+     * */
+    private ArrayList<ExprNode> argumentList()
+    {
+        ArrayList<ExprNode> arguments = new ArrayList<>();
+        switch (currentToken.kind)
+        {
+            case RIGHTPAREN:
+                break;
+            default:
+                arguments.add(exprNode());
+                argtail(arguments);
+                break;
+        }
+        return arguments;
+    }
+
+    private void argtail(ArrayList<ExprNode> arguments)
+    {
+        switch (currentToken.kind)
+        {
+            case COMMA:
+                consume(COMMA);
+                arguments.add(exprNode());
+                argtail(arguments);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * This function is defined in order to unify the "load" operation from local variables and global varibales
+     * */
+    private void loadVariable(String reg,String var)
+    {
+        int index;
+        /***************
+         * First consider whether this variable is an array
+         * Then we need some code to loadvariable into register
+         * ********/
+        if(var.indexOf('[') > 0 && var.indexOf(']') > 0)
+        {
+            String name = var.substring(0, var.indexOf('['));
+            int arr_index = Integer.parseInt(var.substring(var.indexOf('[')+1, var.indexOf(']')));
+            /**
+             * First consider if it's a global array
+             * */
+            int offset = st.locateGlobalArr(name);
+            if(offset < 0)
+            {
+                /**
+                 * If not global array, see if it's an array defined within function
+                 * */
+                offset = ft.getOffset(name, ARRAY);
+                if(offset < 0) throw genEx(name+" not defined");
+                emitInstruction("lw", reg,frame.use(name, arr_index*4, false)+"($sp)");
+            }else
+            {
+                fi.touches_global = true;
+                emitInstruction("lw",reg,globalAddress(st.getGlobalOffset(name)+arr_index*4));
+            }
+//            System.out.println("String name:"+name);
+//            System.out.println("String name:"+offset);
+        }else {
+            /**
+             * If not array, first consider if it's global variable
              * */
             index = st.locateGlobal(var);
-            System.out.println("index of the globle variable: "+index);
+            trace("index of the globle variable: "+index);
             if(index >= 0) // If this variable is found in global variable list
             {
-                emitInstruction("lw",reg,(index*4)+"($gp)");
+                fi.touches_global = true;
+                emitInstruction("lw",reg,globalAddress(st.getGlobalOffset(var)));
                 return;
             }
             /**
@@ -715,7 +1556,7 @@ public class Parser implements Constants
             {
                 //If this variable is defined in local variables list
                 index = ft.getOffset(var,INT);
-                if(index >= 0)emitInstruction("lw",reg, index+"($sp)");
+                if(index >= 0)emitInstruction("lw",reg, frame.use(var, 0, false)+"($sp)");
 
             }
             /**
@@ -724,13 +1565,23 @@ public class Parser implements Constants
             if(index <0)
             {
                 index = ft.getOffset(var, CONST);
-                if(index >= 0)emitInstruction("lw", reg,index+"($sp)");
+                if(index >= 0)emitInstruction("lw", reg,frame.use(var, 0, false)+"($sp)");
             }
 
             if(index < 0) throw genEx(var+" not defined");
         }
     }
 
+    /**
+     * $gp points at the label "Globals", offsets beyond the 16 bit range go through the label
+     * */
+    private String globalAddress(int offset)
+    {
+        if(offset <= 32767)
+            return offset+"($gp)";
+        return "Globals+"+offset;
+    }
+
     private void saveVariable(String reg,String var)
     {
         int index;
@@ -743,11 +1594,12 @@ public class Parser implements Constants
             if(offset < 0)
             {
                 offset = ft.getOffset(name, ARRAY);
-                emitInstruction("sw", reg,offset+arr_index*4+"($sp)");
+                if(offset < 0) throw genEx(name+" not defined");
+                emitInstruction("sw", reg,frame.use(name, arr_index*4, true)+"($sp)");
             }else
             {
-                int base = st.getGlobalVarSize(); //Start from the last item of global variables
-                emitInstruction("sw",reg,base+offset+arr_index*4+"($gp)");
+                fi.touches_global = true;
+                emitInstruction("sw",reg,globalAddress(st.getGlobalOffset(name)+arr_index*4));
             }
         }else{
             /**
@@ -759,22 +1611,24 @@ public class Parser implements Constants
             }
             //Firstly we find these variables in global variable list
             index = st.locateGlobal(var);
-            System.out.println("index of the globle variable: "+index);
+            trace("index of the globle variable: "+index);
             if(index >= 0) // If this variable is found in global variable list
             {
-                emitInstruction("sw", reg,(index*4)+"($gp)");
+                fi.touches_global = true;
+                emitInstruction("sw", reg,globalAddress(st.getGlobalOffset(var)));
                 return;
             }
             index = ft.getOffset(var, ARGS);
             //Defined in args list
             if(index >= 0)
             {
+                fi.writes_args = true;
                 emitInstruction("sw",reg, index+"($fp)");
             }
             else if(index < 0)
             {
                 index = ft.getOffset(var,INT);
-                emitInstruction("sw",reg, index+"($sp)");
+                if(index >= 0)emitInstruction("sw",reg, frame.use(var, 0, true)+"($sp)");
             }
             if(index < 0) throw genEx(var+" not defined");
         }
@@ -785,10 +1639,8 @@ public class Parser implements Constants
         Token t = currentToken;
         String left_op = t.image; //identifier on the left
         consume(ID);
-        String reg = rm.registerAvailable();
 
         outFile.println("#Assignment statement for varaible: "+left_op);
-        loadVariable(reg,left_op);
 
         st.enter(t.image); // Here we need to consider whether it is an array, if so, stop entering into the function table!!!!!!!!!!!!!!!
         consume(ASSIGN);
@@ -805,13 +1657,12 @@ public class Parser implements Constants
             }
         }catch (Exception e){}
 
+        //Stored straight from where the expression left it
         String reg_temp = isNeedRegister(temp);
-        emitInstruction("move", reg,reg_temp);
-
-        saveVariable(reg,t.image);
+        saveVariable(reg_temp,t.image);
         outFile.println("#The end of assignment");
         rm.resetRegister();
-        System.out.println(temp);
+        trace(temp);
         consume(SEMICOLON);
     }
 
@@ -821,15 +1672,15 @@ public class Parser implements Constants
         consume(PRINTLN);
         consume(LEFTPAREN);
         outFile.println("#println Statement");
+        fi.side_effect = true;
         temp = expr();
         try
         {
+            //The literal already ends with the newline
             if(temp.substring(0, 3).equals("Str"))
             {
-                String reg_temp = isNeedRegister(temp);
-                emitInstruction("li","$v0","4");
-                emitInstruction("move", "$a0",reg_temp);
-                outFile.println("syscall");
+                emitInstruction("la","$a0",temp);
+                emitInstruction("jal",PrintRuntime.STRING);
                 consume(RIGHTPAREN);
                 consume(SEMICOLON);
                 rm.resetRegister();
@@ -837,33 +1688,23 @@ public class Parser implements Constants
             }
         }
         catch (Exception e){
-            System.out.println("Exception happen 1");
+            trace("Exception happen 1");
         }
 
         String reg_temp = isNeedRegister(temp);
+        emitInstruction("move","$a0",reg_temp);
 
+        //Always have a "\n", Print_int writes it after the digits
         if(this.StringIdentifiers.contains(temp))
         {
-            emitInstruction("li", "$v0","4");
+            emitInstruction("jal", PrintRuntime.STRING);
+            emitInstruction("la", "$a0","Str0");
+            emitInstruction("jal", PrintRuntime.STRING);
         }
         else
         {
-            emitInstruction("li", "$v0","1");
+            emitInstruction("jal", PrintRuntime.INT);
         }
-
-        emitInstruction("move","$a0",reg_temp);
-        outFile.println("syscall");
-        //Always have a "\n"
-        emitInstruction("la", "$t0","Str0");
-        emitInstruction("li", "$v0","4");
-        emitInstruction("move", "$a0","$t0");
-        outFile.println("syscall");
-        /**
-         * la	$t0,	Str0
-         * li	$v0,	4
-         * move	$a0,	$t0
-         * syscall
-         * */
         consume(RIGHTPAREN);
         consume(SEMICOLON);
 
@@ -877,8 +1718,17 @@ public class Parser implements Constants
         consume(RIGHTBRACE);
     }
 
-    private void whileStatement()
+    /**
+     * @param before "x = constant;" right before the loop, or null
+     * */
+    private void whileStatement(Token[] before)
     {
+        CountedLoop loop = options.unroll > 1 ? matchCountedLoop(currentToken, before) : null;
+        if(loop != null && fullyUnroll(loop))
+            return;
+        if(loop != null)
+            unrollLoop(loop);
+
         String judge_point = identifierAvailable(); //Start the judge of while statement
         String judge_exit = identifierAvailable(); // The label of the exit point of while statement
         outFile.println("# WhileStatement");
@@ -886,6 +1736,7 @@ public class Parser implements Constants
         judgepoint = judge_point;
 
         String judge;
+        int loop_start = frame.getStatement();
         outFile.println(judge_point+":");
         consume(WHILE);
         consume(LEFTPAREN);
@@ -896,9 +1747,257 @@ public class Parser implements Constants
         outFile.println("beq"+"\t$zero"+",\t"+reg_judge+",\t"+judge_exit);
         consume(RIGHTPAREN);
         statement();
+        frame.loop(loop_start);
         outFile.println("j"+"\t"+judge_point);
         outFile.println(judge_exit+":");
-        System.out.println("Successfully parse while");
+        trace("Successfully parse while");
+    }
+
+    /**
+     * "while(i < n) { ...; i = i + c; }": i is a local int or argument, n a constant or a local that the body
+     * does not assign, c a constant stepping towards n, and the last statement of the body is the only
+     * one that assigns i. That statement has to run on every trip: it follows "{", ";" or "}" of the body
+     * itself, not "else" or the condition of an if or while. Then the loop can run its body several times per test
+     * */
+    private static class CountedLoop
+    {
+        Token start;        //"while"
+        String var;
+        int op;             //Comparison, i on its left
+        Token bound;        //UNSIGNED or ID
+        int bound_sign;     //-1 for "- 5"
+        int step;
+        Token body;         //"{"
+        Token end;          //The token after the body
+        int body_tokens;
+        Integer initial;    //Value of i when the loop starts, if known
+    }
+
+    //Tokens of all copies of an unrolled body together, and the most iterations unrolled completely
+    private static final int MAX_UNROLLED_TOKENS = 240;
+    private static final int MAX_FULL_UNROLL = 8;
+
+    /**
+     * "x = 5;" or "x = -5;" starting at t, as {x, sign or null, value}
+     * */
+    private Token[] constantAssignment(Token t)
+    {
+        if(t.kind != ID || t.image.indexOf('[') >= 0 || peek(t).kind != ASSIGN)
+            return null;
+        Token value = peek(peek(t));
+        Token sign = null;
+        if(value.kind == MINUS)
+        {
+            sign = value;
+            value = peek(value);
+        }
+        if(value.kind != UNSIGNED || peek(value).kind != SEMICOLON)
+            return null;
+        return new Token[]{t, sign, value};
+    }
+
+    private boolean isLocalScalar(String var)
+    {
+        return var.indexOf('[') < 0 && !fi.bound_args.containsKey(var) && st.locateGlobal(var) < 0
+                && (ft.getOffset(var, INT) >= 0 || ft.getOffset(var, ARGS) >= 0);
+    }
+
+    private CountedLoop matchCountedLoop(Token t, Token[] before)
+    {
+        CountedLoop loop = new CountedLoop();
+        loop.start = t;
+        t = peek(t);
+        if(t.kind != LEFTPAREN)
+            return null;
+        t = peek(t);
+        if(t.kind != ID || !isLocalScalar(t.image))
+            return null;
+        loop.var = t.image;
+        t = peek(t);
+        loop.op = t.kind;
+        if(loop.op != SMALLER_THAN && loop.op != SMALLER_EQUAL_THAN && loop.op != GREATER_THAN && loop.op != GREATER_EQUAL_THAN)
+            return null;
+        t = peek(t);
+        loop.bound_sign = 1;
+        if(t.kind == MINUS)
+        {
+            loop.bound_sign = -1;
+            t = peek(t);
+        }
+        if(t.kind != UNSIGNED && (t.kind != ID || loop.bound_sign < 0 || !isLocalScalar(t.image) || t.image.equals(loop.var)))
+            return null;
+        loop.bound = t;
+        t = peek(t);
+        if(t.kind != RIGHTPAREN || peek(t).kind != LEFTBRACE)
+            return null;
+        loop.body = peek(t);
+
+        //The body up to its closing brace, remembering the last 8 tokens: "; i = i + c ; }"
+        Token[] last = new Token[8];
+        int depth = 0;
+        int count = 0;
+        for(t = loop.body;;t = peek(t))
+        {
+            if(t.kind == EOF || ++count > MAX_UNROLLED_TOKENS/2)
+                return null;
+            System.arraycopy(last, 1, last, 0, last.length-1);
+            last[last.length-1] = t;
+            switch (t.kind)
+            {
+                case LEFTBRACE:
+                    depth++;
+                    break;
+                case RIGHTBRACE:
+                    depth--;
+                    break;
+                //Jumps would have to go to the right copy of the body, "and" jumps to the exit of the loop
+                case BREAK:
+                case CONTINUE:
+                case GOTO:
+                case DEST:
+                case AND:
+                case SWITCH:
+                    return null;
+                case ID:
+                    if(TokenMgr.isAsm(t, peek(t)))
+                        return null;
+                    if(peek(t).kind == ASSIGN && loop.bound.kind == ID && t.image.equals(loop.bound.image))
+                        return null;
+                    break;
+                default:
+                    break;
+            }
+            if(depth == 0)
+                break;
+        }
+        loop.end = peek(t);
+        loop.body_tokens = count;
+        if(last[0] == null || (last[0].kind != LEFTBRACE && last[0].kind != SEMICOLON && last[0].kind != RIGHTBRACE)
+                || last[1].kind != ID || !last[1].image.equals(loop.var) || last[2].kind != ASSIGN
+                || last[3].kind != ID || !last[3].image.equals(loop.var) || (last[4].kind != PLUS && last[4].kind != MINUS)
+                || last[5].kind != UNSIGNED || last[6].kind != SEMICOLON)
+            return null;
+        //No other assignment of i
+        for(t = loop.body;t != last[1];t = peek(t))
+            if(t.kind == ID && t.image.equals(loop.var) && peek(t).kind == ASSIGN)
+                return null;
+        long step = Long.parseLong(last[5].image);
+        loop.step = (int)(last[4].kind == PLUS ? step : -step);
+        if(step == 0 || step > Integer.MAX_VALUE)
+            return null;
+        boolean up = loop.op == SMALLER_THAN || loop.op == SMALLER_EQUAL_THAN;
+        if(up != loop.step > 0)
+            return null;
+
+        if(before != null && before[0].image.equals(loop.var))
+            loop.initial = Integer.parseInt((before[1] != null ? "-" : "")+before[2].image);
+        return loop;
+    }
+
+    private static boolean holds(int op, long a, long b)
+    {
+        switch (op)
+        {
+            case SMALLER_THAN: return a < b;
+            case SMALLER_EQUAL_THAN: return a <= b;
+            case GREATER_THAN: return a > b;
+            default: return a >= b;
+        }
+    }
+
+    /**
+     * A loop with a small constant trip count becomes that many copies of its body, without any test
+     * */
+    private boolean fullyUnroll(CountedLoop loop)
+    {
+        if(loop.initial == null || loop.bound.kind != UNSIGNED)
+            return false;
+        long bound = loop.bound_sign*Long.parseLong(loop.bound.image);
+        long i = loop.initial;
+        int trips = 0;
+        while(holds(loop.op, i, bound))
+        {
+            trips++;
+            i += loop.step;
+            if(trips > MAX_FULL_UNROLL || trips*loop.body_tokens > MAX_UNROLLED_TOKENS
+                    || i < Integer.MIN_VALUE || i > Integer.MAX_VALUE)
+                return false;
+        }
+        outFile.println("# Loop over "+loop.var+" unrolled "+trips+" times");
+        for(int k=0;k<trips;k++)
+        {
+            skipTo(loop.body);
+            statement();
+        }
+        skipTo(loop.end);
+        return true;
+    }
+
+    /**
+     * While the next options.unroll iterations are certain to run, run them without a test in between.
+     * The loop that follows (the original one) does the remaining iterations
+     * */
+    private void unrollLoop(CountedLoop loop)
+    {
+        int factor = options.unroll;
+        if(factor*loop.body_tokens > MAX_UNROLLED_TOKENS)
+            return;
+        //i+step*(factor-1) must still pass the test, so the bound is moved towards i by that much
+        long distance = (long)loop.step*(factor-1);
+        String remainder = identifierAvailable();
+        String head = identifierAvailable();
+        ExprNode bound;
+        String slot = null;
+        if(loop.bound.kind == UNSIGNED)
+        {
+            long value = loop.bound_sign*Long.parseLong(loop.bound.image)-distance;
+            if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+                return;
+            bound = ExprNode.number((int)value);
+        }
+        else
+        {
+            //Computed once into a slot of the frame, if it wraps around the unrolled loop is skipped
+            slot = ".unroll_"+head;
+            frame.declare(slot, 4);
+            String reg_bound = rm.registerAvailable();
+            String reg_moved = rm.registerAvailable();
+            String reg_wrap = rm.registerAvailable();
+            loadVariable(reg_bound, loop.bound.image);
+            if(ExprNode.isImmediate(-distance))
+                emitInstruction("addiu", reg_moved,reg_bound,""+(-distance));
+            else
+            {
+                emitInstruction("li", reg_moved,""+distance);
+                emitInstruction("subu", reg_moved,reg_bound,reg_moved);
+            }
+            if(distance > 0)
+                emitInstruction("slt", reg_wrap,reg_bound,reg_moved);
+            else
+                emitInstruction("slt", reg_wrap,reg_moved,reg_bound);
+            emitInstruction("sw", reg_moved,frame.use(slot, 0, true)+"($sp)");
+            emitInstruction("bne", reg_wrap,"$zero",remainder);
+            rm.resetRegister();
+            bound = ExprNode.register(rm.registerAvailable());
+        }
+
+        outFile.println("# Loop over "+loop.var+" unrolled "+factor+" times");
+        int loop_start = frame.getStatement();
+        outFile.println(head+":");
+        if(slot != null)
+            emitInstruction("lw", bound.image,frame.use(slot, 0, false)+"($sp)");
+        String reg_judge = reduce(ExprNode.compare(loop.op, ExprNode.variable(loop.var, false), bound));
+        emitInstruction("beq", "$zero",reg_judge,remainder);
+        rm.resetRegister();
+        for(int k=0;k<factor;k++)
+        {
+            skipTo(loop.body);
+            statement();
+        }
+        frame.loop(loop_start);
+        emitInstruction("j", head);
+        outFile.println(remainder+":");
+        skipTo(loop.start);
     }
 
     //-----------------------------------------
@@ -909,15 +2008,178 @@ public class Parser implements Constants
         consume(IF);
         consume(LEFTPAREN);
         String judge = expr();
-        String reg_judge = isNeedRegister(judge);
-        outFile.println("beq"+"\t$zero"+",\t"+reg_judge+",\t"+judge_else);
-        consume(RIGHTPAREN);
+        //A constant condition (e.g. a bound parameter in a clone) selects the branch at compile time
+        boolean then_dead = false, else_dead = false;
+        if(isConstant(judge))
+        {
+            then_dead = Integer.parseInt(judge) == 0;
+            else_dead = !then_dead;
+            if(then_dead)
+                outFile.println("j"+"\t"+judge_else);
+        }
+        else
+        {
+            String reg_judge = isNeedRegister(judge);
+            consume(RIGHTPAREN);
+            if(ifConversion(reg_judge))
+                return;
+            outFile.println("beq"+"\t$zero"+",\t"+reg_judge+",\t"+judge_else);
+        }
+        if(isConstant(judge))
+            consume(RIGHTPAREN);
+        if(then_dead) dead_code++;
         statement();
+        if(then_dead) dead_code--;
         outFile.println("j"+"\t"+judge_exit);
+        if(else_dead) dead_code++;
         elsePart(judge_else);
+        if(else_dead) dead_code--;
         outFile.println(judge_exit+":");
     }
 
+    /**
+     * One side of an if that only assigns a cheap expression to a variable, which can run whatever the
+     * condition is: no side effects, and no "+" or "-" between two operands, which stops the program on an
+     * overflow (the branches would only run the arm that is selected). A sign in front of a number is fine
+     * */
+    private static class Arm
+    {
+        String left;
+        int cost;   //Estimated number of instructions of the expression
+        Token end;  //The token after the statement
+    }
+
+    //Expected cost of a conditional branch: the beq, the "j" over the else part and the misprediction penalty
+    private static final int BRANCH_COST = 1;
+    private static final int MISPREDICT_PENALTY = 3;
+    private static final int MAX_ARM_TOKENS = 15;
+
+    private Token peek(Token t)
+    {
+        if(t.next == null)
+            t.next = tm.getNextToken();
+        return t.next;
+    }
+
+    /**
+     * Match "x = e;" or "{ x = e; }" starting at t
+     * */
+    private Arm matchArm(Token t)
+    {
+        boolean braces = t.kind == LEFTBRACE;
+        if(braces)
+            t = peek(t);
+        if(t.kind != ID || peek(t).kind != ASSIGN)
+            return null;
+        Arm arm = new Arm();
+        arm.left = t.image;
+        arm.cost = 0;
+        t = peek(peek(t));
+        //Whether the token before t ends an operand, so that a "+" or "-" at t is an addition
+        boolean after_operand = false;
+        for(int count=0;t.kind != SEMICOLON;count++,t = peek(t))
+        {
+            if(count == MAX_ARM_TOKENS)
+                return null;
+            switch (t.kind)
+            {
+                case ID:
+                    arm.cost += fi.bound_args.containsKey(t.image) ? 0 : 1;
+                    break;
+                case UNSIGNED:
+                    arm.cost++;
+                    break;
+                case PLUS:
+                case MINUS:
+                    if(after_operand)
+                        return null;
+                    break;
+                case TIMES:
+                    arm.cost += 2; //mult, mflo
+                    break;
+                case LEFTPAREN:
+                case RIGHTPAREN:
+                    break;
+                default:
+                    //calls, strings, division and comparisons are left to ordinary branches
+                    return null;
+            }
+            after_operand = t.kind == ID || t.kind == UNSIGNED || t.kind == RIGHTPAREN;
+        }
+        t = peek(t);
+        if(braces)
+        {
+            if(t.kind != RIGHTBRACE)
+                return null;
+            t = peek(t);
+        }
+        arm.end = t;
+        return arm;
+    }
+
+    /**
+     * If-conversion: "if(c) x = a; else x = b;" and "if(c) x = a;" become
+     * both values computed and one selected with movn, when that is expected to be cheaper than branching
+     * */
+    private boolean ifConversion(String reg_judge)
+    {
+        Arm then_arm = matchArm(currentToken);
+        if(then_arm == null)
+            return false;
+        Arm else_arm = null;
+        if(then_arm.end.kind == ELSE)
+        {
+            else_arm = matchArm(peek(then_arm.end));
+            if(else_arm == null || !else_arm.left.equals(then_arm.left))
+                return false;
+        }
+        //Branchless runs both sides and a movn, without an else part the old value has to be loaded instead.
+        //With branches we run the beq, on average half of the two sides and of the "j", and pay for mispredictions
+        int else_cost = else_arm != null ? else_arm.cost : 0;
+        int branchless = then_arm.cost + (else_arm != null ? else_cost : 1) + 1;
+        int branchy = BRANCH_COST + (then_arm.cost + else_cost + BRANCH_COST)/2 + MISPREDICT_PENALTY;
+        if(branchless > branchy)
+            return false;
+
+        String left = then_arm.left;
+        outFile.println("#If-conversion for variable: "+left);
+        //Without braces the "}" after the arm belongs to the enclosing block
+        boolean braces = currentToken.kind == LEFTBRACE;
+        if(braces)
+            consume(LEFTBRACE);
+        consume(ID);
+        consume(ASSIGN);
+        String then_val = isNeedRegister(expr());
+        consume(SEMICOLON);
+        if(braces)
+            consume(RIGHTBRACE);
+        String result;
+        if(else_arm != null)
+        {
+            consume(ELSE);
+            braces = currentToken.kind == LEFTBRACE;
+            if(braces)
+                consume(LEFTBRACE);
+            consume(ID);
+            consume(ASSIGN);
+            result = isNeedRegister(expr());
+            consume(SEMICOLON);
+            if(braces)
+                consume(RIGHTBRACE);
+        }
+        else
+        {
+            result = rm.registerAvailable();
+            loadVariable(result, left);
+        }
+        emitInstruction("movn", result,then_val,reg_judge);
+        st.enter(left);
+        StringIdentifiers.remove(left);
+        saveVariable(result, left);
+        rm.resetRegister();
+        return true;
+    }
+
     //-----------------------------------------
     private void elsePart(String judge_else) {
         outFile.println(judge_else+":");
@@ -932,11 +2194,193 @@ public class Parser implements Constants
 
     private String expr()
     {
-        String term_val,expr_val,termlist_syn;
+        return reduce(exprNode());
+    }
+
+    /**
+     * The tree of an arithmetic expression. A comparison (with its "and"/"or" tail) is generated
+     * right away and becomes a register leaf, as booleanExpression emits branches
+     * */
+    private ExprNode exprNode()
+    {
+        ExprNode term_val,termlist_syn;
         term_val = term();
         termlist_syn = termList(term_val);
-        expr_val = termlist_syn;
-        return expr_val;
+        return termlist_syn;
+    }
+
+    /**
+     * Generate the code of an expression tree, returns where the value is:
+     * a register, or the constant or string label itself for leaves that do not need one
+     * */
+    private String reduce(ExprNode node)
+    {
+        node.label();
+        return emitNode(node);
+    }
+
+    private String emitNode(ExprNode node)
+    {
+        String reg_left, reg_right, reg_result;
+        int mark;
+        switch (node.pattern)
+        {
+            case ExprNode.LEAF:
+                break;
+            case ExprNode.COPY:
+                return emitNode(node.operand);
+            case ExprNode.ADDI:
+            case ExprNode.NEG:
+            case ExprNode.SLL:
+            case ExprNode.ABS:
+                mark = rm.registerT_count;
+                reg_left = isNeedRegister(emitNode(node.operand));
+                //The operand is dead once the instruction has read it, its register can hold the result
+                rm.registerT_count = mark;
+                reg_result = rm.registerAvailable();
+                if(node.pattern == ExprNode.ADDI)
+                    emitInstruction("addi", reg_result,reg_left,""+node.imm);
+                else if(node.pattern == ExprNode.NEG)
+                    emitInstruction("sub", reg_result,"$zero",reg_left);
+                else if(node.pattern == ExprNode.ABS)
+                {
+                    emitInstruction("sra", "$v1",reg_left,"31");
+                    emitInstruction("xor", reg_result,reg_left,"$v1");
+                    emitInstruction("subu", reg_result,reg_result,"$v1");
+                }
+                else
+                    emitInstruction("sll", reg_result,reg_left,""+node.imm);
+                return reg_result;
+            case ExprNode.SLTI:
+            case ExprNode.SLTI_NOT:
+            case ExprNode.SEQI:
+            case ExprNode.SEQZ:
+                mark = rm.registerT_count;
+                reg_left = isNeedRegister(emitNode(node.operand));
+                rm.registerT_count = mark;
+                reg_result = rm.registerS_Available();
+                if(node.pattern == ExprNode.SEQZ)
+                    emitInstruction("sltiu", reg_result,reg_left,"1");
+                else if(node.pattern == ExprNode.SEQI)
+                {
+                    emitInstruction("xori", reg_result,reg_left,""+node.imm);
+                    emitInstruction("sltiu", reg_result,reg_result,"1");
+                }
+                else
+                {
+                    emitInstruction("slti", reg_result,reg_left,""+node.imm);
+                    if(node.pattern == ExprNode.SLTI_NOT)
+                        emitInstruction("xori", reg_result,reg_result,"1");
+                }
+                return reg_result;
+            default:
+                mark = rm.registerT_count;
+                //Sethi-Ullman: the side that needs more registers goes first, if the order cannot be observed
+                boolean swapped = node.right.need > node.left.need && ExprNode.canReorder(node.left, node.right);
+                ExprNode first = swapped ? node.right : node.left;
+                ExprNode second = swapped ? node.left : node.right;
+                String reg_first = isNeedRegister(emitNode(first));
+                //A call in the second one would overwrite $v0
+                if(reg_first.equals("$v0") && second.hasCall())
+                {
+                    reg_first = rm.registerAvailable();
+                    emitInstruction("move", reg_first,"$v0");
+                }
+                //Not enough registers left for the second one even in this order: keep the first on the stack
+                boolean spilled = reg_first.startsWith("$t") && second.need > rm.registerT_free();
+                String spill_slot = null;
+                if(spilled)
+                {
+                    spill_slot = frame.spill(++spill_depth)+"($sp)";
+                    outFile.println("#Spill "+reg_first);
+                    emitInstruction("sw", reg_first,spill_slot);
+                    rm.registerT_count = mark;
+                }
+                String reg_second = isNeedRegister(emitNode(second));
+                if(spilled)
+                {
+                    reg_first = rm.registerAvailable();
+                    emitInstruction("lw", reg_first,spill_slot);
+                    spill_depth--;
+                }
+                reg_left = swapped ? reg_second : reg_first;
+                reg_right = swapped ? reg_first : reg_second;
+                rm.registerT_count = mark;
+                reg_result = node.kind == ExprNode.CMP ? rm.registerS_Available() : rm.registerAvailable();
+                emitPattern(node.pattern, reg_result, reg_left, reg_right);
+                return reg_result;
+        }
+        switch (node.kind)
+        {
+            case ExprNode.VAR:
+                reg_result = rm.registerAvailable();
+                loadVariable(reg_result, node.image);
+                return reg_result;
+            case ExprNode.CALL:
+                return emitCall(node);
+            default:
+                return node.image;
+        }
+    }
+
+    /**
+     * The two register patterns
+     * */
+    private void emitPattern(int pattern, String d, String l, String r)
+    {
+        switch (pattern)
+        {
+            case ExprNode.ADD:
+                emitInstruction("add", d,l,r);
+                break;
+            case ExprNode.SUB:
+                emitInstruction("sub", d,l,r);
+                break;
+            case ExprNode.MULT:
+                emitInstruction("mult", l,r);
+                emitInstruction("mflo", d);
+                break;
+            case ExprNode.DIV:
+                //The program stops on a division by zero like it does with -interp and -jvm, div itself would not trap
+                emitInstruction("beq", r,"$zero",PrintRuntime.DIVISION_BY_ZERO);
+                emitInstruction("div", l,r);
+                emitInstruction("mflo", d);
+                break;
+            case ExprNode.SLT:
+                emitInstruction("slt", d,l,r);
+                break;
+            case ExprNode.SLT_SWAP:
+                emitInstruction("slt", d,r,l);
+                break;
+            case ExprNode.SLT_NOT:
+                emitInstruction("slt", d,l,r);
+                emitInstruction("xori", d,d,"1");
+                break;
+            case ExprNode.SLT_SWAP_NOT:
+                emitInstruction("slt", d,r,l);
+                emitInstruction("xori", d,d,"1");
+                break;
+            case ExprNode.MIN:
+            case ExprNode.MAX:
+                //$v1 is set when r is the result
+                if(pattern == ExprNode.MIN)
+                    emitInstruction("slt", "$v1",r,l);
+                else
+                    emitInstruction("slt", "$v1",l,r);
+                if(d.equals(r))
+                    emitInstruction("movz", d,l,"$v1");
+                else
+                {
+                    if(!d.equals(l))
+                        emitInstruction("move", d,l);
+                    emitInstruction("movn", d,r,"$v1");
+                }
+                break;
+            default:
+                emitInstruction("xor", d,l,r);
+                emitInstruction("sltiu", d,d,"1");
+                break;
+        }
     }
 
     /**
@@ -944,7 +2388,7 @@ public class Parser implements Constants
      * */
     private String isNeedRegister(String term)
     {
-        System.out.println(term);
+        trace(term);
         try
         {
             //If it's string immediate, use la
@@ -959,7 +2403,7 @@ public class Parser implements Constants
         if(term.charAt(0) == '$')
         {
             return term;
-        }else if(Character.isDigit(term.charAt(0)))
+        }else if(isConstant(term))
         {
             String reg = rm.registerAvailable();
             emitInstruction("li", reg,term);
@@ -973,133 +2417,101 @@ public class Parser implements Constants
         }
     }
 
-    private String termList(String inh)
+    private boolean isGlobal(String var)
     {
-        String term_val,termlist_syn;
-        String reg_inh;
-        String reg_term_val;
-        String reg_plus;
-        String reg_result,reg_equ;
+        if(var.indexOf('[') > 0)
+            return st.locateGlobalArr(var.substring(0, var.indexOf('['))) >= 0;
+        return st.locateGlobal(var) >= 0;
+    }
+
+    private boolean isConstant(String term)
+    {
+        return Character.isDigit(term.charAt(0)) || (term.charAt(0) == '-' && term.length() > 1);
+    }
+
+    /**
+     * Fold an operation on two constants, null if it cannot be done (e.g. "add" would trap on overflow)
+     * */
+    private String foldConstants(int op, String left, String right)
+    {
+        if(!isConstant(left) || !isConstant(right))
+            return null;
+        long a = Long.parseLong(left);
+        long b = Long.parseLong(right);
+        long result;
+        switch (op)
+        {
+            case PLUS: result = a + b; break;
+            case MINUS: result = a - b; break;
+            case TIMES: result = (int)(a * b); break;
+            default:
+                if(b == 0 || (a == Integer.MIN_VALUE && b == -1))
+                    return null;
+                result = a / b;
+        }
+        if(result != (int)result)
+            return null;
+        return ""+result;
+    }
+
+    /**
+     * Fold a comparison of two constants, unless "and"/"or" follow (booleanExpression needs registers)
+     * */
+    private String foldComparison(int op, String left, String right)
+    {
+        if(!isConstant(left) || !isConstant(right) || currentToken.kind == AND || currentToken.kind == OR)
+            return null;
+        int a = Integer.parseInt(left);
+        int b = Integer.parseInt(right);
+        boolean result;
+        switch (op)
+        {
+            case EQUAL: result = a == b; break;
+            case GREATER_EQUAL_THAN: result = a >= b; break;
+            case SMALLER_EQUAL_THAN: result = a <= b; break;
+            case GREATER_THAN: result = a > b; break;
+            default: result = a < b;
+        }
+        return result ? "1" : "0";
+    }
+
+    /**
+     * The node for "left op right", folded when both are constants
+     * */
+    private ExprNode binary(int op, ExprNode left, ExprNode right)
+    {
+        if(left.kind == ExprNode.NUM && right.kind == ExprNode.NUM)
+        {
+            String folded = foldConstants(op, left.image, right.image);
+            if(folded != null)
+                return ExprNode.number(Integer.parseInt(folded));
+        }
+        return ExprNode.binary(op, left, right);
+    }
+
+    private ExprNode termList(ExprNode inh)
+    {
+        ExprNode term_val,termlist_syn;
         switch(currentToken.kind)
         {
             case PLUS:
                 consume(PLUS);
                 term_val = term();
-
-                reg_inh = isNeedRegister(inh);
-                reg_term_val = isNeedRegister(term_val);
-                reg_result = rm.registerAvailable();
-
-                emitInstruction("add", reg_result,reg_term_val,reg_inh);
-
-                termlist_syn = termList(reg_result);
+                termlist_syn = termList(binary(PLUS, inh, term_val));
                 break;
 
             case MINUS:
                 consume(MINUS);
                 term_val = term();
-
-                reg_inh = isNeedRegister(inh);
-                reg_term_val = isNeedRegister(term_val);
-                reg_result = rm.registerAvailable();
-
-                emitInstruction("sub", reg_result,reg_inh,reg_term_val);
-
-                termlist_syn = termList(reg_result);
+                termlist_syn = termList(binary(MINUS, inh, term_val));
                 break;
 
             case EQUAL:
-                consume(EQUAL);
-                termlist_syn = expr();
-
-                reg_inh = isNeedRegister(inh);
-                reg_term_val = isNeedRegister(termlist_syn);
-                reg_result = rm.registerS_Available();
-                reg_equ = rm.registerS_Available();
-
-                emitInstruction("seq", reg_result,reg_inh,reg_term_val);
-
-                termlist_syn = reg_result;
-
-                booleanExpression(reg_result);
-
-                rm.resetRegister();
-                System.out.println("EQUAL, Diter: "+inh+" "+termlist_syn);
-                break;
-
             case GREATER_EQUAL_THAN:
-                consume(GREATER_EQUAL_THAN);
-                termlist_syn = expr();
-
-                reg_inh = isNeedRegister(inh);
-                reg_term_val = isNeedRegister(termlist_syn);
-                reg_result = rm.registerS_Available();
-                reg_equ = rm.registerS_Available();
-
-                emitInstruction("sge", reg_result,reg_inh,reg_term_val);
-
-                termlist_syn = reg_result;
-
-                booleanExpression(reg_result); //!!!!!!!!!!!!!!!!!
-
-                rm.resetRegister();
-                System.out.println("GREATER_EQUAL_THAN, compare: "+reg_inh+" "+reg_term_val);
-                break;
-
             case SMALLER_EQUAL_THAN:
-                consume(SMALLER_EQUAL_THAN);
-                termlist_syn = expr();
-
-                reg_inh = isNeedRegister(inh);
-                reg_term_val = isNeedRegister(termlist_syn);
-                reg_result = rm.registerS_Available();
-                reg_equ = rm.registerS_Available();
-
-                emitInstruction("sle", reg_result,reg_inh,reg_term_val);
-
-                termlist_syn = reg_result;
-
-                booleanExpression(reg_result);
-
-                rm.resetRegister();
-
-                System.out.println("SMALLER_EQUAL_THAN, compare: "+inh+" "+termlist_syn);
-                break;
-
             case GREATER_THAN:
-                consume(GREATER_THAN);
-                termlist_syn = expr();
-
-                reg_inh = isNeedRegister(inh);
-                reg_term_val = isNeedRegister(termlist_syn);
-                reg_result = rm.registerS_Available();
-
-                emitInstruction("sgt", reg_result,reg_inh,reg_term_val);
-
-                termlist_syn = reg_result;
-
-                booleanExpression(reg_result);
-
-                rm.resetRegister();
-                System.out.println("GREATER_THAN, compare: "+inh+" "+termlist_syn);
-                break;
-
             case SMALLER_THAN:
-                consume(SMALLER_THAN);
-                termlist_syn = expr();
-
-                reg_inh = isNeedRegister(inh);
-                reg_term_val = isNeedRegister(termlist_syn);
-                reg_result = rm.registerS_Available();
-
-                emitInstruction("slt",reg_result, reg_inh,reg_term_val);
-
-                termlist_syn = reg_result;
-
-                booleanExpression(reg_result);
-
-                rm.resetRegister();
-                System.out.println("SMALLER_THAN, compare: "+inh+" "+termlist_syn);
+                termlist_syn = comparison(inh);
                 break;
             case RIGHTPAREN:
             case SEMICOLON:
@@ -1115,6 +2527,36 @@ public class Parser implements Constants
         return termlist_syn;
     }
 
+    /**
+     * "inh op expr", the left side is generated before the right side is parsed
+     * */
+    private ExprNode comparison(ExprNode inh)
+    {
+        int op = currentToken.kind;
+        consume(op);
+        String left = reduce(inh);
+        ExprNode right = exprNode();
+        if(right.kind == ExprNode.NUM)
+        {
+            String folded = foldComparison(op, left, right.image);
+            if(folded != null)
+                return ExprNode.number(Integer.parseInt(folded));
+        }
+        if(left.equals("$v0") && right.hasCall())
+        {
+            String reg = rm.registerAvailable();
+            emitInstruction("move", reg,"$v0");
+            left = reg;
+        }
+        String reg_result = reduce(ExprNode.compare(op, ExprNode.operand(left), right));
+        trace(tokenImage[op]+", compare: "+left+" "+reg_result);
+
+        booleanExpression(reg_result);
+
+        rm.resetRegister();
+        return ExprNode.register(reg_result);
+    }
+
     private void booleanExpression(String inh)
     {
         String boolean_syn,expr_syn,reg_res;
@@ -1147,15 +2589,14 @@ public class Parser implements Constants
         }
     }
 
-    private String term()
+    private ExprNode term()
     {
         switch(currentToken.kind)
         {
             case CAL:
-                functionCall();
-                return "$v0";
+                return functionCall();
             default:
-                String factorlist_inh,term_val,factorlist_syn;
+                ExprNode factorlist_inh,term_val,factorlist_syn;
                 factorlist_inh = factor();
                 factorlist_syn = factorList(factorlist_inh);
                 term_val = factorlist_syn;
@@ -1164,36 +2605,20 @@ public class Parser implements Constants
 
     }
 
-    private String factorList(String inh)
+    private ExprNode factorList(ExprNode inh)
     {
-        String factor_val,factorlist_syn;
+        ExprNode factor_val,factorlist_syn;
         switch(currentToken.kind)
         {
             case TIMES:
                 consume(TIMES);
                 factor_val = factor();
-
-                String reg_inh = isNeedRegister(inh);
-                String reg_factor_val = isNeedRegister(factor_val);
-
-                String newidentifier = rm.registerAvailable();
-                emitInstruction("mult", reg_inh,reg_factor_val);
-                emitInstruction("mflo", newidentifier);
-
-                factorlist_syn = factorList(newidentifier);
+                factorlist_syn = factorList(binary(TIMES, inh, factor_val));
                 break;
             case DIVIDE:
                 consume(DIVIDE);
                 factor_val = factor();
-
-                String reg_inh_div = isNeedRegister(inh);
-                String reg_factor_val_div = isNeedRegister(factor_val);
-                String newidentifier_div = rm.registerAvailable();
-
-                emitInstruction("div", reg_inh_div,reg_factor_val_div);
-                emitInstruction("mflo", newidentifier_div);
-
-                factorlist_syn = factorList(newidentifier_div);
+                factorlist_syn = factorList(binary(DIVIDE, inh, factor_val));
                 break;
             case PLUS:
             case MINUS:
@@ -1218,50 +2643,54 @@ public class Parser implements Constants
         return factorlist_syn;
     }
 
-    private String factor()
+    private ExprNode factor()
     {
         Token t;
-        String factor_val;
+        ExprNode factor_val;
         switch(currentToken.kind)
         {
             case UNSIGNED:
                 t = currentToken;
                 consume(UNSIGNED);
-                factor_val = t.image;
+                factor_val = ExprNode.operand(t.image);
                 break;
             case PLUS:
                 consume(PLUS);
                 t = currentToken;
                 consume(UNSIGNED);
-                factor_val = t.image;
+                factor_val = ExprNode.operand(t.image);
                 break;
             case MINUS:
                 consume(MINUS);
                 t = currentToken;
                 consume(UNSIGNED);
-                factor_val = "-"+t.image;
+                factor_val = ExprNode.operand("-"+t.image);
                 break;
             case ID:
                 t = currentToken;
                 consume(ID);
                 st.enter(t.image);
-                factor_val = rm.registerAvailable();
-                loadVariable(factor_val, t.image);
+                //Inside a specialized clone the bound parameters are constants
+                if(fi.bound_args.containsKey(t.image))
+                {
+                    factor_val = ExprNode.operand(fi.bound_args.get(t.image));
+                    break;
+                }
+                factor_val = ExprNode.variable(t.image, isGlobal(t.image));
                 break;
 
             case STRING:
                 t = currentToken;
                 consume(STRING);
-                factor_val = sm.enter(t.image); //Automatic another line
+                factor_val = ExprNode.string(sm.enter(t.image)); //Automatic another line
                 break;
             case LEFTPAREN:
                 consume(LEFTPAREN);
-                factor_val = expr();
+                factor_val = exprNode();
                 consume(RIGHTPAREN);
                 break;
             case CAL:
-                functionCall();
-                factor_val = "$v0";
+                factor_val = functionCall();
                 break;
             default:
                 throw genEx("Expecting factor");
@@ -1276,10 +2705,21 @@ public class Parser implements Constants
     private void dataSegment()
     {
         outFile.println("\t"+".data");
-        for(int i=0;i<sm.getSize();i++)
+        sm.emit(outFile);
+        //Globals in declaration order, ints are words and arrays follow each other
+        outFile.println("\t.align\t2");
+        outFile.println("Globals:");
+        for(int i=0;i<st.getGlobalCount();i++)
+        {
+            if(st.getGlobalSize(i) == 4 && st.locateGlobal(st.getGlobalName(i)) >= 0)
+                outFile.println("\t.word\t0\t\t\t#"+st.getGlobalName(i));
+            else
+                outFile.println("\t.space\t"+st.getGlobalSize(i)+"\t\t\t#"+st.getGlobalName(i));
+        }
+        for(String func : memo_tables)
         {
-            String str = sm.getItem(i);
-            outFile.println("Str"+i+":\t"+".asciiz\t"+"\""+str+"\"");
+            outFile.println("Memo_"+func+":\t.space\t"+4*options.memo_bound);
+            outFile.println("Memo_"+func+"_valid:\t.space\t"+4*((options.memo_bound+31)/32));
         }
     }
 }
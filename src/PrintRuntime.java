@@ -0,0 +1,131 @@
+import java.io.PrintWriter;
+
+/**
+ * Output runtime linked into every program
+ * println does not trap for each value: the text is appended to Print_buffer, which is written by a
+ * single syscall when it is full, and by Print_flush before the program stops (exit, assert, end of main)
+ *
+ *  Print_string    $a0 = address of a zero terminated string
+ *  Print_int       $a0 = value, written in decimal followed by "\n"
+ *  Print_flush     write what is in the buffer
+ *  Print_division_by_zero  the branch target of a divisor that is 0: flush, then "break 7" stops the program
+ *  Print_overflow  where MipsSimulator goes when add, sub or addi overflows: flush, then "break 6"
+ *
+ * They only use $a0-$a3, $v0 and $v1, which are not live across a println
+ * */
+class PrintRuntime
+{
+    static final String STRING = "Print_string";
+    static final String INT = "Print_int";
+    static final String FLUSH = "Print_flush";
+    static final String DIVISION_BY_ZERO = "Print_division_by_zero";
+    static final String OVERFLOW = "Print_overflow";
+
+    //Bytes written per syscall
+    static final int BUFFER_SIZE = 256;
+
+    private PrintWriter out;
+
+    PrintRuntime(PrintWriter out)
+    {
+        this.out = out;
+    }
+
+    private void emit(String func, String... ops)
+    {
+        out.println(func+"\t"+String.join(",\t", ops));
+    }
+
+    /**
+     * Set the buffer position, before anything is printed
+     * */
+    void emitStartup()
+    {
+        emit("la", "$a0","Print_buffer");
+        emit("sw", "$a0","Print_pos");
+    }
+
+    void emitText()
+    {
+        out.println();
+        out.println("# Buffered output");
+        out.println(STRING+":");
+        emit("lw", "$a1","Print_pos");
+        emit("la", "$a2","Print_buffer_end");
+        out.println("Print_string_loop:");
+        emit("lbu", "$v1","0($a0)");
+        emit("beq", "$v1","$zero","Print_string_end");
+        emit("sb", "$v1","0($a1)");
+        emit("addi", "$a0","$a0","1");
+        emit("addi", "$a1","$a1","1");
+        emit("bne", "$a1","$a2","Print_string_loop");
+        //Full, write it out and go on from the start
+        emit("move", "$a3","$a0");
+        emit("sb", "$zero","0($a1)");
+        emit("la", "$a0","Print_buffer");
+        emit("li", "$v0","4");
+        out.println("syscall");
+        emit("move", "$a1","$a0");
+        emit("move", "$a0","$a3");
+        emit("j", "Print_string_loop");
+        out.println("Print_string_end:");
+        emit("sw", "$a1","Print_pos");
+        emit("jr", "$ra");
+
+        //The digits are made from a value <= 0, so that -2147483648 has no overflow
+        out.println(INT+":");
+        emit("la", "$a1","Print_digits_end");
+        emit("move", "$a2","$a0");
+        emit("blez", "$a0","Print_int_digits");
+        emit("sub", "$a2","$zero","$a0");
+        out.println("Print_int_digits:");
+        emit("li", "$v1","10");
+        emit("li", "$a3","48");
+        out.println("Print_int_loop:");
+        emit("div", "$a2","$v1");
+        emit("mfhi", "$v0");
+        emit("mflo", "$a2");
+        emit("sub", "$v0","$a3","$v0");
+        emit("addi", "$a1","$a1","-1");
+        emit("sb", "$v0","0($a1)");
+        emit("bne", "$a2","$zero","Print_int_loop");
+        emit("bgez", "$a0","Print_int_sign");
+        emit("li", "$v0","45");
+        emit("addi", "$a1","$a1","-1");
+        emit("sb", "$v0","0($a1)");
+        out.println("Print_int_sign:");
+        //Digits and the newline after them are copied like a string
+        emit("move", "$a0","$a1");
+        emit("j", STRING);
+
+        out.println(FLUSH+":");
+        emit("lw", "$a1","Print_pos");
+        emit("la", "$a0","Print_buffer");
+        emit("beq", "$a1","$a0","Print_flush_end");
+        emit("sb", "$zero","0($a1)");
+        emit("li", "$v0","4");
+        out.println("syscall");
+        emit("sw", "$a0","Print_pos");
+        out.println("Print_flush_end:");
+        emit("jr", "$ra");
+
+        out.println(DIVISION_BY_ZERO+":");
+        emit("jal", FLUSH);
+        emit("break", ""+MipsSimulator.BREAK_DIVISION_BY_ZERO);
+
+        out.println(OVERFLOW+":");
+        emit("jal", FLUSH);
+        emit("break", ""+MipsSimulator.BREAK_OVERFLOW);
+    }
+
+    void emitData()
+    {
+        out.println("Print_digits:\t.space\t11");
+        out.println("Print_digits_end:\t.asciiz\t\"\\n\"");
+        out.println("\t.align\t2");
+        out.println("Print_pos:\t.word\t0");
+        //One more byte for the terminating zero
+        out.println("Print_buffer:\t.space\t"+BUFFER_SIZE);
+        out.println("Print_buffer_end:\t.space\t1");
+    }
+}
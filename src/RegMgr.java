@@ -1,36 +1,85 @@
+import java.util.Arrays;
+import java.util.HashSet;
+
 public class RegMgr
 {
+    //$t0~$t9
+    public static final int T_REGISTERS = 10;
+
     public int registerT_count;
     public int registerS_count;
     public int registerA_count;
 
+    //Registers an asm statement uses by itself, they are not handed out until the next reset
+    private HashSet<String> reserved;
+    //Order in which the $t registers are handed out, see steer()
+    private String[] order;
 
     public RegMgr()
     {
         this.registerT_count = 0;
         this.registerS_count = 0;
         this.registerA_count = 0;
+        this.reserved = new HashSet<>();
+        this.order = new String[T_REGISTERS];
+        for(int i=0;i<T_REGISTERS;i++)
+            this.order[i] = "$t"+i;
     }
     public String registerAvailable()
     {
-        String temp = "$t"+this.registerT_count++;
-        //Totally we have $t0~$t9, so if we don't have enough register, we will throw an exception
-        if(this.registerT_count == 11)
+        String temp;
+        do
         {
-            throw new RuntimeException("Temporary registor overflow");
-        }
+            //Totally we have $t0~$t9, so if we don't have enough register, we will throw an exception
+            if(this.registerT_count == T_REGISTERS)
+            {
+                throw new RuntimeException("Temporary registor overflow");
+            }
+            temp = this.order[this.registerT_count++];
+        } while(reserved.contains(temp));
         return temp;
     }
 
     public String registerS_Available(){
-        String temp = "$s"+this.registerS_count++;
-        if(this.registerS_count == 9)
+        String temp;
+        do
         {
-            throw new RuntimeException("s registor overflow");
-        }
+            temp = "$s"+this.registerS_count++;
+            if(this.registerS_count == 9)
+            {
+                throw new RuntimeException("s registor overflow");
+            }
+        } while(reserved.contains(temp));
         return temp;
     }
 
+    /**
+     * The register handed out as the index-th $t register since the last reset
+     * */
+    public String registerT(int index)
+    {
+        return this.order[index];
+    }
+
+    /**
+     * Hand out the $t registers with the lowest cost first, the others keep their order.
+     * Used for each function, the cost of a register is how often the functions it calls change it
+     * */
+    public void steer(long[] cost)
+    {
+        Integer[] index = new Integer[T_REGISTERS];
+        for(int i=0;i<T_REGISTERS;i++)
+            index[i] = i;
+        Arrays.sort(index, (a, b) -> Long.compare(cost[a], cost[b]));
+        for(int i=0;i<T_REGISTERS;i++)
+            this.order[i] = "$t"+index[i];
+    }
+
+    public void reserve(String reg)
+    {
+        reserved.add(reg);
+    }
+
     public String registerA_Available(){
         String temp = "$a"+this.registerA_count++;
         if(this.registerA_count == 5)
@@ -46,11 +95,20 @@ public class RegMgr
      * identifierAvailable: Generate a label for jump instruction
      * */
 
+    /**
+     * Temporary registers still free
+     * */
+    public int registerT_free()
+    {
+        return T_REGISTERS - this.registerT_count;
+    }
+
     public void resetRegister()
     {
         this.registerS_count = 0;
         this.registerT_count = 0;
         this.registerA_count = 0;
+        this.reserved.clear();
     }
 
 }
\ No newline at end of file
@@ -1,33 +1,52 @@
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 
 /**
  * Bounding each .ascii2 string with a identifier -> MIPS
+ * Literals are pooled: the same text always gets the same StrN, and a literal that is the tail of a
+ * longer one is a label inside it. Every literal ends with the newline println prints after it, so
+ * "\n" (Str0) and all literals with a common ending share their bytes in .data
  * */
 public class StringMgr
 {
-    private ArrayList<String> collection;
+    private HashMap<String,String> pool;     //Text (escapes resolved) -> label
+    private ArrayList<String> collection;    //Text of StrN at index N
     private int stringcount;
 
     public StringMgr()
     {
         this.stringcount = 0;
+        this.pool = new HashMap<>();
         this.collection = new ArrayList<>();
-        enter("\"\\n\""); // Str0 is always "\n"
+        intern("\n"); // Str0 is always "\n"
     }
     private String stringIdAvailable()
     {
         return "Str"+this.stringcount++;
     }
+
+    /**
+     * str is the literal as in the source, with its quotes, the newline is added here
+     * */
     public String enter(String str)
     {
-        String str_id = stringIdAvailable();
-        str = str.substring(1, str.length()-1);
-        if(!str_id.equals("Str0"))
-            collection.add(str+"\\n");
-        else
-            collection.add(str);
+        return intern(unescape(str.substring(1, str.length()-1))+"\n");
+    }
+
+    private String intern(String text)
+    {
+        String str_id = pool.get(text);
+        if(str_id == null)
+        {
+            str_id = stringIdAvailable();
+            pool.put(text, str_id);
+            collection.add(text);
+        }
         return str_id;
     }
+
     public int getSize()
     {
         return collection.size();
@@ -36,4 +55,88 @@ public class StringMgr
     {
         return collection.get(index);
     }
+
+    /**
+     * Emit the pool into .data: each literal that is not the tail of another one is written once,
+     * the labels of its tails are placed in the middle of it
+     * */
+    public void emit(PrintWriter out)
+    {
+        ArrayList<Integer> order = new ArrayList<>();
+        for(int i=0;i<collection.size();i++)
+            order.add(i);
+        //Longest first, a literal can only be the tail of one that is already placed
+        Collections.sort(order, (a, b) -> collection.get(b).length() - collection.get(a).length());
+
+        ArrayList<Integer> owners = new ArrayList<>();
+        ArrayList<ArrayList<Integer>> tails = new ArrayList<>();
+        for(int i : order)
+        {
+            String text = collection.get(i);
+            int k = 0;
+            while(k < owners.size() && !collection.get(owners.get(k)).endsWith(text))
+                k++;
+            if(k == owners.size())
+            {
+                owners.add(i);
+                tails.add(new ArrayList<>());
+            }
+            tails.get(k).add(i);
+        }
+
+        for(ArrayList<Integer> group : tails)
+        {
+            String text = collection.get(group.get(0));
+            int from = 0;
+            for(int j=0;j<group.size();j++)
+            {
+                //Up to where the next (shorter) tail starts
+                int end = j+1 < group.size() ? text.length()-collection.get(group.get(j+1)).length() : text.length();
+                String directive = end == text.length() ? ".asciiz" : ".ascii";
+                out.println("Str"+group.get(j)+":\t"+directive+"\t"+"\""+escape(text.substring(from, end))+"\"");
+                from = end;
+            }
+        }
+    }
+
+    static String unescape(String str)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0;i<str.length();i++)
+        {
+            char c = str.charAt(i);
+            if(c == '\\' && i+1 < str.length())
+            {
+                char e = str.charAt(++i);
+                switch (e)
+                {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case '\\': sb.append('\\'); break;
+                    case '"': sb.append('"'); break;
+                    default: sb.append('\\').append(e); break; //Unknown escapes are taken literally
+                }
+            }
+            else sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String text)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0;i<text.length();i++)
+        {
+            char c = text.charAt(i);
+            switch (c)
+            {
+                case '\n': sb.append("\\n"); break;
+                case '\t': sb.append("\\t"); break;
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
 }
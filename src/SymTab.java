@@ -6,21 +6,69 @@ public class SymTab
 {
     private ArrayList<String> symbol;
     private Map<String,FuncSymTab> func_tabs;
+    private Map<String,FuncInfo> func_infos;
     private ArrayList<String> global_var;   // Storage for global variables
     private int current_offset;             //Store how much space we have used for arraies;
     private ArrayList<String> global_arr_name;
     private ArrayList<Integer> global_arr_offset;
+    //Static layout of the globals in the .data segment, in declaration order, offsets from the label "Globals"
+    private Map<String,Integer> global_offsets;
+    private ArrayList<String> global_names;
+    private ArrayList<Integer> global_sizes;
+    private int global_data_size;
 
     //ArrayList: add & indexOf
     public SymTab()
     {
         symbol = new ArrayList<>();
         func_tabs = new HashMap<>();
+        func_infos = new HashMap<>();
         global_var = new ArrayList<>();
         global_arr_name =  new ArrayList<>();
         global_arr_offset = new ArrayList<>();
         global_arr_offset.add(0); //The first element in the global_arr_name's offset should be 0
         this.current_offset = 0;
+        global_offsets = new HashMap<>();
+        global_names = new ArrayList<>();
+        global_sizes = new ArrayList<>();
+        this.global_data_size = 0;
+    }
+
+    private void layoutGlobal(String name, int size)
+    {
+        global_offsets.put(name, global_data_size);
+        global_names.add(name);
+        global_sizes.add(size);
+        global_data_size += size;
+    }
+
+    /**
+     * Offset of a global variable or array from "Globals", -1 if there is no such global
+     * */
+    public int getGlobalOffset(String name)
+    {
+        Integer offset = global_offsets.get(name);
+        return offset != null ? offset : -1;
+    }
+
+    public int getGlobalDataSize()
+    {
+        return global_data_size;
+    }
+
+    public int getGlobalCount()
+    {
+        return global_names.size();
+    }
+
+    public String getGlobalName(int index)
+    {
+        return global_names.get(index);
+    }
+
+    public int getGlobalSize(int index)
+    {
+        return global_sizes.get(index);
     }
 
     public int getGlobalVarSize()
@@ -40,9 +88,18 @@ public class SymTab
             this.current_offset += space;
             global_arr_name.add(name);
             global_arr_offset.add(current_offset);
+            layoutGlobal(name, space);
         }else throw new RuntimeException("Error: global variable"+name+" have already been defined");
     }
 
+    /**
+     * Size in bytes of a global array
+     * */
+    public int getGlobalArrSize(String name)
+    {
+        return global_sizes.get(global_names.indexOf(name));
+    }
+
     public int locateGlobalArr(String name)
     {
         int index = global_arr_name.indexOf(name);
@@ -58,6 +115,7 @@ public class SymTab
         if(global_var.contains(s))
             throw new RuntimeException("Error: "+s+" has already been defined!");
         global_var.add(s);
+        layoutGlobal(s, 4);
     }
 
     public int locateGlobal(String s)
@@ -82,6 +140,16 @@ public class SymTab
         else throw new RuntimeException("Error: Function \""+func_name+"\" has already defined");
     }
 
+    public void enterFuncInfo(FuncInfo info)
+    {
+        func_infos.put(info.name, info);
+    }
+
+    public FuncInfo getFuncInfo(String func_name)
+    {
+        return func_infos.get(func_name);
+    }
+
     //指定index的项目
     public String getSymbol(int index)
     {
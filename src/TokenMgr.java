@@ -293,15 +293,23 @@ public class TokenMgr implements Constants
 
         return token;
     }
+    /**
+     * asm is not a keyword, it starts an asm statement where a statement begins with it and "(", "{" or
+     * "clobber" follows (next is the token after t). Elsewhere it is an ordinary name
+     * */
+    static boolean isAsm(Token t, Token next)
+    {
+        return t.kind == ID && t.image.equals("asm")
+                && (next.kind == LEFTPAREN || next.kind == LEFTBRACE || next.kind == ID && next.image.equals("clobber"));
+    }
+
     private char lookAhead(int amount)
     {
-        try
-        {
-            char next = inputLine.charAt(currentColumnNumber+amount-1);
-            return next;
-        }
-        catch (Exception e){System.out.println("Error");}
-        return ' ';
+        //Past the end of the line
+        int index = currentColumnNumber+amount-1;
+        if(inputLine == null || index < 0 || index >= inputLine.length())
+            return ' ';
+        return inputLine.charAt(index);
     }
     //-----------------------------------------
     private void getNextChar()
@@ -0,0 +1,892 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates the MIPS program the parser generated into x86-64 assembly for GAS (AT&T syntax, Linux),
+ * to run it natively: "as FILE.s -o FILE.o && ld FILE.o -o FILE". Working on the final text shares the
+ * front end and every optimization pass with the MIPS output, the translation is line by line.
+ *
+ *  $sp $fp          %rsp %rbp, the frames keep the layout of the MIPS code; the stack is Mips_stack in .bss,
+ *                   not the one of Linux, because the frames save $fp in 4 bytes
+ *  $gp              the label it is loaded with (Globals), which goes to .bss: off($gp) is Globals+off
+ *  $zero            the constant 0
+ *  $t0-$t7 $a0 $ra  x86 registers, the most used ones; the other registers and HI/LO are 8 byte slots in .bss
+ *  %rax %rcx %rdx %r11  scratch (mult and div want %eax:%edx, a variable shift %cl)
+ *
+ * Values have 32 bits, addu, subu, addiu and move work on 64 because a register may hold an address on the stack
+ * (an array in a frame). All addresses fit in 32 bits anyway: ld links at 0x400000 without PIE.
+ * add, sub and addi work on 32 bits and "jo" to the overflow handler of PrintRuntime, like MipsSimulator runs it
+ * (on $sp and $fp they stay 64 bit, addresses do not overflow).
+ *
+ * A call pushes its return address below %rsp, where the MIPS code does not expect anything. So every label
+ * some jal calls starts with "pop $ra", and "push $ra" in front of it (LABEL.jump) is where j, a branch or
+ * the line above enter. jr $ra is "push $ra; ret": %rsp is $sp between the MIPS instructions, and calls and
+ * returns still pair up for the return predictor of the processor.
+ *
+ * syscall calls a small runtime with the services of MARS a program may use: 1 print int, 4 print string,
+ * 10 exit, 11 print char, 17 exit with a code. println stays Print_int and Print_buffer of PrintRuntime,
+ * which only need 4 and 10. The program exits with 0 where it falls off the end of .text, like in MARS.
+ * "break 7" of a division by zero and "break 6" of an overflow write the message of -interp and -jvm to stderr
+ * and exit with 1.
+ * */
+class X86Backend
+{
+    private static final String[] NAMES = {"zero","at","v0","v1","a0","a1","a2","a3",
+            "t0","t1","t2","t3","t4","t5","t6","t7",
+            "s0","s1","s2","s3","s4","s5","s6","s7",
+            "t8","t9","k0","k1","gp","sp","fp","ra"};
+
+    //MIPS register, x86 register by size: 64, 32, 16, 8 bits
+    private static final Map<String,String[]> REGISTERS = new HashMap<>();
+    static
+    {
+        String[][] registers = {
+                {"t0","%rbx","%ebx","%bx","%bl"}, {"t1","%r12","%r12d","%r12w","%r12b"},
+                {"t2","%r13","%r13d","%r13w","%r13b"}, {"t3","%r14","%r14d","%r14w","%r14b"},
+                {"t4","%r15","%r15d","%r15w","%r15b"}, {"t5","%r10","%r10d","%r10w","%r10b"},
+                {"t6","%r8","%r8d","%r8w","%r8b"}, {"t7","%r9","%r9d","%r9w","%r9b"},
+                {"a0","%rsi","%esi","%si","%sil"}, {"ra","%rdi","%edi","%di","%dil"},
+                {"sp","%rsp","%esp","%sp","%spl"}, {"fp","%rbp","%ebp","%bp","%bpl"}};
+        for(String[] r : registers)
+            REGISTERS.put(r[0], new String[]{r[1], r[2], r[3], r[4]});
+    }
+
+    private static final int STACK_SIZE = 64 << 20;
+
+    //x86 instruction of the MIPS loads
+    private static final Map<String,String> LOADS = new HashMap<>();
+    static
+    {
+        String[][] loads = {{"lw","movl"},{"lb","movsbl"},{"lbu","movzbl"},{"lh","movswl"},{"lhu","movzwl"}};
+        for(String[] l : loads)
+            LOADS.put(l[0], l[1]);
+    }
+
+    private StringBuilder out;
+    //Labels called by a jal, they pop the return address
+    private Set<String> called;
+    //The label $gp points to
+    private String globals;
+    //Where add, sub and addi go on an overflow: the handler of the program, or straight to the runtime
+    private String overflow_handler;
+    private String section;
+    //Labels and alignments of .data waiting for the next directive, which decides between .data and .bss
+    private ArrayList<String> pending;
+    private boolean in_globals;
+    private int number;
+    private String text;
+
+    public X86Backend()
+    {
+        this.out = new StringBuilder();
+        this.called = new HashSet<>();
+        this.globals = null;
+        this.overflow_handler = "Mips_overflow";
+        this.section = null;
+        this.pending = new ArrayList<>();
+        this.in_globals = false;
+    }
+
+    /**
+     * The assembly for GAS of source, the text the parser wrote
+     * */
+    public String translate(String source)
+    {
+        String[] lines = source.split("\n");
+        //Calls and the label of $gp are needed before their labels come
+        for(String line : lines)
+        {
+            String[] words = MipsAssembler.stripComment(line).trim().split("[\\s,]+");
+            if(words.length == 2 && words[0].equals("jal"))
+                called.add(words[1]);
+            if(words.length == 3 && words[0].equals("la") && register(words[1]).equals("gp"))
+                globals = words[2];
+            if(words.length == 1 && words[0].equals(PrintRuntime.OVERFLOW+":"))
+                overflow_handler = PrintRuntime.OVERFLOW;
+        }
+        out.append("# x86-64 for GAS, as FILE.s -o FILE.o && ld FILE.o -o FILE\n");
+        section(".text");
+        out.append("\t.globl\t_start\n_start:\n");
+        emit("movl", "$Mips_stack_end", "%esp");
+        boolean in_data = false;
+        boolean ended = false;
+        for(number=1;number<=lines.length;number++)
+        {
+            text = lines[number-1];
+            String s = MipsAssembler.stripComment(text).trim();
+            int colon;
+            while((colon = MipsAssembler.labelEnd(s)) > 0)
+            {
+                label(s.substring(0, colon), in_data);
+                s = s.substring(colon+1).trim();
+            }
+            if(s.isEmpty() || s.startsWith(".globl"))
+                continue;
+            if(s.equals(".text") || s.equals(".data"))
+            {
+                in_data = s.equals(".data");
+                if(in_data && !ended)
+                {
+                    end();
+                    ended = true;
+                }
+                if(!in_data)
+                {
+                    flushPending(".data");
+                    section(".text");
+                }
+                continue;
+            }
+            int space = 0;
+            while(space < s.length() && !Character.isWhitespace(s.charAt(space)))
+                space++;
+            String op = s.substring(0, space);
+            String rest = s.substring(space).trim();
+            String[] operands;
+            if(op.equals(".ascii") || op.equals(".asciiz"))
+                operands = new String[]{rest};
+            else if(rest.isEmpty())
+                operands = new String[0];
+            else
+            {
+                operands = rest.split(",");
+                for(int i=0;i<operands.length;i++)
+                    operands[i] = operands[i].trim();
+            }
+            if(in_data || op.startsWith("."))
+                directive(op, operands);
+            else
+                instruction(op, operands);
+        }
+        if(!ended)
+            end();
+        flushPending(".data");
+        runtimeData();
+        return out.toString();
+    }
+
+    //-----------------------------------------
+    // Data
+
+    private void label(String label, boolean in_data)
+    {
+        if(in_data)
+        {
+            //Only the block behind the label of $gp goes to .bss, the other data keeps its order in .data
+            in_globals = label.equals(globals);
+            pending.add(label+":");
+            return;
+        }
+        if(called.contains(label))
+        {
+            out.append(label).append(".jump:\n");
+            emit("pushq", q("ra"));
+            out.append(label).append(":\n");
+            emit("popq", q("ra"));
+        }
+        else
+            out.append(label).append(":\n");
+    }
+
+    private void directive(String op, String[] operands)
+    {
+        switch (op)
+        {
+            case ".align":
+                expect(operands, 1);
+                pending.add("\t.p2align\t"+operands[0]);
+                return;
+            case ".space":
+                expect(operands, 1);
+                data(".zero", operands[0], true);
+                return;
+            case ".word":
+            case ".half":
+            case ".byte":
+            {
+                boolean zero = true;
+                for(String operand : operands)
+                    zero &= operand.equals("0");
+                int size = op.equals(".word") ? 4 : op.equals(".half") ? 2 : 1;
+                if(zero && in_globals)
+                    data(".zero", String.valueOf(size*operands.length), true);
+                else
+                    data(size == 4 ? ".long" : size == 2 ? ".short" : ".byte", String.join(", ", operands), false);
+                return;
+            }
+            case ".ascii":
+                data(".ascii", operands[0], false);
+                return;
+            case ".asciiz":
+                data(".asciz", operands[0], false);
+                return;
+            default:
+                throw error("unknown directive "+op);
+        }
+    }
+
+    private void data(String directive, String operands, boolean zero)
+    {
+        if(!zero)
+            in_globals = false;
+        flushPending(in_globals ? ".bss" : ".data");
+        out.append('\t').append(directive).append('\t').append(operands).append('\n');
+    }
+
+    private void flushPending(String to)
+    {
+        if(pending.isEmpty())
+            return;
+        section(to);
+        for(String p : pending)
+            out.append(p).append('\n');
+        pending.clear();
+    }
+
+    private void section(String name)
+    {
+        if(name.equals(section))
+            return;
+        section = name;
+        out.append('\t').append(name).append('\n');
+    }
+
+    //-----------------------------------------
+    // Registers and operands
+
+    /**
+     * The name of a register without $, "" if operand is not one
+     * */
+    private static String register(String operand)
+    {
+        if(!operand.startsWith("$"))
+            return "";
+        String name = operand.substring(1);
+        if(name.equals("s8"))
+            return "fp";
+        if(!name.isEmpty() && Character.isDigit(name.charAt(0)))
+        {
+            int n = Integer.parseInt(name);
+            return n < NAMES.length ? NAMES[n] : "";
+        }
+        for(String n : NAMES)
+            if(n.equals(name))
+                return name;
+        return "";
+    }
+
+    private String reg(String operand)
+    {
+        String r = register(operand);
+        if(r.isEmpty())
+            throw error("expecting a register instead of "+operand);
+        return r;
+    }
+
+    private static boolean isRegister(String operand)
+    {
+        return !register(operand).isEmpty();
+    }
+
+    private static boolean inX86Register(String reg)
+    {
+        return REGISTERS.containsKey(reg);
+    }
+
+    private static boolean isMemory(String x86)
+    {
+        return !x86.startsWith("%") && !x86.startsWith("$");
+    }
+
+    //The 64 bit operand of a register
+    private String q(String reg)
+    {
+        return operand(reg, 0);
+    }
+
+    //The 32 bit operand of a register
+    private String l(String reg)
+    {
+        return operand(reg, 1);
+    }
+
+    private String operand(String reg, int size)
+    {
+        if(reg.equals("zero"))
+            return "$0";
+        if(reg.equals("gp"))
+            return "$"+globals;
+        if(inX86Register(reg))
+            return REGISTERS.get(reg)[size];
+        return "Mips_"+reg;
+    }
+
+    /**
+     * A register or a constant as the last operand of an instruction
+     * */
+    private String source(String operand, boolean wide)
+    {
+        if(isRegister(operand))
+            return wide ? q(reg(operand)) : l(reg(operand));
+        return "$"+operand;
+    }
+
+    /**
+     * reg = a 32 bit value, the upper half of the register becomes 0
+     * */
+    private void set32(String value, String reg)
+    {
+        if(reg.equals("zero"))
+            return;
+        if(reg.equals("gp"))
+            throw error("$gp can only be loaded with "+globals);
+        if(inX86Register(reg))
+        {
+            if(!value.equals(l(reg)))
+                emit("movl", value, l(reg));
+            return;
+        }
+        if(!value.equals("%eax"))
+            emit("movl", value, "%eax");
+        emit("movq", "%rax", q(reg));
+    }
+
+    private void set64(String value, String reg)
+    {
+        if(reg.equals("zero"))
+            return;
+        if(reg.equals("gp"))
+            throw error("$gp can only be loaded with "+globals);
+        if(inX86Register(reg))
+        {
+            if(!value.equals(q(reg)))
+                emit("movq", value, q(reg));
+            return;
+        }
+        if(isMemory(value))
+        {
+            emit("movq", value, "%rax");
+            value = "%rax";
+        }
+        emit("movq", value, q(reg));
+    }
+
+    /**
+     * rd = rs op value, in rd itself if it is an x86 register that value does not need
+     * */
+    private void arithmetic(String op, boolean wide, String rd, String rs, String value)
+    {
+        if(rd.equals("zero"))
+            return;
+        String suffix = wide ? "q" : "l";
+        String first = wide ? q(rs) : l(rs);
+        if(inX86Register(rd) && !value.equals(q(rd)) && !value.equals(l(rd)))
+        {
+            String target = wide ? q(rd) : l(rd);
+            if(!first.equals(target))
+                emit("mov"+suffix, first, target);
+            if(!value.equals("$0") || op.equals("and") || op.equals("imul"))
+                emit(op+suffix, value, target);
+            return;
+        }
+        String scratch = wide ? "%rax" : "%eax";
+        emit("mov"+suffix, first, scratch);
+        emit(op+suffix, value, scratch);
+        if(wide)
+            set64("%rax", rd);
+        else
+            set32("%eax", rd);
+    }
+
+    /**
+     * add, sub or addi, value is the register or the immediate: "jo" to the overflow handler after a 32 bit
+     * operation. Adding 0 cannot overflow and sets no flags
+     * */
+    private void checked(String op, String rd, String rs, String value)
+    {
+        String other = isRegister(value) ? reg(value) : "";
+        boolean address = isStack(rd) || isStack(rs) || isStack(other);
+        if(address || rd.equals("zero") || value.equals("0") || other.equals("zero"))
+        {
+            arithmetic(op, true, rd, rs, source(value, true));
+            return;
+        }
+        arithmetic(op, false, rd, rs, source(value, false));
+        emit("jo", target(overflow_handler));
+    }
+
+    private static boolean isStack(String reg)
+    {
+        return reg.equals("sp") || reg.equals("fp");
+    }
+
+    /**
+     * Sets the flags of a - b, both 32 bit operands
+     * */
+    private void compare(String a, String b)
+    {
+        if(a.startsWith("$") || isMemory(a) && isMemory(b))
+        {
+            emit("movl", a, "%eax");
+            a = "%eax";
+        }
+        if(b.equals("$0") && a.startsWith("%"))
+            emit("testl", a, a);
+        else
+            emit("cmpl", b, a);
+    }
+
+    /**
+     * An address "offset($reg)", "label" or "label+offset" as an x86 memory operand, a base in a slot goes to %r11
+     * */
+    private String address(String operand)
+    {
+        int open = operand.indexOf('(');
+        if(open < 0)
+            return operand;
+        if(!operand.endsWith(")"))
+            throw error("bad address "+operand);
+        String offset = operand.substring(0, open).trim();
+        String base = reg(operand.substring(open+1, operand.length()-1).trim());
+        if(base.equals("gp") || base.equals("zero"))
+        {
+            String label = base.equals("gp") ? globals : "";
+            if(offset.isEmpty())
+                return label.isEmpty() ? "0" : label;
+            return label.isEmpty() || offset.startsWith("-") ? label+offset : label+"+"+offset;
+        }
+        if(inX86Register(base))
+            return offset+"("+q(base)+")";
+        emit("movq", q(base), "%r11");
+        return offset+"(%r11)";
+    }
+
+    /**
+     * Where j and branches go to: the push in front of a label that pops
+     * */
+    private String target(String label)
+    {
+        return called.contains(label) ? label+".jump" : label;
+    }
+
+    //-----------------------------------------
+    // Instructions
+
+    private void instruction(String op, String[] ops)
+    {
+        switch (op)
+        {
+            case "add": case "sub":
+                expect(ops, 3);
+                checked(op, reg(ops[0]), reg(ops[1]), ops[2]);
+                break;
+            case "addi":
+                expect(ops, 3);
+                checked("add", reg(ops[0]), reg(ops[1]), ops[2]);
+                break;
+            case "addu": case "subu":
+                expect(ops, 3);
+                arithmetic(op.startsWith("add") ? "add" : "sub", true, reg(ops[0]), reg(ops[1]), source(ops[2], true));
+                break;
+            case "addiu":
+                expect(ops, 3);
+                arithmetic("add", true, reg(ops[0]), reg(ops[1]), "$"+ops[2]);
+                break;
+            case "and": case "andi": case "or": case "ori": case "xor": case "xori":
+                expect(ops, 3);
+                arithmetic(op.startsWith("x") ? "xor" : op.startsWith("o") ? "or" : "and", false,
+                        reg(ops[0]), reg(ops[1]), source(ops[2], false));
+                break;
+            case "nor":
+                expect(ops, 3);
+                emit("movl", l(reg(ops[1])), "%eax");
+                emit("orl", source(ops[2], false), "%eax");
+                emit("notl", "%eax");
+                set32("%eax", reg(ops[0]));
+                break;
+            case "slt": case "slti": case "sltu": case "sltiu":
+            case "seq": case "sne": case "sge": case "sgeu": case "sgt": case "sgtu": case "sle": case "sleu":
+                expect(ops, 3);
+                compare(l(reg(ops[1])), source(ops[2], false));
+                emit(setCondition(op), "%al");
+                emit("movzbl", "%al", "%eax");
+                set32("%eax", reg(ops[0]));
+                break;
+            case "movz": case "movn":
+                expect(ops, 3);
+                compare(l(reg(ops[2])), "$0");
+                emit(op.equals("movz") ? "jne" : "je", "1f");
+                set64(q(reg(ops[1])), reg(ops[0]));
+                out.append("1:\n");
+                break;
+            case "sll": case "srl": case "sra":
+                expect(ops, 3);
+                arithmetic(op.equals("sll") ? "shl" : op.equals("srl") ? "shr" : "sar", false,
+                        reg(ops[0]), reg(ops[1]), "$"+(Long.decode(ops[2]) & 31));
+                break;
+            case "sllv": case "srlv": case "srav":
+                expect(ops, 3);
+                emit("movl", l(reg(ops[2])), "%ecx");
+                arithmetic(op.equals("sllv") ? "shl" : op.equals("srlv") ? "shr" : "sar", false,
+                        reg(ops[0]), reg(ops[1]), "%cl");
+                break;
+            case "mul":
+                expect(ops, 3);
+                arithmetic("imul", false, reg(ops[0]), reg(ops[1]), source(ops[2], false));
+                break;
+            case "mult": case "multu": case "div": case "divu":
+                if(ops.length == 3)
+                {
+                    //div rd, rs, rt
+                    multiplyOrDivide(op, reg(ops[1]), ops[2]);
+                    set32("Mips_lo", reg(ops[0]));
+                    break;
+                }
+                expect(ops, 2);
+                multiplyOrDivide(op, reg(ops[0]), ops[1]);
+                break;
+            case "rem":
+                expect(ops, 3);
+                multiplyOrDivide("div", reg(ops[1]), ops[2]);
+                set32("Mips_hi", reg(ops[0]));
+                break;
+            case "mfhi": case "mflo":
+                expect(ops, 1);
+                set32(op.equals("mfhi") ? "Mips_hi" : "Mips_lo", reg(ops[0]));
+                break;
+            case "lui":
+                expect(ops, 2);
+                set32("$"+(int)((Long.decode(ops[1]) & 0xffff) << 16), reg(ops[0]));
+                break;
+            case "li":
+                expect(ops, 2);
+                set32("$"+ops[1], reg(ops[0]));
+                break;
+            case "la":
+                expect(ops, 2);
+                if(reg(ops[0]).equals("gp") && ops[1].equals(globals))
+                    break;
+                if(ops[1].endsWith(")"))
+                {
+                    emit("leaq", address(ops[1]), "%rax");
+                    set64("%rax", reg(ops[0]));
+                }
+                else
+                    set32("$"+ops[1], reg(ops[0]));
+                break;
+            case "move":
+                expect(ops, 2);
+                set64(q(reg(ops[1])), reg(ops[0]));
+                break;
+            case "neg":
+                expect(ops, 2);
+                arithmetic("sub", false, reg(ops[0]), "zero", l(reg(ops[1])));
+                break;
+            case "not":
+                expect(ops, 2);
+                emit("movl", l(reg(ops[1])), "%eax");
+                emit("notl", "%eax");
+                set32("%eax", reg(ops[0]));
+                break;
+            case "lw": case "lb": case "lbu": case "lh": case "lhu":
+            {
+                expect(ops, 2);
+                String rd = reg(ops[0]);
+                String from = address(ops[1]);
+                if(inX86Register(rd))
+                    emit(LOADS.get(op), from, l(rd));
+                else if(!rd.equals("zero"))
+                {
+                    emit(LOADS.get(op), from, "%eax");
+                    set32("%eax", rd);
+                }
+                break;
+            }
+            case "sw": case "sh": case "sb":
+            {
+                expect(ops, 2);
+                String rs = reg(ops[0]);
+                String to = address(ops[1]);
+                int size = op.equals("sw") ? 1 : op.equals("sh") ? 2 : 3;
+                String value;
+                if(rs.equals("zero"))
+                    value = "$0";
+                else if(inX86Register(rs))
+                    value = REGISTERS.get(rs)[size];
+                else
+                {
+                    emit("movq", q(rs), "%rax");
+                    value = new String[]{"%rax", "%eax", "%ax", "%al"}[size];
+                }
+                emit(size == 1 ? "movl" : size == 2 ? "movw" : "movb", value, to);
+                break;
+            }
+            case "beq": case "bne": case "blt": case "bge": case "bgt": case "ble":
+                expect(ops, 3);
+                compare(l(reg(ops[0])), source(ops[1], false));
+                emit(condition(op), target(ops[2]));
+                break;
+            case "beqz": case "bnez": case "blez": case "bgtz": case "bltz": case "bgez":
+                expect(ops, 2);
+                compare(l(reg(ops[0])), "$0");
+                emit(condition(op), target(ops[1]));
+                break;
+            case "b": case "j":
+                expect(ops, 1);
+                emit("jmp", target(ops[0]));
+                break;
+            case "jal":
+                expect(ops, 1);
+                emit("call", ops[0]);
+                break;
+            case "jr":
+            {
+                expect(ops, 1);
+                String r = reg(ops[0]);
+                if(r.equals("ra"))
+                {
+                    emit("pushq", q(r));
+                    emit("ret");
+                }
+                else
+                    emit("jmp", "*"+q(r));
+                break;
+            }
+            case "syscall":
+                emit("call", "Mips_syscall");
+                break;
+            case "break":
+                if(ops.length == 1 && ops[0].equals(""+MipsSimulator.BREAK_DIVISION_BY_ZERO))
+                    emit("jmp", "Mips_division_by_zero");
+                else if(ops.length == 1 && ops[0].equals(""+MipsSimulator.BREAK_OVERFLOW))
+                    emit("jmp", "Mips_overflow");
+                else
+                    emit("ud2");
+                break;
+            case "nop":
+                break;
+            default:
+                throw error("no x86-64 translation for "+op);
+        }
+    }
+
+    private static String condition(String branch)
+    {
+        switch (branch)
+        {
+            case "beq": case "beqz": return "je";
+            case "bne": case "bnez": return "jne";
+            case "blt": case "bltz": return "jl";
+            case "bge": case "bgez": return "jge";
+            case "bgt": case "bgtz": return "jg";
+            default: return "jle";
+        }
+    }
+
+    private static String setCondition(String set)
+    {
+        switch (set)
+        {
+            case "slt": case "slti": return "setl";
+            case "sltu": case "sltiu": return "setb";
+            case "seq": return "sete";
+            case "sne": return "setne";
+            case "sge": return "setge";
+            case "sgeu": return "setae";
+            case "sgt": return "setg";
+            case "sgtu": return "seta";
+            case "sle": return "setle";
+            default: return "setbe";    //sleu
+        }
+    }
+
+    /**
+     * HI and LO of mult or div. Like MARS a division by 0 leaves them alone, and 0x80000000 / -1 does not trap
+     * */
+    private void multiplyOrDivide(String op, String rs, String rt)
+    {
+        emit("movl", l(rs), "%eax");
+        emit("movl", source(rt, false), "%ecx");
+        if(op.startsWith("mult"))
+            emit(op.equals("mult") ? "imull" : "mull", "%ecx");
+        else
+        {
+            emit("testl", "%ecx", "%ecx");
+            emit("je", "1f");
+            if(op.equals("div"))
+            {
+                emit("cmpl", "$-1", "%ecx");
+                emit("jne", "2f");
+                emit("negl", "%eax");
+                emit("xorl", "%edx", "%edx");
+                emit("jmp", "3f");
+                out.append("2:\n");
+                emit("cltd");
+                emit("idivl", "%ecx");
+            }
+            else
+            {
+                emit("xorl", "%edx", "%edx");
+                emit("divl", "%ecx");
+            }
+            out.append("3:\n");
+        }
+        emit("movl", "%eax", "Mips_lo");
+        emit("movl", "%edx", "Mips_hi");
+        if(op.startsWith("div"))
+            out.append("1:\n");
+    }
+
+    //-----------------------------------------
+    // Runtime
+
+    /**
+     * Falling off the end of the text, then the services of syscall
+     * */
+    private void end()
+    {
+        flushPending(".data");
+        section(".text");
+        emit("xorl", "%edi", "%edi");
+        emit("movl", "$60", "%eax");
+        emit("syscall");
+        out.append("Mips_syscall:\n");
+        emit("movl", l("v0"), "%eax");
+        String[][] services = {{"4","Mips_print_string"},{"1","Mips_print_int"},{"11","Mips_print_char"},
+                {"10","Mips_exit"},{"17","Mips_exit_code"}};
+        for(String[] service : services)
+        {
+            emit("cmpl", "$"+service[0], "%eax");
+            emit("je", service[1]);
+        }
+        //An unknown service
+        emit("movl", "$1", "%edi");
+        emit("movl", "$60", "%eax");
+        emit("syscall");
+
+        out.append("Mips_print_string:\n");
+        emit("movq", q("a0"), "%rax");
+        emit("movq", "%rax", "%rdx");
+        out.append("1:\n");
+        emit("cmpb", "$0", "(%rdx)");
+        emit("je", "2f");
+        emit("incq", "%rdx");
+        emit("jmp", "1b");
+        out.append("2:\n");
+        emit("subq", "%rax", "%rdx");
+        emit("jmp", "Mips_write");
+
+        out.append("Mips_print_char:\n");
+        emit("movl", l("a0"), "%eax");
+        emit("movb", "%al", "Mips_char");
+        emit("movl", "$Mips_char", "%eax");
+        emit("movl", "$1", "%edx");
+        emit("jmp", "Mips_write");
+
+        out.append("Mips_print_int:\n");
+        emit("movl", l("a0"), "%eax");
+        emit("movslq", "%eax", "%rax");
+        emit("movq", "%rax", "%r11");
+        emit("movl", "$Mips_digits_end", "%ecx");
+        emit("testq", "%rax", "%rax");
+        emit("jns", "1f");
+        emit("negq", "%rax");
+        out.append("1:\n");
+        emit("xorl", "%edx", "%edx");
+        emit("divq", "Mips_ten");
+        emit("addb", "$48", "%dl");
+        emit("decq", "%rcx");
+        emit("movb", "%dl", "(%rcx)");
+        emit("testq", "%rax", "%rax");
+        emit("jne", "1b");
+        emit("testq", "%r11", "%r11");
+        emit("jns", "2f");
+        emit("decq", "%rcx");
+        emit("movb", "$45", "(%rcx)");
+        out.append("2:\n");
+        emit("movl", "$Mips_digits_end", "%edx");
+        emit("subq", "%rcx", "%rdx");
+        emit("movq", "%rcx", "%rax");
+
+        //write(1, %rax, %rdx), the registers of $a0 and $ra are the ones of the system call
+        out.append("Mips_write:\n");
+        emit("pushq", "%rsi");
+        emit("pushq", "%rdi");
+        emit("movq", "%rax", "%rsi");
+        emit("movl", "$1", "%edi");
+        emit("movl", "$1", "%eax");
+        emit("syscall");
+        emit("popq", "%rdi");
+        emit("popq", "%rsi");
+        emit("ret");
+
+        out.append("Mips_exit:\n");
+        emit("xorl", "%edi", "%edi");
+        emit("movl", "$60", "%eax");
+        emit("syscall");
+        out.append("Mips_exit_code:\n");
+        emit("movl", l("a0"), "%edi");
+        emit("movl", "$60", "%eax");
+        emit("syscall");
+
+        //write(2, message, length), exit(1)
+        out.append("Mips_division_by_zero:\n");
+        emit("movl", "$Mips_division_message", "%esi");
+        emit("movl", "$Mips_division_message_end-Mips_division_message", "%edx");
+        emit("jmp", "Mips_stop");
+        out.append("Mips_overflow:\n");
+        emit("movl", "$Mips_overflow_message", "%esi");
+        emit("movl", "$Mips_overflow_message_end-Mips_overflow_message", "%edx");
+        out.append("Mips_stop:\n");
+        emit("movl", "$2", "%edi");
+        emit("movl", "$1", "%eax");
+        emit("syscall");
+        emit("movl", "$1", "%edi");
+        emit("movl", "$60", "%eax");
+        emit("syscall");
+    }
+
+    private void runtimeData()
+    {
+        section(".data");
+        out.append("Mips_ten:\n");
+        emit(".quad", "10");
+        out.append("Mips_division_message:\n");
+        emit(".ascii", "\"Program stopped: division by zero\\n\"");
+        out.append("Mips_division_message_end:\n");
+        out.append("Mips_overflow_message:\n");
+        emit(".ascii", "\"Program stopped: arithmetic overflow\\n\"");
+        out.append("Mips_overflow_message_end:\n");
+        section(".bss");
+        for(String name : NAMES)
+            if(!inX86Register(name) && !name.equals("zero") && !name.equals("gp"))
+                out.append("Mips_").append(name).append(":\n\t.zero\t8\n");
+        out.append("Mips_hi:\n\t.zero\t8\nMips_lo:\n\t.zero\t8\nMips_char:\n\t.zero\t1\n");
+        out.append("Mips_digits:\n\t.zero\t20\nMips_digits_end:\n");
+        out.append("\t.p2align\t4\nMips_stack:\n\t.zero\t").append(STACK_SIZE).append("\nMips_stack_end:\n");
+    }
+
+    //-----------------------------------------
+
+    private void emit(String op, String... operands)
+    {
+        out.append('\t').append(op);
+        if(operands.length > 0)
+            out.append('\t').append(String.join(", ", operands));
+        out.append('\n');
+    }
+
+    private void expect(String[] operands, int count)
+    {
+        if(operands.length != count)
+            throw error("expecting "+count+" operands");
+    }
+
+    private RuntimeException error(String message)
+    {
+        return new RuntimeException("x86-64: line "+number+" \""+text.trim()+"\": "+message);
+    }
+}
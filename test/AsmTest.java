@@ -0,0 +1,37 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * asm statements
+ * */
+public class AsmTest extends Programs {
+
+    /**
+     * asm starts a statement only in front of "(", "{" or clobber, it is still a name for variables
+     * */
+    @Test
+    public void asmAsName()
+    {
+        check(lines(5, 8), "int asm;\ndef void main()\n{\n    int x;\n    asm = 4;\n    x = asm + 1;\n    println(x);\n" +
+                "    asm = asm * 2;\n    println(asm);\n}\n");
+    }
+
+    /**
+     * The three forms of asm: with operands (here with the "(" on the next line), without anything,
+     * and with only a clobber list
+     * */
+    @Test
+    public void asmForms()
+    {
+        String operands = "def void main()\n{\n    int s,n;\n    n = 10;\n    asm\n    (=s, n) clobber(\"$t0\")\n    {\n" +
+                "        \"li $t0, 0\" \"loop%=:\" \"addu $t0, $t0, %1\" \"addi %1, %1, -1\" \"bne %1, $zero, loop%=\" \"move %0, $t0\"\n" +
+                "    }\n    println(s);\n}\n";
+        assertEquals(lines(55), runMips(operands, new Options()));
+        String bare = "def void main()\n{\n    asm { \"li $v0, 1\" \"li $a0, 7\" \"syscall\" }\n    println(2);\n}\n";
+        assertEquals(lines(72), runMips(bare, new Options()));
+        String clobber = "def void main()\n{\n    int x;\n    x = 3;\n" +
+                "    asm clobber(\"$t8\") { \"li $t8, 9\" \"move $a0, $t8\" \"li $v0, 1\" \"syscall\" }\n    println(x);\n}\n";
+        assertEquals(lines(93), runMips(clobber, new Options()));
+    }
+}
@@ -0,0 +1,33 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Sethi-Ullman ordering of expressions, with more values alive than there are registers
+ * */
+public class EvaluationOrderTest extends Programs {
+
+    /**
+     * More values alive at once than there are registers
+     * */
+    @Test
+    public void spills()
+    {
+        StringBuilder expr = new StringBuilder();
+        StringBuilder close = new StringBuilder();
+        for(int i=0;i<30;i++)
+        {
+            expr.append("(a").append(i%3).append(" * ").append(i+1).append(" + ");
+            close.append(")");
+        }
+        int[] a = {3, -4, 5};
+        long expected = 0;
+        for(int i=29;i>=0;i--)
+            expected = a[i%3]*(i+1)+expected;
+        check(lines((int)expected, (int)expected+2),
+                "def int id(int x)\n{\n    return x;\n}\n" +
+                "def void main()\n{\n    int a0,a1,a2;\n    a0 = 3; a1 = 0 - 4; a2 = 5;\n" +
+                "    println(" + expr + "0" + close + ");\n" +
+                "    println(" + expr.toString().replace("a1 *", "(a1 + cal id(0)) *") + "cal id(2)" + close + ");\n}\n");
+    }
+}
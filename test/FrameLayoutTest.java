@@ -0,0 +1,21 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Stack slots shared by values and arrays that are not alive at the same time
+ * */
+public class FrameLayoutTest extends Programs {
+
+    /**
+     * An array whose first use stores one element must not get the slot of an array that is dead by then
+     * */
+    @Test
+    public void arraySlots()
+    {
+        String source = "def void main()\n{\n    array b[2];\n    array a[2];\n" +
+                "    b[0] = 5;\n    b[1] = 6;\n    println(b[0] + b[1]);\n" +
+                "    a[0] = 3;\n    println(a[0] + a[1]);\n}\n";
+        check(lines(11, 3), source);
+    }
+}
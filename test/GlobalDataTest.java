@@ -0,0 +1,22 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Globals in the static data segment, addressed from $gp
+ * */
+public class GlobalDataTest extends Programs {
+
+    /**
+     * A global behind 32 KB of arrays is out of the reach of a 16 bit offset from $gp
+     * */
+    @Test
+    public void globalsAbove32K()
+    {
+        check(lines(5, 9, 14, 3),
+                "array big[9000];\nint far;\n" +
+                "def void main()\n{\n    big[0] = 5;\n    big[8999] = 9;\n    far = big[0] + big[8999];\n" +
+                "    println(big[0]);\n    println(big[8999]);\n    println(far);\n" +
+                "    far = far - 11;\n    println(far);\n}\n");
+    }
+}
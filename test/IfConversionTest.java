@@ -0,0 +1,40 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * If-conversion of small arms into movn/movz
+ * */
+public class IfConversionTest extends Programs {
+
+    /**
+     * An arm without braces is the last statement of the block around the if
+     * */
+    @Test
+    public void ifConversionWithoutBraces()
+    {
+        String source = "def void main()\n{\n    int k,i;\n    k = 0; i = 0;\n" +
+                "    while(i < 6) { k = k + 1; if(k > 2) i = i + 2; }\n" +
+                "    println(k);\n    println(i);\n" +
+                "    if(k > 4) { i = 1; } else i = 2;\n    println(i);\n}\n";
+        assertTrue(listing(source, new Options()).contains("#If-conversion"));
+        check(lines(5, 6, 1), source);
+    }
+
+    /**
+     * Both arms run after if-conversion, so arms that add or subtract keep their branches: only the arm
+     * that is selected may stop the program on an overflow
+     * */
+    @Test
+    public void ifConversionAndOverflow()
+    {
+        String source = "int g;\ndef void main()\n{\n    int x,y;\n    g = 1000;\n    x = g;\n" +
+                "    if(x < 100) y = x + 2147483000; else y = 7;\n    println(y);\n" +
+                "    if(x > 100) y = -5; else y = x * 3;\n    println(y);\n" +
+                "    if(x > 100) y = x + 2147483000;\n    println(y);\n}\n";
+        String program = listing(source, new Options());
+        String main = program.substring(program.indexOf("main:"), program.indexOf("jr\t$ra", program.indexOf("main:")));
+        assertEquals(1, main.split("#If-conversion", -1).length-1);
+        check(lines(7, -5)+"Program stopped: arithmetic overflow", source);
+    }
+}
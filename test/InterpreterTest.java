@@ -0,0 +1,33 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Interpreter (-interp): it stops on a division by zero and an overflow like the other backends
+ * */
+public class InterpreterTest extends Programs {
+
+    /**
+     * Every backend stops at a division by zero, after what was printed before it
+     * */
+    @Test
+    public void divisionByZero()
+    {
+        check(lines(7, 3) + "Program stopped: division by zero",
+                "int g;\ndef void main()\n{\n    int x,y;\n    g = 2;\n    x = g;\n    println(7 / x + 4);\n" +
+                "    x = x - 2;\n    println(3);\n    y = 7 / x;\n    println(y);\n}\n");
+    }
+
+    /**
+     * "+" and "-" stop every backend on an overflow, after what was printed before it
+     * */
+    @Test
+    public void overflow()
+    {
+        String[] statements = {"a = a + 1;", "a = 0 - a - 2;", "g = g + a;", "g = 0 - 2; g = g - a;"};
+        for(String statement : statements)
+            check(lines(1)+"Program stopped: arithmetic overflow",
+                    "int g;\ndef void main()\n{\n    int a;\n    g = 2147483647;\n    a = g;\n    println(1);\n    " +
+                    statement+"\n    println(a);\n}\n");
+    }
+}
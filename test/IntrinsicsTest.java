@@ -0,0 +1,21 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * The intrinsics abs, min and max, and functions of the program with their names
+ * */
+public class IntrinsicsTest extends Programs {
+
+    /**
+     * A function of the program named like an intrinsic is called, also when it is defined after the call
+     * */
+    @Test
+    public void intrinsicDefinedLater()
+    {
+        check(lines(13, 13, 3, 5),
+                "def void main()\n{\n    int a;\n    a = 3;\n    println(cal max(a, 10));\n    println(cal max(3, 10));\n" +
+                "    println(cal min(3, 10));\n    println(cal abs(0 - 5));\n}\n" +
+                "def int max(int x, int y)\n{\n    return x + y;\n}\n");
+    }
+}
@@ -0,0 +1,34 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * JvmBackend (-jvm) and JvmRuntime
+ * */
+public class JvmBackendTest extends Programs {
+
+    /**
+     * Programs run by two threads at the same time each print to their own stream, and all of their output
+     * */
+    @Test
+    public void concurrentJvmRuns() throws InterruptedException
+    {
+        String[] outputs = new String[2];
+        Thread[] threads = new Thread[2];
+        for(int t=0;t<2;t++)
+        {
+            int value = t+1;
+            threads[t] = new Thread(() -> outputs[value-1] = runJvm("def void main()\n{\n    int i;\n    i = 0;\n" +
+                    "    while(i < 20000)\n    {\n        println(" + value + ");\n        i = i + 1;\n    }\n}\n"));
+            threads[t].start();
+        }
+        for(int t=0;t<2;t++)
+        {
+            threads[t].join();
+            StringBuilder expected = new StringBuilder();
+            for(int i=0;i<20000;i++)
+                expected.append(t+1).append('\n');
+            assertEquals(expected.toString(), outputs[t]);
+        }
+    }
+}
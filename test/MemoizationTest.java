@@ -0,0 +1,21 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * -memo: pure recursive functions look their result up in a table
+ * */
+public class MemoizationTest extends Programs {
+
+    @Test
+    public void memo()
+    {
+        String source = "def int fib(int n)\n{\n    int a,b;\n    if(n < 3) { a = 1; b = 0; }\n" +
+                "    else { a = cal fib(n-1); b = cal fib(n-2); }\n    return a + b;\n}\n" +
+                "def void main()\n{\n    println(cal fib(20));\n    println(cal fib(1));\n    println(cal fib(0 - 3));\n}\n";
+        Options options = new Options();
+        options.memo_bound = 64;
+        check(lines(6765, 1, 1), source, options);
+        check(lines(6765, 1, 1), source);
+    }
+}
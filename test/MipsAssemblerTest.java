@@ -0,0 +1,55 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * MipsAssembler (-bin, -run): branches out of range and the pseudo instructions of MARS
+ * */
+public class MipsAssemblerTest extends Programs {
+
+    /**
+     * The body of the while is longer than a branch reaches, the assembler has to relax the loop test
+     * */
+    @Test
+    public void relaxedBranches()
+    {
+        StringBuilder body = new StringBuilder();
+        for(int k=0;k<2400;k++)
+            body.append("        s = s - s + cal add(i, ").append(k%7).append(", s) + cal add(0 - s, i, 1);\n");
+        String source = "def int add(int a, int b, int c)\n{\n    return a + b + c;\n}\n" +
+                "def void main()\n{\n    int i,s;\n    i = 0; s = 0;\n    while(i < 3)\n    {\n" +
+                body + "        i = i + 1;\n    }\n    println(s);\n}\n";
+        StringBuilder program = new StringBuilder();
+        new Compilation(new Options()).compile(source, program);
+        MipsAssembler assembler = new MipsAssembler();
+        assembler.assemble(program.toString());
+        assertTrue(assembler.getRelaxedBranches() > 0);
+        int s = 0;
+        for(int i=0;i<3;i++)
+            for(int k=0;k<2400;k++)
+                s = 2*i+k%7+1;
+        //main is more than the 64 KB of code a JVM method may have
+        assertEquals(lines(s), runMips(source, new Options()));
+        assertEquals(lines(s), runInterpreter(source, 0));
+    }
+
+    /**
+     * The set pseudo instructions of MARS in an asm statement, with a register and with a constant
+     * */
+    @Test
+    public void asmSetInstructions()
+    {
+        String[] ops = {"seq", "sne", "sge", "sgeu", "sgt", "sgtu", "sle", "sleu"};
+        StringBuilder source = new StringBuilder("def void main()\n{\n    int x,a,b;\n    a = 0 - 1;\n    b = 3;\n");
+        for(String op : ops)
+            source.append("    asm(=x, a, b) { \"").append(op).append(" %0, %1, %2\" }\n    println(x);\n");
+        for(String op : ops)
+            source.append("    asm(=x, b) { \"").append(op).append(" %0, %1, 3\" }\n    println(x);\n");
+        source.append("}\n");
+        String expected = lines(0, 1, 0, 1, 0, 1, 1, 0, 1, 0, 1, 1, 0, 0, 1, 1);
+        assertEquals(expected, runMips(source.toString(), new Options()));
+        Options jit = new Options();
+        jit.jit = true;
+        assertEquals(expected, runMips(source.toString(), jit));
+    }
+}
@@ -0,0 +1,46 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * MipsSimulator (-run, -jit): overflow traps and their handler
+ * */
+public class MipsSimulatorTest extends Programs {
+
+    /**
+     * add, sub and addi trap on overflow like in MARS, interpreted and translated by the JIT; addu, subu and addiu wrap
+     * */
+    @Test
+    public void overflowTraps()
+    {
+        //$t2 passes the limit on trip 151 of 200, the JIT has translated the loop by then
+        String[][] cases = {{"add", "addu", "2147483497", "$t3"}, {"sub", "subu", "-2147483498", "$t3"}, {"addi", "addiu", "2147483497", "1"}};
+        for(String[] c : cases)
+        {
+            String loop = "main:\n\tli\t$t0,\t200\n\tli\t$t2,\t"+c[2]+"\n\tli\t$t3,\t1\n" +
+                    "loop:\n\t%s\t$t2,\t$t2,\t"+c[3]+"\n\taddiu\t$t0,\t$t0,\t-1\n\tbne\t$t0,\t$zero,\tloop\n" +
+                    "\tli\t$v0,\t10\n\tsyscall\n";
+            for(boolean jit : new boolean[]{false, true})
+            {
+                assertTrue(c[0], runAssembly(String.format(loop, c[0]), jit).contains("arithmetic overflow"));
+                assertEquals(c[1], "", runAssembly(String.format(loop, c[1]), jit));
+            }
+        }
+    }
+
+    /**
+     * An overflow in a program made by Parser goes to its handler, which writes out what was printed before
+     * */
+    @Test
+    public void overflowHandler()
+    {
+        String source = "int g;\ndef void main()\n{\n    int a,i;\n    g = 2147483000;\n    a = g;\n    println(1);\n" +
+                "    i = 0;\n    while(i < 1000)\n    {\n        a = a + 1;\n        i = i + 1;\n    }\n    println(a);\n}\n";
+        for(boolean jit : new boolean[]{false, true})
+        {
+            Options options = new Options();
+            options.jit = jit;
+            assertEquals(lines(1)+"Program stopped: arithmetic overflow", runMips(source, options));
+        }
+    }
+}
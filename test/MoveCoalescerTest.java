@@ -0,0 +1,25 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Copy propagation and move coalescing
+ * */
+public class MoveCoalescerTest extends Programs {
+
+    /**
+     * Arguments are computed straight into $aN and return values into $v0, across the jal and the
+     * jump to the end of the function
+     * */
+    @Test
+    public void argumentAndReturnMoves()
+    {
+        String source = "def int dec(int x)\n{\n    if(x < 0)\n        return 0 - x;\n    else\n        return x - 1;\n}\n" +
+                "def void main()\n{\n    int a;\n    a = 5;\n    println(cal dec(a + 2));\n    println(cal dec(0 - a));\n    println(a);\n}\n";
+        StringBuilder program = new StringBuilder();
+        Compilation.Result result = new Compilation(new Options()).compile(source, program);
+        assertTrue(result.removed_moves > 0);
+        assertFalse(program.toString().matches("(?s).*move\t\\$[av]\\d,\t\\$[ts]\\d.*"));
+        check(lines(6, 5, 5), source);
+    }
+}
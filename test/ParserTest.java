@@ -1,5 +1,20 @@
 import static org.junit.Assert.*;
 
-public class ParserTest {
+import org.junit.Test;
 
-}
\ No newline at end of file
+public class ParserTest extends Programs {
+
+    @Test
+    public void arithmetic()
+    {
+        check(lines(14, -3, 2, -2, 1, 0, 2, 28, -2147483647, 100),
+                "def int twice(int x)\n{\n    return x * 2;\n}\n" +
+                "def void main()\n{\n    int a,b,c;\n    a = 7; b = 0 - 3; c = 2;\n" +
+                "    println(a * c);\n    println(b);\n    println(a / 3);\n    println(0 - a / 3);\n" +
+                "    println(a > b);\n    println(a < b);\n" +
+                "    println(a - (b - (c - 5)) - 1 - 2 + 6 - 3 - 3 + b + 3 - 1 + 1 - 1 + 1 - c + 2 - 1 - 3 + 3 - 2 + 1);\n" +
+                "    println(cal twice(cal twice(a + c - 9 + 7) + 7) - 14);\n" +
+                "    println(0 - 2147483647);\n" +
+                "    println((a + b) * (c + 23) + 0 * a);\n}\n");
+    }
+}
@@ -0,0 +1,123 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Scanner;
+
+/**
+ * The runners of the tests. Every program is compiled for three backends that share nothing after the
+ * scanner: MIPS code run in MipsSimulator (-run), Interpreter (-interp) and a JVM class (-jvm -run).
+ * All of them have to print the expected output, so a pass that changes what a program means shows
+ * up as a difference.
+ * */
+abstract class Programs {
+
+    static final long MAX_STEPS = 1L << 28;
+
+    /**
+     * -run: Parser with the options, MipsAssembler, MipsSimulator (with the JIT for -jit)
+     * */
+    static String runMips(String source, Options options)
+    {
+        StringBuilder program = new StringBuilder();
+        Compilation.Result result = new Compilation(options).compile(source, program);
+        assertTrue("MIPS: "+result.diagnostics, result.succeeded());
+        MipsAssembler assembler = new MipsAssembler();
+        assembler.assemble(program.toString());
+        MipsSimulator simulator = new MipsSimulator(assembler, MAX_STEPS);
+        if(options.jit)
+            simulator.useJit();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try
+        {
+            simulator.run(new PrintStream(bytes, true));
+        }
+        catch (RuntimeException e)
+        {
+            return bytes+e.getMessage();
+        }
+        return bytes.toString();
+    }
+
+    static String runInterpreter(String source, int memo_bound)
+    {
+        Interpreter interpreter = new Interpreter(new TokenMgr(new Scanner(new StringReader(source))), memo_bound);
+        interpreter.compile();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try
+        {
+            interpreter.run(new PrintStream(bytes, true));
+        }
+        catch (RuntimeException e)
+        {
+            return bytes+e.getMessage();
+        }
+        return bytes.toString();
+    }
+
+    static String runJvm(String source)
+    {
+        byte[] bytes = new JvmBackend(new TokenMgr(new Scanner(new StringReader(source))), "Test").compile();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        JvmRuntime.setOut(new PrintStream(output, true));
+        try
+        {
+            JvmRuntime.run(JvmBackend.load("Test", bytes));
+        }
+        catch (RuntimeException e)
+        {
+            return output+e.getMessage();
+        }
+        finally
+        {
+            JvmRuntime.setOut(System.out);
+        }
+        return output.toString();
+    }
+
+    static void check(String expected, String source, Options options)
+    {
+        assertEquals("-run", expected, runMips(source, options));
+        assertEquals("-interp", expected, runInterpreter(source, options.memo_bound));
+        assertEquals("-jvm", expected, runJvm(source));
+    }
+
+    static void check(String expected, String source)
+    {
+        check(expected, source, new Options());
+    }
+
+    static String lines(int... values)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(int v : values)
+            sb.append(v).append('\n');
+        return sb.toString();
+    }
+
+    static String listing(String source, Options options)
+    {
+        StringBuilder program = new StringBuilder();
+        assertTrue(new Compilation(options).compile(source, program).succeeded());
+        return program.toString();
+    }
+
+    static String runAssembly(String program, boolean jit)
+    {
+        MipsAssembler assembler = new MipsAssembler();
+        assembler.assemble(program);
+        MipsSimulator simulator = new MipsSimulator(assembler, MAX_STEPS);
+        if(jit)
+            simulator.useJit();
+        try
+        {
+            simulator.run(new PrintStream(new ByteArrayOutputStream(), true));
+        }
+        catch (RuntimeException e)
+        {
+            return e.getMessage();
+        }
+        return "";
+    }
+}
@@ -0,0 +1,22 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Clones of a function specialized for constant arguments
+ * */
+public class SpecializationTest extends Programs {
+
+    /**
+     * Calls with a constant argument get a clone of the function specialized for it
+     * */
+    @Test
+    public void specialization()
+    {
+        check(lines(21, 28, 0, 3, 120),
+                "def int scale(int x, int k)\n{\n    int r;\n    r = 0;\n    while(k > 0)\n    {\n        r = r + x;\n        k = k - 1;\n    }\n    return r;\n}\n" +
+                "def int fact(int n)\n{\n    if(n > 1)\n    {\n        return n * cal fact(n - 1);\n    }\n    else\n    {\n        return 1;\n    }\n}\n" +
+                "def void main()\n{\n    int i;\n    i = 7;\n    println(cal scale(i, 3));\n    println(cal scale(i, 4));\n" +
+                "    println(cal scale(i, 0));\n    println(cal scale(1, i - 4));\n    println(cal fact(5));\n}\n");
+    }
+}
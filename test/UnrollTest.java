@@ -0,0 +1,33 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * -unroll: counted while loops
+ * */
+public class UnrollTest extends Programs {
+
+    @Test
+    public void unroll()
+    {
+        String source = "def void main()\n{\n    int i,s,n;\n    n = 23;\n    s = 0;\n    i = 0;\n" +
+                "    while(i < n) { s = s + i; i = i + 2; }\n    println(s);\n    println(i);\n" +
+                "    i = 0;\n    while(i < 3) { s = s - i; i = i + 1; }\n    println(s);\n}\n";
+        assertTrue(listing(source, new Options()).contains("unrolled 4 times"));
+        assertTrue(listing(source, new Options()).contains("unrolled 3 times"));
+        check(lines(132, 24, 129), source);
+    }
+
+    /**
+     * The increment of i runs on some trips only, the loop must not be unrolled
+     * */
+    @Test
+    public void unrollConditionalStep()
+    {
+        String source = "def void main()\n{\n    int k,z,i;\n    k = 0; z = 0; i = 0;\n" +
+                "    while(i < 4) { k = k + 1; if(k < 3) z = z + 1; else i = i + 2; }\n" +
+                "    println(k);\n    println(i);\n}\n";
+        assertFalse(listing(source, new Options()).contains("unrolled"));
+        check(lines(4, 4), source);
+    }
+}
@@ -0,0 +1,24 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * X86Backend (-x86)
+ * */
+public class X86BackendTest extends Programs {
+
+    /**
+     * -x86: add, sub and addi jump to the overflow handler of the program, addu, subu and addiu wrap
+     * */
+    @Test
+    public void x86OverflowChecks()
+    {
+        String[] trapping = {"add\t$t0,\t$t1,\t$t2", "sub\t$t0,\t$t1,\t$t2", "addi\t$t0,\t$t1,\t5"};
+        String[] wrapping = {"addu\t$t0,\t$t1,\t$t2", "subu\t$t0,\t$t1,\t$t2", "addiu\t$t0,\t$t1,\t5", "addi\t$sp,\t$sp,\t-8"};
+        for(String instruction : trapping)
+            assertTrue(instruction, new X86Backend().translate("main:\n\t"+instruction+"\n"+PrintRuntime.OVERFLOW+":\n")
+                    .contains("jo\t"+PrintRuntime.OVERFLOW));
+        for(String instruction : wrapping)
+            assertFalse(instruction, new X86Backend().translate("main:\n\t"+instruction+"\n").contains("jo\t"));
+    }
+}